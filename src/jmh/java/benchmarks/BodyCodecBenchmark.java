@@ -0,0 +1,90 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import enums.MediaTypes;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import utils.BodyCodec;
+
+/**
+ *
+ * Compares JSON, CBOR and MessagePack (see BodyCodec) on the two hot paths of the data routes, per row:
+ * - decodeInsertBody: decoding an /insert body of ROWS rows, as InsertDataHandler receives it.
+ * - encodeResultRows: encoding ROWS rows of a /select result, as ResultBuffer buffers them.
+ *
+ * Scores are in nanoseconds of CPU per row. The bytes per row of each format are printed once per trial, before the measurements.
+ *
+ * @author pedrolourenco
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class BodyCodecBenchmark
+{
+	private static final int ROWS = 1000;
+
+	@Param({"JSON", "CBOR", "MSGPACK"})
+	public MediaTypes format;
+
+	private Buffer insertBody;
+	private List<JsonArray> resultRows;
+
+	@Setup
+	public void setUp()
+	{
+		JsonArray values = new JsonArray();
+		resultRows = new ArrayList<>();
+
+		for (int i = 0; i < ROWS; i++)
+		{
+			JsonArray row = new JsonArray().add(i).add("customer " + i).add(i * 1.25).add("2019-01-" + String.format("%02d", i % 28 + 1) + "T10:15:30Z").add(i % 2 == 0);
+			values.add(row);
+			resultRows.add(row);
+		}
+
+		JsonObject body = new JsonObject().put("columns", "id,name,price,created_at,active").put("values", values);
+		insertBody = format == MediaTypes.JSON ? body.toBuffer() : BodyCodec.encode(format, body);
+
+		long resultBytes = resultRows.stream().mapToLong(row -> BodyCodec.encodeRow(format, row).length).sum();
+		System.out.println(format + ": " + (double) insertBody.length() / ROWS + " request bytes per row, " + (double) resultBytes / ROWS + " result bytes per row");
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public JsonObject decodeInsertBody()
+	{
+		return BodyCodec.decode(format, insertBody);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void encodeResultRows(Blackhole blackhole)
+	{
+		for (JsonArray row : resultRows)
+		{
+			blackhole.consume(BodyCodec.encodeRow(format, row));
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package benchmarks;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.vertx.core.json.JsonArray;
+import utils.SQLLiteralWriter;
+
+/**
+ *
+ * Compares SQLLiteralWriter with the StringBuffer based conversion it replaced (legacyInsertSQL, kept here as the baseline) on inserts of 10k, 1M and 10M values,
+ * in rows of VALUES_PER_ROW mixing the types of a typical insert: integers, strings (some holding quotes), doubles, booleans and nulls.
+ *
+ * Scores are statements per second: multiply by the number of values for values per second. Run with the gc profiler (as configured in build.gradle)
+ * to get the allocation rate and bytes allocated per statement (gc.alloc.rate and gc.alloc.rate.norm).
+ *
+ * @author pedrolourenco
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SQLLiteralWriterBenchmark
+{
+	private static final int VALUES_PER_ROW = 10;
+	private static final String TABLE = "public.benchmark";
+	private static final String COLUMNS = "id,customer,price,active,note,quantity,code,ratio,created_at,comment";
+
+	@Param({"10000", "1000000", "10000000"})
+	public int values;
+
+	private JsonArray rows;
+
+	@Setup
+	public void setUp()
+	{
+		rows = new JsonArray();
+
+		for (int i = 0; i < values / VALUES_PER_ROW; i++)
+		{
+			JsonArray row = new JsonArray()
+					.add(i)
+					.add("customer " + i)
+					.add(i * 1.25)
+					.add(i % 2 == 0)
+					.add(i % 10 == 0 ? "O'Brien's order" : "regular order")
+					.add((long) i * 1000)
+					.add("C-" + (i % 1000))
+					.addNull()
+					.add("2019-01-" + String.format("%02d", i % 28 + 1) + "T10:15:30Z");
+
+			rows.add(i % 7 == 0 ? row.addNull() : row.add("no comment"));
+		}
+		System.out.println(values + " values: " + SQLLiteralWriter.insertSQL(TABLE, COLUMNS, rows).length() + " characters per statement");
+	}
+
+	@Benchmark
+	public String literalWriter()
+	{
+		return SQLLiteralWriter.insertSQL(TABLE, COLUMNS, rows);
+	}
+
+	@Benchmark
+	public String legacyStringBuffer()
+	{
+		return legacyInsertSQL(TABLE, COLUMNS, rows);
+	}
+
+	/**
+	 *
+	 * The conversion SQLLiteralWriter replaced: a StringBuffer without initial size, an Optional and a new String per value, and no escaping.
+	 */
+	private static String legacyInsertSQL(String table, String columns, JsonArray valuesAsJsonArray)
+	{
+		StringBuffer sqlString = new StringBuffer();
+		for (int i = 0; i < valuesAsJsonArray.size(); i++)
+		{
+			sqlString.append("(");
+			JsonArray row = valuesAsJsonArray.getJsonArray(i);
+			for (int j = 0; j < row.size(); j++)
+			{
+				sqlString.append(legacyFormattedValue(row.getValue(j)));
+
+				if (j != row.size() - 1)
+				{
+					sqlString.append(",");
+				}
+			}
+			sqlString.append(i != valuesAsJsonArray.size() - 1 ? "),\n" : ")\n");
+		}
+		return "INSERT INTO " + table + " (" + columns + ") VALUES " + sqlString.toString() + ";";
+	}
+
+	private static String legacyFormattedValue(Object value)
+	{
+		if (Optional.ofNullable(value).isPresent())
+		{
+			if (value.getClass() == String.class)
+			{
+				return ("'" + value + "'");
+			}
+			return value.toString();
+		}
+		return new String("null");
+	}
+}
@@ -1,27 +1,64 @@
 package application;
 
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+
+import enums.OperationClass;
+import handlers.ChangeCaptureHandler;
+import handlers.ChangeFeedHandler;
+import handlers.CursorHandler;
 import handlers.DeleteDataHandler;
+import handlers.DeltaSyncHandler;
+import handlers.ExportJobHandler;
+import handlers.ExportQueryHandler;
+import handlers.ExportSchemaHandler;
+import handlers.GetByteaHandler;
 import handlers.GetDataHandler;
 import handlers.GetTableDetailsHandler;
 import handlers.GetTableStructureHandler;
 import handlers.GetTablesHandler;
 import handlers.IndexHandler;
 import handlers.InsertDataHandler;
+import handlers.UploadChunkHandler;
+import handlers.UploadHandler;
+import handlers.OpenCursorHandler;
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.AsyncResult;
+import io.vertx.core.CompositeFuture;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServer;
-import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.handler.BodyHandler;
+import utils.Bulkhead;
+import utils.ChangeCapture;
+import utils.ChangeFeed;
+import utils.ConcurrencyLimiter;
+import utils.Cursors;
+import utils.DatabasePools;
+import utils.Deadline;
+import utils.DeltaSync;
+import utils.IdempotencyKeys;
+import utils.ParallelScan;
+import utils.QueryExport;
+import utils.ReplicaMonitor;
+import utils.RequestValidator;
+import utils.ResultBudget;
+import utils.SchemaExport;
+import utils.ShardMap;
+import utils.UploadSessions;
+import utils.WriteJournal;
 /**
  * 
  * Entry Verticle for the application.
- * Creates a JDBC client, configures the application and starts the WebServer.
+ * Creates the bulkheads (and their JDBC clients), configures the application and starts the WebServer.
  * 
  * 
  * 
@@ -30,14 +67,28 @@ import io.vertx.ext.web.handler.BodyHandler;
  */
 public class PostgreSQLClientVerticle extends AbstractVerticle
 {
-	private JDBCClient jdbc;
+	private Map<OperationClass, Bulkhead> bulkheads = new EnumMap<>(OperationClass.class);
+	private ReplicaMonitor replicaMonitor;
+	private DatabasePools databasePools;
+	private ShardMap shardMap;
+	private ParallelScan parallelScan;
+	private SchemaExport schemaExport;
+	private QueryExport queryExport;
+	private Cursors cursors;
+	private ChangeFeed changeFeed;
+	private ChangeCapture changeCapture;
+	private DeltaSync deltaSync;
+	private UploadSessions uploadSessions;
+	private WriteJournal writeJournal;
+	private IdempotencyKeys idempotencyKeys;
 
 	/**
 	 * 
 	 * Central method responsible for starting the application. 
 	 * General logic is:
-	 * 1- Tries to connect to the DB
-	 * 2- If successful, Starts the Web Application
+	 * 1- Starts monitoring the read replicas, and one bulkhead per operation class (see OperationClass)
+	 * 2- Tries to connect to the DB
+	 * 3- If successful, Starts the Web Application
 	 * Finally - Reports on the log that the application is running
 	 * 
 	 * 
@@ -48,17 +99,91 @@ public class PostgreSQLClientVerticle extends AbstractVerticle
 	{
 
 		Logger logger = LogManager.getLogger("Application");
-		jdbc = JDBCClient.createShared(vertx, config(), "PostgreSQL");
+		replicaMonitor = new ReplicaMonitor(vertx, config(), logger);
+		databasePools = new DatabasePools(vertx, config(), logger);
+		shardMap = new ShardMap(vertx, config());
+		parallelScan = new ParallelScan(vertx, config());
+		schemaExport = new SchemaExport(vertx, config(), logger);
+		queryExport = new QueryExport(vertx, config(), logger);
+		cursors = new Cursors(vertx, config(), logger);
+		changeFeed = new ChangeFeed(vertx, config(), logger);
+		changeCapture = new ChangeCapture(vertx, config(), logger);
+		deltaSync = new DeltaSync(vertx, config(), logger);
+		uploadSessions = new UploadSessions(vertx, config(), logger);
+		writeJournal = new WriteJournal(vertx, config(), logger);
+		idempotencyKeys = new IdempotencyKeys(vertx, config(), logger);
+
+		//Start the bulkheads -> then Test the connection -> then Start the WebApp
+		startBulkheads((started) -> testConnection((result) -> startWebApp((result), logger, fut), logger,fut), logger, fut);
+
+	}
+
+	/**
+	 * 
+	 * Releases the resources held by the bulkheads, the replica monitor, the database pools, the shard map, the parallel scan pool, the export pools, the open cursors, the change feed, the change capture streams, the tombstone purge, the upload pools, the write journal and the idempotency key purge when the verticle is undeployed.
+	 */
+	@Override
+	public void stop()
+	{
+		bulkheads.values().forEach(Bulkhead::close);
+		replicaMonitor.close();
+		databasePools.close();
+		shardMap.close();
+		parallelScan.close();
+		schemaExport.close();
+		queryExport.close();
+		cursors.close();
+		changeFeed.close();
+		changeCapture.close();
+		deltaSync.close();
+		uploadSessions.close();
+		writeJournal.close();
+		idempotencyKeys.close();
+	}
+
+	/**
+	 * 
+	 * Method to create and start one bulkhead for each operation class.
+	 * If any of them fails to start, future is failed, otherwise calls .handle on the handler parameter with a succeeded future.
+	 * 
+	 * @param next Handler for the result from this method.
+	 * @param logger Logger instance to be used by the method.
+	 * @param fut Future instance for this method to work with.
+	 */
+	@SuppressWarnings("rawtypes")
+	private void startBulkheads(Handler<AsyncResult<Void>> next, Logger logger, Future<Void> fut)
+	{
+		List<Future> startups = new ArrayList<>();
 
-		//Test the connection -> then Start the WebApp
-		testConnection((result) -> startWebApp((result), logger, fut), logger,fut);
+		for (OperationClass operationClass : OperationClass.values())
+		{
+			Bulkhead bulkhead = new Bulkhead(vertx, config(), operationClass, replicaMonitor, databasePools, logger);
+			bulkheads.put(operationClass, bulkhead);
 
+			Future<Void> startup = Future.future();
+			bulkhead.start(startup);
+			startups.add(startup);
+		}
+
+		CompositeFuture.all(startups).setHandler(result -> 
+		{
+			if (result.failed())
+			{
+				logger.error("Failed to start bulkheads: " + result.cause());
+				fut.fail(result.cause());
+			}
+			else
+			{
+				logger.info("Bulkheads -> [OK]");
+				next.handle(Future.succeededFuture());
+			}
+		});
 	}
 
 	/**
 	 * 
-	 * Method to test the connection to the database.
-	 * If connectivity does not exist, future is failed, otherwise calls .handle on the handler parameter with a succeeded future.
+	 * Method to test the connection to the database, through the metadata bulkhead.
+	 * If connectivity does not exist, future is failed, otherwise creates the delta sync tombstone table (see DeltaSync) and the upload session tables (see UploadSessions), opens the write journal (see WriteJournal), creates the idempotency key table (see IdempotencyKeys), and calls .handle on the handler parameter with a succeeded future.
 	 * 
 	 * @param next Handler for the result from this method.
 	 * @param logger Logger instance to be used by the method.
@@ -67,7 +192,7 @@ public class PostgreSQLClientVerticle extends AbstractVerticle
 	 *
 	 */
 	private void testConnection(Handler<AsyncResult<Void>> next,Logger logger, Future<Void> fut) {
-		jdbc.getConnection(result -> 
+		bulkheads.get(OperationClass.METADATA).getConnection(result -> 
 		{
 			if (result.failed()) 
 			{
@@ -80,7 +205,33 @@ public class PostgreSQLClientVerticle extends AbstractVerticle
 				//Closing the connection that was just opened for connection test purpose
 				result.result().close();
 
-				next.handle(Future.succeededFuture());
+				//Missing tables only break the features using them, so the application starts anyway
+				deltaSync.install(bulkheads.get(OperationClass.METADATA), installed -> {
+					if (installed.failed())
+					{
+						logger.error("Failed to create the delta sync tombstone table: " + installed.cause());
+					}
+					uploadSessions.install(uploadsInstalled -> {
+						if (uploadsInstalled.failed())
+						{
+							logger.error("Failed to create the upload session tables: " + uploadsInstalled.cause());
+						}
+						//Without the journal, inserts made while the database is unreachable fail, as they always did
+						writeJournal.open(bulkheads.get(OperationClass.WRITE), opened -> {
+							if (opened.failed())
+							{
+								logger.error("Failed to open the write journal: " + opened.cause());
+							}
+							idempotencyKeys.install(bulkheads.get(OperationClass.WRITE), keysInstalled -> {
+								if (keysInstalled.failed())
+								{
+									logger.error("Failed to create the idempotency key table: " + keysInstalled.cause());
+								}
+								next.handle(Future.succeededFuture());
+							});
+						});
+					});
+				});
 			}
 		});
 	}
@@ -92,6 +243,8 @@ public class PostgreSQLClientVerticle extends AbstractVerticle
 	 * 3- Reporting on the success or failure of the startup
 	 * 
 	 * Any request not matching the routes here defined will receive a "resource not found" response by default.
+	 * Every route but the live-check one goes through the ConcurrencyLimiter first, which sheds load with 503 responses when the service is overloaded.
+	 * Every route is also available under /db/:database, to run against another database of the same server (see DatabasePools).
 	 * 
 	 * 
 	 * @param previous Result from the previous method - This parameter exists only because of the scope in which this method was designed to live: In sequential execution and dependency from the previous step on the startup order.
@@ -102,15 +255,65 @@ public class PostgreSQLClientVerticle extends AbstractVerticle
 	{
 
 		Router router = Router.router(vertx);
-		router.route().handler(BodyHandler.create());
 
+		//The live-check route is registered ahead of the limiter, so it keeps answering while load is being shed
 		router.route(HttpMethod.GET, "/").handler(new IndexHandler());
-		router.routeWithRegex(HttpMethod.GET, "\\/tables\\/?(\\w*)?").handler(new GetTablesHandler(jdbc,logger));
-		router.route(HttpMethod.GET, "/tables/:schema/:name").handler(new GetTableDetailsHandler(jdbc,logger));
-		router.route(HttpMethod.GET, "/tables/:schema/:name/structure").handler(new GetTableStructureHandler(jdbc,logger));
-		router.route(HttpMethod.POST, "/select/:schema/:name").handler(new GetDataHandler(jdbc,logger));
-		router.route(HttpMethod.POST, "/insert/:schema/:name").handler(new InsertDataHandler(jdbc,logger));
-		router.route(HttpMethod.POST, "/delete/:schema/:name").handler(new DeleteDataHandler(jdbc,logger));
+		//Requests to /db/:database/... are rerouted to the same route without the prefix, with the database kept in the context
+		router.routeWithRegex("\\/db\\/([^\\/]+)(\\/.+)").handler(databasePools::reroute);
+		//Archive and bytea downloads last as long as the caller's bandwidth requires, so they are kept out of the limiter's latency measurements
+		router.route(HttpMethod.GET, "/export/jobs/:job/archive").handler(new ExportJobHandler<>(schemaExport,"archive",logger));
+		router.route(HttpMethod.GET, "/exports/jobs/:job/file").handler(new ExportJobHandler<>(queryExport,"file",logger));
+		router.route(HttpMethod.GET, "/bytea/:schema/:name/:column").handler(bulkheads.get(OperationClass.ANALYTICAL).admit(new GetByteaHandler(bulkheads.get(OperationClass.ANALYTICAL),config().getJsonObject("bytea_download", new JsonObject()),logger)));
+		//Change feed subscriptions stay open for as long as the caller follows the table, so they are kept out of the limiter too
+		router.route(HttpMethod.GET, "/changes/:schema/:name").handler(new ChangeFeedHandler(changeFeed,logger));
+		router.route(HttpMethod.GET, "/cdc/:slot").handler(new ChangeCaptureHandler(changeCapture,logger));
+		//Chunks last as long as the caller's bandwidth requires and are streamed into the database as they arrive, so they are kept out of the limiter and the body handler
+		router.route(HttpMethod.PUT, "/uploads/sessions/:upload/chunks/:chunk").handler(new UploadChunkHandler(uploadSessions,logger));
+		router.route().handler(new ConcurrencyLimiter(vertx, config(), logger));
+		router.route().handler(BodyHandler.create());
+
+		Bulkhead metadata = bulkheads.get(OperationClass.METADATA);
+		Bulkhead analytical = bulkheads.get(OperationClass.ANALYTICAL);
+		Bulkhead write = bulkheads.get(OperationClass.WRITE);
+		RequestValidator requestValidator = new RequestValidator(metadata, shardMap, config(), logger);
+
+		//Deadlines are computed first, so requests whose budget is already spent never take a bulkhead slot
+		router.routeWithRegex(HttpMethod.GET, "\\/tables\\/?(\\w*)?").handler(Deadline.forRoute(config(), "tables"));
+		router.route(HttpMethod.GET, "/tables/:schema/:name").handler(Deadline.forRoute(config(), "tables"));
+		router.route(HttpMethod.GET, "/tables/:schema/:name/structure").handler(Deadline.forRoute(config(), "tables"));
+		router.route(HttpMethod.POST, "/select/:schema/:name").handler(Deadline.forRoute(config(), "select"));
+		router.route(HttpMethod.POST, "/insert/:schema/:name").handler(Deadline.forRoute(config(), "insert"));
+		router.route(HttpMethod.POST, "/delete/:schema/:name").handler(Deadline.forRoute(config(), "delete"));
+		router.route(HttpMethod.POST, "/delta/:schema/:name").handler(Deadline.forRoute(config(), "delta"));
+		router.route(HttpMethod.POST, "/select/:schema/:name").handler(ResultBudget.forRoute(config(), "select"));
+		//Bodies are decoded and checked against the structure of their table before any pool is touched
+		router.route(HttpMethod.POST, "/select/:schema/:name").handler(requestValidator.forRoute("select"));
+		router.route(HttpMethod.POST, "/insert/:schema/:name").handler(requestValidator.forRoute("insert"));
+		router.route(HttpMethod.POST, "/delete/:schema/:name").handler(requestValidator.forRoute("delete"));
+		router.route(HttpMethod.POST, "/insert/:schema/:name").handler(idempotencyKeys);
+		router.route(HttpMethod.POST, "/delete/:schema/:name").handler(idempotencyKeys);
+
+		router.routeWithRegex(HttpMethod.GET, "\\/tables\\/?(\\w*)?").handler(metadata.admit(new GetTablesHandler(metadata,logger)));
+		router.route(HttpMethod.GET, "/tables/:schema/:name").handler(metadata.admit(new GetTableDetailsHandler(metadata,logger)));
+		router.route(HttpMethod.GET, "/tables/:schema/:name/structure").handler(metadata.admit(new GetTableStructureHandler(metadata,logger)));
+		router.route(HttpMethod.POST, "/select/:schema/:name").handler(analytical.admit(new GetDataHandler(analytical,shardMap,parallelScan,config().getJsonObject("result_buffer", new JsonObject()),logger)));
+		router.route(HttpMethod.POST, "/insert/:schema/:name").handler(write.admit(new InsertDataHandler(write,shardMap,writeJournal,logger)));
+		router.route(HttpMethod.POST, "/delete/:schema/:name").handler(write.admit(new DeleteDataHandler(write,shardMap,config().getJsonObject("partitions", new JsonObject()).getString("covered_partitions", "drop"),deltaSync,logger)));
+		router.route(HttpMethod.POST, "/delta/:schema/:name").handler(analytical.admit(new DeltaSyncHandler(analytical,shardMap,deltaSync,logger)));
+
+		router.route(HttpMethod.POST, "/export/:schema").handler(new ExportSchemaHandler(schemaExport,logger));
+		router.route(HttpMethod.GET, "/export/jobs/:job").handler(new ExportJobHandler<>(schemaExport,"archive",logger));
+		router.route(HttpMethod.POST, "/exports/:schema/:name").handler(new ExportQueryHandler(queryExport,logger));
+		router.route(HttpMethod.GET, "/exports/jobs/:job").handler(new ExportJobHandler<>(queryExport,"file",logger));
+		router.route(HttpMethod.POST, "/cursors/:schema/:name").handler(new OpenCursorHandler(cursors,logger));
+		router.route(HttpMethod.GET, "/cursors/:cursor").handler(new CursorHandler(cursors,logger));
+		router.route(HttpMethod.DELETE, "/cursors/:cursor").handler(new CursorHandler(cursors,logger));
+		router.route(HttpMethod.POST, "/cdc/:slot/ack").handler(new ChangeCaptureHandler(changeCapture,logger));
+		router.route(HttpMethod.DELETE, "/cdc/:slot").handler(new ChangeCaptureHandler(changeCapture,logger));
+		router.route(HttpMethod.POST, "/uploads/:schema/:name").handler(new UploadHandler(uploadSessions,logger));
+		router.route(HttpMethod.GET, "/uploads/sessions/:upload").handler(new UploadHandler(uploadSessions,logger));
+		router.route(HttpMethod.DELETE, "/uploads/sessions/:upload").handler(new UploadHandler(uploadSessions,logger));
+		router.route(HttpMethod.POST, "/uploads/sessions/:upload/commit").handler(new UploadHandler(uploadSessions,logger));
 
 		logger.info("Starting HTTP Server...");
 
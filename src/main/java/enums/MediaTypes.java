@@ -0,0 +1,30 @@
+package enums;
+
+/**
+ * 
+ * Enum created to store the media types the data routes can read request bodies in and write responses in (see BodyCodec).
+ * Currently supporting application/json, application/cbor and application/msgpack.
+ * 
+ * @author pedrolourenco
+ *
+ */
+public enum MediaTypes {
+
+	JSON("application/json"),
+	CBOR("application/cbor"),
+	MSGPACK("application/msgpack");
+
+	private final String value;
+
+	MediaTypes(final String newValue) 
+	{
+		value = newValue;
+	}
+
+	public String getValue() 
+	{ 
+		return value; 
+	}
+
+
+}
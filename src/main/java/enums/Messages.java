@@ -11,6 +11,56 @@ public enum Messages {
 	QUERY_EXECUTION_ERROR("SQL statement execution not successful: "),
 	INVALID_BODY_ERROR("Request Body is not valid"),
 	DB_CONNECTION_ERROR("Failed to get JDBC Connection: "),
+	BULKHEAD_FULL_ERROR("Too many pending requests for this operation class: "),
+	CONCURRENCY_LIMIT_ERROR("Concurrency limit reached, request rejected. Current limit: "),
+	HEAP_SHEDDING_ERROR("Heap usage after the last collection above threshold, request rejected."),
+	DEADLINE_EXCEEDED_ERROR("Request deadline exceeded: "),
+	INVALID_DEADLINE_ERROR("Invalid request deadline header: "),
+	INVALID_DATABASE_ERROR("Invalid database name: "),
+	DATABASE_ROUTE_ERROR("Route not available under /db/:database, it always uses the configured database: "),
+	DATABASE_POOLS_EXHAUSTED_ERROR("Every database pool is in use, no pool can be opened. Maximum pools: "),
+	INVALID_ORDER_ERROR("Order columns of a sharded query must be selected: "),
+	SHARD_KEY_MISSING_ERROR("Statements on sharded tables must include the shard key column: "),
+	EXPORT_JOBS_FULL_ERROR("Too many export jobs running, retry later. Maximum jobs: "),
+	EXPORT_JOB_NOT_FOUND_ERROR("Unknown export job: "),
+	EXPORT_NOT_READY_ERROR("Export job has not finished successfully: "),
+	INVALID_EXPORT_FORMAT_ERROR("Unsupported export format, expected csv or ndjson: "),
+	CURSORS_FULL_ERROR("Too many open cursors, retry later. Maximum cursors: "),
+	CURSOR_NOT_FOUND_ERROR("Unknown or closed cursor: "),
+	CURSOR_BUSY_ERROR("Cursor is already being fetched from: "),
+	CHANGE_FEED_FULL_ERROR("Too many change feed subscribers, retry later. Maximum subscribers: "),
+	CHANGE_FEED_TABLE_ERROR("Table not open to change feeds (see change_feed.tables): "),
+	CDC_STREAMS_FULL_ERROR("Too many change capture streams running, retry later. Maximum streams: "),
+	CDC_SLOT_BUSY_ERROR("Replication slot is already being streamed: "),
+	CDC_SLOT_NOT_STREAMED_ERROR("Replication slot is not being streamed: "),
+	CDC_SLOT_NOT_FOUND_ERROR("Unknown replication slot: "),
+	INVALID_SLOT_ERROR("Invalid replication slot name, expected lowercase letters, digits and underscores: "),
+	INVALID_CDC_TABLES_ERROR("Invalid tables, expected schema.table: "),
+	INVALID_LSN_ERROR("Invalid LSN, expected the X/X form: "),
+	DELTA_NOT_TRACKED_ERROR("Table is not configured for delta sync: "),
+	INVALID_WATERMARK_ERROR("Invalid watermark, expected a timestamp: "),
+	UPLOADS_FULL_ERROR("Too many chunks being received, retry later. Maximum chunks: "),
+	UPLOAD_NOT_FOUND_ERROR("Unknown upload session: "),
+	UPLOAD_NOT_OPEN_ERROR("Upload session is no longer open: "),
+	UPLOAD_MISSING_CHUNKS_ERROR("Upload session is missing chunks, expected chunks 1 to "),
+	INVALID_UPLOAD_FORMAT_ERROR("Invalid upload format, expected csv or ndjson: "),
+	INVALID_UPLOAD_COLUMNS_ERROR("Columns are required for csv uploads"),
+	INVALID_UPLOAD_COLUMN_NAME_ERROR("Invalid upload columns, expected comma-separated column names: "),
+	INVALID_CHUNK_ERROR("Invalid chunk number, expected a positive integer: "),
+	WRITE_JOURNALED("Database unreachable, insert journaled to be applied once it is reachable again"),
+	JOURNAL_ERROR("Database unreachable and the insert couldn't be journaled: "),
+	JOURNAL_FULL_ERROR("Write journal is full, maximum size (MB): "),
+	JOURNAL_FENCE_ERROR("Journal applied by another replayer, the recorded sequence is no longer "),
+	JOURNAL_ENTRY_TOO_LARGE_ERROR("Insert is larger than a write journal segment (MB): "),
+	INVALID_IDEMPOTENCY_KEY_ERROR("Invalid Idempotency-Key, expected a non-empty value of at most this length: "),
+	IDEMPOTENCY_KEY_IN_USE_ERROR("A request with this Idempotency-Key is still running, retry later: "),
+	IDEMPOTENCY_KEY_REUSED_ERROR("Idempotency-Key already used for a different request: "),
+	UNKNOWN_TABLE_ERROR("Unknown table: "),
+	TABLE_MISMATCH_ERROR("Request body does not match the structure of the table: "),
+	INVALID_BYTEA_KEY_ERROR("Invalid bytea download, expected a column and query parameters naming the key columns of the row: "),
+	BYTEA_NOT_FOUND_ERROR("No row, or a null value, for the key: "),
+	BYTEA_KEY_NOT_UNIQUE_ERROR("Several rows match the key, expected one: "),
+	STATEMENT_CANCELLED("In-flight statement cancelled"),
 	QUERY_EXECUTION_SUCCESS("SQL Statement successfully executed ");
 
 	private final String value;
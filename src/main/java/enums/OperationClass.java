@@ -0,0 +1,30 @@
+package enums;
+
+/**
+ * 
+ * Enum created to store the classes of operations served by the application.
+ * Each class gets its own bulkhead (worker pool, connection pool partition and queue limit), so that load on one class cannot starve the others.
+ * The value is the key used for the class in the "bulkheads" section of the configuration file.
+ * 
+ * @author pedrolourenco
+ *
+ */
+public enum OperationClass {
+
+	METADATA("metadata"),
+	ANALYTICAL("analytical"),
+	WRITE("write");
+
+	private final String value;
+
+	OperationClass(final String newValue) 
+	{
+		value = newValue;
+	}
+
+	public String getValue() 
+	{ 
+		return value; 
+	}
+
+}
@@ -3,7 +3,7 @@ package enums;
 /**
  * 
  * Enum created to store the status codes to be included in the responses from the application.
- * Currently only supporting codes 200 and 500.
+ * Currently supporting codes 200, 201, 202, 206, 400, 404, 409, 416, 422, 500, 503 and 504.
  * 
  * @author pedrolourenco
  *
@@ -11,7 +11,17 @@ package enums;
 public enum StatusCodes {
 
 	SUCCEEDED(200),
-	FAILED(500);
+	CREATED(201),
+	ACCEPTED(202),
+	PARTIAL_CONTENT(206),
+	BAD_REQUEST(400),
+	NOT_FOUND(404),
+	CONFLICT(409),
+	RANGE_NOT_SATISFIABLE(416),
+	UNPROCESSABLE_ENTITY(422),
+	FAILED(500),
+	SERVICE_UNAVAILABLE(503),
+	GATEWAY_TIMEOUT(504);
 
 	private final int value;
 
@@ -0,0 +1,255 @@
+package handlers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.Logger;
+import org.postgresql.replication.LogSequenceNumber;
+
+import enums.Messages;
+import enums.StatusCodes;
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import utils.ChangeCapture;
+import utils.VertxJsonValidator;
+
+/**
+ *
+ * Handler to manage the routes:
+ * - GET /cdc/:slot?tables=schema.table,...&from=lsn
+ * - POST /cdc/:slot/ack
+ * - DELETE /cdc/:slot
+ *
+ * A request will only be forwarded to this handler if its URL exactly matches one of these structures.
+ *
+ * The first route streams the changes of a logical replication slot (see ChangeCapture) as NDJSON, for as long as the caller reads them:
+ * "tables" restricts them to some tables, and "from" starts at an LSN rather than after the last acknowledged one.
+ * The second one acknowledges the changes of the slot up to the "lsn" of the body, while the slot is being streamed.
+ * The third one drops the slot, so the server stops keeping changes for it.
+ *
+ * @author pedrolourenco
+ *
+ */
+public class ChangeCaptureHandler implements Handler<RoutingContext> {
+
+	private ChangeCapture changeCapture;
+	private Logger logger;
+
+	/**
+	 *
+	 * @param changeCapture Change capture streams.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public ChangeCaptureHandler(ChangeCapture changeCapture, Logger logger)
+	{
+		this.changeCapture = changeCapture;
+		this.logger = logger;
+	}
+
+	/**
+	 *
+	 * Central method to the management of requests made to the routes this Handlers manages.
+	 *
+	 * The response will always be:
+	 * 1- For a stream:
+	 *    The changes, one JSON object per line, with a Status Code of 200.
+	 * 2- For an acknowledgement or a drop:
+	 *    JsonObject, as body, with the "slot" and "acknowledged" (or "dropped") keys, and a Status Code of 200.
+	 * 3- In case the slot isn't streamed (acknowledgement) or doesn't exist (drop):
+	 *    JsonObject, as body, with the "error" key and a Status Code of 404.
+	 * 4- In case the slot is already streamed (stream, drop):
+	 *    JsonObject, as body, with the "error" key and a Status Code of 409.
+	 * 5- In case max_streams streams are already running:
+	 *    JsonObject, as body, with the "error" key and a Status Code of 503.
+	 * 6- In case the slot, tables or LSN are invalid, the replication connection failed:
+	 *    JsonObject, as body, with the "error" key and a Status Code of 500.
+	 *
+	 */
+	@Override
+	public void handle(RoutingContext context)
+	{
+		String slot = context.request().getParam("slot");
+
+		if (!ChangeCapture.isValidSlot(slot))
+		{
+			logger.error("ChangeCaptureHandler - " + Messages.INVALID_SLOT_ERROR.getValue() + slot);
+			sendBackResponse(context, new JsonObject().put("error", Messages.INVALID_SLOT_ERROR.getValue() + slot), StatusCodes.FAILED);
+			return;
+		}
+
+		if (context.request().method() == HttpMethod.DELETE)
+		{
+			drop(context, slot);
+		}
+		else if (context.request().method() == HttpMethod.POST)
+		{
+			acknowledge(context, slot);
+		}
+		else
+		{
+			stream(context, slot);
+		}
+	}
+
+	/**
+	 *
+	 * Streams the changes of a slot to the caller.
+	 *
+	 * @param context Context from the request
+	 * @param slot Replication slot to stream.
+	 */
+	private void stream(RoutingContext context, String slot)
+	{
+		List<String> tables = Optional.ofNullable(context.request().getParam("tables"))
+				.map(value -> Arrays.stream(value.split(",")).map(String::trim).filter(table -> !table.isEmpty()).map(String::toLowerCase).collect(Collectors.toList()))
+				.orElse(new ArrayList<>());
+		List<String> invalidTables = tables.stream().filter(table -> !ChangeCapture.isValidTable(table)).collect(Collectors.toList());
+
+		if (!invalidTables.isEmpty())
+		{
+			logger.error("ChangeCaptureHandler - " + Messages.INVALID_CDC_TABLES_ERROR.getValue() + invalidTables);
+			sendBackResponse(context, new JsonObject().put("error", Messages.INVALID_CDC_TABLES_ERROR.getValue() + invalidTables), StatusCodes.FAILED);
+			return;
+		}
+
+		String fromParam = context.request().getParam("from");
+		LogSequenceNumber from = Optional.ofNullable(fromParam).map(LogSequenceNumber::valueOf).orElse(null);
+
+		if (Optional.ofNullable(from).isPresent() && from.equals(LogSequenceNumber.INVALID_LSN))
+		{
+			logger.error("ChangeCaptureHandler - " + Messages.INVALID_LSN_ERROR.getValue() + fromParam);
+			sendBackResponse(context, new JsonObject().put("error", Messages.INVALID_LSN_ERROR.getValue() + fromParam), StatusCodes.FAILED);
+			return;
+		}
+
+		changeCapture.stream(slot, tables, from, context, started -> {
+			if (started.failed())
+			{
+				logger.error("ChangeCaptureHandler - " + started.cause());
+				sendBackResponse(context, new JsonObject().put("error", errorFor(started.cause())), statusFor(started.cause()));
+				return;
+			}
+
+			context.response()
+			.setChunked(true)
+			.putHeader("content-type", "application/x-ndjson")
+			.putHeader("cache-control", "no-cache")
+			.setStatusCode(StatusCodes.SUCCEEDED.getValue());
+		}, ended -> {
+			if (!context.response().closed() && !context.response().ended())
+			{
+				context.response().end();
+			}
+		});
+	}
+
+	/**
+	 *
+	 * Acknowledges the changes of a slot up to the "lsn" of the body.
+	 *
+	 * @param context Context from the request
+	 * @param slot Replication slot being streamed.
+	 */
+	private void acknowledge(RoutingContext context, String slot)
+	{
+		String lsnParam = VertxJsonValidator.isValidJSON(context.getBodyAsString()) ? new JsonObject(context.getBodyAsString()).getString("lsn") : null;
+		LogSequenceNumber lsn = Optional.ofNullable(lsnParam).map(LogSequenceNumber::valueOf).orElse(LogSequenceNumber.INVALID_LSN);
+
+		if (lsn.equals(LogSequenceNumber.INVALID_LSN))
+		{
+			logger.error("ChangeCaptureHandler - " + Messages.INVALID_LSN_ERROR.getValue() + lsnParam);
+			sendBackResponse(context, new JsonObject().put("error", Messages.INVALID_LSN_ERROR.getValue() + lsnParam), StatusCodes.FAILED);
+			return;
+		}
+
+		if (!changeCapture.acknowledge(slot, lsn))
+		{
+			logger.error("ChangeCaptureHandler - " + Messages.CDC_SLOT_NOT_STREAMED_ERROR.getValue() + slot);
+			sendBackResponse(context, new JsonObject().put("error", Messages.CDC_SLOT_NOT_STREAMED_ERROR.getValue() + slot), StatusCodes.NOT_FOUND);
+			return;
+		}
+
+		logger.info("ChangeCaptureHandler - Slot " + slot + " acknowledged up to " + lsn.asString());
+		sendBackResponse(context, new JsonObject().put("slot", slot).put("acknowledged", lsn.asString()), StatusCodes.SUCCEEDED);
+	}
+
+	/**
+	 *
+	 * Drops a slot.
+	 *
+	 * @param context Context from the request
+	 * @param slot Replication slot to drop.
+	 */
+	private void drop(RoutingContext context, String slot)
+	{
+		changeCapture.drop(slot, dropped -> {
+			if (dropped.failed())
+			{
+				logger.error("ChangeCaptureHandler - " + dropped.cause());
+				sendBackResponse(context, new JsonObject().put("error", errorFor(dropped.cause())), statusFor(dropped.cause()));
+			}
+			else if (!dropped.result())
+			{
+				logger.error("ChangeCaptureHandler - " + Messages.CDC_SLOT_NOT_FOUND_ERROR.getValue() + slot);
+				sendBackResponse(context, new JsonObject().put("error", Messages.CDC_SLOT_NOT_FOUND_ERROR.getValue() + slot), StatusCodes.NOT_FOUND);
+			}
+			else
+			{
+				logger.info("ChangeCaptureHandler - Dropped slot " + slot);
+				sendBackResponse(context, new JsonObject().put("slot", slot).put("dropped", true), StatusCodes.SUCCEEDED);
+			}
+		});
+	}
+
+	/**
+	 *
+	 * @param cause Cause of a failure.
+	 * @return Error message for the caller.
+	 */
+	private String errorFor(Throwable cause)
+	{
+		return cause instanceof IllegalStateException ? cause.getMessage() : Messages.QUERY_EXECUTION_ERROR.getValue() + cause;
+	}
+
+	/**
+	 *
+	 * @param cause Cause of a failure.
+	 * @return 503 if too many streams run, 409 if the slot is already streamed, 500 otherwise.
+	 */
+	private StatusCodes statusFor(Throwable cause)
+	{
+		if (!(cause instanceof IllegalStateException))
+		{
+			return StatusCodes.FAILED;
+		}
+		return cause.getMessage().startsWith(Messages.CDC_STREAMS_FULL_ERROR.getValue()) ? StatusCodes.SERVICE_UNAVAILABLE : StatusCodes.CONFLICT;
+	}
+
+	/**
+	 *
+	 * This method sends the response back to the entity that made the request to this application.
+	 * It build the response with the correct header for a JSON response, status code and results printed prettily.
+	 * If the client already closed the connection, nothing is written.
+	 *
+	 * @param context Context from the request
+	 * @param message Body of the response
+	 * @param statusCode Status code to be included in the response
+	 */
+	private void sendBackResponse(RoutingContext context, JsonObject message, StatusCodes statusCode)
+	{
+		if (context.response().closed())
+		{
+			return;
+		}
+
+		context.response()
+		.putHeader("content-type", "application/json")
+		.setStatusCode(statusCode.getValue())
+		.end(message.encodePrettily());
+	}
+}
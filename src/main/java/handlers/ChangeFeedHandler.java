@@ -0,0 +1,200 @@
+package handlers;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.logging.log4j.Logger;
+
+import enums.Messages;
+import enums.StatusCodes;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.ServerWebSocket;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import utils.ChangeFeed;
+import utils.ChangeFeed.Subscriber;
+import utils.RequestLifecycle;
+
+/**
+ *
+ * Handler to manage the routes:
+ * - /changes/:schema/:name
+ *
+ * A request will only be forwarded to this handler if its URL exactly matches this structure.
+ *
+ * The idea behind this route is to push the changes of a table to the caller as they happen (see ChangeFeed), instead of the caller polling the /select route.
+ * Requests asking for a WebSocket upgrade get one text message per change. Other requests get a Server-Sent Events stream, with one "change" event per change.
+ * The subscription lasts until the caller closes the connection.
+ *
+ * @author pedrolourenco
+ *
+ */
+public class ChangeFeedHandler implements Handler<RoutingContext> {
+
+	private ChangeFeed changeFeed;
+	private Logger logger;
+
+	/**
+	 *
+	 * @param changeFeed Change feed to subscribe to.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public ChangeFeedHandler(ChangeFeed changeFeed, Logger logger)
+	{
+		this.changeFeed = changeFeed;
+		this.logger = logger;
+	}
+
+	/**
+	 *
+	 * Central method to the management of requests made to the route this Handlers manages.
+	 *
+	 * The response will always be:
+	 * 1- In case of success:
+	 *    A WebSocket, or a Server-Sent Events stream with a Status Code of 200, carrying the changes of the table as JSON objects (see ChangeFeed.subscribe).
+	 * 2- In case the table is not listed in change_feed.tables, or its schema or name is not a plain identifier:
+	 *    JsonObject, as body, with the "error" key and a Status Code of 404, before any WebSocket upgrade.
+	 * 3- In case max_subscribers callers are already subscribed:
+	 *    JsonObject, as body, with the "error" key and a Status Code of 503 (an "error" message and a close, over a WebSocket).
+	 * 4- In case the trigger couldn't be installed (e.g. unknown table):
+	 *    JsonObject, as body, with the "error" key and a Status Code of 500 (an "error" message and a close, over a WebSocket).
+	 *
+	 */
+	@Override
+	public void handle(RoutingContext context)
+	{
+		String schema = context.request().getParam("schema");
+		String name = context.request().getParam("name");
+
+		if (!changeFeed.isSubscribable(schema, name))
+		{
+			logger.error("ChangeFeedHandler - " + Messages.CHANGE_FEED_TABLE_ERROR.getValue() + schema + "." + name);
+			sendBackResponse(context, new JsonObject().put("error", Messages.CHANGE_FEED_TABLE_ERROR.getValue() + schema + "." + name), StatusCodes.NOT_FOUND);
+			return;
+		}
+
+		if ("websocket".equalsIgnoreCase(context.request().getHeader("upgrade")))
+		{
+			subscribeWebSocket(context.request().upgrade(), schema, name);
+		}
+		else
+		{
+			subscribeEventStream(context, schema, name);
+		}
+	}
+
+	/**
+	 *
+	 * Subscribes a WebSocket to the changes of a table: each change is sent as a text message.
+	 *
+	 * @param webSocket WebSocket of the caller.
+	 * @param schema Schema of the table.
+	 * @param name Table to follow.
+	 */
+	private void subscribeWebSocket(ServerWebSocket webSocket, String schema, String name)
+	{
+		AtomicBoolean closed = new AtomicBoolean(false);
+		AtomicReference<Subscriber> subscriber = new AtomicReference<>();
+
+		webSocket.closeHandler(v -> {
+			closed.set(true);
+			Optional.ofNullable(subscriber.get()).ifPresent(changeFeed::unsubscribe);
+		});
+
+		changeFeed.subscribe(schema, name, webSocket, webSocket::writeFinalTextFrame, subscribed -> {
+			if (subscribed.failed())
+			{
+				logger.error("ChangeFeedHandler - " + subscribed.cause());
+				if (!closed.get())
+				{
+					webSocket.writeFinalTextFrame(new JsonObject().put("error", errorFor(subscribed.cause())).encode());
+					webSocket.close();
+				}
+				return;
+			}
+
+			subscriber.set(subscribed.result());
+
+			if (closed.get())
+			{
+				changeFeed.unsubscribe(subscribed.result());
+				return;
+			}
+			logger.info("ChangeFeedHandler - WebSocket subscribed to " + schema + "." + name);
+		});
+	}
+
+	/**
+	 *
+	 * Subscribes a Server-Sent Events stream to the changes of a table: each change is sent as a "change" event.
+	 *
+	 * @param context Context from the request
+	 * @param schema Schema of the table.
+	 * @param name Table to follow.
+	 */
+	private void subscribeEventStream(RoutingContext context, String schema, String name)
+	{
+		HttpServerResponse response = context.response();
+
+		changeFeed.subscribe(schema, name, response, event -> response.write(Buffer.buffer("event: change\ndata: " + event + "\n\n")), subscribed -> {
+			if (subscribed.failed())
+			{
+				logger.error("ChangeFeedHandler - " + subscribed.cause());
+				sendBackResponse(context, new JsonObject().put("error", errorFor(subscribed.cause())),
+						subscribed.cause() instanceof IllegalStateException ? StatusCodes.SERVICE_UNAVAILABLE : StatusCodes.FAILED);
+				return;
+			}
+
+			if (response.closed())
+			{
+				changeFeed.unsubscribe(subscribed.result());
+				return;
+			}
+
+			logger.info("ChangeFeedHandler - Event stream subscribed to " + schema + "." + name);
+			RequestLifecycle.onClose(context, v -> changeFeed.unsubscribe(subscribed.result()));
+			response
+			.setChunked(true)
+			.putHeader("content-type", "text/event-stream")
+			.putHeader("cache-control", "no-cache")
+			.setStatusCode(StatusCodes.SUCCEEDED.getValue())
+			.write(": subscribed\n\n");
+		});
+	}
+
+	/**
+	 *
+	 * @param cause Cause of a failed subscription.
+	 * @return Error message for the caller.
+	 */
+	private String errorFor(Throwable cause)
+	{
+		return cause instanceof IllegalStateException || cause instanceof IllegalArgumentException ? cause.getMessage() : Messages.QUERY_EXECUTION_ERROR.getValue() + cause;
+	}
+
+	/**
+	 *
+	 * This method sends the response back to the entity that made the request to this application.
+	 * It build the response with the correct header for a JSON response, status code and results printed prettily.
+	 * If the client already closed the connection, nothing is written.
+	 *
+	 * @param context Context from the request
+	 * @param message Body of the response
+	 * @param statusCode Status code to be included in the response
+	 */
+	private void sendBackResponse(RoutingContext context, JsonObject message, StatusCodes statusCode)
+	{
+		if (context.response().closed())
+		{
+			return;
+		}
+
+		context.response()
+		.putHeader("content-type", "application/json")
+		.setStatusCode(statusCode.getValue())
+		.end(message.encodePrettily());
+	}
+}
@@ -0,0 +1,137 @@
+package handlers;
+
+import java.util.Optional;
+
+import org.apache.logging.log4j.Logger;
+
+import enums.Messages;
+import enums.StatusCodes;
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import utils.Cursors;
+import utils.Cursors.Cursor;
+
+/**
+ *
+ * Handler to manage the routes:
+ * - GET /cursors/:cursor?fetch=n
+ * - DELETE /cursors/:cursor
+ *
+ * A request will only be forwarded to this handler if its URL exactly matches this structure.
+ *
+ * The first route returns the next rows of a cursor opened through OpenCursorHandler: "fetch" of them (or default_fetch, see Cursors), with "done" telling whether the result is exhausted,
+ * in which case the cursor is closed. The second one closes a cursor before the end of its result.
+ *
+ * @author pedrolourenco
+ *
+ */
+public class CursorHandler implements Handler<RoutingContext> {
+
+	private Cursors cursors;
+	private Logger logger;
+
+	/**
+	 *
+	 * @param cursors Server-side cursors.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public CursorHandler(Cursors cursors, Logger logger)
+	{
+		this.cursors = cursors;
+		this.logger = logger;
+	}
+
+	/**
+	 *
+	 * Central method to the management of requests made to the routes this Handlers manages.
+	 *
+	 * The response will always be:
+	 * 1- For a fetch:
+	 *    JsonObject, as body, with the "results", the status of the cursor (see Cursors.Cursor) and "done", and a Status Code of 200.
+	 * 2- For a close:
+	 *    JsonObject, as body, with the "cursor" and "closed" keys, and a Status Code of 200.
+	 * 3- In case the cursor doesn't exist (or was closed):
+	 *    JsonObject, as body, with the "error" key and a Status Code of 404.
+	 * 4- In case the cursor is already being fetched from:
+	 *    JsonObject, as body, with the "error" key and a Status Code of 409.
+	 * 5- In case the fetch failed (which closes the cursor):
+	 *    JsonObject, as body, with the "error" key and a Status Code of 500.
+	 *
+	 */
+	@Override
+	public void handle(RoutingContext context)
+	{
+		String id = context.request().getParam("cursor");
+		Cursor cursor = cursors.getCursor(id);
+
+		if (!Optional.ofNullable(cursor).isPresent())
+		{
+			logger.error("CursorHandler - " + Messages.CURSOR_NOT_FOUND_ERROR.getValue() + id);
+			sendBackResponse(context, new JsonObject().put("error", Messages.CURSOR_NOT_FOUND_ERROR.getValue() + id), StatusCodes.NOT_FOUND);
+			return;
+		}
+
+		if (context.request().method() == HttpMethod.DELETE)
+		{
+			sendBackResponse(context, new JsonObject().put("cursor", id).put("closed", cursors.close(id)), StatusCodes.SUCCEEDED);
+			return;
+		}
+
+		cursors.fetch(cursor, parseFetch(context.request().getParam("fetch")), fetched -> {
+			if (fetched.failed())
+			{
+				logger.error("CursorHandler - " + fetched.cause().getMessage());
+				sendBackResponse(context, new JsonObject().put("error", fetched.cause() instanceof IllegalStateException ? fetched.cause().getMessage() : Messages.QUERY_EXECUTION_ERROR.getValue() + fetched.cause()),
+						fetched.cause() instanceof IllegalStateException ? StatusCodes.CONFLICT : StatusCodes.FAILED);
+				return;
+			}
+
+			boolean done = !Optional.ofNullable(cursors.getCursor(id)).isPresent();
+			logger.info("CursorHandler - Fetched " + fetched.result().size() + " rows from cursor " + id + (done ? ", result exhausted" : ""));
+			sendBackResponse(context, cursor.toJson(cursors.getTtlMillis()).put("results", fetched.result()).put("done", done), StatusCodes.SUCCEEDED);
+		});
+	}
+
+	/**
+	 *
+	 * @param fetch Value of the "fetch" parameter.
+	 * @return The number of rows asked for, or null if absent or not a number.
+	 */
+	private Integer parseFetch(String fetch)
+	{
+		try
+		{
+			return Optional.ofNullable(fetch).isPresent() ? Integer.valueOf(fetch) : null;
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 *
+	 * This method sends the response back to the entity that made the request to this application.
+	 * It build the response with the correct header for a JSON response, status code and results printed prettily.
+	 * If the client already closed the connection, nothing is written.
+	 *
+	 * @param context Context from the request
+	 * @param message Body of the response
+	 * @param statusCode Status code to be included in the response
+	 */
+	private void sendBackResponse(RoutingContext context, JsonObject message, StatusCodes statusCode)
+	{
+		if (context.response().closed())
+		{
+			logger.info("CursorHandler - Client disconnected, response discarded");
+			return;
+		}
+
+		context.response()
+		.putHeader("content-type", "application/json")
+		.setStatusCode(statusCode.getValue())
+		.end(message.encodePrettily());
+	}
+}
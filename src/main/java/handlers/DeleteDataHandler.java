@@ -1,18 +1,32 @@
 package handlers;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import org.apache.logging.log4j.Logger;
 
+import enums.MediaTypes;
 import enums.Messages;
 import enums.StatusCodes;
+import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
-import io.vertx.ext.jdbc.JDBCClient;
 import io.vertx.ext.sql.SQLConnection;
 import io.vertx.ext.web.RoutingContext;
-import utils.VertxJsonValidator;
+import utils.BodyCodec;
+import utils.Bulkhead;
+import utils.Deadline;
+import utils.IdempotencyKeys;
+import utils.DeltaSync;
+import utils.Partitions;
+import utils.Partitions.Partition;
+import utils.SessionToken;
+import utils.ShardMap;
 /**
  * 
  * Handler to manage the routes:
@@ -23,22 +37,43 @@ import utils.VertxJsonValidator;
  * The idea behind this route is to provide the possibility for data deletion from a table.
  * Also, a request made to the route must include a JSON object specifying the where condition for the delete to be made.
  * 
+ * On tables listed in the shard map (see ShardMap), the delete runs on every shard the where condition can match.
+ * 
+ * On partitioned tables, partitions whose every row matches the where condition (see Partitions) are dropped (or truncated) instead of
+ * being emptied row by row, depending on the "covered_partitions" setting of the "partitions" section of the configuration ("drop", "truncate" or "delete").
+ * 
+ * On tables configured for delta sync (see DeltaSync), the delete also records a tombstone for every row it removes, in the same statement, and partitions are never dropped or truncated.
+ * 
+ * A request carrying an Idempotency-Key header is executed once, its retries getting the first response (see IdempotencyKeys).
+ * 
+ * The body may also be sent in CBOR or MessagePack, and the response asked for in either through the Accept header (see BodyCodec).
+ * The body reaches this handler already decoded and checked against the structure of the table by the router (see RequestValidator), so it is read from the context rather than parsed again.
+ * 
  * @author pedrolourenco
  *
  */
 public class DeleteDataHandler implements Handler<RoutingContext> {
 
-	private JDBCClient jdbc;
+	private Bulkhead bulkhead;
+	private ShardMap shardMap;
+	private String coveredPartitions;
+	private DeltaSync deltaSync;
 	private Logger logger;
 
 	/**
 	 * 
-	 * @param jdbc JDBC client to get connections from 
+	 * @param bulkhead Bulkhead to get connections from 
+	 * @param shardMap Shard map, for the tables spread over several instances.
+	 * @param coveredPartitions What to do with the partitions a delete covers entirely: "drop", "truncate" or "delete".
+	 * @param deltaSync Delta sync configuration, for the tables whose deletes leave tombstones.
 	 * @param logger Logger Instance for the class to work with.
 	 */
-	public DeleteDataHandler(JDBCClient jdbc, Logger logger) 
+	public DeleteDataHandler(Bulkhead bulkhead, ShardMap shardMap, String coveredPartitions, DeltaSync deltaSync, Logger logger) 
 	{
-		this.jdbc = jdbc;
+		this.bulkhead = bulkhead;
+		this.shardMap = shardMap;
+		this.coveredPartitions = coveredPartitions;
+		this.deltaSync = deltaSync;
 		this.logger = logger;
 	}
 
@@ -59,40 +94,54 @@ public class DeleteDataHandler implements Handler<RoutingContext> {
 	 *    JsonObject, as body, with the desired results and a Status Code of 200.
 	 * 2- In case of failure:
 	 *    JsonObject, as body, with the a hint for the reason behind the failure and a Status Code of 500.
+	 * 3- In case the deadline of the request was exceeded (see Deadline):
+	 *    JsonObject, as body, with the "error" and "deadlineExceeded" keys and a Status Code of 504.
 	 *    
 	 */
 	@Override
 	public void handle(RoutingContext context) 
 	{
 		logger.info("DeleteDataHandler - Handling Data Query Request");
-		logger.debug("DeleteDataHandler - Request Body: " + context.getBodyAsString());
 
-		jdbc.getConnection(connection -> {
-			if (connection.succeeded())
-			{
+		JsonObject body = BodyCodec.bodyOf(context);
+		logger.debug("DeleteDataHandler - Request Body: " + body);
 
+		String schema = context.request().getParam("schema");
+		String name = context.request().getParam("name");
 
-				Future<JsonObject> sqlQueryFuture = Future.future();
-				deleteData(connection.result(),context.request().getParam("schema"), context.request().getParam("name"), context.getBodyAsString(), sqlQueryFuture);
+		Future<JsonObject> sqlQueryFuture = Future.future();
+
+		if (shardMap.isSharded(schema, name))
+		{
+			deleteFromShards(context, schema, name, body, sqlQueryFuture);
+		}
+		else
+		{
+			bulkhead.getConnection(context, connection -> {
+				if (connection.succeeded())
+				{
+					deleteData(connection.result(), Deadline.of(context),schema, name, body, sqlQueryFuture);
+				}
+				else
+				{
+					logger.error("DeleteDataHandler - "+ Messages.DB_CONNECTION_ERROR.getValue() + connection.cause());
+					sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("error", Messages.DB_CONNECTION_ERROR.getValue() + connection.cause())));
+				}
+			});
+		}
 
-				Future<Void> responseFuture = Future.future();
+		Future<Void> responseFuture = Future.future();
 
-				sqlQueryFuture.compose(queryResults -> {
-					handleQueryResults(context, queryResults);
-				},responseFuture);
-				responseFuture.complete();
-			}
-			else
-			{
-				logger.error("DeleteDataHandler - "+ Messages.DB_CONNECTION_ERROR.getValue() + connection.cause());
-				sendBackResponse(context, new JsonObject(), StatusCodes.FAILED);
-			}
-		});
+		sqlQueryFuture.compose(queryResults -> {
+			handleQueryResults(context, queryResults);
+		},responseFuture);
+		responseFuture.complete();
 
 	}
 	/**
 	 * 
 	 * This method validates the results from the query passed to the database and orders the response to be sent with a status code matching the success or failure of the procedure.
+	 * Successful responses carry a session token when the caller asked for read-your-writes consistency (see SessionToken).
 	 * 
 	 * @param context - Context from the request 
 	 * @param queryResults - Results from the query passed to the database
@@ -100,13 +149,17 @@ public class DeleteDataHandler implements Handler<RoutingContext> {
 	private void handleQueryResults(RoutingContext context, JsonObject queryResults) 
 	{
 
-		if(Optional.ofNullable(queryResults.getValue("error")).isPresent()) 
+		if(queryResults.getBoolean("deadlineExceeded", false))
+		{
+			sendBackResponse(context, queryResults, StatusCodes.GATEWAY_TIMEOUT);
+		}
+		else if(Optional.ofNullable(queryResults.getValue("error")).isPresent()) 
 		{
 			sendBackResponse(context, queryResults, StatusCodes.FAILED);
 		}
 		else
 		{
-			sendBackResponse(context, queryResults, StatusCodes.SUCCEEDED);
+			SessionToken.issue(context, bulkhead, logger, v -> sendBackResponse(context, queryResults, StatusCodes.SUCCEEDED));
 		}
 
 	}
@@ -114,7 +167,8 @@ public class DeleteDataHandler implements Handler<RoutingContext> {
 	/**
 	 * 
 	 * This method sends the response back to the entity that made the request to this application.
-	 * It build the response with the correct header for a JSON response, status code and results printed prettily.
+	 * It build the response with the correct header for the response media type (see BodyCodec), status code and results (printed prettily, in JSON).
+	 * The outcome is recorded first for the Idempotency-Key of the request, if any (see IdempotencyKeys).
 	 * 
 	 * @param context Context from the request 
 	 * @param valueFromSQLQuery  Results from the query passed to the database
@@ -122,10 +176,13 @@ public class DeleteDataHandler implements Handler<RoutingContext> {
 	 */
 	private void sendBackResponse(RoutingContext context, JsonObject message, StatusCodes statusCode)
 	{
+		IdempotencyKeys.record(context, statusCode, message);
+		MediaTypes type = BodyCodec.responseType(context);
+
 		context.response()
-		.putHeader("content-type", "application/json")
+		.putHeader("content-type", type.getValue())
 		.setStatusCode(statusCode.getValue())
-		.end(message.encodePrettily());
+		.end(BodyCodec.encode(type, message));
 
 	}
 
@@ -139,46 +196,203 @@ public class DeleteDataHandler implements Handler<RoutingContext> {
 	 * If the statement sent to the DB executed successfully, creates a JsonObject with the results.
 	 * If the statement sent to the DB failed its execution, creates a JsonObject with the cause for the failure.
 	 * If no statement was sent to the DB due to invalid body request, creates a JsonObject with that note.
+	 * On tables configured for delta sync, the delete is wrapped to record tombstones (see DeltaSync.withTombstones): a where condition holding a ";" can't be wrapped, and counts as an invalid body.
 	 * 
 	 * In the case of failure, the JsonObject contains the "error" key, which will then be used in handleQueryResults to set the correct status code for the response.
 	 * 
 	 * @param result SQLConnection to be used for interaction with the database.
+	 * @param deadline Deadline of the request, bounding the execution of the statement.
 	 * @param schemaName schema to to be used in the query.
 	 * @param tableName table to be used in the query.
-	 * @param requestBody Body from the request made to this route/handler, containing the delete conditions.
+	 * @param body Body from the request made to this route/handler, containing the delete conditions.
 	 * @param sqlQueryfuture Future to store the results from this method. 
 	 * 
 	 */
-	private void deleteData(SQLConnection result, String tableSchema, String tableName, String requestBody, Future<JsonObject> sqlQueryFuture) 
+	private void deleteData(SQLConnection result, Deadline deadline, String tableSchema, String tableName, JsonObject body, Future<JsonObject> sqlQueryFuture) 
 	{
 		SQLConnection conn = result;
 
-		String sqlQuery = buildSQL(tableSchema, tableName, requestBody);
+		boolean tracked = deltaSync.isTracked(tableSchema, tableName);
+		String sqlQuery = Optional.ofNullable(buildSQL(tableSchema, tableName, body))
+				.map(delete -> tracked ? deltaSync.withTombstones(tableSchema, tableName, delete) : delete)
+				.orElse(null);
 
 		if (Optional.ofNullable(sqlQuery).isPresent())
 		{
-			logger.info("DeleteDataHandler - Query passed to DB: \n" + sqlQuery);
+			Partitions.discover(conn, tableSchema, tableName, body.getString("where"), discovery -> {
+				if (discovery.succeeded() && !tracked && !coveredPartitions.equals("delete") && discovery.result().stream().anyMatch(Partition::isCovered))
+				{
+					deletePartitions(conn, deadline, tableSchema, tableName, sqlQuery, discovery.result(), sqlQueryFuture);
+					return;
+				}
+
+				logger.info("DeleteDataHandler - Query passed to DB: \n" + sqlQuery);
+
+				deadline.query(conn, sqlQuery, queryResult -> 
+				{
+					conn.close();
+					if(queryResult.succeeded())
+					{
+						logger.info("InsertDataHandler - " + Messages.QUERY_EXECUTION_SUCCESS.getValue());
+						sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("results", Messages.QUERY_EXECUTION_SUCCESS.getValue())));
+					}
+					else
+					{
+						logger.error("DeleteDataHandler - " + Messages.QUERY_EXECUTION_ERROR.getValue() + queryResult.cause());
+						sqlQueryFuture.handle(Future.succeededFuture(Deadline.errorFor(queryResult.cause(), Messages.QUERY_EXECUTION_ERROR.getValue() + queryResult.cause())));
+					}
+				});
+			});
+		}
+		else
+		{
+			conn.close();
+			logger.error(Messages.INVALID_BODY_ERROR.getValue());
+			sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("error", Messages.INVALID_BODY_ERROR.getValue())));
+		}
+	}
+
+	/**
+	 * 
+	 * Partition-aware version of deleteData, for deletes covering whole partitions (see Partitions.discover).
+	 * In a single transaction, bounded by the deadline:
+	 * - Every covered partition is detached and dropped ("drop") or truncated ("truncate"), which neither scans it nor writes one tuple per row.
+	 * - If the where condition also touches partitions it doesn't cover, the delete statement runs on the parent table, where PostgreSQL prunes the remaining partitions itself.
+	 * Detaching takes an ACCESS EXCLUSIVE lock on the parent table until the transaction ends.
+	 * 
+	 * @param conn SQLConnection to be used for interaction with the database.
+	 * @param deadline Deadline of the request, bounding the transaction.
+	 * @param tableSchema schema to to be used in the statements.
+	 * @param tableName table to be used in the statements.
+	 * @param sqlQuery Delete statement on the parent table.
+	 * @param partitions Partitions of the table, pruned against the where condition.
+	 * @param sqlQueryFuture Future to store the results from this method.
+	 */
+	private void deletePartitions(SQLConnection conn, Deadline deadline, String tableSchema, String tableName, String sqlQuery, List<Partition> partitions, Future<JsonObject> sqlQueryFuture)
+	{
+		String parent = "\""+ tableSchema.toLowerCase() +"\".\""+ tableName.toLowerCase() + "\"";
+		boolean drop = coveredPartitions.equals("drop");
+		List<String> statements = new ArrayList<>();
+		JsonArray covered = new JsonArray();
 
-			conn.query(sqlQuery, queryResult -> 
+		for (Partition partition : partitions)
+		{
+			if (partition.isCovered())
 			{
-				if(queryResult.succeeded())
+				if (drop)
 				{
-					logger.info("InsertDataHandler - " + Messages.QUERY_EXECUTION_SUCCESS.getValue());
-					sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("results", Messages.QUERY_EXECUTION_SUCCESS.getValue())));
+					statements.add("ALTER TABLE " + parent + " DETACH PARTITION " + partition.getQualifiedName() + ";");
+					statements.add("DROP TABLE " + partition.getQualifiedName() + ";");
 				}
 				else
 				{
-					logger.error("DeleteDataHandler - " + Messages.QUERY_EXECUTION_ERROR.getValue() + queryResult.cause());
-					sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("error", Messages.QUERY_EXECUTION_ERROR.getValue() + queryResult.cause())));
+					statements.add("TRUNCATE TABLE " + partition.getQualifiedName() + ";");
 				}
-			});
-			conn.close();
+				covered.add(partition.getSchemaName() + "." + partition.getTableName());
+			}
 		}
-		else
+
+		if (partitions.stream().anyMatch(partition -> partition.isTouched() && !partition.isCovered()))
+		{
+			statements.add(sqlQuery);
+		}
+
+		logger.info("DeleteDataHandler - Statements passed to DB: \n" + String.join("\n", statements));
+
+		deadline.begin(conn, begin -> {
+			if (begin.failed())
+			{
+				conn.close();
+				logger.error("DeleteDataHandler - " + Messages.QUERY_EXECUTION_ERROR.getValue() + begin.cause());
+				sqlQueryFuture.handle(Future.succeededFuture(Deadline.errorFor(begin.cause(), Messages.QUERY_EXECUTION_ERROR.getValue() + begin.cause())));
+				return;
+			}
+
+			executeInOrder(conn, statements, 0, executed -> deadline.end(conn, executed.succeeded(), end -> {
+				conn.close();
+				Throwable cause = executed.failed() ? executed.cause() : end.cause();
+
+				if (executed.succeeded() && end.succeeded())
+				{
+					logger.info("DeleteDataHandler - " + Messages.QUERY_EXECUTION_SUCCESS.getValue());
+					sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("results", Messages.QUERY_EXECUTION_SUCCESS.getValue())
+							.put("partitions", new JsonObject().put(drop ? "dropped" : "truncated", covered))));
+				}
+				else
+				{
+					logger.error("DeleteDataHandler - " + Messages.QUERY_EXECUTION_ERROR.getValue() + cause);
+					sqlQueryFuture.handle(Future.succeededFuture(Deadline.errorFor(cause, Messages.QUERY_EXECUTION_ERROR.getValue() + cause)));
+				}
+			}));
+		});
+	}
+
+	/**
+	 * 
+	 * Executes statements one after the other, stopping at the first failure.
+	 * 
+	 * @param conn SQLConnection to execute the statements on.
+	 * @param statements Statements to execute.
+	 * @param index Index of the next statement to execute.
+	 * @param handler Handler for the result of the execution.
+	 */
+	private void executeInOrder(SQLConnection conn, List<String> statements, int index, Handler<AsyncResult<Void>> handler)
+	{
+		if (index == statements.size())
+		{
+			handler.handle(Future.succeededFuture());
+			return;
+		}
+
+		conn.execute(statements.get(index), executed -> {
+			if (executed.failed())
+			{
+				handler.handle(executed);
+				return;
+			}
+			executeInOrder(conn, statements, index + 1, handler);
+		});
+	}
+
+	/**
+	 * 
+	 * Sharded version of deleteData: the statement is executed on every shard the where condition can match (see ShardMap.shardsFor), in parallel.
+	 * Each shard's delete is atomic on its own, but the delete as a whole is not: if a shard fails, the other shards may have deleted their rows.
+	 * 
+	 * @param context Context from the request
+	 * @param tableSchema schema to to be used in the statement.
+	 * @param tableName table to be used in the statement.
+	 * @param body Body from the request made to this route/handler, containing the delete conditions.
+	 * @param sqlQueryFuture Future to store the results from this method.
+	 */
+	private void deleteFromShards(RoutingContext context, String tableSchema, String tableName, JsonObject body, Future<JsonObject> sqlQueryFuture)
+	{
+		String sqlQuery = buildSQL(tableSchema, tableName, body);
+
+		if (!Optional.ofNullable(sqlQuery).isPresent())
 		{
 			logger.error(Messages.INVALID_BODY_ERROR.getValue());
 			sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("error", Messages.INVALID_BODY_ERROR.getValue())));
+			return;
 		}
+
+		Map<Integer, String> statements = new LinkedHashMap<>();
+		shardMap.shardsFor(tableSchema, tableName, body.getString("where")).forEach(shard -> statements.put(shard, sqlQuery));
+
+		logger.info("DeleteDataHandler - Query passed to shards " + statements.keySet() + ": \n" + sqlQuery);
+
+		shardMap.scatter(context, bulkhead, logger, statements, scatterResult -> {
+			if (scatterResult.succeeded())
+			{
+				logger.info("DeleteDataHandler - " + Messages.QUERY_EXECUTION_SUCCESS.getValue());
+				sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("results", Messages.QUERY_EXECUTION_SUCCESS.getValue()).put("shards", statements.size())));
+			}
+			else
+			{
+				logger.error("DeleteDataHandler - " + Messages.QUERY_EXECUTION_ERROR.getValue() + scatterResult.cause());
+				sqlQueryFuture.handle(Future.succeededFuture(Deadline.errorFor(scatterResult.cause(), Messages.QUERY_EXECUTION_ERROR.getValue() + scatterResult.cause())));
+			}
+		});
 	}
 
 	/**
@@ -190,17 +404,16 @@ public class DeleteDataHandler implements Handler<RoutingContext> {
 	 * 
 	 * @param tableSchema name of the schema for the table
 	 * @param tableName name of the table where data will be deleted from
-	 * @param requestBody body of the request
+	 * @param body body of the request
 	 * @return String with the SQL Statement, or null if the request body was invalid.
 	 */
-	private String buildSQL(String tableSchema, String tableName, String requestBody)
+	private String buildSQL(String tableSchema, String tableName, JsonObject body)
 	{
 		String whereCondition;
 
-		if (validateJsonBody(requestBody))
+		if (validateJsonBody(body))
 		{
-			JsonObject bodyAsJson = new JsonObject(requestBody);
-			whereCondition = Optional.ofNullable(bodyAsJson.getString("where")).orElse(";");
+			whereCondition = Optional.ofNullable(body.getString("where")).orElse(";");
 
 			if(!whereCondition.isEmpty() && !whereCondition.contains(";"))
 			{
@@ -221,14 +434,14 @@ public class DeleteDataHandler implements Handler<RoutingContext> {
 	 * This method validates if the request body is valid JSON, and afterwards if the expected arguments are present in there.
 	 * 
 	 * 
-	 * @param jsonBody Body of the request, as a string
+	 * @param body Body of the request, decoded (see BodyCodec), or null if it was invalid.
 	 * @return true if body is valid JSON and contains all the expected arguments, false otherwise.
 	 */
-	private boolean validateJsonBody(String jsonBody)
+	private boolean validateJsonBody(JsonObject body)
 	{
-		if(VertxJsonValidator.isValidJSON(jsonBody))
+		if(Optional.ofNullable(body).isPresent())
 		{
-			if(Optional.ofNullable(new JsonObject(jsonBody).getString("where")).isPresent())
+			if(Optional.ofNullable(body.getString("where")).isPresent())
 			{
 				return true;
 			}
@@ -0,0 +1,152 @@
+package handlers;
+
+import java.util.Optional;
+
+import org.apache.logging.log4j.Logger;
+
+import enums.Messages;
+import enums.StatusCodes;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import utils.Bulkhead;
+import utils.Deadline;
+import utils.DeltaSync;
+import utils.ShardMap;
+import utils.VertxJsonValidator;
+
+/**
+ *
+ * Handler to manage the routes:
+ * - /delta/:schema/:name
+ *
+ * A request will only be forwarded to this handler if its URL exactly matches this structure.
+ *
+ * The idea behind this route is to let a client keep a copy of a table up to date by downloading only what changed since its last call (see DeltaSync),
+ * instead of selecting the whole table again.
+ * The request body takes:
+ * - "since": the watermark returned by the previous call (absent on the first call, to get every row).
+ * - "select": the columns to return, as in the /select route (the key columns must be among them).
+ * - "max_rows": the most rows to return, only ever lowering the max_rows of the configuration.
+ *
+ * Changes are read on the primary, where the open transactions holding the watermark back can be seen.
+ *
+ * @author pedrolourenco
+ *
+ */
+public class DeltaSyncHandler implements Handler<RoutingContext> {
+
+	private Bulkhead bulkhead;
+	private ShardMap shardMap;
+	private DeltaSync deltaSync;
+	private Logger logger;
+
+	/**
+	 *
+	 * @param bulkhead Bulkhead to get connections from
+	 * @param shardMap Shard map, since tables spread over several instances can't be synced.
+	 * @param deltaSync Delta sync configuration and queries.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public DeltaSyncHandler(Bulkhead bulkhead, ShardMap shardMap, DeltaSync deltaSync, Logger logger)
+	{
+		this.bulkhead = bulkhead;
+		this.shardMap = shardMap;
+		this.deltaSync = deltaSync;
+		this.logger = logger;
+	}
+
+	/**
+	 *
+	 * Central method to the management of requests made to the route this Handlers manages.
+	 *
+	 * The response body will always contain:
+	 * 1- In case of success:
+	 *    JsonObject, as body, with the "results", "deleted", "watermark" and "more" keys (see DeltaSync.read), and a Status Code of 200.
+	 * 2- In case the watermark is older than the tombstones kept:
+	 *    JsonObject, as body, with "resync": true and a Status Code of 200. The client has to drop its copy and start again without "since".
+	 * 3- In case the table isn't configured for delta sync, is sharded, the body is invalid, the read failed:
+	 *    JsonObject, as body, with the "error" key and a Status Code of 500.
+	 * 4- In case the deadline of the request was exceeded (see Deadline):
+	 *    JsonObject, as body, with the "error" and "deadlineExceeded" keys and a Status Code of 504.
+	 *
+	 */
+	@Override
+	public void handle(RoutingContext context)
+	{
+		logger.info("DeltaSyncHandler - Handling Delta Request");
+		logger.debug("DeltaSyncHandler - Request Body: " + context.getBodyAsString());
+
+		String schema = context.request().getParam("schema");
+		String name = context.request().getParam("name");
+		String requestBody = Optional.ofNullable(context.getBodyAsString()).filter(body -> !body.trim().isEmpty()).orElse("{}");
+
+		if (!deltaSync.isTracked(schema, name) || shardMap.isSharded(schema, name))
+		{
+			logger.error("DeltaSyncHandler - " + Messages.DELTA_NOT_TRACKED_ERROR.getValue() + schema + "." + name);
+			sendBackResponse(context, new JsonObject().put("error", Messages.DELTA_NOT_TRACKED_ERROR.getValue() + schema + "." + name), StatusCodes.FAILED);
+			return;
+		}
+
+		if (!VertxJsonValidator.isValidJSON(requestBody))
+		{
+			logger.error("DeltaSyncHandler - " + Messages.INVALID_BODY_ERROR.getValue());
+			sendBackResponse(context, new JsonObject().put("error", Messages.INVALID_BODY_ERROR.getValue()), StatusCodes.FAILED);
+			return;
+		}
+
+		JsonObject body = new JsonObject(requestBody);
+		Object since = body.getValue("since");
+		Object maxRows = body.getValue("max_rows");
+		String columnsToSelect = Optional.ofNullable(body.getValue("select")).map(Object::toString).filter(select -> !select.trim().isEmpty()).orElse("*");
+
+		if ((since != null && !(since instanceof String)) || (maxRows != null && !(maxRows instanceof Integer)) || columnsToSelect.contains(";"))
+		{
+			String error = since != null && !(since instanceof String) ? Messages.INVALID_WATERMARK_ERROR.getValue() + since : Messages.INVALID_BODY_ERROR.getValue();
+			logger.error("DeltaSyncHandler - " + error);
+			sendBackResponse(context, new JsonObject().put("error", error), StatusCodes.FAILED);
+			return;
+		}
+
+		bulkhead.getConnection(connection -> {
+			if (connection.failed())
+			{
+				logger.error("DeltaSyncHandler - " + Messages.DB_CONNECTION_ERROR.getValue() + connection.cause());
+				sendBackResponse(context, new JsonObject().put("error", Messages.DB_CONNECTION_ERROR.getValue() + connection.cause()), StatusCodes.FAILED);
+				return;
+			}
+
+			deltaSync.read(connection.result(), Deadline.of(context), schema, name, columnsToSelect, (String) since, (Integer) maxRows, delta -> {
+				connection.result().close();
+
+				if (delta.failed())
+				{
+					logger.error("DeltaSyncHandler - " + Messages.QUERY_EXECUTION_ERROR.getValue() + delta.cause());
+					JsonObject error = Deadline.errorFor(delta.cause(), Messages.QUERY_EXECUTION_ERROR.getValue() + delta.cause());
+					sendBackResponse(context, error, error.getBoolean("deadlineExceeded", false) ? StatusCodes.GATEWAY_TIMEOUT : StatusCodes.FAILED);
+					return;
+				}
+
+				logger.info("DeltaSyncHandler - " + schema + "." + name + " read up to " + delta.result().getString("watermark", "resync"));
+				sendBackResponse(context, delta.result(), StatusCodes.SUCCEEDED);
+			});
+		});
+	}
+
+	/**
+	 *
+	 * This method sends the response back to the entity that made the request to this application.
+	 * It build the response with the correct header for a JSON response, status code and results printed prettily.
+	 *
+	 * @param context Context from the request
+	 * @param message Body of the response
+	 * @param statusCode Status code to be included in the response
+	 */
+	private void sendBackResponse(RoutingContext context, JsonObject message, StatusCodes statusCode)
+	{
+		context.response()
+		.putHeader("content-type", "application/json")
+		.setStatusCode(statusCode.getValue())
+		.end(message.encodePrettily());
+	}
+}
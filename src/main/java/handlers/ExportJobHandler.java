@@ -0,0 +1,113 @@
+package handlers;
+
+import java.util.Optional;
+
+import org.apache.logging.log4j.Logger;
+
+import enums.Messages;
+import enums.StatusCodes;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import utils.ExportJobs;
+import utils.FileDownload;
+
+/**
+ *
+ * Handler to manage the routes:
+ * - /export/jobs/:job
+ * - /export/jobs/:job/archive
+ * - /exports/jobs/:job
+ * - /exports/jobs/:job/file
+ *
+ * A request will only be forwarded to this handler if its URL exactly matches one of these structures.
+ *
+ * The status routes report the status of an export job: a schema export started through ExportSchemaHandler (see SchemaExport),
+ * or a query export started through ExportQueryHandler (see QueryExport).
+ * The other routes download the file of a finished job, with support for byte ranges so interrupted downloads can be resumed (see FileDownload).
+ * One instance of the handler serves the routes of one source of jobs (see ExportJobs).
+ *
+ * @author pedrolourenco
+ *
+ * @param <J> Type of the jobs of the source.
+ */
+public class ExportJobHandler<J extends ExportJobs.Job> implements Handler<RoutingContext> {
+
+	private ExportJobs<J> exportJobs;
+	private String fileSegment;
+	private Logger logger;
+
+	/**
+	 *
+	 * @param exportJobs Source of the jobs served by this handler.
+	 * @param fileSegment Last segment of the download route ("archive" or "file"), telling it apart from the status route.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public ExportJobHandler(ExportJobs<J> exportJobs, String fileSegment, Logger logger)
+	{
+		this.exportJobs = exportJobs;
+		this.fileSegment = fileSegment;
+		this.logger = logger;
+	}
+
+	/**
+	 *
+	 * Central method to the management of requests made to the routes this Handlers manages.
+	 *
+	 * The response will always be:
+	 * 1- For the status route:
+	 *    JsonObject, as body, with the status of the job (see SchemaExport.Job and QueryExport.Job) and a Status Code of 200.
+	 * 2- For the download route, once the job is done:
+	 *    The file, with a Status Code of 200, or 206 for a byte range.
+	 * 3- In case the job doesn't exist (or expired), or its file was asked for before it is done:
+	 *    JsonObject, as body, with the "error" key and a Status Code of 404.
+	 *
+	 */
+	@Override
+	public void handle(RoutingContext context)
+	{
+		String id = context.request().getParam("job");
+		J job = exportJobs.getJob(id);
+
+		if (!Optional.ofNullable(job).isPresent())
+		{
+			logger.error("ExportJobHandler - " + Messages.EXPORT_JOB_NOT_FOUND_ERROR.getValue() + id);
+			sendBackResponse(context, new JsonObject().put("error", Messages.EXPORT_JOB_NOT_FOUND_ERROR.getValue() + id), StatusCodes.NOT_FOUND);
+			return;
+		}
+
+		if (!context.request().path().endsWith("/" + fileSegment))
+		{
+			sendBackResponse(context, job.toJson(), StatusCodes.SUCCEEDED);
+			return;
+		}
+
+		if (!job.isDone())
+		{
+			logger.error("ExportJobHandler - " + Messages.EXPORT_NOT_READY_ERROR.getValue() + id);
+			sendBackResponse(context, new JsonObject().put("error", Messages.EXPORT_NOT_READY_ERROR.getValue() + id), StatusCodes.NOT_FOUND);
+			return;
+		}
+
+		logger.info("ExportJobHandler - Sending " + fileSegment + " of export job " + id);
+		FileDownload.send(context, exportJobs.filePath(job), job.getFileSize(), "\"" + id + "-" + job.getFinishedAtMillis() + "\"",
+				job.getContentType(), job.getFileName());
+	}
+
+	/**
+	 *
+	 * This method sends the response back to the entity that made the request to this application.
+	 * It build the response with the correct header for a JSON response, status code and results printed prettily.
+	 *
+	 * @param context Context from the request
+	 * @param message Body of the response
+	 * @param statusCode Status code to be included in the response
+	 */
+	private void sendBackResponse(RoutingContext context, JsonObject message, StatusCodes statusCode)
+	{
+		context.response()
+		.putHeader("content-type", "application/json")
+		.setStatusCode(statusCode.getValue())
+		.end(message.encodePrettily());
+	}
+}
@@ -0,0 +1,153 @@
+package handlers;
+
+import java.util.Optional;
+
+import org.apache.logging.log4j.Logger;
+
+import enums.Messages;
+import enums.StatusCodes;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import utils.QueryExport;
+import utils.VertxJsonValidator;
+
+/**
+ *
+ * Handler to manage the routes:
+ * - /exports/:schema/:name
+ *
+ * A request will only be forwarded to this handler if its URL exactly matches this structure.
+ *
+ * The idea behind this route is to run a select too large to be answered in a single response as a background job, spooled to a file (see QueryExport).
+ * The request body takes the same "select", "where" and "order_by" as the /select route, plus the "format" of the file ("csv", the default, or "ndjson").
+ * The response only identifies the job, whose status and file are served by ExportJobHandler.
+ *
+ * @author pedrolourenco
+ *
+ */
+public class ExportQueryHandler implements Handler<RoutingContext> {
+
+	private QueryExport queryExport;
+	private Logger logger;
+
+	/**
+	 *
+	 * @param queryExport Query export job runner.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public ExportQueryHandler(QueryExport queryExport, Logger logger)
+	{
+		this.queryExport = queryExport;
+		this.logger = logger;
+	}
+
+	/**
+	 *
+	 * Central method to the management of requests made to the route this Handlers manages.
+	 *
+	 * The response body will always contain:
+	 * 1- In case the job was queued:
+	 *    JsonObject, as body, with the status of the job (see QueryExport.Job) and its "location", and a Status Code of 202.
+	 * 2- In case the job queue is full:
+	 *    JsonObject, as body, with the "error" key and a Status Code of 503.
+	 * 3- In case the body or format is invalid:
+	 *    JsonObject, as body, with the "error" key and a Status Code of 500.
+	 *
+	 */
+	@Override
+	public void handle(RoutingContext context)
+	{
+		logger.info("ExportQueryHandler - Handling Export Request");
+		logger.debug("ExportQueryHandler - Request Body: " + context.getBodyAsString());
+
+		String schema = context.request().getParam("schema");
+		String name = context.request().getParam("name");
+
+		String sqlQuery = buildSQL(schema, name, context.getBodyAsString());
+
+		if (!Optional.ofNullable(sqlQuery).isPresent())
+		{
+			sendBackResponse(context, new JsonObject().put("error", Messages.INVALID_BODY_ERROR.getValue()), StatusCodes.FAILED);
+			return;
+		}
+
+		String format = new JsonObject(context.getBodyAsString()).getString("format", "csv").toLowerCase();
+
+		if (!format.equals("csv") && !format.equals("ndjson"))
+		{
+			logger.error("ExportQueryHandler - " + Messages.INVALID_EXPORT_FORMAT_ERROR.getValue() + format);
+			sendBackResponse(context, new JsonObject().put("error", Messages.INVALID_EXPORT_FORMAT_ERROR.getValue() + format), StatusCodes.FAILED);
+			return;
+		}
+
+		queryExport.submit(schema, name, format, sqlQuery, submitted -> {
+			if (submitted.failed())
+			{
+				logger.error("ExportQueryHandler - " + submitted.cause().getMessage());
+				sendBackResponse(context, new JsonObject().put("error", submitted.cause().getMessage()), StatusCodes.SERVICE_UNAVAILABLE);
+				return;
+			}
+
+			String location = "/exports/jobs/" + submitted.result().getId();
+			context.response().putHeader("location", location);
+			sendBackResponse(context, submitted.result().toJson().put("location", location), StatusCodes.ACCEPTED);
+		});
+	}
+
+	/**
+	 *
+	 * This method sends the response back to the entity that made the request to this application.
+	 * It build the response with the correct header for a JSON response, status code and results printed prettily.
+	 *
+	 * @param context Context from the request
+	 * @param message Body of the response
+	 * @param statusCode Status code to be included in the response
+	 */
+	private void sendBackResponse(RoutingContext context, JsonObject message, StatusCodes statusCode)
+	{
+		context.response()
+		.putHeader("content-type", "application/json")
+		.setStatusCode(statusCode.getValue())
+		.end(message.encodePrettily());
+	}
+
+	/**
+	 *
+	 * Method responsible for validating the request body and creating the select to export.
+	 * Since the select is wrapped in a COPY, it must be a single statement: a ";" anywhere in the select, where condition or order makes the body invalid.
+	 *
+	 * @param tableSchema name of the schema for the table
+	 * @param tableName name of the table to be queried
+	 * @param requestBody body of the request
+	 * @return String with the select (without a trailing ";"), or null if the request body was invalid.
+	 */
+	private String buildSQL(String tableSchema, String tableName, String requestBody)
+	{
+		if (!VertxJsonValidator.isValidJSON(requestBody))
+		{
+			logger.error("ExportQueryHandler - " + Messages.INVALID_BODY_ERROR.getValue());
+			return null;
+		}
+
+		JsonObject bodyAsJson = new JsonObject(requestBody);
+		String columnsToSelect = Optional.ofNullable(bodyAsJson.getString("select")).orElse("*");
+		String whereCondition = Optional.ofNullable(bodyAsJson.getString("where")).orElse("");
+		String orderBy = Optional.ofNullable(bodyAsJson.getString("order_by")).orElse("");
+
+		if ((columnsToSelect + whereCondition + orderBy).contains(";"))
+		{
+			logger.error("ExportQueryHandler - " + Messages.INVALID_BODY_ERROR.getValue());
+			return null;
+		}
+
+		if (columnsToSelect.trim().isEmpty())
+		{
+			columnsToSelect = "*";
+		}
+
+		return "SELECT " + columnsToSelect + "\n" + "FROM \""+ tableSchema.toLowerCase() +"\".\""+ tableName.toLowerCase() + "\""
+				+ (whereCondition.trim().isEmpty() ? "" : "\nWHERE " + whereCondition)
+				+ (orderBy.trim().isEmpty() ? "" : "\nORDER BY " + orderBy);
+	}
+}
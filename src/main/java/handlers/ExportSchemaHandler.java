@@ -0,0 +1,90 @@
+package handlers;
+
+
+import org.apache.logging.log4j.Logger;
+
+import enums.Messages;
+import enums.StatusCodes;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import utils.SchemaExport;
+
+/**
+ *
+ * Handler to manage the routes:
+ * - /export/:schema
+ *
+ * A request will only be forwarded to this handler if its URL exactly matches this structure.
+ *
+ * The idea behind this route is to start a consistent export of every table of a schema (see SchemaExport).
+ * The export runs in the background: the response only identifies the job, whose status and archive are served by ExportJobHandler.
+ *
+ * @author pedrolourenco
+ *
+ */
+public class ExportSchemaHandler implements Handler<RoutingContext> {
+
+	private SchemaExport schemaExport;
+	private Logger logger;
+
+	/**
+	 *
+	 * @param schemaExport Export job runner.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public ExportSchemaHandler(SchemaExport schemaExport, Logger logger)
+	{
+		this.schemaExport = schemaExport;
+		this.logger = logger;
+	}
+
+	/**
+	 *
+	 * Central method to the management of requests made to the route this Handlers manages.
+	 *
+	 * The response body will always contain:
+	 * 1- In case the job was started:
+	 *    JsonObject, as body, with the status of the job (see SchemaExport.Job) and its "location", and a Status Code of 202.
+	 * 2- In case max_jobs jobs are already running:
+	 *    JsonObject, as body, with the "error" key and a Status Code of 503.
+	 *
+	 */
+	@Override
+	public void handle(RoutingContext context)
+	{
+		String schema = context.request().getParam("schema");
+
+		logger.info("ExportSchemaHandler - Handling Export Request for schema " + schema);
+
+		schemaExport.start(schema, started -> {
+			if (started.failed())
+			{
+				logger.error("ExportSchemaHandler - " + started.cause().getMessage());
+				sendBackResponse(context, new JsonObject().put("error", started.cause().getMessage()), StatusCodes.SERVICE_UNAVAILABLE);
+				return;
+			}
+
+			String location = "/export/jobs/" + started.result().getId();
+			context.response().putHeader("location", location);
+			sendBackResponse(context, started.result().toJson().put("location", location), StatusCodes.ACCEPTED);
+		});
+	}
+
+	/**
+	 *
+	 * This method sends the response back to the entity that made the request to this application.
+	 * It build the response with the correct header for a JSON response, status code and results printed prettily.
+	 *
+	 * @param context Context from the request
+	 * @param message Body of the response
+	 * @param statusCode Status code to be included in the response
+	 */
+	private void sendBackResponse(RoutingContext context, JsonObject message, StatusCodes statusCode)
+	{
+		context.response()
+		.putHeader("content-type", "application/json")
+		.setStatusCode(statusCode.getValue())
+		.end(message.encodePrettily());
+	}
+}
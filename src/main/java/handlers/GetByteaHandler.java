@@ -0,0 +1,404 @@
+package handlers;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.Logger;
+
+import enums.Messages;
+import enums.StatusCodes;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.sql.SQLConnection;
+import io.vertx.ext.web.RoutingContext;
+import utils.Bulkhead;
+import utils.FileDownload;
+import utils.RequestLifecycle;
+
+/**
+ *
+ * Handler to manage the routes:
+ * - /bytea/:schema/:name/:column
+ *
+ * A request will only be forwarded to this handler if its URL exactly matches this structure.
+ *
+ * The idea behind this route is to download a single bytea value as raw bytes, instead of base64 inside a /select result.
+ * The row is picked by the query parameters, each naming a column and its value (e.g. ?id=42), which must match exactly one row.
+ *
+ * A single byte range (Range: bytes=start-end, bytes=start- or bytes=-suffix, see FileDownload) is answered with a 206 and only that part of the value.
+ * The value is read chunk_kb at a time with substring, and each chunk is only read once the previous one was written to the response, following its back-pressure.
+ * Every chunk is read in the same read-only repeatable read transaction, so the download is consistent even if the row is updated meanwhile.
+ * The ETag is built from the xmin and length of the row, so it changes whenever the row does.
+ *
+ * Only the chunks requested are read from disk if the column is stored uncompressed (ALTER TABLE ... ALTER COLUMN ... SET STORAGE EXTERNAL).
+ *
+ * 	"bytea_download": {
+ * 		"chunk_kb": 1024
+ * 	}
+ *
+ * @author pedrolourenco
+ *
+ */
+public class GetByteaHandler implements Handler<RoutingContext> {
+
+	private static final Pattern IDENTIFIER = Pattern.compile("^\\w+$");
+
+	private Bulkhead bulkhead;
+	private int chunkBytes;
+	private Logger logger;
+
+	/**
+	 *
+	 * @param bulkhead Bulkhead to get connections from
+	 * @param settings Settings of the downloads ("bytea_download" section of the configuration).
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public GetByteaHandler(Bulkhead bulkhead, JsonObject settings, Logger logger)
+	{
+		this.bulkhead = bulkhead;
+		this.chunkBytes = settings.getInteger("chunk_kb", 1024) * 1024;
+		this.logger = logger;
+	}
+
+	/**
+	 *
+	 * Central method to the management of requests made to the route this Handlers manages.
+	 * The general logic is:
+	 * 1 - Read the length and version of the value, in a read-only transaction (readHead)
+	 * 2 - Answer with the headers of the whole value or of the requested range
+	 * 3 - Write the value, or the range, chunk by chunk (sendChunks), and close the transaction (finish)
+	 *
+	 * The response will always be:
+	 * 1- In case of success:
+	 *    The bytes of the value, as application/octet-stream, with a Status Code of 200, or 206 for a byte range.
+	 * 2- In case the range can't be satisfied:
+	 *    An empty body, with the Content-Range of the value and a Status Code of 416.
+	 * 3- In case no row matches the key, or its value is null:
+	 *    JsonObject, as body, with the "error" key and a Status Code of 404.
+	 * 4- In case several rows match the key:
+	 *    JsonObject, as body, with the "error" key and a Status Code of 409.
+	 * 5- In case of any other failure before the first byte was sent:
+	 *    JsonObject, as body, with the "error" key and a Status Code of 500. Failures after that close the connection, leaving the download short of its Content-Length.
+	 *
+	 */
+	@Override
+	public void handle(RoutingContext context)
+	{
+		String column = context.request().getParam("column");
+		String table = context.request().getParam("schema") + "." + context.request().getParam("name");
+		List<String> keyColumns = new ArrayList<>(context.queryParams().names());
+		List<String> keyValues = keyColumns.stream().map(keyColumn -> context.queryParams().get(keyColumn)).collect(Collectors.toList());
+
+		if (keyColumns.isEmpty() || !IDENTIFIER.matcher(column).matches() || !keyColumns.stream().allMatch(keyColumn -> IDENTIFIER.matcher(keyColumn).matches()))
+		{
+			logger.error("GetByteaHandler - " + Messages.INVALID_BYTEA_KEY_ERROR.getValue() + context.request().query());
+			sendBackResponse(context, new JsonObject().put("error", Messages.INVALID_BYTEA_KEY_ERROR.getValue() + context.request().query()), StatusCodes.FAILED);
+			return;
+		}
+
+		String where = " FROM " + table + " WHERE " + keyColumns.stream().map(keyColumn -> keyColumn + " = ?").collect(Collectors.joining(" AND "));
+		String headSQL = "SELECT octet_length(" + column + "), xmin::text" + where + " LIMIT 2";
+		String chunkSQL = "SELECT substring(" + column + " FROM ? FOR ?)" + where;
+
+		bulkhead.getConnection(context, connection -> {
+			if (connection.failed())
+			{
+				logger.error("GetByteaHandler - " + Messages.DB_CONNECTION_ERROR.getValue() + connection.cause());
+				sendBackResponse(context, new JsonObject().put("error", Messages.DB_CONNECTION_ERROR.getValue() + connection.cause()), StatusCodes.FAILED);
+				return;
+			}
+
+			SQLConnection conn = connection.result();
+			AtomicBoolean closed = new AtomicBoolean(false);
+			RequestLifecycle.onClose(context, v -> closed.set(true));
+
+			onWorker(conn, jdbcConnection -> readHead(jdbcConnection, headSQL, keyValues), head -> {
+				if (head.failed())
+				{
+					finish(conn);
+					sendHeadFailure(context, head.cause());
+					return;
+				}
+
+				long length = Long.parseLong(head.result()[0]);
+				String etag = "\"" + head.result()[1] + "-" + length + "\"";
+				long[] range = Optional.ofNullable(length > 0 ? FileDownload.rangeOf(context, length, etag) : null).orElse(new long[] {0, length - 1});
+				HttpServerResponse response = context.response()
+						.putHeader("content-type", "application/octet-stream")
+						.putHeader("accept-ranges", "bytes")
+						.putHeader("etag", etag);
+
+				if (length > 0 && range[0] > range[1])
+				{
+					finish(conn);
+					response
+					.putHeader("content-range", "bytes */" + length)
+					.setStatusCode(StatusCodes.RANGE_NOT_SATISFIABLE.getValue())
+					.end();
+					return;
+				}
+
+				if (range[1] - range[0] + 1 == length)
+				{
+					response.setStatusCode(StatusCodes.SUCCEEDED.getValue());
+				}
+				else
+				{
+					response
+					.putHeader("content-range", "bytes " + range[0] + "-" + range[1] + "/" + length)
+					.setStatusCode(StatusCodes.PARTIAL_CONTENT.getValue());
+				}
+
+				logger.info("GetByteaHandler - Sending bytes " + range[0] + " to " + range[1] + " of " + length + " from " + table + "." + column);
+				response.putHeader("content-length", String.valueOf(range[1] - range[0] + 1));
+				sendChunks(context, conn, chunkSQL, keyValues, range[0], range[1], closed);
+			});
+		});
+	}
+
+	/**
+	 *
+	 * Opens the read-only repeatable read transaction of the download, and reads the length and version of the value.
+	 *
+	 * @param jdbcConnection JDBC connection under the SQLConnection of the download.
+	 * @param headSQL Statement reading the octet_length and xmin of the row.
+	 * @param keyValues Values of the key columns.
+	 * @return The length of the value and the xmin of its row.
+	 * @throws SQLException if the statements failed.
+	 * @throws NoSuchElementException if no row matches the key, or its value is null.
+	 * @throws IllegalStateException if several rows match the key.
+	 */
+	private String[] readHead(Connection jdbcConnection, String headSQL, List<String> keyValues) throws SQLException
+	{
+		jdbcConnection.setAutoCommit(false);
+
+		try (Statement statement = jdbcConnection.createStatement())
+		{
+			statement.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+		}
+
+		try (PreparedStatement statement = jdbcConnection.prepareStatement(headSQL))
+		{
+			bindKey(statement, 1, keyValues);
+
+			try (ResultSet rows = statement.executeQuery())
+			{
+				if (!rows.next() || !Optional.ofNullable(rows.getString(1)).isPresent())
+				{
+					throw new NoSuchElementException(Messages.BYTEA_NOT_FOUND_ERROR.getValue() + keyValues);
+				}
+
+				String[] head = {rows.getString(1), rows.getString(2)};
+
+				if (rows.next())
+				{
+					throw new IllegalStateException(Messages.BYTEA_KEY_NOT_UNIQUE_ERROR.getValue() + keyValues);
+				}
+				return head;
+			}
+		}
+	}
+
+	/**
+	 *
+	 * Writes the bytes from first to last of the value to the response, reading chunk_kb at a time, and ends it.
+	 * The next chunk is only read once the response can take more (see HttpServerResponse.writeQueueFull).
+	 *
+	 * @param context Context from the request
+	 * @param conn SQLConnection of the download.
+	 * @param chunkSQL Statement reading a substring of the value.
+	 * @param keyValues Values of the key columns.
+	 * @param first First byte to send.
+	 * @param last Last byte to send (inclusive).
+	 * @param closed Set once the connection of the request closed, stopping the download.
+	 */
+	private void sendChunks(RoutingContext context, SQLConnection conn, String chunkSQL, List<String> keyValues, long first, long last, AtomicBoolean closed)
+	{
+		HttpServerResponse response = context.response();
+
+		if (closed.get() || first > last)
+		{
+			finish(conn);
+			if (!closed.get())
+			{
+				response.end();
+			}
+			return;
+		}
+
+		int length = (int) Math.min(chunkBytes, last - first + 1);
+
+		onWorker(conn, jdbcConnection -> {
+			try (PreparedStatement statement = jdbcConnection.prepareStatement(chunkSQL))
+			{
+				statement.setInt(1, (int) first + 1);
+				statement.setInt(2, length);
+				bindKey(statement, 3, keyValues);
+
+				try (ResultSet rows = statement.executeQuery())
+				{
+					return rows.next() ? Optional.ofNullable(rows.getBytes(1)).orElse(new byte[0]) : new byte[0];
+				}
+			}
+		}, chunk -> {
+			if (chunk.failed() || chunk.result().length != length)
+			{
+				logger.error("GetByteaHandler - " + Messages.QUERY_EXECUTION_ERROR.getValue() + (chunk.failed() ? chunk.cause() : "value shorter than its length"));
+				finish(conn);
+				if (!closed.get())
+				{
+					response.close();
+				}
+				return;
+			}
+			if (closed.get())
+			{
+				finish(conn);
+				return;
+			}
+
+			response.write(Buffer.buffer(chunk.result()));
+
+			if (response.writeQueueFull())
+			{
+				response.drainHandler(v -> sendChunks(context, conn, chunkSQL, keyValues, first + length, last, closed));
+			}
+			else
+			{
+				sendChunks(context, conn, chunkSQL, keyValues, first + length, last, closed);
+			}
+		});
+	}
+
+	/**
+	 *
+	 * Rolls the transaction of the download back and hands the connection back to the pool.
+	 *
+	 * @param conn SQLConnection of the download.
+	 */
+	private void finish(SQLConnection conn)
+	{
+		onWorker(conn, jdbcConnection -> {
+			if (!jdbcConnection.getAutoCommit())
+			{
+				jdbcConnection.rollback();
+				jdbcConnection.setAutoCommit(true);
+			}
+			return null;
+		}, done -> {
+			if (done.failed())
+			{
+				logger.error("GetByteaHandler - Failed to close the download transaction: " + done.cause());
+			}
+			conn.close();
+		});
+	}
+
+	/**
+	 *
+	 * @param statement Statement to bind the key to.
+	 * @param index Index of the first key parameter.
+	 * @param keyValues Values of the key columns, sent untyped so PostgreSQL reads them as the type of their column.
+	 * @throws SQLException if a value couldn't be bound.
+	 */
+	private static void bindKey(PreparedStatement statement, int index, List<String> keyValues) throws SQLException
+	{
+		for (int i = 0; i < keyValues.size(); i++)
+		{
+			statement.setObject(index + i, keyValues.get(i), Types.OTHER);
+		}
+	}
+
+	/**
+	 *
+	 * Runs work on the JDBC connection under the SQLConnection, on a worker of the bulkhead's worker pool.
+	 *
+	 * @param conn SQLConnection to work on.
+	 * @param work Work to run.
+	 * @param handler Handler for the result of the work.
+	 */
+	private <T> void onWorker(SQLConnection conn, Work<T> work, Handler<AsyncResult<T>> handler)
+	{
+		bulkhead.getWorkerExecutor().<T>executeBlocking(blocking -> {
+			try
+			{
+				Connection jdbcConnection = conn.unwrap();
+				blocking.complete(work.run(jdbcConnection));
+			}
+			catch (SQLException | RuntimeException e)
+			{
+				blocking.fail(e);
+			}
+		}, false, handler);
+	}
+
+	/**
+	 *
+	 * Answers a download whose value couldn't be found or read, as described in handle.
+	 *
+	 * @param context Context from the request
+	 * @param cause Cause of the failure.
+	 */
+	private void sendHeadFailure(RoutingContext context, Throwable cause)
+	{
+		logger.error("GetByteaHandler - " + cause.getMessage());
+
+		if (cause instanceof NoSuchElementException)
+		{
+			sendBackResponse(context, new JsonObject().put("error", cause.getMessage()), StatusCodes.NOT_FOUND);
+		}
+		else if (cause instanceof IllegalStateException)
+		{
+			sendBackResponse(context, new JsonObject().put("error", cause.getMessage()), StatusCodes.CONFLICT);
+		}
+		else
+		{
+			sendBackResponse(context, new JsonObject().put("error", Messages.QUERY_EXECUTION_ERROR.getValue() + cause), StatusCodes.FAILED);
+		}
+	}
+
+	/**
+	 *
+	 * This method sends the response back to the entity that made the request to this application.
+	 * It build the response with the correct header for a JSON response, status code and results printed prettily.
+	 *
+	 * @param context Context from the request
+	 * @param message Body of the response
+	 * @param statusCode Status code to be included in the response
+	 */
+	private void sendBackResponse(RoutingContext context, JsonObject message, StatusCodes statusCode)
+	{
+		if (context.response().closed())
+		{
+			return;
+		}
+
+		context.response()
+		.putHeader("content-type", "application/json")
+		.setStatusCode(statusCode.getValue())
+		.end(message.encodePrettily());
+	}
+
+	/**
+	 *
+	 * Work run on the JDBC connection of a download.
+	 */
+	private interface Work<T>
+	{
+		T run(Connection connection) throws SQLException;
+	}
+}
@@ -1,18 +1,37 @@
 package handlers;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
 import org.apache.logging.log4j.Logger;
 
+import enums.MediaTypes;
 import enums.Messages;
 import enums.StatusCodes;
+import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
-import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.ext.sql.ResultSet;
 import io.vertx.ext.sql.SQLConnection;
 import io.vertx.ext.web.RoutingContext;
-import utils.VertxJsonValidator;
+import utils.BodyCodec;
+import utils.Bulkhead;
+import utils.DatabasePools;
+import utils.Deadline;
+import utils.InFlightStatement;
+import utils.ParallelScan;
+import utils.Partitions;
+import utils.ResultBudget;
+import utils.ResultBuffer;
+import utils.ResultSetMerger;
+import utils.ShardMap;
 /**
  * 
  * Handler to manage the routes:
@@ -23,26 +42,51 @@ import utils.VertxJsonValidator;
  * The idea behind this route is to provide the possibility for data deletion from a table.
  * Also, a request made to the route should include a JSON object specifying the select clause and where condition for the query to be made.
  * 
- * The only real requirement for the body is that it is valid JSON. Meaning that, if it is valid JSON but the expected values are missing, the query defaults to full table select.
+ * The only real requirement for the body is that it is a valid JSON object (or CBOR or MessagePack map, see BodyCodec). Meaning that, if it is valid JSON but the expected values are missing, the query defaults to full table select.
  * This implementation path was chosen to facilitate usage in the case of "non-selective" objective. 
  * Meaning that, if you want to select the entire table, no fancy JSON will be needed, just put {} as message body.
+ * An optional "order_by" value ("col1 DESC, col2") sorts the results.
+ * 
+ * Tables listed in the shard map (see ShardMap) are queried on every relevant shard in parallel, and the results merged (in order, if "order_by" was given).
+ * Other tables can be scanned by several connections at once, by adding "parallel": n to the body (see ParallelScan): partitioned tables partition by partition, skipping the partitions the where condition can't match, and the rest over ranges of their pages.
+ * 
+ * Results of plain queries are streamed from the database into a ResultBuffer, which spills to disk past its memory limit, and written to the response from there.
+ * Their rows are encoded according to the types of their columns (see RowEncoder): jsonb as nested documents, numeric as exact numbers, timestamps in ISO 8601.
+ * Large bytea values are better downloaded through GetByteaHandler, which supports byte ranges.
+ * 
+ * Every result is bounded by the budget of the request (see ResultBudget), which the body can lower with "max_rows": statements are limited to one row above the budget,
+ * and a result cut short by it is answered with "truncated": true, the limit reached ("truncatedBy") and a "continuation" holding the "offset" to send for the next page.
+ * The body "offset" skips that many rows of the result. Results read in one piece answer with "truncated": false.
+ * The byte budget is enforced on plain queries only, as their rows are read; sharded and parallel results are bounded by rows.
+ * 
+ * The body may also be sent in CBOR or MessagePack, and the results asked for in either through the Accept header (see BodyCodec).
+ * The body reaches this handler already decoded and checked against the structure of the table by the router (see RequestValidator), so it is read from the context rather than parsed again.
  * 
  * @author pedrolourenco
  *
  */
 public class GetDataHandler implements Handler<RoutingContext> {
 
-	private JDBCClient jdbc;
+	private Bulkhead bulkhead;
+	private ShardMap shardMap;
+	private ParallelScan parallelScan;
+	private JsonObject resultBufferSettings;
 	private Logger logger;
 
 	/**
 	 * 
-	 * @param jdbc JDBC client to get connections from 
+	 * @param bulkhead Bulkhead to get connections from 
+	 * @param shardMap Shard map, for the tables spread over several instances.
+	 * @param parallelScan Executor of the parallel table scans.
+	 * @param resultBufferSettings Settings of the result buffers ("result_buffer" section of the configuration).
 	 * @param logger Logger Instance for the class to work with.
 	 */
-	public GetDataHandler(JDBCClient jdbc, Logger logger) 
+	public GetDataHandler(Bulkhead bulkhead, ShardMap shardMap, ParallelScan parallelScan, JsonObject resultBufferSettings, Logger logger) 
 	{
-		this.jdbc = jdbc;
+		this.bulkhead = bulkhead;
+		this.shardMap = shardMap;
+		this.parallelScan = parallelScan;
+		this.resultBufferSettings = resultBufferSettings;
 		this.logger = logger;
 	}
 	
@@ -53,6 +97,9 @@ public class GetDataHandler implements Handler<RoutingContext> {
 	 * 1 - Query database for the information requested (passing the eventually present parameter) (queryTable)
 	 * 2 - Handle the results from said query and populate the response accordingly (handleQueryResults)
 	 * 
+	 * The statement is bound to the request (InFlightStatement): if the client disconnects before the results are sent, the statement is cancelled on the database and the connection goes back to the pool once the read stops.
+	 * It runs through the bulkhead (Bulkhead.execute), which may hedge it to a second replica when the first one is slow.
+	 * 
 	 * Sequential execution of the steps is guaranteed via the usage of Futures.
 	 * The overall logic applied is that the futures never fail because, even if there is some issue in querying the database.
 	 * This was the design of choice because that would be an issue external to the application. Meaning, that the application's job is to bridge the caller and the database, even if the results are not the desired.
@@ -63,35 +110,45 @@ public class GetDataHandler implements Handler<RoutingContext> {
 	 *    JsonObject, as body, with the desired results and a Status Code of 200.
 	 * 2- In case of failure:
 	 *    JsonObject, as body, with the a hint for the reason behind the failure and a Status Code of 500.
+	 *    Both forms carry the "truncated" key, with "truncatedBy" and "continuation" when the result was cut short by the budget.
+	 * 3- In case the deadline of the request was exceeded (see Deadline):
+	 *    JsonObject, as body, with the "error" and "deadlineExceeded" keys and a Status Code of 504.
 	 *    
 	 */
 	@Override
 	public void handle(RoutingContext context) 
 	{
 		logger.info("GetDataHandler - Handling Data Query Request");
-		logger.debug("GetDataHandler - Request Body: " + context.getBodyAsString());
 
-		jdbc.getConnection(connection -> {
-			if (connection.succeeded())
-			{
+		JsonObject body = BodyCodec.bodyOf(context);
+		logger.debug("GetDataHandler - Request Body: " + body);
 
+		String schema = context.request().getParam("schema");
+		String name = context.request().getParam("name");
+		int reserved = reserveParallelScan(context, schema, name, body);
 
-				Future<JsonObject> sqlQueryFuture = Future.future();
-				queryTable(connection.result(),context.request().getParam("schema"), context.request().getParam("name"), context.getBodyAsString(), sqlQueryFuture);
+		Future<JsonObject> sqlQueryFuture = Future.future();
+
+		if (shardMap.isSharded(schema, name))
+		{
+			queryShards(context, schema, name, body, sqlQueryFuture);
+		}
+		else if (reserved > 0)
+		{
+			scanInParallel(context, schema, name, body, reserved, sqlQueryFuture);
+		}
+		else
+		{
+			bulkhead.execute(context, (connection, statement, attemptFuture) ->
+				queryTable(context, connection, Deadline.of(context), statement, schema, name, body, attemptFuture), sqlQueryFuture);
+		}
 
-				Future<Void> responseFuture = Future.future();
+		Future<Void> responseFuture = Future.future();
 
-				sqlQueryFuture.compose(queryResults -> {
-					handleQueryResults(context, queryResults);
-				},responseFuture);
-				responseFuture.complete();
-			}
-			else
-			{
-				logger.error("GetDataHandler - "+ Messages.DB_CONNECTION_ERROR.getValue() + connection.cause());
-				sendBackResponse(context, new JsonObject(), StatusCodes.FAILED);
-			}
-		});
+		sqlQueryFuture.compose(queryResults -> {
+			handleQueryResults(context, queryResults);
+		},responseFuture);
+		responseFuture.complete();
 
 	}
 	/**
@@ -104,10 +161,18 @@ public class GetDataHandler implements Handler<RoutingContext> {
 	private void handleQueryResults(RoutingContext context, JsonObject queryResults) 
 	{
 
-		if(Optional.ofNullable(queryResults.getValue("error")).isPresent()) 
+		if(queryResults.getBoolean("deadlineExceeded", false))
+		{
+			sendBackResponse(context, queryResults, StatusCodes.GATEWAY_TIMEOUT);
+		}
+		else if(Optional.ofNullable(queryResults.getValue("error")).isPresent()) 
 		{
 			sendBackResponse(context, queryResults, StatusCodes.FAILED);
 		}
+		else if(Optional.ofNullable(queryResults.getString(ResultBuffer.CONTEXT_KEY)).isPresent())
+		{
+			sendBufferedResponse(context, ResultBuffer.of(context, (String) queryResults.remove(ResultBuffer.CONTEXT_KEY)), queryResults);
+		}
 		else
 		{
 			sendBackResponse(context, queryResults, StatusCodes.SUCCEEDED);
@@ -115,10 +180,37 @@ public class GetDataHandler implements Handler<RoutingContext> {
 
 	}
 
+	/**
+	 * 
+	 * This method sends the rows of a result buffer back to the entity that made the request to this application, as {"results": [...], ...metadata}.
+	 * The rows are written as they were buffered, in the response media type of the request (see BodyCodec), and JSON without pretty printing.
+	 * If the client already closed the connection, nothing is written.
+	 * 
+	 * @param context Context from the request 
+	 * @param buffer Buffer holding the rows of the results
+	 * @param metadata Keys to write after the results (the truncation metadata).
+	 */
+	private void sendBufferedResponse(RoutingContext context, ResultBuffer buffer, JsonObject metadata)
+	{
+		if (context.response().closed())
+		{
+			logger.info("GetDataHandler - Client disconnected, response discarded");
+			return;
+		}
+
+		MediaTypes type = BodyCodec.responseType(context);
+
+		context.response()
+		.putHeader("content-type", type.getValue())
+		.setStatusCode(StatusCodes.SUCCEEDED.getValue());
+		buffer.writeTo(context.response(), BodyCodec.resultsPrefix(type, buffer.getRows(), metadata), BodyCodec.resultsSuffix(type, metadata));
+	}
+
 	/**
 	 * 
 	 * This method sends the response back to the entity that made the request to this application.
-	 * It build the response with the correct header for a JSON response, status code and results printed prettily.
+	 * It build the response with the correct header for the response media type (see BodyCodec), status code and results (printed prettily, in JSON).
+	 * If the client already closed the connection, nothing is written.
 	 * 
 	 * @param context Context from the request 
 	 * @param valueFromSQLQuery  Results from the query passed to the database
@@ -126,10 +218,18 @@ public class GetDataHandler implements Handler<RoutingContext> {
 	 */
 	private void sendBackResponse(RoutingContext context, JsonObject message, StatusCodes statusCode)
 	{
+		if (context.response().closed())
+		{
+			logger.info("GetDataHandler - Client disconnected, response discarded");
+			return;
+		}
+
+		MediaTypes type = BodyCodec.responseType(context);
+
 		context.response()
-		.putHeader("content-type", "application/json")
+		.putHeader("content-type", type.getValue())
 		.setStatusCode(statusCode.getValue())
-		.end(message.encodePrettily());
+		.end(BodyCodec.encode(type, message));
 
 	}
 
@@ -140,55 +240,70 @@ public class GetDataHandler implements Handler<RoutingContext> {
 	 * The request body does need to be validated because it can come empty or invalid from the caller. These two validations are done inside the buildSQL method.
 	 * But also, in the "if" condition present in this method, because if the return from buildSQL is null, it means that something was wrong with the request body, and no statement will be submitted to the database.
 	 * 
-	 * If the statement sent to the DB executed successfully, creates a JsonObject with the results.
+	 * If the statement sent to the DB executed successfully, creates a JsonObject with the key of the ResultBuffer its rows were streamed into (see handleQueryResults), and the truncation metadata.
+	 * The statement is limited to the offset and budget of the request, and reading stops as soon as the buffer refuses a row, so no more than one fetch beyond the budget is ever read.
 	 * If the statement sent to the DB failed its execution, creates a JsonObject with the cause for the failure.
 	 * If no statement was sent to the DB due to invalid body request, creates a JsonObject with that note.
 	 * 
 	 * In the case of failure, the JsonObject contains the "error" key, which will then be used in handleQueryResults to set the correct status code for the response.
 	 * 
+	 * @param context Context from the request, to which the result buffer is tied.
 	 * @param result SQLConnection to be used for interaction with the database.
+	 * @param deadline Deadline of the request, bounding the execution of the statement.
+	 * @param statement In-flight statement bound to the connection, through which the connection is released.
 	 * @param schemaName schema to to be used in the query.
 	 * @param tableName table to be used in the query.
-	 * @param requestBody Body from the request made to this route/handler, containing the delete conditions.
+	 * @param body Body from the request made to this route/handler, containing the delete conditions.
 	 * @param sqlQueryfuture Future to store the results from this method. 
 	 * 
 	 */
-	private void queryTable(SQLConnection result, String tableSchema, String tableName, String requestBody, Future<JsonObject> sqlQueryFuture) 
+	private void queryTable(RoutingContext context, SQLConnection result, Deadline deadline, InFlightStatement statement, String tableSchema, String tableName, JsonObject body, Future<JsonObject> sqlQueryFuture) 
 	{
 
-		JsonArray queryResults = new JsonArray();
 		SQLConnection conn = result;
 
-		String sqlQuery = buildSQL(tableSchema, tableName, requestBody);
+		ResultBudget budget = budgetFor(context, body);
+		long offset = offsetOf(body);
+		String unlimitedQuery = buildSQL(tableSchema, tableName, body);
+		String sqlQuery = limitSQL(unlimitedQuery, budget.rowsToFetch(0), offset);
 
 		if (Optional.ofNullable(sqlQuery).isPresent())
 		{
 			logger.info("GetDataHandler - Query passed to DB: \n" + sqlQuery);
 
-			conn.query(sqlQuery, queryResult -> 
+			ResultBuffer buffer = ResultBuffer.open(context, resultBufferSettings, budget, logger);
+			AtomicLong toSkip = new AtomicLong(sqlQuery.equals(unlimitedQuery) ? offset : 0);
+			int fetchSize = (int) Math.min(resultBufferSettings.getInteger("fetch_size", 1000), budget.rowsToFetch(0));
+
+			deadline.stream(conn, bulkhead.getWorkerExecutor(), sqlQuery, fetchSize, row -> {
+				if (toSkip.get() > 0)
+				{
+					toSkip.decrementAndGet();
+					return true;
+				}
+				return buffer.append(row);
+			}, queryResult -> 
 			{
+				statement.release();
+
 				if(queryResult.succeeded())
 				{
-					logger.info("GetDataHandler - number of rows in query results: " +queryResult.result().getResults().size());
-
-					for (JsonArray ja : queryResult.result().getResults())
-					{		
-						queryResults.add(ja);
-					}
-
-					sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("results", queryResults)));
+					logger.info("GetDataHandler - number of rows in query results: " + buffer.getRows() + (buffer.isSpilled() ? " (spilled to disk)" : "")
+							+ (Optional.ofNullable(buffer.getTruncatedBy()).isPresent() ? " (truncated by " + buffer.getTruncatedBy() + " budget)" : ""));
+					sqlQueryFuture.handle(Future.succeededFuture(ResultBudget.truncation(buffer.getTruncatedBy(), offset + buffer.getRows())
+							.put(ResultBuffer.CONTEXT_KEY, buffer.getKey())));
 				}
 				else
 				{
 					logger.error("GetDataHandler - " + Messages.QUERY_EXECUTION_ERROR.getValue() + queryResult.cause());
-					sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("error", Messages.QUERY_EXECUTION_ERROR.getValue() + queryResult.cause())));
+					sqlQueryFuture.handle(Future.succeededFuture(Deadline.errorFor(queryResult.cause(), Messages.QUERY_EXECUTION_ERROR.getValue() + queryResult.cause())));
 				}
 
 			});
-			conn.close();
 		}
 		else
 		{
+			statement.release();
 			logger.error(Messages.INVALID_BODY_ERROR.getValue());
 			sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("error", Messages.INVALID_BODY_ERROR.getValue())));
 		}
@@ -196,36 +311,371 @@ public class GetDataHandler implements Handler<RoutingContext> {
 
 	/**
 	 * 
-	 * Method responsible for validating the request body for both JSON validity and existence (both through the VertxJsonValidator.isValidJSON method), and creation of the SQL Statement to be passed to the database.
+	 * Sharded version of queryTable: the statement is executed on every shard the where condition can match (see ShardMap.shardsFor), in parallel.
+	 * The results are merged with ResultSetMerger, which requires every "order_by" column to be part of the selected columns.
+	 * Each shard sorts its text columns with COLLATE "C", the order the merge follows (see ResultSetMerger.collatedOrder).
+	 * Each shard is limited to the offset and budget of the request, which are then applied to the merged results (see page).
+	 * 
+	 * The resulting JsonObject has the same form as in queryTable, plus the "shards" key with the number of shards queried.
+	 * 
+	 * @param context Context from the request
+	 * @param tableSchema schema to to be used in the query.
+	 * @param tableName table to be used in the query.
+	 * @param body Body from the request made to this route/handler.
+	 * @param sqlQueryFuture Future to store the results from this method.
+	 */
+	private void queryShards(RoutingContext context, String tableSchema, String tableName, JsonObject body, Future<JsonObject> sqlQueryFuture)
+	{
+		String orderBy = body.getString("order_by");
+
+		if (!Optional.ofNullable(orderBy).isPresent() || orderBy.trim().isEmpty())
+		{
+			scatterQuery(context, tableSchema, tableName, body, body, sqlQueryFuture);
+			return;
+		}
+
+		shardMap.collatableColumns(bulkhead, tableSchema, tableName, columns -> {
+			if (columns.failed())
+			{
+				logger.error("GetDataHandler - " + Messages.QUERY_EXECUTION_ERROR.getValue() + columns.cause());
+				sqlQueryFuture.handle(Future.succeededFuture(Deadline.errorFor(columns.cause(), Messages.QUERY_EXECUTION_ERROR.getValue() + columns.cause())));
+				return;
+			}
+			scatterQuery(context, tableSchema, tableName, body, body.copy().put("order_by", ResultSetMerger.collatedOrder(orderBy, columns.result())), sqlQueryFuture);
+		});
+	}
+
+	/**
+	 * 
+	 * Scatters the statement of a sharded select to its shards, and merges the results (see queryShards).
+	 * 
+	 * @param context Context from the request
+	 * @param tableSchema schema to to be used in the query.
+	 * @param tableName table to be used in the query.
+	 * @param body Body from the request made to this route/handler.
+	 * @param shardBody Body the statement of the shards is built from: the request's one, with its text order columns collated.
+	 * @param sqlQueryFuture Future to store the results from this method.
+	 */
+	private void scatterQuery(RoutingContext context, String tableSchema, String tableName, JsonObject body, JsonObject shardBody, Future<JsonObject> sqlQueryFuture)
+	{
+		ResultBudget budget = budgetFor(context, body);
+		long offset = offsetOf(body);
+		String sqlQuery = limitSQL(buildSQL(tableSchema, tableName, shardBody), budget.rowsToFetch(offset), 0);
+
+		if (!Optional.ofNullable(sqlQuery).isPresent())
+		{
+			sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("error", Messages.INVALID_BODY_ERROR.getValue())));
+			return;
+		}
+
+		Map<Integer, String> statements = new LinkedHashMap<>();
+		shardMap.shardsFor(tableSchema, tableName, body.getString("where")).forEach(shard -> statements.put(shard, sqlQuery));
+
+		logger.info("GetDataHandler - Query passed to shards " + statements.keySet() + ": \n" + sqlQuery);
+
+		shardMap.scatter(context, bulkhead, logger, statements, scatterResult -> {
+			if (scatterResult.failed())
+			{
+				logger.error("GetDataHandler - " + Messages.QUERY_EXECUTION_ERROR.getValue() + scatterResult.cause());
+				sqlQueryFuture.handle(Future.succeededFuture(Deadline.errorFor(scatterResult.cause(), Messages.QUERY_EXECUTION_ERROR.getValue() + scatterResult.cause())));
+				return;
+			}
+
+			try
+			{
+				JsonArray queryResults = ResultSetMerger.merge(new ArrayList<>(scatterResult.result().values()), body.getString("order_by"));
+				logger.info("GetDataHandler - number of rows in query results: " + queryResults.size());
+				sqlQueryFuture.handle(Future.succeededFuture(page(queryResults, offset, budget).put("shards", statements.size())));
+			}
+			catch (IllegalArgumentException e)
+			{
+				logger.error("GetDataHandler - " + Messages.INVALID_ORDER_ERROR.getValue() + e.getMessage());
+				sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("error", Messages.INVALID_ORDER_ERROR.getValue() + e.getMessage())));
+			}
+		});
+	}
+
+	/**
+	 * 
+	 * Reserves the connections for a parallel scan, if the request asked for one ("parallel" above 1 in the body) and it can be done.
+	 * Sharded tables, requests routed to another database, invalid bodies and where conditions holding their own ";" are never scanned in parallel.
+	 * 
+	 * @param context Context from the request
+	 * @param tableSchema schema to to be used in the query.
+	 * @param tableName table to be used in the query.
+	 * @param body Body from the request made to this route/handler.
+	 * @return Number of connections reserved, or 0 if the table is to be queried as usual.
+	 */
+	private int reserveParallelScan(RoutingContext context, String tableSchema, String tableName, JsonObject body)
+	{
+		if (shardMap.isSharded(tableSchema, tableName) || Optional.ofNullable(DatabasePools.of(context)).isPresent() || !Optional.ofNullable(buildSQL(tableSchema, tableName, body, "true")).isPresent())
+		{
+			return 0;
+		}
+
+		Object parallelism = body.getValue("parallel");
+		return parallelism instanceof Number && ((Number) parallelism).intValue() > 1 ? parallelScan.reserve(((Number) parallelism).intValue()) : 0;
+	}
+
+	/**
+	 * 
+	 * Parallel version of queryTable, over the reserved connections and a single snapshot (see ParallelScan):
+	 * - Partitioned tables get one scan per partition the where condition can match (see Partitions).
+	 * - Other tables are split in ranges of pages, each scanned on its own connection.
+	 * The results are merged with ResultSetMerger (in order, if "order_by" was given, which then requires the order columns to be selected).
+	 * Each scan is limited to the offset and budget of the request, which are then applied to the merged results (see page).
+	 * 
+	 * The resulting JsonObject has the same form as in queryTable, plus the "partitions" (or "ranges") key with the number of partitions (or ranges) scanned.
+	 * 
+	 * @param context Context from the request
+	 * @param tableSchema schema to to be used in the query.
+	 * @param tableName table to be used in the query.
+	 * @param body Body from the request made to this route/handler.
+	 * @param reserved Number of connections reserved for the scan.
+	 * @param sqlQueryFuture Future to store the results from this method.
+	 */
+	private void scanInParallel(RoutingContext context, String tableSchema, String tableName, JsonObject body, int reserved, Future<JsonObject> sqlQueryFuture)
+	{
+		long rowsToFetch = budgetFor(context, body).rowsToFetch(offsetOf(body));
+
+		bulkhead.getConnection(context, connection -> {
+			if (connection.failed())
+			{
+				parallelScan.release(reserved);
+				logger.error("GetDataHandler - "+ Messages.DB_CONNECTION_ERROR.getValue() + connection.cause());
+				sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("error", Messages.DB_CONNECTION_ERROR.getValue() + connection.cause())));
+				return;
+			}
+
+			Partitions.discover(connection.result(), tableSchema, tableName, body.getString("where"), discovery -> {
+				if (discovery.failed())
+				{
+					connection.result().close();
+					parallelScan.release(reserved);
+					logger.error("GetDataHandler - " + Messages.QUERY_EXECUTION_ERROR.getValue() + discovery.cause());
+					sqlQueryFuture.handle(Future.succeededFuture(Deadline.errorFor(discovery.cause(), Messages.QUERY_EXECUTION_ERROR.getValue() + discovery.cause())));
+					return;
+				}
+
+				collatedBody(connection.result(), tableSchema, tableName, body, collated -> {
+					connection.result().close();
+
+					if (collated.failed())
+					{
+						parallelScan.release(reserved);
+						logger.error("GetDataHandler - " + Messages.QUERY_EXECUTION_ERROR.getValue() + collated.cause());
+						sqlQueryFuture.handle(Future.succeededFuture(Deadline.errorFor(collated.cause(), Messages.QUERY_EXECUTION_ERROR.getValue() + collated.cause())));
+					}
+					else if (discovery.result().isEmpty())
+					{
+						logger.info("GetDataHandler - Parallel scan over " + reserved + " connections");
+						parallelScan.scan(context, bulkhead, logger, tableSchema, tableName, reserved, range -> limitSQL(buildSQL(tableSchema, tableName, collated.result(), range), rowsToFetch, 0),
+								scanResult -> handleScanResults(context, scanResult, body, "ranges", sqlQueryFuture));
+					}
+					else
+					{
+						List<String> statements = discovery.result().stream()
+								.filter(Partitions.Partition::isTouched)
+								.map(partition -> limitSQL(buildSQL(partition.getSchemaName(), partition.getTableName(), collated.result()), rowsToFetch, 0))
+								.collect(Collectors.toList());
+
+						logger.info("GetDataHandler - Parallel scan of " + statements.size() + " out of " + discovery.result().size() + " partitions over " + reserved + " connections");
+						parallelScan.scanAll(context, bulkhead, logger, reserved, statements, scanResult -> handleScanResults(context, scanResult, body, "partitions", sqlQueryFuture));
+					}
+				});
+			});
+		});
+	}
+
+	/**
+	 * 
+	 * Collates the text columns of the order of a body with "C", the order ResultSetMerger follows (see ResultSetMerger.collatedOrder).
+	 * 
+	 * @param connection SQLConnection to read the collatable columns of the table through.
+	 * @param tableSchema schema of the table.
+	 * @param tableName name of the table.
+	 * @param body Body from the request made to this route/handler.
+	 * @param handler Handler for the body to build the statements from: the same body if it has no "order_by", otherwise a copy with the order collated.
+	 */
+	private void collatedBody(SQLConnection connection, String tableSchema, String tableName, JsonObject body, Handler<AsyncResult<JsonObject>> handler)
+	{
+		String orderBy = body.getString("order_by");
+
+		if (!Optional.ofNullable(orderBy).isPresent() || orderBy.trim().isEmpty())
+		{
+			handler.handle(Future.succeededFuture(body));
+			return;
+		}
+
+		ResultSetMerger.collatableColumns(connection, tableSchema, tableName, columns -> handler.handle(columns.map(collatable -> body.copy().put("order_by", ResultSetMerger.collatedOrder(orderBy, collatable)))));
+	}
+
+	/**
+	 * 
+	 * Merges the results of a parallel scan into the JsonObject for the response.
+	 * 
+	 * @param context Context from the request
+	 * @param scanResult Results of the scan, one per range or partition.
+	 * @param body Body from the request made to this route/handler.
+	 * @param countKey Key under which the number of ranges or partitions is reported.
+	 * @param sqlQueryFuture Future to store the results from this method.
+	 */
+	private void handleScanResults(RoutingContext context, AsyncResult<List<ResultSet>> scanResult, JsonObject body, String countKey, Future<JsonObject> sqlQueryFuture)
+	{
+		if (scanResult.failed())
+		{
+			logger.error("GetDataHandler - " + Messages.QUERY_EXECUTION_ERROR.getValue() + scanResult.cause());
+			sqlQueryFuture.handle(Future.succeededFuture(Deadline.errorFor(scanResult.cause(), Messages.QUERY_EXECUTION_ERROR.getValue() + scanResult.cause())));
+			return;
+		}
+
+		try
+		{
+			JsonArray queryResults = ResultSetMerger.merge(scanResult.result(), body.getString("order_by"));
+			logger.info("GetDataHandler - number of rows in query results: " + queryResults.size());
+			sqlQueryFuture.handle(Future.succeededFuture(page(queryResults, offsetOf(body), budgetFor(context, body)).put(countKey, scanResult.result().size())));
+		}
+		catch (IllegalArgumentException e)
+		{
+			logger.error("GetDataHandler - " + Messages.INVALID_ORDER_ERROR.getValue() + e.getMessage());
+			sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("error", Messages.INVALID_ORDER_ERROR.getValue() + e.getMessage())));
+		}
+	}
+
+	/**
+	 * 
+	 * Cuts a page out of merged results: the rows after the offset, up to the budget, with the truncation metadata.
+	 * 
+	 * @param queryResults Merged results, each part limited to the offset and budget plus one row.
+	 * @param offset Rows to skip.
+	 * @param budget Budget of the request.
+	 * @return JsonObject with the "results" of the page and the truncation metadata.
+	 */
+	private JsonObject page(JsonArray queryResults, long offset, ResultBudget budget)
+	{
+		int from = (int) Math.min(offset, queryResults.size());
+		int to = (int) Math.min(queryResults.size(), from + Math.min(budget.getMaxRows(), queryResults.size()));
+		JsonArray rows = new JsonArray();
+
+		for (int i = from; i < to; i++)
+		{
+			rows.add(queryResults.getJsonArray(i));
+		}
+
+		return ResultBudget.truncation(to < queryResults.size() ? "rows" : null, offset + to - from).put("results", rows);
+	}
+
+	/**
+	 * 
+	 * @param context Context from the request
+	 * @param body Body from the request made to this route/handler.
+	 * @return Budget of the request (see ResultBudget), lowered to the "max_rows" of the body if given.
+	 */
+	private ResultBudget budgetFor(RoutingContext context, JsonObject body)
+	{
+		Object maxRows = body != null ? body.getValue("max_rows") : null;
+		return ResultBudget.of(context).narrowedTo(maxRows instanceof Number ? ((Number) maxRows).longValue() : null);
+	}
+
+	/**
+	 * 
+	 * @param body Body from the request made to this route/handler.
+	 * @return The "offset" of the body, or 0 if not given.
+	 */
+	private long offsetOf(JsonObject body)
+	{
+		Object offset = body != null ? body.getValue("offset") : null;
+		return offset instanceof Number ? Math.max(0, ((Number) offset).longValue()) : 0;
+	}
+
+	/**
+	 * 
+	 * Adds a LIMIT and OFFSET to a statement built by buildSQL.
+	 * Statements holding a ";" of their own (from the where condition) are left as they are, the limits being then only enforced while reading.
+	 * 
+	 * @param sqlQuery Statement to limit (may be null).
+	 * @param limit Rows to limit the statement to, or Long.MAX_VALUE for no LIMIT.
+	 * @param offset Rows to skip, or 0 for no OFFSET.
+	 * @return The limited statement, or null if sqlQuery was null.
+	 */
+	private String limitSQL(String sqlQuery, long limit, long offset)
+	{
+		if (!Optional.ofNullable(sqlQuery).isPresent())
+		{
+			return null;
+		}
+
+		String statement = sqlQuery.replaceFirst(";\\s*$", "");
+
+		if (statement.contains(";") || (limit == Long.MAX_VALUE && offset == 0))
+		{
+			return sqlQuery;
+		}
+		return statement + (limit == Long.MAX_VALUE ? "" : "\nLIMIT " + limit) + (offset > 0 ? "\nOFFSET " + offset : "") + ";";
+	}
+
+	/**
+	 * 
+	 * Method responsible for validating the request body for existence (an invalid body being decoded as null, see BodyCodec), and creation of the SQL Statement to be passed to the database.
 	 * If the body was present and valid JSON, but did not contain columns to select or where condition, the statement will feature default to the most general form (either "select *", no "where" clause, or both).
 	 * If the body was present, valid JSON and did contain both conditions, the columns to select and where condition will be added to the statement.
 	 * 
 	 * @param tableSchema name of the schema for the table
 	 * @param tableName name of the table where data will be deleted from
-	 * @param requestBody body of the request
+	 * @param body body of the request
 	 * @return String with the SQL Statement, or null if the request body was invalid.
 	 */
-	private String buildSQL(String tableSchema, String tableName, String requestBody)
+	private String buildSQL(String tableSchema, String tableName, JsonObject body)
+	{
+		return buildSQL(tableSchema, tableName, body, null);
+	}
+
+	/**
+	 * 
+	 * Same as buildSQL, with an extra condition AND-ed to the where condition of the body (used for the ranges of a parallel scan).
+	 * Where conditions holding their own ";" can't be combined, and make the body invalid.
+	 * 
+	 * @param tableSchema name of the schema for the table
+	 * @param tableName name of the table where data will be deleted from
+	 * @param body body of the request
+	 * @param extraCondition condition to add to the where condition, or null.
+	 * @return String with the SQL Statement, or null if the request body was invalid.
+	 */
+	private String buildSQL(String tableSchema, String tableName, JsonObject body, String extraCondition)
 	{
 		String columnsToSelect;
 		String whereCondition;
 
-		if (VertxJsonValidator.isValidJSON(requestBody))
+		if (Optional.ofNullable(body).isPresent())
 		{
-			JsonObject bodyAsJson = new JsonObject(requestBody);
-			columnsToSelect = Optional.ofNullable(bodyAsJson.getString("select")).orElse("*");
-			whereCondition = Optional.ofNullable(bodyAsJson.getString("where")).orElse(";");
+			columnsToSelect = Optional.ofNullable(body.getString("select")).orElse("*");
+			whereCondition = Optional.ofNullable(body.getString("where")).orElse(";");
+			String orderBy = Optional.ofNullable(body.getString("order_by")).orElse("");
 
 			if(columnsToSelect.isEmpty())
 			{
 				columnsToSelect = "*";
 			}
 
+			if(Optional.ofNullable(extraCondition).isPresent())
+			{
+				if(whereCondition.contains(";") && !whereCondition.equals(";"))
+				{
+					return null;
+				}
+				whereCondition = whereCondition.equals(";") || whereCondition.trim().isEmpty() ? extraCondition : "(" + whereCondition + ") AND " + extraCondition;
+			}
+
 			if(!whereCondition.isEmpty() && !whereCondition.contains(";"))
 			{
 				whereCondition="WHERE " + whereCondition+";";
 			}
 
+			if(!orderBy.isEmpty())
+			{
+				whereCondition = whereCondition.replaceFirst(";\\s*$", "") + "\nORDER BY " + orderBy + ";";
+			}
+
 			return "SELECT " + columnsToSelect + "\n" + "FROM \""+ tableSchema.toLowerCase() +"\".\""+ tableName.toLowerCase() + "\" \n " + whereCondition;
 		}
 		else
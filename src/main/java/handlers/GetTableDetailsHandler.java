@@ -10,9 +10,11 @@ import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
-import io.vertx.ext.jdbc.JDBCClient;
 import io.vertx.ext.sql.SQLConnection;
 import io.vertx.ext.web.RoutingContext;
+import utils.Bulkhead;
+import utils.Deadline;
+import utils.InFlightStatement;
 
 
 /**
@@ -31,23 +33,24 @@ import io.vertx.ext.web.RoutingContext;
  *  - If it has indexes
  *  - If it has rules
  *  - If it has triggers
+ *  - For partitioned tables, the partition key and every partition with its bound
  * 
  * @author pedrolourenco
  *
  */
 public class GetTableDetailsHandler implements Handler<RoutingContext> {
 
-	private JDBCClient jdbc;
+	private Bulkhead bulkhead;
 	private Logger logger;
 
 	/**
 	 * 
-	 * @param jdbc JDBC client to get connections from 
+	 * @param bulkhead Bulkhead to get connections from 
 	 * @param logger Logger Instance for the class to work with.
 	 */
-	public GetTableDetailsHandler(JDBCClient jdbc, Logger logger) 
+	public GetTableDetailsHandler(Bulkhead bulkhead, Logger logger) 
 	{
-		this.jdbc = jdbc;
+		this.bulkhead = bulkhead;
 		this.logger = logger;
 	}
 
@@ -57,6 +60,7 @@ public class GetTableDetailsHandler implements Handler<RoutingContext> {
 	 * The general logic is:
 	 * 1 - Query database for the information requested (passing the eventually present parameter) (queryTable)
 	 * 2 - Handle the results from said query and populate the response accordingly (handleQueryResults)
+	 * The statement runs through the bulkhead (Bulkhead.execute), which may hedge it to a second replica when the first one is slow.
 	 * 
 	 * Sequential execution of the steps is guaranteed via the usage of Futures.
 	 * The overall logic applied is that the futures never fail because, even if there is some issue in querying the database.
@@ -68,30 +72,23 @@ public class GetTableDetailsHandler implements Handler<RoutingContext> {
 	 *    JsonObject, as body, with the desired results and a Status Code of 200.
 	 * 2- In case of failure:
 	 *    JsonObject, as body, with the a hint for the reason behind the failure and a Status Code of 500.
+	 * 3- In case the deadline of the request was exceeded (see Deadline):
+	 *    JsonObject, as body, with the "error" and "deadlineExceeded" keys and a Status Code of 504.
 	 *    
 	 */
 	@Override
 	public void handle(RoutingContext context) 
 	{
-		jdbc.getConnection(connection -> {
-			if (connection.succeeded())
-			{
-				Future<JsonObject> sqlQueryFuture = Future.future();
-				getTableInfo(connection.result(),context.request().getParam("schema"), context.request().getParam("name"), sqlQueryFuture);
+		Future<JsonObject> sqlQueryFuture = Future.future();
+		bulkhead.execute(context, (connection, statement, attemptFuture) ->
+			getTableInfo(connection, Deadline.of(context), statement, context.request().getParam("schema"), context.request().getParam("name"), attemptFuture), sqlQueryFuture);
 
-				Future<Void> responseFuture = Future.future();
+		Future<Void> responseFuture = Future.future();
 
-				sqlQueryFuture.compose(queryResults -> {
-					handleQueryResults(context, queryResults);
-				},responseFuture);
-				responseFuture.complete();
-			}
-			else
-			{
-				logger.error("GetTablesDetailsHandler - " + Messages.DB_CONNECTION_ERROR.getValue() + connection.cause());
-				sendBackResponse(context, new JsonObject().put("error", Messages.DB_CONNECTION_ERROR.getValue()),StatusCodes.FAILED);
-			}
-		});
+		sqlQueryFuture.compose(queryResults -> {
+			handleQueryResults(context, queryResults);
+		},responseFuture);
+		responseFuture.complete();
 	}
 
 	/**
@@ -103,7 +100,11 @@ public class GetTableDetailsHandler implements Handler<RoutingContext> {
 	 */
 	private void handleQueryResults(RoutingContext context, JsonObject queryResults) 
 	{
-		if(Optional.ofNullable(queryResults.getValue("error")).isPresent()) 
+		if(queryResults.getBoolean("deadlineExceeded", false))
+		{
+			sendBackResponse(context, queryResults, StatusCodes.GATEWAY_TIMEOUT);
+		}
+		else if(Optional.ofNullable(queryResults.getValue("error")).isPresent()) 
 		{
 			sendBackResponse(context, queryResults, StatusCodes.FAILED);
 		}
@@ -143,22 +144,34 @@ public class GetTableDetailsHandler implements Handler<RoutingContext> {
 	 * In the case of failure, the JsonObject contains the "error" key, which will then be used in handleQueryResults to set the correct status code for the response.
 	 * 
 	 * @param result SQLConnection to be used for interaction with the database.
+	 * @param deadline Deadline of the request, bounding the execution of the statement.
+	 * @param statement In-flight statement bound to the connection, through which the connection is released.
 	 * @param schemaName schema to to be used in the query, for filtering purposes.
 	 * @param tableName table to be used in the query, for filtering purposes.
 	 * @param sqlQueryfuture Future to store the results from this method. 
 	 */
-	private void getTableInfo(SQLConnection result, String tableSchema, String tableName, Future<JsonObject> sqlQueryFuture) 
+	private void getTableInfo(SQLConnection result, Deadline deadline, InFlightStatement statement, String tableSchema, String tableName, Future<JsonObject> sqlQueryFuture) 
 	{
 		JsonObject tableDetails = new JsonObject();
 		SQLConnection conn = result;
 
-		String sqlQuery = "SELECT * FROM pg_catalog.pg_tables\n" + 
+		String sqlQuery = "SELECT t.schemaname, t.tablename, t.tableowner, t.tablespace, t.hasindexes, t.hasrules, t.hastriggers,\n" + 
+				"			pg_get_partkeydef(c.oid),\n" + 
+				"			(SELECT json_agg(json_build_object('partition', pn.nspname || '.' || pc.relname, 'bound', pg_get_expr(pc.relpartbound, pc.oid)) ORDER BY pc.relname)::text\n" + 
+				"				FROM pg_catalog.pg_inherits i\n" + 
+				"				JOIN pg_catalog.pg_class pc ON pc.oid = i.inhrelid\n" + 
+				"				JOIN pg_catalog.pg_namespace pn ON pn.oid = pc.relnamespace\n" + 
+				"				WHERE i.inhparent = c.oid)\n" + 
+				"			FROM pg_catalog.pg_tables t\n" + 
+				"			JOIN pg_catalog.pg_namespace n ON n.nspname = t.schemaname\n" + 
+				"			JOIN pg_catalog.pg_class c ON c.relnamespace = n.oid AND c.relname = t.tablename\n" + 
 				"			WHERE\n" + 
-				"			LOWER(schemaname) = '" + tableSchema.toLowerCase() + "'\n" + 
-				"			AND LOWER(tablename) = '" + tableName.toLowerCase() + "';";
+				"			LOWER(t.schemaname) = '" + tableSchema.toLowerCase() + "'\n" + 
+				"			AND LOWER(t.tablename) = '" + tableName.toLowerCase() + "';";
 
-		conn.query(sqlQuery, queryResult -> 
+		deadline.query(conn, sqlQuery, queryResult -> 
 		{
+			statement.release();
 			if(queryResult.succeeded())
 			{
 				for (JsonArray ja : queryResult.result().getResults())
@@ -170,6 +183,12 @@ public class GetTableDetailsHandler implements Handler<RoutingContext> {
 					tableDetails.put("hasIndexes",ja.getBoolean(4));
 					tableDetails.put("hasRules",ja.getBoolean(5));
 					tableDetails.put("hasTriggers",ja.getBoolean(6));
+					if (Optional.ofNullable(ja.getString(7)).isPresent())
+					{
+						tableDetails.put("partitioning", new JsonObject()
+								.put("partitionKey", ja.getString(7))
+								.put("partitions", new JsonArray(Optional.ofNullable(ja.getString(8)).orElse("[]"))));
+					}
 				}
 				logger.info("GetTableDetailsHandler -  " + Messages.QUERY_EXECUTION_SUCCESS.getValue());
 				sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("results",tableDetails)));
@@ -177,10 +196,9 @@ public class GetTableDetailsHandler implements Handler<RoutingContext> {
 			else
 			{
 				logger.error("GetTableDetailsHandler -  " + Messages.QUERY_EXECUTION_ERROR.getValue() + queryResult.cause());
-				sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("error",Messages.QUERY_EXECUTION_ERROR.getValue())));
+				sqlQueryFuture.handle(Future.succeededFuture(Deadline.errorFor(queryResult.cause(), Messages.QUERY_EXECUTION_ERROR.getValue())));
 			}
 		});
-		conn.close();
 	}
 
 }
@@ -10,9 +10,11 @@ import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
-import io.vertx.ext.jdbc.JDBCClient;
 import io.vertx.ext.sql.SQLConnection;
 import io.vertx.ext.web.RoutingContext;
+import utils.Bulkhead;
+import utils.Deadline;
+import utils.InFlightStatement;
 
 /**
  * 
@@ -36,17 +38,17 @@ import io.vertx.ext.web.RoutingContext;
 public class GetTableStructureHandler implements Handler<RoutingContext> {
 
 
-	private JDBCClient jdbc;
+	private Bulkhead bulkhead;
 	private Logger logger;
 
 	/**
 	 * 
-	 * @param jdbc JDBC client to get connections from 
+	 * @param bulkhead Bulkhead to get connections from 
 	 * @param logger Logger Instance for the class to work with.
 	 */
-	public GetTableStructureHandler(JDBCClient jdbc, Logger logger) 
+	public GetTableStructureHandler(Bulkhead bulkhead, Logger logger) 
 	{
-		this.jdbc = jdbc;
+		this.bulkhead = bulkhead;
 		this.logger = logger;
 	}
 
@@ -56,6 +58,7 @@ public class GetTableStructureHandler implements Handler<RoutingContext> {
 	 * The general logic is:
 	 * 1 - Query database for the information requested (passing the eventually present parameter) (queryTable)
 	 * 2 - Handle the results from said query and populate the response accordingly (handleQueryResults)
+	 * The statement runs through the bulkhead (Bulkhead.execute), which may hedge it to a second replica when the first one is slow.
 	 * 
 	 * Sequential execution of the steps is guaranteed via the usage of Futures.
 	 * The overall logic applied is that the futures never fail because, even if there is some issue in querying the database.
@@ -67,6 +70,8 @@ public class GetTableStructureHandler implements Handler<RoutingContext> {
 	 *    JsonObject, as body, with the desired results and a Status Code of 200.
 	 * 2- In case of failure:
 	 *    JsonObject, as body, with the a hint for the reason behind the failure and a Status Code of 500.
+	 * 3- In case the deadline of the request was exceeded (see Deadline):
+	 *    JsonObject, as body, with the "error" and "deadlineExceeded" keys and a Status Code of 504.
 	 *    
 	 */
 	@Override
@@ -74,25 +79,16 @@ public class GetTableStructureHandler implements Handler<RoutingContext> {
 	{
 		logger.info("GetTableStructureHandler - Handling table structure request.");
 
-		jdbc.getConnection(connection -> {
-			if (connection.succeeded())
-			{
-				Future<JsonObject> sqlQueryFuture = Future.future();
-				getTableInfo(connection.result(),context.request().getParam("schema"), context.request().getParam("name"), sqlQueryFuture);
+		Future<JsonObject> sqlQueryFuture = Future.future();
+		bulkhead.execute(context, (connection, statement, attemptFuture) ->
+			getTableInfo(connection, Deadline.of(context), statement, context.request().getParam("schema"), context.request().getParam("name"), attemptFuture), sqlQueryFuture);
 
-				Future<Void> responseFuture = Future.future();
+		Future<Void> responseFuture = Future.future();
 
-				sqlQueryFuture.compose(queryResults -> {
-					handleQueryResults(context, queryResults);
-				},responseFuture);
-				responseFuture.complete();
-			}
-			else
-			{
-				logger.error("GetTablesDetailsHandler - " + Messages.DB_CONNECTION_ERROR.getValue() + connection.cause());
-				sendBackResponse(context, new JsonObject().put("error", Messages.DB_CONNECTION_ERROR.getValue()),StatusCodes.FAILED);
-			}
-		});
+		sqlQueryFuture.compose(queryResults -> {
+			handleQueryResults(context, queryResults);
+		},responseFuture);
+		responseFuture.complete();
 
 	}
 	
@@ -105,7 +101,11 @@ public class GetTableStructureHandler implements Handler<RoutingContext> {
 	 */
 	private void handleQueryResults(RoutingContext context, JsonObject queryResults) 
 	{
-		if(Optional.ofNullable(queryResults.getValue("error")).isPresent()) 
+		if(queryResults.getBoolean("deadlineExceeded", false))
+		{
+			sendBackResponse(context, queryResults, StatusCodes.GATEWAY_TIMEOUT);
+		}
+		else if(Optional.ofNullable(queryResults.getValue("error")).isPresent()) 
 		{
 			sendBackResponse(context, queryResults, StatusCodes.FAILED);
 		}
@@ -145,11 +145,13 @@ public class GetTableStructureHandler implements Handler<RoutingContext> {
 	 * In the case of failure, the JsonObject contains the "error" key, which will then be used in handleQueryResults to set the correct status code for the response.
 	 * 
 	 * @param result SQLConnection to be used for interaction with the database.
+	 * @param deadline Deadline of the request, bounding the execution of the statement.
+	 * @param statement In-flight statement bound to the connection, through which the connection is released.
 	 * @param schemaName schema to to be used in the query, for filtering purposes.
 	 * @param tableName table to be used in the query, for filtering purposes.
 	 * @param sqlQueryfuture Future to store the results from this method. 
 	 */
-	private void getTableInfo(SQLConnection result, String tableSchema, String tableName, Future<JsonObject> sqlQueryFuture) 
+	private void getTableInfo(SQLConnection result, Deadline deadline, InFlightStatement statement, String tableSchema, String tableName, Future<JsonObject> sqlQueryFuture) 
 	{
 		JsonArray tableStructure = new JsonArray();
 
@@ -180,8 +182,9 @@ public class GetTableStructureHandler implements Handler<RoutingContext> {
 				"					 t.ordinal_position;";
 
 
-		conn.query(sqlQuery, queryResult -> 
+		deadline.query(conn, sqlQuery, queryResult -> 
 		{
+			statement.release();
 			if(queryResult.succeeded())
 			{
 				logger.info("Size of query result: " +queryResult.result().getResults().size());
@@ -203,9 +206,8 @@ public class GetTableStructureHandler implements Handler<RoutingContext> {
 			else
 			{
 				logger.error("GetTableDetailsHandler -  " + Messages.QUERY_EXECUTION_ERROR.getValue() + queryResult.cause());
-				sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("error",Messages.QUERY_EXECUTION_ERROR.getValue())));
+				sqlQueryFuture.handle(Future.succeededFuture(Deadline.errorFor(queryResult.cause(), Messages.QUERY_EXECUTION_ERROR.getValue())));
 			}
 		});
-		conn.close();
 	}
 }
@@ -10,9 +10,11 @@ import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
-import io.vertx.ext.jdbc.JDBCClient;
 import io.vertx.ext.sql.SQLConnection;
 import io.vertx.ext.web.RoutingContext;
+import utils.Bulkhead;
+import utils.Deadline;
+import utils.InFlightStatement;
 
 
 /**
@@ -29,17 +31,17 @@ import io.vertx.ext.web.RoutingContext;
  */
 public class GetTablesHandler implements Handler<RoutingContext> {
 
-	private JDBCClient jdbc;
+	private Bulkhead bulkhead;
 	private Logger logger;
 
 	/**
 	 * 
-	 * @param jdbc JDBC client to get connections from 
+	 * @param bulkhead Bulkhead to get connections from 
 	 * @param logger Logger Instance for the class to work with.
 	 */
-	public GetTablesHandler(JDBCClient jdbc, Logger logger) 
+	public GetTablesHandler(Bulkhead bulkhead, Logger logger) 
 	{
-		this.jdbc = jdbc;
+		this.bulkhead = bulkhead;
 		this.logger = logger;
 	}
 
@@ -49,6 +51,7 @@ public class GetTablesHandler implements Handler<RoutingContext> {
 	 * The general logic is:
 	 * 1 - Query database for the information requested (passing the eventually present parameter) (queryTable)
 	 * 2 - Handle the results from said query and populate the response accordingly (handleQueryResults)
+	 * The statement runs through the bulkhead (Bulkhead.execute), which may hedge it to a second replica when the first one is slow.
 	 * 
 	 * Sequential execution of the steps is guaranteed via the usage of Futures.
 	 * The overall logic applied is that the futures never fail because, even if there is some issue in querying the database.
@@ -60,31 +63,25 @@ public class GetTablesHandler implements Handler<RoutingContext> {
 	 *    JsonObject, as body, with the desired results and a Status Code of 200.
 	 * 2- In case of failure:
 	 *    JsonObject, as body, with the a hint for the reason behind the failure and a Status Code of 500.
+	 * 3- In case the deadline of the request was exceeded (see Deadline):
+	 *    JsonObject, as body, with the "error" and "deadlineExceeded" keys and a Status Code of 504.
 	 *    
 	 */
 	@Override
 	public void handle(RoutingContext context) 
 	{
-		jdbc.getConnection(connection -> {
-			if (connection.succeeded())
-			{
-				Future<JsonObject> sqlQueryFuture = Future.future();
-				logger.debug("GetTablesHandler - Schema being fetched -> " + context.request().getParam("param0"));
-				queryTable(connection.result(),context.request().getParam("param0"),sqlQueryFuture);
+		Future<JsonObject> sqlQueryFuture = Future.future();
+		logger.debug("GetTablesHandler - Schema being fetched -> " + context.request().getParam("param0"));
 
-				Future<Void> responseFuture = Future.future();
+		bulkhead.execute(context, (connection, statement, attemptFuture) ->
+			queryTable(connection, Deadline.of(context), statement, context.request().getParam("param0"), attemptFuture), sqlQueryFuture);
 
-				sqlQueryFuture.compose(queryResults -> {
-					handleQueryResults(context, queryResults);
-				},responseFuture);
-				responseFuture.complete();
-			}
-			else
-			{
-				logger.error("GetTablesHandler - " + Messages.DB_CONNECTION_ERROR.getValue() + connection.cause());
-				sendBackResponse(context, new JsonObject().put("error", Messages.DB_CONNECTION_ERROR.getValue()),StatusCodes.FAILED);
-			}
-		});
+		Future<Void> responseFuture = Future.future();
+
+		sqlQueryFuture.compose(queryResults -> {
+			handleQueryResults(context, queryResults);
+		},responseFuture);
+		responseFuture.complete();
 	}
 
 	/**
@@ -97,7 +94,11 @@ public class GetTablesHandler implements Handler<RoutingContext> {
 	private void handleQueryResults(RoutingContext context, JsonObject queryResults) 
 	{
 
-		if(Optional.ofNullable(queryResults.getValue("error")).isPresent()) 
+		if(queryResults.getBoolean("deadlineExceeded", false))
+		{
+			sendBackResponse(context, queryResults, StatusCodes.GATEWAY_TIMEOUT);
+		}
+		else if(Optional.ofNullable(queryResults.getValue("error")).isPresent()) 
 		{
 			sendBackResponse(context, queryResults, StatusCodes.FAILED);
 		}
@@ -134,10 +135,12 @@ public class GetTablesHandler implements Handler<RoutingContext> {
 	 * In the case of failure, the JsonObject contains the "error" key, which will then be used in handleQueryResults to set the correct status code for the response.
 	 * 
 	 * @param result SQLConnection to be used for interaction with the database.
+	 * @param deadline Deadline of the request, bounding the execution of the statement.
+	 * @param statement In-flight statement bound to the connection, through which the connection is released.
 	 * @param schemaName schema to to be used in the query, for filtering purposes.
 	 * @param sqlQueryfuture Future to store the results from this method. 
 	 */
-	private void queryTable(SQLConnection result,String schemaName, Future<JsonObject> sqlQueryfuture) 
+	private void queryTable(SQLConnection result, Deadline deadline, InFlightStatement statement, String schemaName, Future<JsonObject> sqlQueryfuture) 
 	{
 		JsonArray tableList = new JsonArray();
 		SQLConnection conn = result;
@@ -146,8 +149,9 @@ public class GetTablesHandler implements Handler<RoutingContext> {
 
 		logger.debug(sqlQuery);
 
-		conn.query(sqlQuery, queryResult -> 
+		deadline.query(conn, sqlQuery, queryResult -> 
 		{
+			statement.release();
 			if(queryResult.succeeded())
 			{
 				for (JsonArray ja : queryResult.result().getResults())
@@ -163,10 +167,9 @@ public class GetTablesHandler implements Handler<RoutingContext> {
 			else
 			{
 				logger.error("GetTablesHandler -  " + Messages.QUERY_EXECUTION_ERROR.getValue() + queryResult.cause());
-				sqlQueryfuture.handle(Future.succeededFuture(new JsonObject().put("error",Messages.QUERY_EXECUTION_ERROR.getValue())));
+				sqlQueryfuture.handle(Future.succeededFuture(Deadline.errorFor(queryResult.cause(), Messages.QUERY_EXECUTION_ERROR.getValue())));
 			}
 		});
-		conn.close();
 	}
 
 	
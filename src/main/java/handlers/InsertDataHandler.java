@@ -1,19 +1,29 @@
 package handlers;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
 import org.apache.logging.log4j.Logger;
 
+import enums.MediaTypes;
 import enums.Messages;
 import enums.StatusCodes;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
-import io.vertx.ext.jdbc.JDBCClient;
 import io.vertx.ext.sql.SQLConnection;
 import io.vertx.ext.web.RoutingContext;
-import utils.VertxJsonValidator;
-import utils.SQLStringOperations;
+import utils.BodyCodec;
+import utils.Bulkhead;
+import utils.DatabasePools;
+import utils.Deadline;
+import utils.IdempotencyKeys;
+import utils.SessionToken;
+import utils.ShardMap;
+import utils.SQLLiteralWriter;
+import utils.WriteJournal;
 
 /**
  * 
@@ -25,23 +35,39 @@ import utils.SQLStringOperations;
  * The idea behind this route is to provide the possibility for data deletion from a table.
  * Also, a request made to the route must include a JSON object specifying the where condition for the delete to be made.
  * 
+ * Rows of tables listed in the shard map (see ShardMap) are routed to the shard owning their shard key value.
+ * 
+ * With the write journal enabled (see WriteJournal), an insert the database can't take because it is unreachable is journaled and applied once it is reachable again,
+ * instead of failing. Only inserts into non-sharded tables of the default database are journaled.
+ * 
+ * A request carrying an Idempotency-Key header is executed once, its retries getting the first response (see IdempotencyKeys).
+ * 
+ * The body may also be sent in CBOR or MessagePack, and the response asked for in either through the Accept header (see BodyCodec).
+ * The body reaches this handler already decoded and checked against the structure of the table by the router (see RequestValidator), so it is read from the context rather than parsed again.
+ * 
  * @author pedrolourenco
  *
  */
 public class InsertDataHandler implements Handler<RoutingContext> {
 
 
-	private JDBCClient jdbc;
+	private Bulkhead bulkhead;
+	private ShardMap shardMap;
+	private WriteJournal writeJournal;
 	private Logger logger;
 
 	/**
 	 * 
-	 * @param jdbc JDBC client to get connections from 
+	 * @param bulkhead Bulkhead to get connections from 
+	 * @param shardMap Shard map, for the tables spread over several instances.
+	 * @param writeJournal Write journal, for the inserts made while the database is unreachable.
 	 * @param logger Logger Instance for the class to work with.
 	 */
-	public InsertDataHandler(JDBCClient jdbc, Logger logger) 
+	public InsertDataHandler(Bulkhead bulkhead, ShardMap shardMap, WriteJournal writeJournal, Logger logger) 
 	{
-		this.jdbc = jdbc;
+		this.bulkhead = bulkhead;
+		this.shardMap = shardMap;
+		this.writeJournal = writeJournal;
 		this.logger = logger;
 	}
 
@@ -62,38 +88,70 @@ public class InsertDataHandler implements Handler<RoutingContext> {
 	 *    JsonObject, as body, with the desired results and a Status Code of 200.
 	 * 2- In case of failure:
 	 *    JsonObject, as body, with the a hint for the reason behind the failure and a Status Code of 500.
+	 * 3- In case the deadline of the request was exceeded (see Deadline):
+	 *    JsonObject, as body, with the "error" and "deadlineExceeded" keys and a Status Code of 504.
+	 * 4- In case the insert was journaled:
+	 *    JsonObject, as body, with "journaled": true and the "sequence" of the insert in the journal, and a Status Code of 202.
+	 * 5- In case the insert had to be journaled, but the journal is full:
+	 *    JsonObject, as body, with the "error" key and a Status Code of 503.
 	 *    
 	 */
 	@Override
 	public void handle(RoutingContext context) 
 	{
 		logger.info("InsertDataHandler - Handling Data Insert Request");
-		logger.debug("InsertDataHandler - Request Body: " + context.getBodyAsString());
 
-		jdbc.getConnection(connection -> {
-			if (connection.succeeded())
-			{
-				Future<JsonObject> sqlQueryFuture = Future.future();
-				insertIntoTable(connection.result(),context.request().getParam("schema"), context.request().getParam("name"), context.getBodyAsString(), sqlQueryFuture);
+		JsonObject body = BodyCodec.bodyOf(context);
+		logger.debug("InsertDataHandler - Request Body: " + body);
 
-				Future<Void> responseFuture = Future.future();
+		String schema = context.request().getParam("schema");
+		String name = context.request().getParam("name");
 
-				sqlQueryFuture.compose(queryResults -> {
-					handleStatementResults(context, queryResults);
-				},responseFuture);
-				responseFuture.complete();
-			}
-			else
-			{
-				logger.error("InsertDataHandler - "+ Messages.DB_CONNECTION_ERROR.getValue() + connection.cause());
-				sendBackResponse(context, new JsonObject(), StatusCodes.FAILED);
-			}
-		});
+		Future<JsonObject> sqlQueryFuture = Future.future();
+
+		boolean journaled = writeJournal.isEnabled() && !Optional.ofNullable(DatabasePools.of(context)).isPresent();
+
+		if (shardMap.isSharded(schema, name))
+		{
+			insertIntoShards(context, schema, name, body, sqlQueryFuture);
+		}
+		else if (journaled && writeJournal.hasBacklog())
+		{
+			//Inserts still waiting in the journal must be applied first
+			insertIntoJournal(schema, name, body, sqlQueryFuture);
+		}
+		else
+		{
+			bulkhead.getConnection(context, connection -> {
+				if (connection.succeeded())
+				{
+					insertIntoTable(connection.result(), Deadline.of(context),schema, name, body, sqlQueryFuture);
+				}
+				else if (journaled)
+				{
+					logger.error("InsertDataHandler - "+ Messages.DB_CONNECTION_ERROR.getValue() + connection.cause());
+					insertIntoJournal(schema, name, body, sqlQueryFuture);
+				}
+				else
+				{
+					logger.error("InsertDataHandler - "+ Messages.DB_CONNECTION_ERROR.getValue() + connection.cause());
+					sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("error", Messages.DB_CONNECTION_ERROR.getValue() + connection.cause())));
+				}
+			});
+		}
+
+		Future<Void> responseFuture = Future.future();
+
+		sqlQueryFuture.compose(queryResults -> {
+			handleStatementResults(context, queryResults);
+		},responseFuture);
+		responseFuture.complete();
 	}
 
 	/**
 	 * 
 	 * This method validates the results from the query passed to the database and orders the response to be sent with a status code matching the success or failure of the procedure.
+	 * Successful responses carry a session token when the caller asked for read-your-writes consistency (see SessionToken).
 	 * 
 	 * @param context - Context from the request 
 	 * @param queryResults - Results from the query passed to the database
@@ -101,13 +159,27 @@ public class InsertDataHandler implements Handler<RoutingContext> {
 	private void handleStatementResults(RoutingContext context, JsonObject queryResults) 
 	{
 
-		if(Optional.ofNullable(queryResults.getValue("error")).isPresent()) 
+		if(queryResults.getBoolean("deadlineExceeded", false))
+		{
+			sendBackResponse(context, queryResults, StatusCodes.GATEWAY_TIMEOUT);
+		}
+		else if(queryResults.getBoolean("journalFull", false))
+		{
+			queryResults.remove("journalFull");
+			sendBackResponse(context, queryResults, StatusCodes.SERVICE_UNAVAILABLE);
+		}
+		else if(Optional.ofNullable(queryResults.getValue("error")).isPresent()) 
 		{
 			sendBackResponse(context, queryResults, StatusCodes.FAILED);
 		}
+		else if(queryResults.getBoolean("journaled", false))
+		{
+			//Not in the database yet, so there is no position for a session token to carry
+			sendBackResponse(context, queryResults, StatusCodes.ACCEPTED);
+		}
 		else
 		{
-			sendBackResponse(context, queryResults, StatusCodes.SUCCEEDED);
+			SessionToken.issue(context, bulkhead, logger, v -> sendBackResponse(context, queryResults, StatusCodes.SUCCEEDED));
 		}
 
 	}
@@ -115,7 +187,8 @@ public class InsertDataHandler implements Handler<RoutingContext> {
 	/**
 	 * 
 	 * This method sends the response back to the entity that made the request to this application.
-	 * It build the response with the correct header for a JSON response, status code and results printed prettily.
+	 * It build the response with the correct header for the response media type (see BodyCodec), status code and results (printed prettily, in JSON).
+	 * The outcome is recorded first for the Idempotency-Key of the request, if any (see IdempotencyKeys).
 	 * 
 	 * @param context Context from the request 
 	 * @param valueFromSQLQuery  Results from the query passed to the database
@@ -123,10 +196,13 @@ public class InsertDataHandler implements Handler<RoutingContext> {
 	 */
 	private void sendBackResponse(RoutingContext context, JsonObject message, StatusCodes statusCode)
 	{
+		IdempotencyKeys.record(context, statusCode, message);
+		MediaTypes type = BodyCodec.responseType(context);
+
 		context.response()
-		.putHeader("content-type", "application/json")
+		.putHeader("content-type", type.getValue())
 		.setStatusCode(statusCode.getValue())
-		.end(message.encodePrettily());
+		.end(BodyCodec.encode(type, message));
 	}
 
 	/**
@@ -143,23 +219,25 @@ public class InsertDataHandler implements Handler<RoutingContext> {
 	 * In the case of failure, the JsonObject contains the "error" key, which will then be used in handleQueryResults to set the correct status code for the response.
 	 * 
 	 * @param result SQLConnection to be used for interaction with the database.
+	 * @param deadline Deadline of the request, bounding the execution of the statement.
 	 * @param schemaName schema to to be used in the query.
 	 * @param tableName table to be used in the query.
-	 * @param requestBody Body from the request made to this route/handler, containing the delete conditions.
+	 * @param body Body from the request made to this route/handler, containing the delete conditions.
 	 * @param sqlQueryfuture Future to store the results from this method. 
 	 * 
 	 */
-	private void insertIntoTable(SQLConnection result, String schemaName, String tableName,String requestBody, Future<JsonObject> sqlQueryFuture) 
+	private void insertIntoTable(SQLConnection result, Deadline deadline, String schemaName, String tableName,JsonObject body, Future<JsonObject> sqlQueryFuture) 
 	{
 		SQLConnection conn = result;
 
-		String sqlStatement = buildSQL(schemaName, tableName, requestBody);
+		String sqlStatement = buildSQL(schemaName, tableName, body);
 
 		if (Optional.ofNullable(sqlStatement).isPresent())
 		{
 			logger.info("InsertDataHandler - SQL Insert Statement: \n" + sqlStatement);
-			conn.query(sqlStatement, queryResult -> 
+			deadline.query(conn, sqlStatement, queryResult -> 
 			{
+				conn.close();
 				if(queryResult.succeeded())
 				{
 					logger.info("InsertDataHandler - " + Messages.QUERY_EXECUTION_SUCCESS.getValue());
@@ -168,17 +246,119 @@ public class InsertDataHandler implements Handler<RoutingContext> {
 				else
 				{
 					logger.error("InsertDataHandler - " + Messages.QUERY_EXECUTION_ERROR.getValue() + queryResult.cause());
-					sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("error", Messages.QUERY_EXECUTION_ERROR.getValue() + queryResult.cause())));
+					sqlQueryFuture.handle(Future.succeededFuture(Deadline.errorFor(queryResult.cause(), Messages.QUERY_EXECUTION_ERROR.getValue() + queryResult.cause())));
 				}
 			});
-			conn.close();
 		}
 		else
+		{
+			conn.close();
+			logger.error(Messages.INVALID_BODY_ERROR.getValue());
+			sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("error", Messages.INVALID_BODY_ERROR.getValue())));
+		}
+
+	}
+
+	/**
+	 * 
+	 * Journaled version of insertIntoTable, for when the database is unreachable: the statement is appended to the write journal, to be applied later (see WriteJournal).
+	 * An invalid body is refused right away, as it would be by the database.
+	 * 
+	 * @param schemaName schema to to be used in the statement.
+	 * @param tableName table to be used in the statement.
+	 * @param body Body from the request made to this route/handler, containing the columns and values.
+	 * @param sqlQueryFuture Future to store the results from this method.
+	 */
+	private void insertIntoJournal(String schemaName, String tableName, JsonObject body, Future<JsonObject> sqlQueryFuture)
+	{
+		String sqlStatement = buildSQL(schemaName, tableName, body);
+
+		if (!Optional.ofNullable(sqlStatement).isPresent())
 		{
 			logger.error(Messages.INVALID_BODY_ERROR.getValue());
 			sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("error", Messages.INVALID_BODY_ERROR.getValue())));
+			return;
 		}
 
+		writeJournal.append(schemaName + "." + tableName, sqlStatement, appended -> {
+			if (appended.succeeded())
+			{
+				logger.info("InsertDataHandler - " + Messages.WRITE_JOURNALED.getValue() + " (entry " + appended.result() + ")");
+				sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("results", Messages.WRITE_JOURNALED.getValue()).put("journaled", true).put("sequence", appended.result())));
+			}
+			else
+			{
+				logger.error("InsertDataHandler - " + Messages.JOURNAL_ERROR.getValue() + appended.cause());
+				sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("error", Messages.JOURNAL_ERROR.getValue() + appended.cause().getMessage())
+						.put("journalFull", appended.cause() instanceof IllegalStateException)));
+			}
+		});
+	}
+
+	/**
+	 * 
+	 * Sharded version of insertIntoTable: each row is sent to the shard owning its shard key value (see ShardMap.shardFor, which hashes numbers in the same canonical form as the where conditions it prunes on),
+	 * with one statement per shard, all executed in parallel.
+	 * Each shard's statement is atomic on its own, but the insert as a whole is not: if a shard fails, the rows sent to the other shards may have been inserted.
+	 * 
+	 * @param context Context from the request
+	 * @param schemaName schema to to be used in the statement.
+	 * @param tableName table to be used in the statement.
+	 * @param body Body from the request made to this route/handler, containing the columns and values.
+	 * @param sqlQueryFuture Future to store the results from this method.
+	 */
+	private void insertIntoShards(RoutingContext context, String schemaName, String tableName, JsonObject body, Future<JsonObject> sqlQueryFuture)
+	{
+		if (!validateJsonBody(body))
+		{
+			logger.error(Messages.INVALID_BODY_ERROR.getValue());
+			sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("error", Messages.INVALID_BODY_ERROR.getValue())));
+			return;
+		}
+
+		String shardKey = shardMap.shardKeyOf(schemaName, tableName);
+		String[] columns = body.getString("columns").split(",");
+		int keyIndex = -1;
+
+		for (int i = 0; i < columns.length; i++)
+		{
+			if (columns[i].trim().replace("\"", "").equalsIgnoreCase(shardKey))
+			{
+				keyIndex = i;
+			}
+		}
+
+		if (keyIndex < 0)
+		{
+			logger.error("InsertDataHandler - " + Messages.SHARD_KEY_MISSING_ERROR.getValue() + shardKey);
+			sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("error", Messages.SHARD_KEY_MISSING_ERROR.getValue() + shardKey)));
+			return;
+		}
+
+		Map<Integer, JsonArray> rowsByShard = new TreeMap<>();
+		for (Object row : body.getJsonArray("values"))
+		{
+			int shard = shardMap.shardFor(String.valueOf(((JsonArray) row).getValue(keyIndex)));
+			rowsByShard.computeIfAbsent(shard, key -> new JsonArray()).add(row);
+		}
+
+		Map<Integer, String> statements = new LinkedHashMap<>();
+		rowsByShard.forEach((shard, rows) -> statements.put(shard, buildSQL(schemaName, tableName, body.copy().put("values", rows))));
+
+		logger.info("InsertDataHandler - SQL Insert Statements per shard: \n" + statements);
+
+		shardMap.scatter(context, bulkhead, logger, statements, scatterResult -> {
+			if (scatterResult.succeeded())
+			{
+				logger.info("InsertDataHandler - " + Messages.QUERY_EXECUTION_SUCCESS.getValue());
+				sqlQueryFuture.handle(Future.succeededFuture(new JsonObject().put("results", Messages.QUERY_EXECUTION_SUCCESS.getValue()).put("shards", statements.size())));
+			}
+			else
+			{
+				logger.error("InsertDataHandler - " + Messages.QUERY_EXECUTION_ERROR.getValue() + scatterResult.cause());
+				sqlQueryFuture.handle(Future.succeededFuture(Deadline.errorFor(scatterResult.cause(), Messages.QUERY_EXECUTION_ERROR.getValue() + scatterResult.cause())));
+			}
+		});
 	}
 
 	/**
@@ -189,19 +369,15 @@ public class InsertDataHandler implements Handler<RoutingContext> {
 	 * 
 	 * @param tableSchema name of the schema for the table
 	 * @param tableName name of the table where data will be deleted from
-	 * @param requestBody body of the request
+	 * @param body body of the request
 	 * @return String with the SQL Statement, or null if the request body was invalid.
 	 */
-	private String buildSQL(String tableSchema, String tableName, String requestBody)
+	private String buildSQL(String tableSchema, String tableName, JsonObject body)
 	{
-		String columnsToInsert;
-		String insertValues;
-
-		if (validateJsonBody(requestBody))
+		if (validateJsonBody(body))
 		{
-			JsonObject bodyAsJson = new JsonObject(requestBody);
-			columnsToInsert = Optional.ofNullable(bodyAsJson.getString("columns")).orElse("");
-			insertValues = SQLStringOperations.valuesToSQLString(Optional.ofNullable(bodyAsJson.getJsonArray("values")).orElse(new JsonArray()));
+			String columnsToInsert = Optional.ofNullable(body.getString("columns")).orElse("");
+			JsonArray insertValues = Optional.ofNullable(body.getJsonArray("values")).orElse(new JsonArray());
 
 			if(columnsToInsert.isEmpty() || insertValues.isEmpty())
 			{
@@ -209,7 +385,7 @@ public class InsertDataHandler implements Handler<RoutingContext> {
 				return null;
 			}
 
-			return "INSERT INTO " + tableSchema + "." + tableName + " (" + columnsToInsert + ") VALUES " +  insertValues + ";";
+			return SQLLiteralWriter.insertSQL(tableSchema + "." + tableName, columnsToInsert, insertValues);
 		}
 		else
 		{
@@ -222,14 +398,13 @@ public class InsertDataHandler implements Handler<RoutingContext> {
 	 * This method validates if the request body is valid JSON, and afterwards if the expected arguments are present in there.
 	 * 
 	 * 
-	 * @param jsonBody Body of the request, as a string
+	 * @param body Body of the request, decoded (see BodyCodec), or null if it was invalid.
 	 * @return true if body is valid JSON and contains all the expected arguments, false otherwise.
 	 */
-	private boolean validateJsonBody(String jsonBody)
+	private boolean validateJsonBody(JsonObject body)
 	{
-		if(VertxJsonValidator.isValidJSON(jsonBody))
+		if(Optional.ofNullable(body).isPresent())
 		{
-			JsonObject body = new JsonObject(jsonBody);
 			if(Optional.ofNullable(body.getString("columns")).isPresent() && Optional.ofNullable(body.getJsonArray("values")).isPresent())
 			{
 				return true;
@@ -0,0 +1,147 @@
+package handlers;
+
+import java.util.Optional;
+
+import org.apache.logging.log4j.Logger;
+
+import enums.Messages;
+import enums.StatusCodes;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import utils.Cursors;
+import utils.VertxJsonValidator;
+
+/**
+ *
+ * Handler to manage the routes:
+ * - /cursors/:schema/:name
+ *
+ * A request will only be forwarded to this handler if its URL exactly matches this structure.
+ *
+ * The idea behind this route is to open a server-side cursor over a select (see Cursors), for a client to page through a large result with CursorHandler
+ * instead of running the select again for every page.
+ * The request body takes the same "select", "where" and "order_by" as the /select route.
+ *
+ * @author pedrolourenco
+ *
+ */
+public class OpenCursorHandler implements Handler<RoutingContext> {
+
+	private Cursors cursors;
+	private Logger logger;
+
+	/**
+	 *
+	 * @param cursors Server-side cursors.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public OpenCursorHandler(Cursors cursors, Logger logger)
+	{
+		this.cursors = cursors;
+		this.logger = logger;
+	}
+
+	/**
+	 *
+	 * Central method to the management of requests made to the route this Handlers manages.
+	 *
+	 * The response body will always contain:
+	 * 1- In case the cursor was opened:
+	 *    JsonObject, as body, with the status of the cursor (see Cursors.Cursor) and its "location", and a Status Code of 201.
+	 * 2- In case max_open cursors are already open:
+	 *    JsonObject, as body, with the "error" key and a Status Code of 503.
+	 * 3- In case the body is invalid, the select failed:
+	 *    JsonObject, as body, with the "error" key and a Status Code of 500.
+	 *
+	 */
+	@Override
+	public void handle(RoutingContext context)
+	{
+		logger.info("OpenCursorHandler - Handling Cursor Request");
+		logger.debug("OpenCursorHandler - Request Body: " + context.getBodyAsString());
+
+		String schema = context.request().getParam("schema");
+		String name = context.request().getParam("name");
+
+		String sqlQuery = buildSQL(schema, name, context.getBodyAsString());
+
+		if (!Optional.ofNullable(sqlQuery).isPresent())
+		{
+			sendBackResponse(context, new JsonObject().put("error", Messages.INVALID_BODY_ERROR.getValue()), StatusCodes.FAILED);
+			return;
+		}
+
+		logger.info("OpenCursorHandler - Cursor declared for: \n" + sqlQuery);
+
+		cursors.open(schema, name, sqlQuery, opened -> {
+			if (opened.failed())
+			{
+				logger.error("OpenCursorHandler - " + opened.cause().getMessage());
+				sendBackResponse(context, new JsonObject().put("error", opened.cause() instanceof IllegalStateException ? opened.cause().getMessage() : Messages.QUERY_EXECUTION_ERROR.getValue() + opened.cause()),
+						opened.cause() instanceof IllegalStateException ? StatusCodes.SERVICE_UNAVAILABLE : StatusCodes.FAILED);
+				return;
+			}
+
+			String location = "/cursors/" + opened.result().getId();
+			context.response().putHeader("location", location);
+			sendBackResponse(context, opened.result().toJson(cursors.getTtlMillis()).put("location", location), StatusCodes.CREATED);
+		});
+	}
+
+	/**
+	 *
+	 * This method sends the response back to the entity that made the request to this application.
+	 * It build the response with the correct header for a JSON response, status code and results printed prettily.
+	 *
+	 * @param context Context from the request
+	 * @param message Body of the response
+	 * @param statusCode Status code to be included in the response
+	 */
+	private void sendBackResponse(RoutingContext context, JsonObject message, StatusCodes statusCode)
+	{
+		context.response()
+		.putHeader("content-type", "application/json")
+		.setStatusCode(statusCode.getValue())
+		.end(message.encodePrettily());
+	}
+
+	/**
+	 *
+	 * Method responsible for validating the request body and creating the select to declare the cursor for.
+	 * Since the select is wrapped in a DECLARE, it must be a single statement: a ";" anywhere in the select, where condition or order makes the body invalid.
+	 *
+	 * @param tableSchema name of the schema for the table
+	 * @param tableName name of the table to be queried
+	 * @param requestBody body of the request
+	 * @return String with the select (without a trailing ";"), or null if the request body was invalid.
+	 */
+	private String buildSQL(String tableSchema, String tableName, String requestBody)
+	{
+		if (!VertxJsonValidator.isValidJSON(requestBody))
+		{
+			logger.error("OpenCursorHandler - " + Messages.INVALID_BODY_ERROR.getValue());
+			return null;
+		}
+
+		JsonObject bodyAsJson = new JsonObject(requestBody);
+		String columnsToSelect = Optional.ofNullable(bodyAsJson.getString("select")).orElse("*");
+		String whereCondition = Optional.ofNullable(bodyAsJson.getString("where")).orElse("");
+		String orderBy = Optional.ofNullable(bodyAsJson.getString("order_by")).orElse("");
+
+		if ((columnsToSelect + whereCondition + orderBy).contains(";"))
+		{
+			logger.error("OpenCursorHandler - " + Messages.INVALID_BODY_ERROR.getValue());
+			return null;
+		}
+
+		if (columnsToSelect.trim().isEmpty())
+		{
+			columnsToSelect = "*";
+		}
+
+		return "SELECT " + columnsToSelect + "\n" + "FROM \""+ tableSchema.toLowerCase() +"\".\""+ tableName.toLowerCase() + "\""
+				+ (whereCondition.trim().isEmpty() ? "" : "\nWHERE " + whereCondition)
+				+ (orderBy.trim().isEmpty() ? "" : "\nORDER BY " + orderBy);
+	}
+}
@@ -0,0 +1,151 @@
+package handlers;
+
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.logging.log4j.Logger;
+
+import enums.Messages;
+import enums.StatusCodes;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import utils.UploadSessions;
+
+/**
+ *
+ * Handler to manage the routes:
+ * - /uploads/sessions/:upload/chunks/:chunk
+ *
+ * A request will only be forwarded to this handler if its URL exactly matches this structure.
+ *
+ * The idea behind this route is to receive one chunk of an upload session (see UploadSessions and UploadHandler), numbered from 1, in the format of the session.
+ * The request body is streamed into the database as it arrives, so a chunk can be as large as the caller wants: this route is kept ahead of the body handler.
+ * A chunk that fails (or whose connection breaks) leaves nothing behind, and can simply be sent again, as can a chunk that succeeded.
+ *
+ * @author pedrolourenco
+ *
+ */
+public class UploadChunkHandler implements Handler<RoutingContext> {
+
+	private UploadSessions uploadSessions;
+	private Logger logger;
+
+	/**
+	 *
+	 * @param uploadSessions Upload sessions.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public UploadChunkHandler(UploadSessions uploadSessions, Logger logger)
+	{
+		this.uploadSessions = uploadSessions;
+		this.logger = logger;
+	}
+
+	/**
+	 *
+	 * Central method to the management of requests made to the route this Handlers manages.
+	 *
+	 * The response body will always contain:
+	 * 1- In case the chunk was loaded:
+	 *    JsonObject, as body, with the "rows" and "bytes" of the chunk, and the "sha256" of its bytes, and a Status Code of 200.
+	 * 2- In case the session doesn't exist:
+	 *    JsonObject, as body, with the "error" key and a Status Code of 404.
+	 * 3- In case the session is no longer open:
+	 *    JsonObject, as body, with the "error" key and a Status Code of 409.
+	 * 4- In case max_running chunks are already being received:
+	 *    JsonObject, as body, with the "error" key and a Status Code of 503.
+	 * 5- In case the chunk number is invalid, the chunk couldn't be loaded (e.g. a malformed row):
+	 *    JsonObject, as body, with the "error" key and a Status Code of 500.
+	 *
+	 */
+	@Override
+	public void handle(RoutingContext context)
+	{
+		//Nothing of the body may be read before the copy is ready to take it
+		context.request().pause();
+
+		String upload = context.request().getParam("upload");
+		Integer chunk = parseChunk(context.request().getParam("chunk"));
+
+		logger.info("UploadChunkHandler - Handling Chunk " + context.request().getParam("chunk") + " of upload " + upload);
+
+		if (!Optional.ofNullable(chunk).isPresent())
+		{
+			logger.error("UploadChunkHandler - " + Messages.INVALID_CHUNK_ERROR.getValue() + context.request().getParam("chunk"));
+			sendBackResponse(context, new JsonObject().put("error", Messages.INVALID_CHUNK_ERROR.getValue() + context.request().getParam("chunk")), StatusCodes.FAILED);
+			return;
+		}
+
+		uploadSessions.receive(context, upload, chunk, received -> {
+			if (received.succeeded())
+			{
+				sendBackResponse(context, received.result(), StatusCodes.SUCCEEDED);
+			}
+			else if (received.cause() instanceof NoSuchElementException)
+			{
+				sendBackResponse(context, new JsonObject().put("error", received.cause().getMessage()), StatusCodes.NOT_FOUND);
+			}
+			else if (received.cause() instanceof IllegalStateException)
+			{
+				sendBackResponse(context, new JsonObject().put("error", received.cause().getMessage()), StatusCodes.CONFLICT);
+			}
+			else if (received.cause() instanceof RejectedExecutionException)
+			{
+				sendBackResponse(context, new JsonObject().put("error", received.cause().getMessage()), StatusCodes.SERVICE_UNAVAILABLE);
+			}
+			else
+			{
+				sendBackResponse(context, new JsonObject().put("error", Messages.QUERY_EXECUTION_ERROR.getValue() + received.cause()), StatusCodes.FAILED);
+			}
+		});
+	}
+
+	/**
+	 *
+	 * @param chunk Value of the "chunk" parameter.
+	 * @return The chunk number, or null if it isn't a positive number.
+	 */
+	private Integer parseChunk(String chunk)
+	{
+		try
+		{
+			return Optional.ofNullable(chunk).map(Integer::valueOf).filter(number -> number > 0).orElse(null);
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 *
+	 * This method sends the response back to the entity that made the request to this application.
+	 * It build the response with the correct header for a JSON response, status code and results printed prettily.
+	 * A body the chunk wasn't read from is discarded. If the client already closed the connection, nothing is written.
+	 *
+	 * @param context Context from the request
+	 * @param message Body of the response
+	 * @param statusCode Status code to be included in the response
+	 */
+	private void sendBackResponse(RoutingContext context, JsonObject message, StatusCodes statusCode)
+	{
+		if (context.response().closed())
+		{
+			logger.info("UploadChunkHandler - Client disconnected, response discarded");
+			return;
+		}
+
+		if (!context.request().isEnded())
+		{
+			context.request().handler(buffer -> {});
+			context.request().resume();
+		}
+
+		context.response()
+		.putHeader("content-type", "application/json")
+		.setStatusCode(statusCode.getValue())
+		.end(message.encodePrettily());
+	}
+}
@@ -0,0 +1,221 @@
+package handlers;
+
+import java.util.NoSuchElementException;
+import java.util.Optional;
+
+import org.apache.logging.log4j.Logger;
+
+import enums.Messages;
+import enums.StatusCodes;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import utils.UploadSessions;
+import utils.VertxJsonValidator;
+
+/**
+ *
+ * Handler to manage the routes:
+ * - /uploads/:schema/:name
+ * - /uploads/sessions/:upload
+ * - /uploads/sessions/:upload/commit
+ *
+ * A request will only be forwarded to this handler if its URL exactly matches one of these structures.
+ *
+ * The idea behind these routes is to load into a table more data than a single /insert request can carry reliably, as a resumable upload session (see UploadSessions):
+ * - POST /uploads/:schema/:name opens a session. The request body takes the "format" of the chunks ("csv", the default, or "ndjson"), their "columns"
+ *   (comma-separated column names, rejected with 400 otherwise) and, for csv, whether every chunk starts with a "header" line.
+ * - The chunks are then sent to UploadChunkHandler.
+ * - GET /uploads/sessions/:upload returns the status of the session and of every chunk received, for a client resuming an upload to know what is left to send.
+ * - POST /uploads/sessions/:upload/commit loads every chunk into the table, at once. The request body may hold the number of "chunks" the session must have.
+ * - DELETE /uploads/sessions/:upload aborts the session.
+ *
+ * @author pedrolourenco
+ *
+ */
+public class UploadHandler implements Handler<RoutingContext> {
+
+	private UploadSessions uploadSessions;
+	private Logger logger;
+
+	/**
+	 *
+	 * @param uploadSessions Upload sessions.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public UploadHandler(UploadSessions uploadSessions, Logger logger)
+	{
+		this.uploadSessions = uploadSessions;
+		this.logger = logger;
+	}
+
+	/**
+	 *
+	 * Central method to the management of requests made to the routes this Handlers manages.
+	 *
+	 * The response body will always contain:
+	 * 1- In case a session was opened:
+	 *    JsonObject, as body, with the status of the session and its "location", and a Status Code of 201.
+	 * 2- In case of success of the other routes:
+	 *    JsonObject, as body, with the status of the session (with its "chunks" for GET, and the "rows" loaded for a commit) and a Status Code of 200.
+	 * 3- In case the session doesn't exist (or was forgotten):
+	 *    JsonObject, as body, with the "error" key and a Status Code of 404.
+	 * 4- In case the session is no longer open, or chunks are missing on commit:
+	 *    JsonObject, as body, with the "error" key and a Status Code of 409.
+	 * 5- In case the body is invalid, the statements failed:
+	 *    JsonObject, as body, with the "error" key and a Status Code of 500.
+	 *
+	 */
+	@Override
+	public void handle(RoutingContext context)
+	{
+		logger.info("UploadHandler - Handling Upload Request");
+		logger.debug("UploadHandler - Request Body: " + context.getBodyAsString());
+
+		String upload = context.request().getParam("upload");
+
+		if (!Optional.ofNullable(upload).isPresent())
+		{
+			create(context, context.request().getParam("schema"), context.request().getParam("name"));
+		}
+		else if (context.request().method() == HttpMethod.GET)
+		{
+			uploadSessions.status(upload, status -> respond(context, status, StatusCodes.SUCCEEDED));
+		}
+		else if (context.request().method() == HttpMethod.DELETE)
+		{
+			uploadSessions.abort(upload, aborted -> respond(context, aborted, StatusCodes.SUCCEEDED));
+		}
+		else
+		{
+			commit(context, upload);
+		}
+	}
+
+	/**
+	 *
+	 * Opens an upload session into a table.
+	 *
+	 * @param context Context from the request
+	 * @param schema Schema of the table.
+	 * @param name Table to load.
+	 */
+	private void create(RoutingContext context, String schema, String name)
+	{
+		String requestBody = Optional.ofNullable(context.getBodyAsString()).filter(body -> !body.trim().isEmpty()).orElse("{}");
+
+		if (!VertxJsonValidator.isValidJSON(requestBody) || requestBody.contains(";"))
+		{
+			logger.error("UploadHandler - " + Messages.INVALID_BODY_ERROR.getValue());
+			sendBackResponse(context, new JsonObject().put("error", Messages.INVALID_BODY_ERROR.getValue()), StatusCodes.FAILED);
+			return;
+		}
+
+		JsonObject body = new JsonObject(requestBody);
+		String format = body.getString("format", "csv").toLowerCase();
+		String columns = Optional.ofNullable(body.getString("columns")).filter(value -> !value.trim().isEmpty()).orElse(null);
+
+		if (!format.equals("csv") && !format.equals("ndjson"))
+		{
+			logger.error("UploadHandler - " + Messages.INVALID_UPLOAD_FORMAT_ERROR.getValue() + format);
+			sendBackResponse(context, new JsonObject().put("error", Messages.INVALID_UPLOAD_FORMAT_ERROR.getValue() + format), StatusCodes.FAILED);
+			return;
+		}
+
+		if (format.equals("csv") && columns == null)
+		{
+			logger.error("UploadHandler - " + Messages.INVALID_UPLOAD_COLUMNS_ERROR.getValue());
+			sendBackResponse(context, new JsonObject().put("error", Messages.INVALID_UPLOAD_COLUMNS_ERROR.getValue()), StatusCodes.FAILED);
+			return;
+		}
+
+		if (columns != null && UploadSessions.quoteColumns(columns) == null)
+		{
+			logger.error("UploadHandler - " + Messages.INVALID_UPLOAD_COLUMN_NAME_ERROR.getValue() + columns);
+			sendBackResponse(context, new JsonObject().put("error", Messages.INVALID_UPLOAD_COLUMN_NAME_ERROR.getValue() + columns), StatusCodes.BAD_REQUEST);
+			return;
+		}
+
+		uploadSessions.create(schema, name, format, columns, body.getBoolean("header", false), created -> {
+			if (created.succeeded())
+			{
+				String location = "/uploads/sessions/" + created.result().getString("upload");
+				context.response().putHeader("location", location);
+				created.result().put("location", location);
+			}
+			respond(context, created, StatusCodes.CREATED);
+		});
+	}
+
+	/**
+	 *
+	 * Commits an upload session.
+	 *
+	 * @param context Context from the request
+	 * @param upload Identifier of the session.
+	 */
+	private void commit(RoutingContext context, String upload)
+	{
+		String requestBody = Optional.ofNullable(context.getBodyAsString()).filter(body -> !body.trim().isEmpty()).orElse("{}");
+
+		if (!VertxJsonValidator.isValidJSON(requestBody) || !Optional.ofNullable(new JsonObject(requestBody).getValue("chunks")).map(chunks -> chunks instanceof Integer).orElse(true))
+		{
+			logger.error("UploadHandler - " + Messages.INVALID_BODY_ERROR.getValue());
+			sendBackResponse(context, new JsonObject().put("error", Messages.INVALID_BODY_ERROR.getValue()), StatusCodes.FAILED);
+			return;
+		}
+
+		uploadSessions.commit(upload, new JsonObject(requestBody).getInteger("chunks"), committed -> respond(context, committed, StatusCodes.SUCCEEDED));
+	}
+
+	/**
+	 *
+	 * Answers with the status of a session, or the reason why the operation on it failed.
+	 *
+	 * @param context Context from the request
+	 * @param result Result of the operation.
+	 * @param statusCode Status code of a successful operation.
+	 */
+	private void respond(RoutingContext context, AsyncResult<JsonObject> result, StatusCodes statusCode)
+	{
+		if (result.succeeded())
+		{
+			sendBackResponse(context, result.result(), statusCode);
+			return;
+		}
+
+		logger.error("UploadHandler - " + result.cause());
+
+		if (result.cause() instanceof NoSuchElementException)
+		{
+			sendBackResponse(context, new JsonObject().put("error", result.cause().getMessage()), StatusCodes.NOT_FOUND);
+		}
+		else if (result.cause() instanceof IllegalStateException)
+		{
+			sendBackResponse(context, new JsonObject().put("error", result.cause().getMessage()), StatusCodes.CONFLICT);
+		}
+		else
+		{
+			sendBackResponse(context, new JsonObject().put("error", Messages.QUERY_EXECUTION_ERROR.getValue() + result.cause()), StatusCodes.FAILED);
+		}
+	}
+
+	/**
+	 *
+	 * This method sends the response back to the entity that made the request to this application.
+	 * It build the response with the correct header for a JSON response, status code and results printed prettily.
+	 *
+	 * @param context Context from the request
+	 * @param message Body of the response
+	 * @param statusCode Status code to be included in the response
+	 */
+	private void sendBackResponse(RoutingContext context, JsonObject message, StatusCodes statusCode)
+	{
+		context.response()
+		.putHeader("content-type", "application/json")
+		.setStatusCode(statusCode.getValue())
+		.end(message.encodePrettily());
+	}
+}
@@ -0,0 +1,340 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.Optional;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import org.msgpack.core.MessagePackException;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+import enums.MediaTypes;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.EncodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ *
+ * Class reading the bodies of the data routes, and writing their responses, in the media type the caller asked for: JSON, CBOR or MessagePack.
+ *
+ * A request body is read in the media type of its Content-Type header (JSON if absent or unknown). CBOR and MessagePack bodies are decoded
+ * straight into the values the handlers work with (numbers stay numbers, byte strings stay bytes), without going through JSON text.
+ * The body is decoded once per request and kept in its context (see bodyOf).
+ *
+ * A response is written in the first media type of the Accept header that is supported (JSON if none is). In CBOR and MessagePack, the results
+ * are the same document as in JSON, {"results": [...], ...}, with rows encoded straight from the values read from the database.
+ *
+ * @author pedrolourenco
+ *
+ */
+public class BodyCodec
+{
+	private static final String BODY_KEY = "bodyCodec.body";
+	private static final String MSGPACK_ALIAS = "application/x-msgpack";
+	private static final String RESULTS_KEY = "results";
+	private static final ObjectMapper CBOR_MAPPER = binaryMapper(new CBORFactory());
+	private static final ObjectMapper MSGPACK_MAPPER = binaryMapper(new MessagePackFactory());
+
+	/**
+	 *
+	 * @param context Context from the request
+	 * @return The body of the request, decoded in the media type of its Content-Type header, or null if it is empty or not an object (a map, in CBOR and MessagePack).
+	 */
+	public static JsonObject bodyOf(RoutingContext context)
+	{
+		Optional<JsonObject> body = context.get(BODY_KEY);
+
+		if (body == null)
+		{
+			body = Optional.ofNullable(decode(requestType(context), context.getBody()));
+			context.put(BODY_KEY, body);
+		}
+		return body.orElse(null);
+	}
+
+	/**
+	 *
+	 * @param type Media type of the body.
+	 * @param body Body to decode.
+	 * @return The decoded body, or null if it is empty, malformed or not an object (a map, in CBOR and MessagePack).
+	 */
+	@SuppressWarnings("unchecked")
+	public static JsonObject decode(MediaTypes type, Buffer body)
+	{
+		if (!Optional.ofNullable(body).isPresent() || body.length() == 0)
+		{
+			return null;
+		}
+
+		try
+		{
+			if (type == MediaTypes.JSON)
+			{
+				return new JsonObject(body);
+			}
+
+			Object decoded = mapperFor(type).readValue(body.getBytes(), Object.class);
+			return decoded instanceof Map ? new JsonObject((Map<String, Object>) decoded) : null;
+		}
+		//The MessagePack parser reports some malformed bodies with unchecked exceptions
+		catch (DecodeException | IOException | MessagePackException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 *
+	 * @param context Context from the request
+	 * @return The media type of the request body, from its Content-Type header.
+	 */
+	public static MediaTypes requestType(RoutingContext context)
+	{
+		return Optional.ofNullable(typeOf(context.request().getHeader("content-type"))).orElse(MediaTypes.JSON);
+	}
+
+	/**
+	 *
+	 * @param context Context from the request
+	 * @return The media type of the response: the first one of the Accept header that is supported, or JSON.
+	 */
+	public static MediaTypes responseType(RoutingContext context)
+	{
+		for (String accepted : Optional.ofNullable(context.request().getHeader("accept")).orElse("").split(","))
+		{
+			MediaTypes type = typeOf(accepted);
+
+			if (Optional.ofNullable(type).isPresent())
+			{
+				return type;
+			}
+		}
+		return MediaTypes.JSON;
+	}
+
+	/**
+	 *
+	 * @param type Media type of the response.
+	 * @param message Body of the response.
+	 * @return The body encoded in the media type (JSON printed prettily, as every response of the application).
+	 */
+	public static Buffer encode(MediaTypes type, JsonObject message)
+	{
+		if (type == MediaTypes.JSON)
+		{
+			return Buffer.buffer(message.encodePrettily());
+		}
+		return Buffer.buffer(write(type, message.getMap()));
+	}
+
+	/**
+	 *
+	 * @param type Media type of the response.
+	 * @param row Row of a result.
+	 * @return The row encoded in the media type, as an array of its values.
+	 */
+	public static byte[] encodeRow(MediaTypes type, JsonArray row)
+	{
+		if (type == MediaTypes.JSON)
+		{
+			return row.encode().getBytes(StandardCharsets.UTF_8);
+		}
+		return write(type, row.getList());
+	}
+
+	/**
+	 *
+	 * @param type Media type of the response.
+	 * @return Bytes between two encoded rows: a comma in JSON, nothing in CBOR and MessagePack, whose items delimit themselves.
+	 */
+	public static byte[] rowSeparator(MediaTypes type)
+	{
+		return type == MediaTypes.JSON ? new byte[] {','} : new byte[0];
+	}
+
+	/**
+	 *
+	 * Bytes to write before the encoded rows of a result, opening the {"results": [...], ...metadata} document.
+	 * CBOR and MessagePack have no closing bracket: the sizes of the document and of the results are written up front.
+	 *
+	 * @param type Media type of the response.
+	 * @param rows Number of rows of the result.
+	 * @param metadata Keys to write after the results.
+	 * @return The bytes before the rows.
+	 */
+	public static Buffer resultsPrefix(MediaTypes type, long rows, JsonObject metadata)
+	{
+		if (type == MediaTypes.JSON)
+		{
+			return Buffer.buffer("{\"" + RESULTS_KEY + "\":[");
+		}
+		return header(type, true, metadata.size() + 1).appendBytes(write(type, RESULTS_KEY)).appendBuffer(header(type, false, rows));
+	}
+
+	/**
+	 *
+	 * @param type Media type of the response.
+	 * @param metadata Keys to write after the results.
+	 * @return The bytes after the rows of a result, closing the document opened by resultsPrefix.
+	 */
+	public static Buffer resultsSuffix(MediaTypes type, JsonObject metadata)
+	{
+		if (type == MediaTypes.JSON)
+		{
+			return Buffer.buffer("]," + metadata.encode().substring(1));
+		}
+
+		Buffer suffix = Buffer.buffer();
+		metadata.getMap().forEach((key, value) -> suffix.appendBytes(write(type, key)).appendBytes(write(type, value)));
+		return suffix;
+	}
+
+	/**
+	 *
+	 * @param header Value of a Content-Type or Accept entry.
+	 * @return The media type it names, or null if it isn't supported.
+	 */
+	private static MediaTypes typeOf(String header)
+	{
+		String type = Optional.ofNullable(header).map(value -> value.split(";")[0].trim().toLowerCase()).orElse("");
+
+		for (MediaTypes mediaType : MediaTypes.values())
+		{
+			if (mediaType.getValue().equals(type))
+			{
+				return mediaType;
+			}
+		}
+		return type.equals(MSGPACK_ALIAS) ? MediaTypes.MSGPACK : null;
+	}
+
+	/**
+	 *
+	 * Writes the header of a CBOR or MessagePack map or array, with its number of entries.
+	 *
+	 * @param type CBOR or MessagePack.
+	 * @param map true for a map, false for an array.
+	 * @param size Number of entries (of key and value pairs, for a map).
+	 * @return The header.
+	 */
+	private static Buffer header(MediaTypes type, boolean map, long size)
+	{
+		Buffer header = Buffer.buffer();
+
+		if (type == MediaTypes.CBOR)
+		{
+			int major = map ? 0xA0 : 0x80;
+			if (size < 24)
+			{
+				return header.appendByte((byte) (major | size));
+			}
+			if (size < 0x100)
+			{
+				return header.appendByte((byte) (major | 24)).appendByte((byte) size);
+			}
+			if (size < 0x10000)
+			{
+				return header.appendByte((byte) (major | 25)).appendShort((short) size);
+			}
+			if (size < 0x100000000L)
+			{
+				return header.appendByte((byte) (major | 26)).appendInt((int) size);
+			}
+			return header.appendByte((byte) (major | 27)).appendLong(size);
+		}
+
+		if (size < 16)
+		{
+			return header.appendByte((byte) ((map ? 0x80 : 0x90) | size));
+		}
+		if (size < 0x10000)
+		{
+			return header.appendByte((byte) (map ? 0xDE : 0xDC)).appendShort((short) size);
+		}
+		return header.appendByte((byte) (map ? 0xDF : 0xDD)).appendInt((int) size);
+	}
+
+	/**
+	 *
+	 * @param type CBOR or MessagePack.
+	 * @param value Value to encode.
+	 * @return The value encoded.
+	 */
+	private static byte[] write(MediaTypes type, Object value)
+	{
+		try
+		{
+			return mapperFor(type).writeValueAsBytes(value);
+		}
+		catch (IOException e)
+		{
+			throw new EncodeException("Failed to encode as " + type.getValue() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 *
+	 * @param type CBOR or MessagePack.
+	 * @return The mapper for the media type.
+	 */
+	private static ObjectMapper mapperFor(MediaTypes type)
+	{
+		return type == MediaTypes.CBOR ? CBOR_MAPPER : MSGPACK_MAPPER;
+	}
+
+	/**
+	 *
+	 * @param factory Factory of the binary format.
+	 * @return A mapper for the format, writing the values Vert.x keeps in a JsonObject (nested objects and arrays, instants) as their JSON counterparts.
+	 */
+	private static ObjectMapper binaryMapper(JsonFactory factory)
+	{
+		SimpleModule module = new SimpleModule();
+
+		module.addSerializer(JsonObject.class, new StdSerializer<JsonObject>(JsonObject.class)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void serialize(JsonObject value, JsonGenerator generator, SerializerProvider provider) throws IOException
+			{
+				generator.writeObject(value.getMap());
+			}
+		});
+		module.addSerializer(JsonArray.class, new StdSerializer<JsonArray>(JsonArray.class)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void serialize(JsonArray value, JsonGenerator generator, SerializerProvider provider) throws IOException
+			{
+				generator.writeObject(value.getList());
+			}
+		});
+		module.addSerializer(Instant.class, new StdSerializer<Instant>(Instant.class)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void serialize(Instant value, JsonGenerator generator, SerializerProvider provider) throws IOException
+			{
+				generator.writeString(DateTimeFormatter.ISO_INSTANT.format(value));
+			}
+		});
+
+		return new ObjectMapper(factory).registerModule(module);
+	}
+}
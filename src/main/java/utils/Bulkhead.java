@@ -0,0 +1,444 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.BiConsumer;
+
+import org.apache.logging.log4j.Logger;
+
+import enums.Messages;
+import enums.OperationClass;
+import enums.StatusCodes;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.ext.sql.SQLConnection;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ *
+ * Class representing the isolated resources of one class of operations (see OperationClass).
+ * Each bulkhead owns:
+ * - A named worker pool, exposed as a WorkerExecutor, in which the JDBC statements for the class are executed.
+ * - A partition of the connection pool (a JDBC client with its own data source and max_pool_size).
+ * - A queue limit: requests beyond max_pool_size + max_queue are rejected right away with a 503, instead of waiting for a connection.
+ *   The 503 carries the same Retry-After header as the ones of the ConcurrencyLimiter (retry_after_seconds of the "concurrency_limiter" section), so clients back off the same way.
+ *
+ * Statements are cancelled (see InFlightStatement) from a small worker pool shared by every bulkhead (cancel_pool_size threads, 2 by default), never from the bulkhead's own pool:
+ * when every worker of the bulkhead is busy with a slow statement, which is when a cancel matters most, the cancel would otherwise wait for one of them to finish.
+ * 
+ * Bulkheads of read-only classes (every class but WRITE) also own one partition per configured replica (see ReplicaMonitor).
+ * Their requests are sent to the eligible replica with the least outstanding requests, and only fall back to the primary when no replica is eligible.
+ * When hedging is enabled (see HedgingPolicy), a read still running after the hedge delay is duplicated to a second replica: the first answer wins and the other statement is cancelled.
+ * Requests routed to another database (/db/:database/...) take their connection from that database's pool instead (see DatabasePools), still within the bulkhead's limits.
+ *
+ * The JDBC client executes statements on the worker pool of the context from where the connection was requested.
+ * For that reason, the bulkhead deploys an empty worker verticle bound to its named pool, and connections are always requested from that verticle's context.
+ *
+ * The settings come from the "bulkheads" section of the configuration, under the key of the operation class. For example:
+ *
+ * 	"bulkheads": {
+ * 		"cancel_pool_size": 2,
+ * 		"analytical": { "worker_pool_size": 8, "max_pool_size": 8, "max_queue": 16 }
+ * 	}
+ *
+ * @author pedrolourenco
+ *
+ */
+public class Bulkhead
+{
+	private static final int DEFAULT_POOL_SIZE = 5;
+	private static final int DEFAULT_MAX_QUEUE = 20;
+	private static final int DEFAULT_CANCEL_POOL_SIZE = 2;
+	private static final String CANCEL_POOL_NAME = "statement-cancel-pool";
+
+	private final Vertx vertx;
+	private final Logger logger;
+	private final OperationClass operationClass;
+	private final JDBCClient jdbc;
+	private final ReplicaMonitor replicaMonitor;
+	private final DatabasePools databasePools;
+	private final List<JDBCClient> replicas = new ArrayList<>();
+	private final AtomicIntegerArray outstanding;
+	private final AtomicInteger rotation = new AtomicInteger();
+	private final HedgingPolicy hedgingPolicy;
+	private final WorkerExecutor workerExecutor;
+	private final WorkerExecutor cancelExecutor;
+	private final String workerPoolName;
+	private final int workerPoolSize;
+	private final int maxConcurrent;
+	private final int maxQueue;
+	private final String retryAfterSeconds;
+	private final AtomicInteger admitted = new AtomicInteger();
+
+	private Context executionContext;
+	private String deploymentID;
+
+	/**
+	 *
+	 * Work a handler performs on a connection obtained from the bulkhead: executing its statement and producing the JsonObject for the response.
+	 * The connection must be released through the given statement once the work is done.
+	 */
+	public interface Attempt
+	{
+		void run(SQLConnection connection, InFlightStatement statement, Future<JsonObject> result);
+	}
+
+	/**
+	 *
+	 * @param vertx Vertx instance the bulkhead resources are created on.
+	 * @param config Application configuration, containing both the database settings and the "bulkheads" section.
+	 * @param operationClass Class of operations this bulkhead isolates.
+	 * @param replicaMonitor Monitor of the replicas reads can be routed to.
+	 * @param databasePools Pools of the databases reached through the /db/:database/... routes.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public Bulkhead(Vertx vertx, JsonObject config, OperationClass operationClass, ReplicaMonitor replicaMonitor, DatabasePools databasePools, Logger logger)
+	{
+		JsonObject settings = config.getJsonObject("bulkheads", new JsonObject()).getJsonObject(operationClass.getValue(), new JsonObject());
+
+		this.vertx = vertx;
+		this.logger = logger;
+		this.operationClass = operationClass;
+		this.maxConcurrent = settings.getInteger("max_pool_size", DEFAULT_POOL_SIZE);
+		this.maxQueue = settings.getInteger("max_queue", DEFAULT_MAX_QUEUE);
+		this.retryAfterSeconds = String.valueOf(config.getJsonObject("concurrency_limiter", new JsonObject()).getInteger("retry_after_seconds", 1));
+		this.workerPoolSize = settings.getInteger("worker_pool_size", maxConcurrent);
+		this.workerPoolName = operationClass.getValue() + "-worker-pool";
+
+		JsonObject partitionConfig = config.copy().put("max_pool_size", maxConcurrent);
+		this.jdbc = JDBCClient.createShared(vertx, partitionConfig, "PostgreSQL-" + operationClass.getValue());
+		this.replicaMonitor = replicaMonitor;
+		this.databasePools = databasePools;
+
+		if (operationClass != OperationClass.WRITE)
+		{
+			for (int i = 0; i < replicaMonitor.size(); i++)
+			{
+				JsonObject replicaPartitionConfig = replicaMonitor.replicaConfig(partitionConfig, i);
+				replicas.add(JDBCClient.createShared(vertx, replicaPartitionConfig, "PostgreSQL-" + operationClass.getValue() + "-replica-" + i));
+			}
+		}
+		this.outstanding = new AtomicIntegerArray(replicas.size());
+		this.hedgingPolicy = new HedgingPolicy(config);
+		this.workerExecutor = vertx.createSharedWorkerExecutor(workerPoolName, workerPoolSize);
+		this.cancelExecutor = vertx.createSharedWorkerExecutor(CANCEL_POOL_NAME, config.getJsonObject("bulkheads", new JsonObject()).getInteger("cancel_pool_size", DEFAULT_CANCEL_POOL_SIZE));
+	}
+
+	/**
+	 *
+	 * Deploys the worker verticle bound to the bulkhead's named worker pool and keeps its context.
+	 * Must complete before any connection is requested from this bulkhead.
+	 *
+	 * @param next Handler for the result from this method.
+	 */
+	public void start(Handler<AsyncResult<Void>> next)
+	{
+		DeploymentOptions options = new DeploymentOptions()
+				.setWorker(true)
+				.setWorkerPoolName(workerPoolName)
+				.setWorkerPoolSize(workerPoolSize);
+
+		vertx.deployVerticle(new AbstractVerticle()
+		{
+			@Override
+			public void start()
+			{
+				executionContext = context;
+			}
+		}, options, result -> {
+			if (result.succeeded())
+			{
+				deploymentID = result.result();
+				next.handle(Future.succeededFuture());
+			}
+			else
+			{
+				next.handle(Future.failedFuture(result.cause()));
+			}
+		});
+	}
+
+	/**
+	 *
+	 * Wraps a route handler so that requests are only forwarded to it while the bulkhead has room for them.
+	 * A request holds its slot until its response ends or its connection closes.
+	 * If the queue limit has been reached, the request is rejected with a 503 and a Retry-After header, and never reaches the handler.
+	 *
+	 * @param handler Handler to protect with this bulkhead.
+	 * @return Handler that applies the admission control before delegating.
+	 */
+	public Handler<RoutingContext> admit(Handler<RoutingContext> handler)
+	{
+		return context -> {
+			if (admitted.incrementAndGet() > maxConcurrent + maxQueue)
+			{
+				admitted.decrementAndGet();
+				context.response()
+				.putHeader("content-type", "application/json")
+				.putHeader("Retry-After", retryAfterSeconds)
+				.setStatusCode(StatusCodes.SERVICE_UNAVAILABLE.getValue())
+				.end(new JsonObject().put("error", Messages.BULKHEAD_FULL_ERROR.getValue() + operationClass.getValue()).encodePrettily());
+				return;
+			}
+
+			RequestLifecycle.onEnd(context, v -> admitted.decrementAndGet());
+
+			handler.handle(context);
+		};
+	}
+
+	/**
+	 *
+	 * Requests a connection to serve a request.
+	 * For read-only classes the connection comes from the eligible replica with the least outstanding requests, taking the request's session token into account (see SessionToken).
+	 * The replica counts the request as outstanding until its response ends.
+	 * For the WRITE class, or when no replica is eligible, the connection comes from the primary.
+	 * Requests routed to another database always get their connection from that database's pool.
+	 *
+	 * @param context Context from the request the connection is for.
+	 * @param handler Handler for the resulting connection.
+	 */
+	public void getConnection(RoutingContext context, Handler<AsyncResult<SQLConnection>> handler)
+	{
+		int replica = DatabasePools.of(context) == null ? chooseReplica(SessionToken.minimumLsn(context), -1) : -1;
+
+		if (replica < 0)
+		{
+			getPrimaryConnection(context, handler);
+			return;
+		}
+		getReplicaConnection(context, replica, handler);
+	}
+
+	/**
+	 *
+	 * Executes a handler's work for a request, on a connection chosen as in getConnection.
+	 * The statement is bound to the request (see InFlightStatement), so it is cancelled if the client goes away.
+	 * 
+	 * If hedging is enabled and the work runs on a replica, once the hedge delay elapses without an answer (and if the hedge budget allows it), the same work is started on a second eligible replica.
+	 * The first attempt to finish provides the result, and the statement of the other attempt is cancelled, and its connection released once the cancelled statement returns.
+	 *
+	 * @param context Context from the request the work is for.
+	 * @param attempt Work to execute.
+	 * @param handler Handler for the result of the (first finished) attempt.
+	 */
+	public void execute(RoutingContext context, Attempt attempt, Handler<AsyncResult<JsonObject>> handler)
+	{
+		long minimumLsn = SessionToken.minimumLsn(context);
+		long startMillis = System.currentTimeMillis();
+		int first = DatabasePools.of(context) == null ? chooseReplica(minimumLsn, -1) : -1;
+		AtomicBoolean completed = new AtomicBoolean(false);
+		List<InFlightStatement> statements = new CopyOnWriteArrayList<>();
+
+		BiConsumer<InFlightStatement, JsonObject> onResult = (winner, result) -> {
+			if (completed.compareAndSet(false, true))
+			{
+				hedgingPolicy.record(System.currentTimeMillis() - startMillis);
+				statements.stream().filter(statement -> statement != winner).forEach(InFlightStatement::cancel);
+				handler.handle(Future.succeededFuture(result));
+			}
+		};
+
+		launch(context, first, attempt, completed, statements, onResult);
+
+		if (first >= 0 && hedgingPolicy.isEnabled() && hedgingPolicy.getDelayMillis() >= 0)
+		{
+			long timerID = vertx.setTimer(hedgingPolicy.getDelayMillis(), id -> {
+				int second = chooseReplica(minimumLsn, first);
+
+				if (!completed.get() && second >= 0 && hedgingPolicy.tryAcquire())
+				{
+					logger.debug("Bulkhead " + operationClass.getValue() + " - No answer after " + hedgingPolicy.getDelayMillis() + "ms, hedging to replica " + second);
+					launch(context, second, attempt, completed, statements, onResult);
+				}
+			});
+			RequestLifecycle.onEnd(context, v -> vertx.cancelTimer(timerID));
+		}
+	}
+
+	/**
+	 *
+	 * Starts one attempt of a handler's work, on the given replica (or on the primary).
+	 * If the attempt is no longer needed when its connection arrives (the client left, or another attempt already finished), the connection is released right away.
+	 *
+	 * @param context Context from the request the work is for.
+	 * @param replica Index of the replica to run on, or -1 for the primary.
+	 * @param attempt Work to execute.
+	 * @param completed Flag telling if an attempt already provided the result.
+	 * @param statements Statements of all the attempts for the request, for cancellation of the losers.
+	 * @param onResult Consumer for the statement and result of the attempt.
+	 */
+	private void launch(RoutingContext context, int replica, Attempt attempt, AtomicBoolean completed, List<InFlightStatement> statements, BiConsumer<InFlightStatement, JsonObject> onResult)
+	{
+		Handler<AsyncResult<SQLConnection>> onConnection = connection -> {
+			if (connection.failed())
+			{
+				logger.error("Bulkhead " + operationClass.getValue() + " - " + Messages.DB_CONNECTION_ERROR.getValue() + connection.cause());
+				onResult.accept(null, new JsonObject().put("error", Messages.DB_CONNECTION_ERROR.getValue() + connection.cause()));
+			}
+			else if (completed.get() || context.response().closed())
+			{
+				connection.result().close();
+			}
+			else
+			{
+				InFlightStatement statement = InFlightStatement.bind(context, connection.result(), cancelExecutor, logger);
+				statements.add(statement);
+
+				Future<JsonObject> result = Future.future();
+				result.setHandler(attemptResult -> onResult.accept(statement, attemptResult.result()));
+				attempt.run(connection.result(), statement, result);
+			}
+		};
+
+		if (replica < 0)
+		{
+			getPrimaryConnection(context, onConnection);
+		}
+		else
+		{
+			getReplicaConnection(context, replica, onConnection);
+		}
+	}
+
+	/**
+	 *
+	 * Requests a connection from the primary: the bulkhead's own partition, or the pool of the database the request was routed to.
+	 *
+	 * @param context Context from the request the connection is for.
+	 * @param handler Handler for the resulting connection.
+	 */
+	private void getPrimaryConnection(RoutingContext context, Handler<AsyncResult<SQLConnection>> handler)
+	{
+		String database = DatabasePools.of(context);
+
+		if (database == null)
+		{
+			getConnection(handler);
+			return;
+		}
+		executionContext.runOnContext(v -> databasePools.getConnection(context, database, handler));
+	}
+
+	/**
+	 *
+	 * Requests a connection from one of the replica partitions, counting the request as outstanding on that replica until its response ends.
+	 *
+	 * @param context Context from the request the connection is for.
+	 * @param replica Index of the replica.
+	 * @param handler Handler for the resulting connection.
+	 */
+	private void getReplicaConnection(RoutingContext context, int replica, Handler<AsyncResult<SQLConnection>> handler)
+	{
+		outstanding.incrementAndGet(replica);
+		RequestLifecycle.onEnd(context, v -> outstanding.decrementAndGet(replica));
+
+		executionContext.runOnContext(v -> replicas.get(replica).getConnection(handler));
+	}
+
+	/**
+	 *
+	 * Requests a connection from a pool held outside the bulkhead (such as a shard's, see ShardMap).
+	 * The request is made from the bulkhead's context, so every statement executed on the returned connection runs on the bulkhead's worker pool.
+	 *
+	 * @param client JDBC client to get the connection from.
+	 * @param handler Handler for the resulting connection.
+	 */
+	public void getConnection(JDBCClient client, Handler<AsyncResult<SQLConnection>> handler)
+	{
+		executionContext.runOnContext(v -> client.getConnection(handler));
+	}
+
+	/**
+	 *
+	 * Requests a connection from this bulkhead's partition of the primary's connection pool.
+	 * The request is made from the bulkhead's context, so every statement executed on the returned connection runs on the bulkhead's worker pool.
+	 *
+	 * @param handler Handler for the resulting connection.
+	 */
+	public void getConnection(Handler<AsyncResult<SQLConnection>> handler)
+	{
+		executionContext.runOnContext(v -> jdbc.getConnection(handler));
+	}
+
+	/**
+	 *
+	 * Picks the eligible replica with the least outstanding requests.
+	 * The scan starts at a rotating position, so ties are spread among replicas instead of always going to the first one.
+	 *
+	 * @param minimumLsn WAL position the replica must have replayed.
+	 * @param excluded Index of a replica that must not be chosen, or -1.
+	 * @return Index of the chosen replica, or -1 if none is eligible.
+	 */
+	private int chooseReplica(long minimumLsn, int excluded)
+	{
+		int chosen = -1;
+		int start = replicas.isEmpty() ? 0 : Math.floorMod(rotation.getAndIncrement(), replicas.size());
+
+		for (int i = 0; i < replicas.size(); i++)
+		{
+			int replica = (start + i) % replicas.size();
+
+			if (replica != excluded && replicaMonitor.isEligible(replica, minimumLsn) && (chosen < 0 || outstanding.get(replica) < outstanding.get(chosen)))
+			{
+				chosen = replica;
+			}
+		}
+		return chosen;
+	}
+
+	/**
+	 *
+	 * @return The worker executor bound to this bulkhead's worker pool, for blocking work that does not go through the JDBC client.
+	 */
+	public WorkerExecutor getWorkerExecutor()
+	{
+		return workerExecutor;
+	}
+
+	/**
+	 *
+	 * @return The worker executor statements are cancelled from (see InFlightStatement), apart from the worker pool of any bulkhead.
+	 */
+	public WorkerExecutor getCancelExecutor()
+	{
+		return cancelExecutor;
+	}
+
+	/**
+	 *
+	 * @return The class of operations this bulkhead isolates.
+	 */
+	public OperationClass getOperationClass()
+	{
+		return operationClass;
+	}
+
+	/**
+	 *
+	 * Releases the resources held by the bulkhead: its worker verticle, worker executors and connection pool partitions.
+	 */
+	public void close()
+	{
+		if (deploymentID != null)
+		{
+			vertx.undeploy(deploymentID);
+		}
+		workerExecutor.close();
+		cancelExecutor.close();
+		jdbc.close();
+		replicas.forEach(JDBCClient::close);
+	}
+}
@@ -0,0 +1,450 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.PGProperty;
+import org.postgresql.replication.LogSequenceNumber;
+import org.postgresql.replication.PGReplicationStream;
+import org.postgresql.replication.fluent.logical.ChainedLogicalStreamBuilder;
+
+import enums.Messages;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ *
+ * Class streaming the changes of a database from logical replication slots, decoded by the wal2json plugin (format version 2: one JSON object per change).
+ *
+ * Each stream reads a slot through a replication connection of its own, on a worker of its own, and writes every change to an HTTP response as one line of JSON
+ * holding the change and its "lsn". Changes come in commit order, with "B" and "C" lines marking the transactions, and can be restricted to a list of tables,
+ * filtered by wal2json itself, so the other tables never leave the server.
+ *
+ * A slot keeps every change until it is acknowledged (see acknowledge): a consumer acknowledges the LSN of the last commit it processed,
+ * and a stream reopened without a starting LSN resumes right after the last acknowledged one. Slots are created on their first stream if create_slots is set.
+ * A slot has a single consumer at a time, and at most max_streams streams run at once.
+ *
+ * 	"change_capture": {
+ * 		"plugin": "wal2json",
+ * 		"create_slots": true,
+ * 		"max_streams": 4,
+ * 		"status_interval_ms": 10000,
+ * 		"idle_wait_ms": 10
+ * 	}
+ *
+ * @author pedrolourenco
+ *
+ */
+public class ChangeCapture
+{
+	private static final Pattern SLOT_NAME = Pattern.compile("[a-z0-9_]{1,63}");
+	private static final Pattern TABLE_NAME = Pattern.compile("\\w+\\.\\w+");
+
+	private final JsonObject config;
+	private final WorkerExecutor workerExecutor;
+	private final String plugin;
+	private final boolean createSlots;
+	private final int maxStreams;
+	private final int statusIntervalMillis;
+	private final long idleWaitMillis;
+	private final Map<String, Stream> streams = new ConcurrentHashMap<>();
+	private final Logger logger;
+
+	/**
+	 *
+	 * State of a running stream.
+	 */
+	private static class Stream
+	{
+		private final AtomicReference<LogSequenceNumber> acknowledged = new AtomicReference<>();
+		private volatile boolean stopped = false;
+		private boolean paused = false;
+
+		/**
+		 *
+		 * Pauses the reading of the slot, once the response's write queue is full.
+		 */
+		private synchronized void pause()
+		{
+			paused = true;
+		}
+
+		/**
+		 *
+		 * Resumes the reading of the slot, once the response's write queue is drained.
+		 */
+		private synchronized void resume()
+		{
+			paused = false;
+			notifyAll();
+		}
+
+		/**
+		 *
+		 * Stops the stream, waking its worker if it waits for the response to drain.
+		 */
+		private synchronized void stop()
+		{
+			stopped = true;
+			notifyAll();
+		}
+
+		/**
+		 *
+		 * Waits, while the stream is paused, for it to be resumed or stopped.
+		 *
+		 * @param maxWaitMillis Longest time to wait.
+		 * @return true if the stream isn't paused anymore, false if it still is after maxWaitMillis.
+		 * @throws InterruptedException if the worker is interrupted while waiting.
+		 */
+		private synchronized boolean awaitResume(long maxWaitMillis) throws InterruptedException
+		{
+			if (paused && !stopped)
+			{
+				wait(maxWaitMillis);
+			}
+			return !paused || stopped;
+		}
+	}
+
+	/**
+	 *
+	 * @param vertx Vertx instance the stream workers are created on.
+	 * @param config Application configuration, containing the database settings and the "change_capture" section.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public ChangeCapture(Vertx vertx, JsonObject config, Logger logger)
+	{
+		JsonObject settings = config.getJsonObject("change_capture", new JsonObject());
+
+		this.config = config;
+		this.plugin = settings.getString("plugin", "wal2json");
+		this.createSlots = settings.getBoolean("create_slots", true);
+		this.maxStreams = Math.max(1, settings.getInteger("max_streams", 4));
+		this.statusIntervalMillis = settings.getInteger("status_interval_ms", 10000);
+		this.idleWaitMillis = settings.getLong("idle_wait_ms", 10L);
+		this.workerExecutor = vertx.createSharedWorkerExecutor("change-capture", maxStreams, Long.MAX_VALUE);
+		this.logger = logger;
+	}
+
+	/**
+	 *
+	 * @param slot Name of a replication slot.
+	 * @return true if the name can be used as a slot name.
+	 */
+	public static boolean isValidSlot(String slot)
+	{
+		return slot != null && SLOT_NAME.matcher(slot).matches();
+	}
+
+	/**
+	 *
+	 * @param table Name of a table, as schema.table.
+	 * @return true if the name can be given to wal2json as a table to stream.
+	 */
+	public static boolean isValidTable(String table)
+	{
+		return TABLE_NAME.matcher(table).matches();
+	}
+
+	/**
+	 *
+	 * Streams the changes of a slot to a response, as NDJSON, until the response is closed or the replication connection fails.
+	 * The slot is read on the stream's worker, which hands every change to the request's context to be written: the response is only touched on that context.
+	 * Once a write fills the response's write queue, the worker stops reading until the queue's drain handler resumes it, sending status updates meanwhile
+	 * so the server doesn't time the replication connection out. The started handler is also called on the request's context, before the first change is written,
+	 * so it can set the response's headers.
+	 *
+	 * @param slot Replication slot to read.
+	 * @param tables Tables to stream (schema.table), or an empty list for every table.
+	 * @param from LSN to start from, or null to resume after the last acknowledged one.
+	 * @param context Context from the request, whose response the changes are written to.
+	 * @param started Handler called once the slot is being read, or with the failure that prevented it: an IllegalStateException if max_streams streams run already,
+	 *                or if the slot already has a consumer.
+	 * @param ended Handler called once a started stream is over, failed if the replication connection failed.
+	 */
+	public void stream(String slot, List<String> tables, LogSequenceNumber from, RoutingContext context, Handler<AsyncResult<Void>> started, Handler<AsyncResult<Void>> ended)
+	{
+		if (streams.size() >= maxStreams)
+		{
+			started.handle(Future.failedFuture(new IllegalStateException(Messages.CDC_STREAMS_FULL_ERROR.getValue() + maxStreams)));
+			return;
+		}
+
+		Stream stream = new Stream();
+		if (streams.putIfAbsent(slot, stream) != null)
+		{
+			started.handle(Future.failedFuture(new IllegalStateException(Messages.CDC_SLOT_BUSY_ERROR.getValue() + slot)));
+			return;
+		}
+
+		HttpServerResponse response = context.response();
+		Context requestContext = context.vertx().getOrCreateContext();
+		RequestLifecycle.onClose(context, v -> stream.stop());
+
+		AtomicBoolean running = new AtomicBoolean(false);
+
+		workerExecutor.<Void>executeBlocking(blocking -> {
+			try (Connection connection = replicationConnection())
+			{
+				PGConnection pgConnection = connection.unwrap(PGConnection.class);
+
+				if (createSlots && !slotExists(connection, slot))
+				{
+					pgConnection.getReplicationAPI().createReplicationSlot().logical().withSlotName(slot).withOutputPlugin(plugin).make();
+					logger.info("ChangeCapture - Created replication slot " + slot);
+				}
+
+				ChainedLogicalStreamBuilder builder = pgConnection.getReplicationAPI().replicationStream().logical()
+						.withSlotName(slot)
+						.withSlotOption("format-version", 2)
+						.withStatusInterval(statusIntervalMillis, TimeUnit.MILLISECONDS);
+
+				if (!tables.isEmpty())
+				{
+					builder.withSlotOption("add-tables", String.join(",", tables));
+				}
+				if (from != null)
+				{
+					builder.withStartPosition(from);
+				}
+
+				try (PGReplicationStream replication = builder.start())
+				{
+					running.set(true);
+					requestContext.runOnContext(v -> started.handle(Future.succeededFuture()));
+					logger.info("ChangeCapture - Streaming slot " + slot + (tables.isEmpty() ? "" : " for " + tables) + (from == null ? "" : " from " + from.asString()));
+
+					while (!stream.stopped)
+					{
+						acknowledgePending(stream, replication);
+
+						if (!stream.awaitResume(statusIntervalMillis))
+						{
+							replication.forceUpdateStatus();
+							continue;
+						}
+
+						ByteBuffer message = replication.readPending();
+						if (message == null)
+						{
+							TimeUnit.MILLISECONDS.sleep(idleWaitMillis);
+							continue;
+						}
+
+						Buffer line = Buffer.buffer(encode(message, replication.getLastReceiveLSN()));
+						requestContext.runOnContext(v -> write(stream, response, line));
+					}
+					acknowledgePending(stream, replication);
+				}
+				blocking.complete();
+			}
+			catch (SQLException e)
+			{
+				blocking.fail(e);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				blocking.fail(e);
+			}
+			finally
+			{
+				streams.remove(slot, stream);
+			}
+		}, false, result -> {
+			if (result.failed())
+			{
+				logger.error("ChangeCapture - Stream of slot " + slot + " failed: " + result.cause());
+			}
+			else
+			{
+				logger.info("ChangeCapture - Stream of slot " + slot + " closed");
+			}
+			if (running.get())
+			{
+				ended.handle(result);
+			}
+			else
+			{
+				started.handle(result);
+			}
+		});
+	}
+
+	/**
+	 *
+	 * Acknowledges the changes of a slot up to an LSN, so the server can discard them. The acknowledgement is sent by the slot's stream with its next status update.
+	 *
+	 * @param slot Replication slot being streamed.
+	 * @param lsn Last LSN processed by the consumer.
+	 * @return true if the slot has a running stream, false otherwise.
+	 */
+	public boolean acknowledge(String slot, LogSequenceNumber lsn)
+	{
+		Stream stream = streams.get(slot);
+
+		if (stream == null)
+		{
+			return false;
+		}
+		stream.acknowledged.set(lsn);
+		return true;
+	}
+
+	/**
+	 *
+	 * Drops a replication slot, so the server stops keeping changes for it. Only slots without a running stream can be dropped.
+	 *
+	 * @param slot Replication slot to drop.
+	 * @param handler Handler for the result: true if the slot was dropped, false if there was no such slot. Failed with an IllegalStateException if the slot is being streamed.
+	 */
+	public void drop(String slot, Handler<AsyncResult<Boolean>> handler)
+	{
+		if (streams.containsKey(slot))
+		{
+			handler.handle(Future.failedFuture(new IllegalStateException(Messages.CDC_SLOT_BUSY_ERROR.getValue() + slot)));
+			return;
+		}
+
+		workerExecutor.<Boolean>executeBlocking(blocking -> {
+			try (Connection connection = DriverManager.getConnection(config.getString("url"), config.getString("user"), config.getString("password"));
+					PreparedStatement statement = connection.prepareStatement("SELECT pg_drop_replication_slot(slot_name) FROM pg_replication_slots WHERE slot_name = ?"))
+			{
+				statement.setString(1, slot);
+				try (ResultSet dropped = statement.executeQuery())
+				{
+					blocking.complete(dropped.next());
+				}
+			}
+			catch (SQLException e)
+			{
+				blocking.fail(e);
+			}
+		}, false, handler);
+	}
+
+	/**
+	 *
+	 * Stops every running stream and closes the stream workers.
+	 */
+	public void close()
+	{
+		streams.values().forEach(Stream::stop);
+		workerExecutor.close();
+	}
+
+	/**
+	 *
+	 * Writes a change to the response of a stream, on the request's context, pausing the stream once the response's write queue is full.
+	 *
+	 * @param stream Stream the change was read by.
+	 * @param response Response the changes are written to.
+	 * @param line Encoded change.
+	 */
+	private void write(Stream stream, HttpServerResponse response, Buffer line)
+	{
+		if (stream.stopped || response.closed() || response.ended())
+		{
+			return;
+		}
+
+		response.write(line);
+		if (response.writeQueueFull())
+		{
+			stream.pause();
+			response.drainHandler(drained -> stream.resume());
+		}
+	}
+
+	/**
+	 *
+	 * Sends the consumer's pending acknowledgement, if any, as flushed and applied LSN.
+	 *
+	 * @param stream Stream whose acknowledgement to send.
+	 * @param replication Replication stream of the slot.
+	 * @throws SQLException if the status update couldn't be sent.
+	 */
+	private void acknowledgePending(Stream stream, PGReplicationStream replication) throws SQLException
+	{
+		LogSequenceNumber lsn = stream.acknowledged.getAndSet(null);
+
+		if (lsn != null)
+		{
+			replication.setFlushedLSN(lsn);
+			replication.setAppliedLSN(lsn);
+			replication.forceUpdateStatus();
+		}
+	}
+
+	/**
+	 *
+	 * @param message Message decoded by wal2json.
+	 * @param lsn LSN of the message.
+	 * @return The message as a line of NDJSON, with its "lsn" added.
+	 */
+	private static String encode(ByteBuffer message, LogSequenceNumber lsn)
+	{
+		String json = new String(message.array(), message.arrayOffset() + message.position(), message.remaining(), StandardCharsets.UTF_8);
+		return new JsonObject(json).put("lsn", lsn.asString()).encode() + "\n";
+	}
+
+	/**
+	 *
+	 * @param connection Replication connection.
+	 * @param slot Name of the slot.
+	 * @return true if the slot exists.
+	 * @throws SQLException if the query failed.
+	 */
+	private static boolean slotExists(Connection connection, String slot) throws SQLException
+	{
+		try (PreparedStatement statement = connection.prepareStatement("SELECT 1 FROM pg_replication_slots WHERE slot_name = ?"))
+		{
+			statement.setString(1, slot);
+			try (ResultSet result = statement.executeQuery())
+			{
+				return result.next();
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return A new logical replication connection to the configured database (not pooled: replication connections can't run through the pool).
+	 * @throws SQLException if the connection couldn't be opened.
+	 */
+	private Connection replicationConnection() throws SQLException
+	{
+		Properties properties = new Properties();
+		PGProperty.USER.set(properties, config.getString("user"));
+		PGProperty.PASSWORD.set(properties, config.getString("password"));
+		PGProperty.ASSUME_MIN_SERVER_VERSION.set(properties, "9.4");
+		PGProperty.REPLICATION.set(properties, "database");
+		PGProperty.PREFER_QUERY_MODE.set(properties, "simple");
+
+		return DriverManager.getConnection(config.getString("url"), properties);
+	}
+}
@@ -0,0 +1,455 @@
+package utils;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import enums.Messages;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.WriteStream;
+import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.ext.sql.SQLConnection;
+
+/**
+ *
+ * Class pushing the row changes of tables to subscribers, so clients can follow a table instead of polling it.
+ *
+ * Only the tables listed in "tables" can be followed: installing a trigger takes a SHARE ROW EXCLUSIVE lock on the table, so it's not left to any caller naming a table.
+ * The first subscription to a table installs a trigger on it, which sends every inserted, updated or deleted row as a NOTIFY on a single channel.
+ * A trigger already in place (e.g. installed before a restart, or by another instance) is kept as is, without taking the lock again.
+ * A single connection LISTENs on that channel, whatever the number of tables and subscribers, and hands each notification to the subscribers of its table.
+ * Rows whose JSON doesn't fit in a notification (about 8000 bytes) are notified without the row, with "row" null.
+ *
+ * Each subscriber gets the events as fast as its connection takes them. Events arriving while its write queue is full wait in a queue of at most max_pending events;
+ * past that, they are coalesced into a single "resync" event, telling the subscriber it missed changes and should read the table again.
+ * A slow subscriber thus never holds more than max_pending events, nor slows the others down.
+ *
+ * 	"change_feed": {
+ * 		"channel": "api_changes",
+ * 		"function_schema": "public",
+ * 		"poll_ms": 500,
+ * 		"retry_ms": 5000,
+ * 		"max_pending": 1000,
+ * 		"max_subscribers": 1000,
+ * 		"tables": ["public.orders"]
+ * 	}
+ *
+ * @author pedrolourenco
+ *
+ */
+public class ChangeFeed
+{
+	private static final String TRIGGER_NAME = "api_change_feed";
+	private static final int MAX_PAYLOAD_BYTES = 7900;
+	private static final Pattern IDENTIFIER = Pattern.compile("^\\w+$");
+	private static final String TRIGGER_QUERY = "SELECT count(*) FROM pg_catalog.pg_trigger WHERE tgrelid = CAST(? AS regclass) AND tgname = ?";
+
+	private final Vertx vertx;
+	private final JDBCClient client;
+	private final WorkerExecutor workerExecutor;
+	private final String channel;
+	private final String functionName;
+	private final int pollMillis;
+	private final long retryMillis;
+	private final int maxPending;
+	private final int maxSubscribers;
+	private final Map<String, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+	private final Set<String> subscribable = ConcurrentHashMap.newKeySet();
+	private final Set<String> installed = ConcurrentHashMap.newKeySet();
+	private final Logger logger;
+	private volatile boolean listening = false;
+	private volatile boolean closed = false;
+
+	/**
+	 *
+	 * Subscriber to the changes of a table, delivering the events on its own context, through its own stream.
+	 */
+	public class Subscriber
+	{
+		private final String table;
+		private final Context context;
+		private final WriteStream<?> stream;
+		private final Handler<String> send;
+		private final Queue<String> pending = new ArrayDeque<>();
+		private boolean overflowed = false;
+
+		private Subscriber(String table, Context context, WriteStream<?> stream, Handler<String> send)
+		{
+			this.table = table;
+			this.context = context;
+			this.stream = stream;
+			this.send = send;
+		}
+
+		/**
+		 *
+		 * Sends an event, or queues it while the stream's write queue is full.
+		 *
+		 * @param event Event to send.
+		 */
+		private void offer(String event)
+		{
+			if (pending.isEmpty() && !overflowed && !stream.writeQueueFull())
+			{
+				send.handle(event);
+				return;
+			}
+
+			if (pending.size() >= maxPending)
+			{
+				pending.clear();
+				overflowed = true;
+			}
+			else if (!overflowed)
+			{
+				pending.add(event);
+			}
+			stream.drainHandler(v -> flush());
+		}
+
+		/**
+		 *
+		 * Sends the queued events (or the resync event standing for them) while the stream's write queue has room.
+		 */
+		private void flush()
+		{
+			if (overflowed)
+			{
+				overflowed = false;
+				send.handle(new JsonObject().put("op", "RESYNC").put("table", table).encode());
+			}
+			while (!pending.isEmpty() && !stream.writeQueueFull())
+			{
+				send.handle(pending.poll());
+			}
+			if (!pending.isEmpty())
+			{
+				stream.drainHandler(v -> flush());
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param vertx Vertx instance the feed's pool and worker are created on.
+	 * @param config Application configuration, containing the database settings and the "change_feed" section.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public ChangeFeed(Vertx vertx, JsonObject config, Logger logger)
+	{
+		JsonObject settings = config.getJsonObject("change_feed", new JsonObject());
+
+		this.vertx = vertx;
+		this.channel = settings.getString("channel", "api_changes");
+		this.functionName = "\"" + settings.getString("function_schema", "public") + "\".\"" + channel + "_notify\"";
+		this.pollMillis = settings.getInteger("poll_ms", 500);
+		this.retryMillis = settings.getLong("retry_ms", 5000L);
+		this.maxPending = settings.getInteger("max_pending", 1000);
+		this.maxSubscribers = settings.getInteger("max_subscribers", 1000);
+		settings.getJsonArray("tables", new JsonArray()).forEach(table -> subscribable.add(table.toString().toLowerCase()));
+		this.client = JDBCClient.createShared(vertx, config.copy().put("max_pool_size", 2), "PostgreSQL-change-feed");
+		this.workerExecutor = vertx.createSharedWorkerExecutor("change-feed", 1, Long.MAX_VALUE);
+		this.logger = logger;
+	}
+
+	/**
+	 *
+	 * @param schemaName Schema of the table.
+	 * @param tableName Name of the table.
+	 * @return true if both names are plain identifiers and the table is listed in "tables", false otherwise.
+	 */
+	public boolean isSubscribable(String schemaName, String tableName)
+	{
+		return IDENTIFIER.matcher(schemaName).matches() && IDENTIFIER.matcher(tableName).matches() && subscribable.contains(schemaName.toLowerCase() + "." + tableName.toLowerCase());
+	}
+
+	/**
+	 *
+	 * Subscribes to the changes of a table, installing its trigger first if needed, and starting to listen if nobody was.
+	 * Every event is a JSON object with "schema", "table", "op" (INSERT, UPDATE, DELETE or RESYNC) and "row".
+	 *
+	 * @param schemaName Schema of the table.
+	 * @param tableName Table to follow.
+	 * @param stream Stream the events are sent through, whose write queue paces the subscriber.
+	 * @param send Handler writing an event to the stream, in the form the stream's protocol requires.
+	 * @param handler Handler for the subscriber, failed with an IllegalArgumentException if the table can't be followed (see isSubscribable),
+	 * or an IllegalStateException if max_subscribers are already subscribed.
+	 */
+	public void subscribe(String schemaName, String tableName, WriteStream<?> stream, Handler<String> send, Handler<AsyncResult<Subscriber>> handler)
+	{
+		if (!isSubscribable(schemaName, tableName))
+		{
+			handler.handle(Future.failedFuture(new IllegalArgumentException(Messages.CHANGE_FEED_TABLE_ERROR.getValue() + schemaName + "." + tableName)));
+			return;
+		}
+
+		if (subscribers.values().stream().mapToInt(Set::size).sum() >= maxSubscribers)
+		{
+			handler.handle(Future.failedFuture(new IllegalStateException(Messages.CHANGE_FEED_FULL_ERROR.getValue() + maxSubscribers)));
+			return;
+		}
+
+		String table = schemaName.toLowerCase() + "." + tableName.toLowerCase();
+		Context context = vertx.getOrCreateContext();
+
+		install(schemaName.toLowerCase(), tableName.toLowerCase(), installation -> {
+			if (installation.failed())
+			{
+				handler.handle(Future.failedFuture(installation.cause()));
+				return;
+			}
+
+			Subscriber subscriber = new Subscriber(table, context, stream, send);
+			subscribers.computeIfAbsent(table, key -> new CopyOnWriteArraySet<>()).add(subscriber);
+			logger.info("ChangeFeed - Subscribed to " + table);
+			listen();
+			handler.handle(Future.succeededFuture(subscriber));
+		});
+	}
+
+	/**
+	 *
+	 * Removes a subscriber. The trigger of its table stays installed: a NOTIFY nobody listens to costs next to nothing.
+	 *
+	 * @param subscriber Subscriber to remove.
+	 */
+	public void unsubscribe(Subscriber subscriber)
+	{
+		Set<Subscriber> tableSubscribers = subscribers.get(subscriber.table);
+
+		if (tableSubscribers != null && tableSubscribers.remove(subscriber))
+		{
+			logger.info("ChangeFeed - Unsubscribed from " + subscriber.table);
+		}
+	}
+
+	/**
+	 *
+	 * Stops listening and closes the feed's pool and worker.
+	 */
+	public void close()
+	{
+		closed = true;
+		client.close();
+		workerExecutor.close();
+	}
+
+	/**
+	 *
+	 * Installs the trigger of a table, unless pg_trigger shows it's already there.
+	 * Once installed or found, the table isn't checked again until a restart.
+	 *
+	 * @param schemaName Schema of the table (a plain identifier, see isSubscribable).
+	 * @param tableName Table to install the trigger on (a plain identifier, see isSubscribable).
+	 * @param handler Handler for the result of the installation.
+	 */
+	private void install(String schemaName, String tableName, Handler<AsyncResult<Void>> handler)
+	{
+		String table = "\"" + schemaName + "\".\"" + tableName + "\"";
+
+		if (installed.contains(table))
+		{
+			handler.handle(Future.succeededFuture());
+			return;
+		}
+
+		client.getConnection(connection -> {
+			if (connection.failed())
+			{
+				handler.handle(Future.failedFuture(connection.cause()));
+				return;
+			}
+
+			SQLConnection conn = connection.result();
+			conn.queryWithParams(TRIGGER_QUERY, new JsonArray().add(table).add(TRIGGER_NAME), existing -> {
+				if (existing.failed())
+				{
+					conn.close();
+					handler.handle(Future.failedFuture(existing.cause()));
+				}
+				else if (existing.result().getResults().get(0).getLong(0) > 0)
+				{
+					conn.close();
+					installed.add(table);
+					logger.info("ChangeFeed - Change trigger already in place on " + table);
+					handler.handle(Future.succeededFuture());
+				}
+				else
+				{
+					createTrigger(conn, table, handler);
+				}
+			});
+		});
+	}
+
+	/**
+	 *
+	 * Creates the notifying function and the trigger of a table, in a single transaction.
+	 * The trigger is dropped first in case another instance created it since it was looked up.
+	 *
+	 * @param conn SQLConnection to create them on, closed once done.
+	 * @param table Quoted name of the table.
+	 * @param handler Handler for the result of the installation.
+	 */
+	private void createTrigger(SQLConnection conn, String table, Handler<AsyncResult<Void>> handler)
+	{
+		String function = "CREATE OR REPLACE FUNCTION " + functionName + "() RETURNS trigger LANGUAGE plpgsql AS $$\n"
+				+ "DECLARE payload text;\n"
+				+ "BEGIN\n"
+				+ "  payload := json_build_object('schema', TG_TABLE_SCHEMA, 'table', TG_TABLE_NAME, 'op', TG_OP,\n"
+				+ "    'row', CASE TG_OP WHEN 'DELETE' THEN row_to_json(OLD) ELSE row_to_json(NEW) END)::text;\n"
+				+ "  IF octet_length(payload) > " + MAX_PAYLOAD_BYTES + " THEN\n"
+				+ "    payload := json_build_object('schema', TG_TABLE_SCHEMA, 'table', TG_TABLE_NAME, 'op', TG_OP, 'row', NULL)::text;\n"
+				+ "  END IF;\n"
+				+ "  PERFORM pg_notify('" + channel + "', payload);\n"
+				+ "  RETURN NULL;\n"
+				+ "END $$";
+
+		conn.setAutoCommit(false, autoCommit -> conn.batch(Arrays.asList(
+				function,
+				"DROP TRIGGER IF EXISTS " + TRIGGER_NAME + " ON " + table,
+				"CREATE TRIGGER " + TRIGGER_NAME + " AFTER INSERT OR UPDATE OR DELETE ON " + table + " FOR EACH ROW EXECUTE PROCEDURE " + functionName + "()"), batch -> {
+			Handler<AsyncResult<Void>> done = ended -> conn.setAutoCommit(true, v -> {
+				conn.close();
+				if (batch.succeeded() && ended.succeeded())
+				{
+					installed.add(table);
+					logger.info("ChangeFeed - Change trigger installed on " + table);
+					handler.handle(Future.succeededFuture());
+				}
+				else
+				{
+					handler.handle(Future.failedFuture(batch.failed() ? batch.cause() : ended.cause()));
+				}
+			});
+
+			if (batch.failed())
+			{
+				conn.rollback(done);
+			}
+			else
+			{
+				conn.commit(done);
+			}
+		}));
+	}
+
+	/**
+	 *
+	 * Starts the listening loop, unless it already runs: the LISTEN connection is held by the feed's worker, which waits for notifications up to poll_ms at a time.
+	 * If the connection fails, the loop starts again after retry_ms. Notifications sent while the connection was down are lost.
+	 */
+	private synchronized void listen()
+	{
+		if (listening || closed)
+		{
+			return;
+		}
+		listening = true;
+
+		client.getConnection(connection -> {
+			if (connection.failed())
+			{
+				relisten(connection.cause());
+				return;
+			}
+
+			SQLConnection conn = connection.result();
+			workerExecutor.<Void>executeBlocking(blocking -> {
+				try
+				{
+					Connection jdbcConnection = conn.unwrap();
+
+					try (Statement statement = jdbcConnection.createStatement())
+					{
+						statement.execute("LISTEN " + channel);
+					}
+					logger.info("ChangeFeed - Listening on channel " + channel);
+
+					PGConnection pgConnection = jdbcConnection.unwrap(PGConnection.class);
+					while (!closed)
+					{
+						PGNotification[] notifications = pgConnection.getNotifications(pollMillis);
+
+						if (notifications != null)
+						{
+							Arrays.stream(notifications).forEach(notification -> dispatch(notification.getParameter()));
+						}
+					}
+					blocking.complete();
+				}
+				catch (SQLException e)
+				{
+					blocking.fail(e);
+				}
+			}, false, loop -> {
+				conn.close();
+				if (loop.failed())
+				{
+					relisten(loop.cause());
+				}
+			});
+		});
+	}
+
+	/**
+	 *
+	 * Schedules a new listening loop after a failure.
+	 *
+	 * @param cause Cause of the failure.
+	 */
+	private synchronized void relisten(Throwable cause)
+	{
+		logger.error("ChangeFeed - Listening on channel " + channel + " failed, retrying in " + retryMillis + " ms: " + cause);
+		listening = false;
+
+		if (!closed)
+		{
+			vertx.setTimer(retryMillis, id -> listen());
+		}
+	}
+
+	/**
+	 *
+	 * Hands a notification to the subscribers of its table, each on its own context.
+	 *
+	 * @param payload Payload of the notification, as built by the trigger.
+	 */
+	private void dispatch(String payload)
+	{
+		try
+		{
+			JsonObject event = new JsonObject(payload);
+			Set<Subscriber> tableSubscribers = subscribers.get(event.getString("schema") + "." + event.getString("table"));
+
+			if (tableSubscribers != null)
+			{
+				tableSubscribers.forEach(subscriber -> subscriber.context.runOnContext(v -> subscriber.offer(payload)));
+			}
+		}
+		catch (DecodeException e)
+		{
+			logger.error("ChangeFeed - Ignored malformed notification: " + payload);
+		}
+	}
+}
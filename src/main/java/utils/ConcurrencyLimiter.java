@@ -0,0 +1,215 @@
+package utils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.Logger;
+
+import enums.Messages;
+import enums.StatusCodes;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ *
+ * Handler placed in front of the router to bound the number of requests being served at the same time.
+ *
+ * The limit adapts to the observed latency following an AIMD (additive increase, multiplicative decrease) logic:
+ * - Every successful (2xx) request answered under latency_threshold_ms increases the limit by 1/limit (roughly +1 per "round" of requests).
+ * - A request answered above latency_threshold_ms, or shed downstream (a 503 from a bulkhead, or a 504 for a deadline exceeded), multiplies the limit by backoff_ratio.
+ *   Only requests started after the previous decrease can cause a new one, so a single slow period is not punished once per request.
+ * - Any other failed request leaves the limit as it is: failures are fast, and counting them as healthy would raise the limit exactly when the service is overloaded.
+ *
+ * Requests beyond the current limit, or arriving while heap usage is above heap_threshold, are rejected right away with a 503 and a Retry-After header.
+ * This keeps latency bounded under overload: work that would time out in a queue is never started.
+ *
+ * Heap usage is the occupancy of the old generation right after its last collection (its collection usage), not the current heap usage:
+ * a healthy heap routinely fills up with garbage right before a collection, and only what survives the collection means the heap is running out.
+ *
+ * Settings come from the "concurrency_limiter" section of the configuration.
+ *
+ * @author pedrolourenco
+ *
+ */
+public class ConcurrencyLimiter implements Handler<RoutingContext>
+{
+	private static final long HEAP_SAMPLING_PERIOD_MS = 250;
+
+	private final Logger logger;
+	private final double minLimit;
+	private final double maxLimit;
+	private final double backoffRatio;
+	private final long latencyThresholdNanos;
+	private final double heapThreshold;
+	private final String retryAfterSeconds;
+	private final MemoryPoolMXBean oldGeneration = oldGenerationPool();
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private volatile double limit;
+	private volatile long lastDecreaseNanos = System.nanoTime();
+	private volatile boolean heapExhausted = false;
+
+	/**
+	 *
+	 * @param vertx Vertx instance used to schedule the heap usage sampling.
+	 * @param config Application configuration, containing the "concurrency_limiter" section.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public ConcurrencyLimiter(Vertx vertx, JsonObject config, Logger logger)
+	{
+		JsonObject settings = config.getJsonObject("concurrency_limiter", new JsonObject());
+
+		this.logger = logger;
+		this.limit = settings.getInteger("initial_limit", 20);
+		this.minLimit = settings.getInteger("min_limit", 4);
+		this.maxLimit = settings.getInteger("max_limit", 200);
+		this.backoffRatio = settings.getDouble("backoff_ratio", 0.9);
+		this.latencyThresholdNanos = settings.getLong("latency_threshold_ms", 500L) * 1_000_000L;
+		this.heapThreshold = settings.getDouble("heap_threshold", 0.9);
+		this.retryAfterSeconds = String.valueOf(settings.getInteger("retry_after_seconds", 1));
+
+		if (oldGeneration != null)
+		{
+			vertx.setPeriodic(HEAP_SAMPLING_PERIOD_MS, timerID -> sampleHeapUsage());
+		}
+		else
+		{
+			logger.warn("ConcurrencyLimiter - No heap pool reports its usage after collections, heap shedding disabled");
+		}
+	}
+
+	/**
+	 *
+	 * Admits the request if there is room under the current limit and the heap is not exhausted, otherwise rejects it.
+	 * Admitted requests are released, and their latency recorded, when the response ends or the connection closes.
+	 */
+	@Override
+	public void handle(RoutingContext context)
+	{
+		if (heapExhausted)
+		{
+			reject(context, Messages.HEAP_SHEDDING_ERROR.getValue());
+			return;
+		}
+
+		if (inFlight.incrementAndGet() > (int) limit)
+		{
+			inFlight.decrementAndGet();
+			reject(context, Messages.CONCURRENCY_LIMIT_ERROR.getValue() + (int) limit);
+			return;
+		}
+
+		long startNanos = System.nanoTime();
+		AtomicBoolean released = new AtomicBoolean(false);
+
+		context.addBodyEndHandler(v -> {
+			if (released.compareAndSet(false, true))
+			{
+				inFlight.decrementAndGet();
+				onSample(startNanos, System.nanoTime(), context.response().getStatusCode());
+			}
+		});
+		RequestLifecycle.onClose(context, v -> {
+			if (released.compareAndSet(false, true))
+			{
+				inFlight.decrementAndGet();
+			}
+		});
+
+		context.next();
+	}
+
+	/**
+	 *
+	 * @return The current concurrency limit.
+	 */
+	public int getLimit()
+	{
+		return (int) limit;
+	}
+
+	/**
+	 *
+	 * Adjusts the limit according to the latency and status of a finished request.
+	 *
+	 * @param startNanos Moment the request was admitted.
+	 * @param endNanos Moment the response ended.
+	 * @param statusCode Status code of the response.
+	 */
+	private synchronized void onSample(long startNanos, long endNanos, int statusCode)
+	{
+		boolean shed = statusCode == StatusCodes.SERVICE_UNAVAILABLE.getValue() || statusCode == StatusCodes.GATEWAY_TIMEOUT.getValue();
+
+		if (shed || endNanos - startNanos > latencyThresholdNanos)
+		{
+			if (startNanos > lastDecreaseNanos)
+			{
+				limit = Math.max(minLimit, limit * backoffRatio);
+				lastDecreaseNanos = endNanos;
+				logger.debug("ConcurrencyLimiter - " + (shed ? "Request shed downstream (" + statusCode + ")" : "Latency above threshold") + ", limit decreased to " + (int) limit);
+			}
+		}
+		else if (statusCode >= 200 && statusCode < 300)
+		{
+			limit = Math.min(maxLimit, limit + 1 / limit);
+		}
+	}
+
+	/**
+	 *
+	 * Samples the old generation's usage after its last collection and flags the heap as exhausted when it crosses the configured threshold.
+	 * Until the first collection of the old generation, the heap is never flagged. Sampling on a timer keeps the (allocating) MXBean call out of the request path.
+	 */
+	private void sampleHeapUsage()
+	{
+		MemoryUsage collected = oldGeneration.getCollectionUsage();
+		long max = collected.getMax() > 0 ? collected.getMax() : collected.getCommitted();
+		boolean exhausted = max > 0 && (double) collected.getUsed() / max > heapThreshold;
+
+		if (exhausted != heapExhausted)
+		{
+			logger.info("ConcurrencyLimiter - Heap shedding " + (exhausted ? "started" : "stopped") + ", " + oldGeneration.getName() + " used after collection: " + collected.getUsed() + "/" + max);
+		}
+		heapExhausted = exhausted;
+	}
+
+	/**
+	 *
+	 * @return The heap pool holding the long lived objects (the old generation), recognized as the one reporting its usage after collections with a threshold on it, or null if there is none.
+	 */
+	private static MemoryPoolMXBean oldGenerationPool()
+	{
+		MemoryPoolMXBean oldGeneration = null;
+
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported() && pool.isUsageThresholdSupported())
+			{
+				oldGeneration = pool;
+			}
+		}
+		return oldGeneration;
+	}
+
+	/**
+	 *
+	 * Sends the 503 response for a request that was not admitted.
+	 *
+	 * @param context Context from the request
+	 * @param reason Message explaining why the request was rejected.
+	 */
+	private void reject(RoutingContext context, String reason)
+	{
+		context.response()
+		.putHeader("content-type", "application/json")
+		.putHeader("Retry-After", retryAfterSeconds)
+		.setStatusCode(StatusCodes.SERVICE_UNAVAILABLE.getValue())
+		.end(new JsonObject().put("error", reason).encodePrettily());
+	}
+}
@@ -0,0 +1,320 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.Logger;
+
+import enums.Messages;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.ext.sql.SQLConnection;
+
+/**
+ *
+ * Class keeping server-side cursors open across requests, so a client can page through a large result without the select being run again for every page.
+ *
+ * Each cursor holds a connection of its own, inside a REPEATABLE READ, READ ONLY transaction, with the select declared as a cursor on it:
+ * every page is read from the same snapshot, and costs the database no more than fetching the rows of the page.
+ * At most max_open cursors are open at once; more are rejected. A cursor is closed (its transaction rolled back and its connection released) once its last row was fetched,
+ * when asked to, or after ttl_ms without being fetched from.
+ *
+ * 	"cursors": {
+ * 		"max_open": 16,
+ * 		"ttl_ms": 300000,
+ * 		"default_fetch": 1000,
+ * 		"max_fetch": 10000
+ * 	}
+ *
+ * @author pedrolourenco
+ *
+ */
+public class Cursors
+{
+	private static final String CURSOR_NAME = "api_cursor";
+
+	private final Vertx vertx;
+	private final JDBCClient client;
+	private final int maxOpen;
+	private final long ttlMillis;
+	private final int defaultFetch;
+	private final int maxFetch;
+	private final long timerID;
+	private final Map<String, Cursor> cursors = new ConcurrentHashMap<>();
+	private final Logger logger;
+	private int opening = 0;
+
+	/**
+	 *
+	 * State of an open cursor, as reported to the caller.
+	 */
+	public static class Cursor
+	{
+		private final String id;
+		private final String schemaName;
+		private final String tableName;
+		private final SQLConnection connection;
+		private long rows = 0;
+		private long lastUsedMillis = System.currentTimeMillis();
+		private boolean busy = false;
+
+		private Cursor(String id, String schemaName, String tableName, SQLConnection connection)
+		{
+			this.id = id;
+			this.schemaName = schemaName;
+			this.tableName = tableName;
+			this.connection = connection;
+		}
+
+		public String getId()
+		{
+			return id;
+		}
+
+		/**
+		 *
+		 * @param ttlMillis Time to live of idle cursors.
+		 * @return Status of the cursor: the rows fetched so far and when it expires if left idle.
+		 */
+		public JsonObject toJson(long ttlMillis)
+		{
+			return new JsonObject()
+					.put("cursor", id)
+					.put("schema", schemaName)
+					.put("table", tableName)
+					.put("rowsFetched", rows)
+					.put("expiresAt", lastUsedMillis + ttlMillis);
+		}
+	}
+
+	/**
+	 *
+	 * @param vertx Vertx instance the cursor pool and reaper timer are created on.
+	 * @param config Application configuration, containing the database settings and the "cursors" section.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public Cursors(Vertx vertx, JsonObject config, Logger logger)
+	{
+		JsonObject settings = config.getJsonObject("cursors", new JsonObject());
+
+		this.vertx = vertx;
+		this.maxOpen = Math.max(1, settings.getInteger("max_open", 16));
+		this.ttlMillis = settings.getLong("ttl_ms", 300000L);
+		this.defaultFetch = settings.getInteger("default_fetch", 1000);
+		this.maxFetch = settings.getInteger("max_fetch", 10000);
+		this.client = JDBCClient.createShared(vertx, config.copy().put("max_pool_size", maxOpen), "PostgreSQL-cursors");
+		this.logger = logger;
+		this.timerID = vertx.setPeriodic(Math.max(1000, ttlMillis / 4), id -> reap());
+	}
+
+	/**
+	 *
+	 * Opens a cursor over a select.
+	 *
+	 * @param schemaName Schema of the table the select reads.
+	 * @param tableName Table the select reads.
+	 * @param sql Select to open the cursor on, without a trailing ";".
+	 * @param handler Handler for the cursor, failed with an IllegalStateException if max_open cursors are already open.
+	 */
+	public void open(String schemaName, String tableName, String sql, Handler<AsyncResult<Cursor>> handler)
+	{
+		if (cursors.size() + opening >= maxOpen)
+		{
+			handler.handle(Future.failedFuture(new IllegalStateException(Messages.CURSORS_FULL_ERROR.getValue() + maxOpen)));
+			return;
+		}
+		opening++;
+
+		client.getConnection(connection -> {
+			if (connection.failed())
+			{
+				opening--;
+				handler.handle(Future.failedFuture(connection.cause()));
+				return;
+			}
+
+			SQLConnection conn = connection.result();
+			conn.setAutoCommit(false, autoCommit -> {
+				if (autoCommit.failed())
+				{
+					opening--;
+					conn.close();
+					handler.handle(Future.failedFuture(autoCommit.cause()));
+					return;
+				}
+
+				executeInOrder(conn, Arrays.asList("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY", "DECLARE " + CURSOR_NAME + " NO SCROLL CURSOR FOR " + sql), 0, declared -> {
+					opening--;
+
+					if (declared.failed())
+					{
+						release(conn);
+						handler.handle(Future.failedFuture(declared.cause()));
+						return;
+					}
+
+					Cursor cursor = new Cursor(UUID.randomUUID().toString(), schemaName, tableName, conn);
+					cursors.put(cursor.id, cursor);
+					logger.info("Cursors - Opened cursor " + cursor.id + " on " + schemaName + "." + tableName);
+					handler.handle(Future.succeededFuture(cursor));
+				});
+			});
+		});
+	}
+
+	/**
+	 *
+	 * @param id Identifier of the cursor.
+	 * @return The cursor, or null if there is no such cursor (or it was closed).
+	 */
+	public Cursor getCursor(String id)
+	{
+		return cursors.get(id);
+	}
+
+	/**
+	 *
+	 * Fetches the next rows of a cursor. The cursor is closed once a fetch returns fewer rows than asked for, since its result is then exhausted.
+	 *
+	 * @param cursor Cursor to fetch from.
+	 * @param requested Rows asked for, or null for default_fetch. Capped to max_fetch.
+	 * @param handler Handler for the rows, failed with an IllegalStateException if the cursor is already being fetched from.
+	 */
+	public void fetch(Cursor cursor, Integer requested, Handler<AsyncResult<JsonArray>> handler)
+	{
+		int count = Math.max(1, Math.min(maxFetch, requested == null ? defaultFetch : requested));
+
+		if (cursor.busy)
+		{
+			handler.handle(Future.failedFuture(new IllegalStateException(Messages.CURSOR_BUSY_ERROR.getValue() + cursor.id)));
+			return;
+		}
+		cursor.busy = true;
+
+		cursor.connection.query("FETCH FORWARD " + count + " FROM " + CURSOR_NAME, fetched -> {
+			cursor.busy = false;
+			cursor.lastUsedMillis = System.currentTimeMillis();
+
+			if (fetched.failed())
+			{
+				close(cursor.id);
+				handler.handle(Future.failedFuture(fetched.cause()));
+				return;
+			}
+
+			List<JsonArray> rows = fetched.result().getResults();
+			cursor.rows += rows.size();
+
+			if (rows.size() < count)
+			{
+				close(cursor.id);
+			}
+			handler.handle(Future.succeededFuture(new JsonArray(new ArrayList<>(rows))));
+		});
+	}
+
+	/**
+	 *
+	 * Closes a cursor: its transaction is rolled back and its connection goes back to the pool.
+	 *
+	 * @param id Identifier of the cursor.
+	 * @return true if the cursor was open, false otherwise.
+	 */
+	public boolean close(String id)
+	{
+		Cursor cursor = cursors.remove(id);
+
+		if (cursor == null)
+		{
+			return false;
+		}
+
+		release(cursor.connection);
+		logger.info("Cursors - Closed cursor " + id + " after " + cursor.rows + " rows");
+		return true;
+	}
+
+	/**
+	 *
+	 * Closes every cursor and the cursor pool, and stops the reaping of idle cursors.
+	 */
+	public void close()
+	{
+		vertx.cancelTimer(timerID);
+		new ArrayList<>(cursors.keySet()).forEach(this::close);
+		client.close();
+	}
+
+	/**
+	 *
+	 * @return Time to live of idle cursors, in milliseconds.
+	 */
+	public long getTtlMillis()
+	{
+		return ttlMillis;
+	}
+
+	/**
+	 *
+	 * Closes the cursors left idle for longer than ttl_ms.
+	 */
+	private void reap()
+	{
+		long now = System.currentTimeMillis();
+
+		cursors.values().stream()
+		.filter(cursor -> !cursor.busy && cursor.lastUsedMillis + ttlMillis <= now)
+		.map(cursor -> cursor.id)
+		.forEach(id -> {
+			logger.info("Cursors - Cursor " + id + " expired");
+			close(id);
+		});
+	}
+
+	/**
+	 *
+	 * Rolls back the transaction of a connection (closing its cursor), restores auto-commit and gives the connection back to the pool.
+	 *
+	 * @param conn Connection to release.
+	 */
+	private void release(SQLConnection conn)
+	{
+		conn.rollback(rollback -> conn.setAutoCommit(true, autoCommit -> conn.close()));
+	}
+
+	/**
+	 *
+	 * Executes statements one after the other, stopping at the first failure.
+	 *
+	 * @param conn SQLConnection to execute the statements on.
+	 * @param statements Statements to execute.
+	 * @param index Index of the next statement to execute.
+	 * @param handler Handler for the result of the execution.
+	 */
+	private static void executeInOrder(SQLConnection conn, List<String> statements, int index, Handler<AsyncResult<Void>> handler)
+	{
+		if (index == statements.size())
+		{
+			handler.handle(Future.succeededFuture());
+			return;
+		}
+
+		conn.execute(statements.get(index), executed -> {
+			if (executed.failed())
+			{
+				handler.handle(executed);
+				return;
+			}
+			executeInOrder(conn, statements, index + 1, handler);
+		});
+	}
+}
@@ -0,0 +1,248 @@
+package utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.Logger;
+
+import enums.Messages;
+import enums.StatusCodes;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.ext.sql.SQLConnection;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ *
+ * Class holding the connection pools for the databases reached through the /db/:database/... routes.
+ *
+ * A request to /db/:database/<route> is rerouted to /<route>, with the database name stored in the context (see reroute).
+ * The bulkheads then take that request's connection from the pool of the named database instead of their own partition.
+ *
+ * Only the routes served through the bulkheads follow the database: /tables, /select, /insert, /delete and /bytea.
+ * The other routes (exports, cursors, change feeds, change capture, uploads and delta sync) run on their own pools or replication connections,
+ * opened on the configured database, and are rejected under /db/:database with a 404 instead of silently reading another database (see SINGLE_DATABASE_ROUTES).
+ *
+ * Pools are created on first use (the configured url followed by the database name) and kept small, since a process may serve hundreds of databases:
+ * - max_pool_size: connections per database pool.
+ * - max_pools: total number of pools open at the same time. When a new database is reached at the limit, the least recently used idle pool is closed; if none is idle, the request fails.
+ * - idle_timeout_ms: pools without requests for this long are closed.
+ *
+ * 	"databases": {
+ * 		"max_pools": 100,
+ * 		"max_pool_size": 2,
+ * 		"idle_timeout_ms": 300000
+ * 	}
+ *
+ * @author pedrolourenco
+ *
+ */
+public class DatabasePools
+{
+	public static final String CONTEXT_KEY = "database";
+
+	private static final Pattern DATABASE_NAME = Pattern.compile("[A-Za-z0-9_\\-]{1,63}");
+	private static final Pattern SINGLE_DATABASE_ROUTES = Pattern.compile("\\/(export|exports|cursors|changes|cdc|uploads|delta)(\\/.*)?");
+
+	private final Vertx vertx;
+	private final JsonObject config;
+	private final Logger logger;
+	private final int maxPools;
+	private final int maxPoolSize;
+	private final long idleTimeoutMillis;
+	private final Map<String, Pool> pools = new LinkedHashMap<>(16, 0.75f, true);
+	private final long timerID;
+
+	/**
+	 *
+	 * Pool of a single database, with the number of requests currently using it and the moment it was last used.
+	 */
+	private static class Pool
+	{
+		private final JDBCClient client;
+		private int active = 0;
+		private long lastUsedMillis = System.currentTimeMillis();
+
+		private Pool(JDBCClient client)
+		{
+			this.client = client;
+		}
+	}
+
+	/**
+	 *
+	 * @param vertx Vertx instance the pools are created on.
+	 * @param config Application configuration, containing the database settings and the "databases" section.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public DatabasePools(Vertx vertx, JsonObject config, Logger logger)
+	{
+		JsonObject settings = config.getJsonObject("databases", new JsonObject());
+
+		this.vertx = vertx;
+		this.config = config;
+		this.logger = logger;
+		this.maxPools = settings.getInteger("max_pools", 100);
+		this.maxPoolSize = settings.getInteger("max_pool_size", 2);
+		this.idleTimeoutMillis = settings.getLong("idle_timeout_ms", 300000L);
+		this.timerID = vertx.setPeriodic(Math.max(1000, idleTimeoutMillis / 2), id -> evictIdle());
+	}
+
+	/**
+	 *
+	 * Route handler for /db/:database/... requests: validates the database name, stores it in the context and reroutes the request to the path after the database.
+	 * Invalid database names are answered with a 500, and routes that always use the configured database (see SINGLE_DATABASE_ROUTES) with a 404.
+	 *
+	 * @param context Context from the request, matched by a regex whose first group is the database name and second group the remaining path.
+	 */
+	public void reroute(RoutingContext context)
+	{
+		String database = context.request().getParam("param0");
+		String path = context.request().getParam("param1");
+
+		if (!DATABASE_NAME.matcher(database).matches())
+		{
+			context.response()
+			.putHeader("content-type", "application/json")
+			.setStatusCode(StatusCodes.FAILED.getValue())
+			.end(new JsonObject().put("error", Messages.INVALID_DATABASE_ERROR.getValue() + database).encodePrettily());
+			return;
+		}
+
+		if (SINGLE_DATABASE_ROUTES.matcher(path).matches())
+		{
+			logger.error("DatabasePools - " + Messages.DATABASE_ROUTE_ERROR.getValue() + path);
+			context.response()
+			.putHeader("content-type", "application/json")
+			.setStatusCode(StatusCodes.NOT_FOUND.getValue())
+			.end(new JsonObject().put("error", Messages.DATABASE_ROUTE_ERROR.getValue() + path).encodePrettily());
+			return;
+		}
+
+		context.put(CONTEXT_KEY, database);
+		context.reroute(Optional.ofNullable(context.request().query()).map(query -> path + "?" + query).orElse(path));
+	}
+
+	/**
+	 *
+	 * @param context Context from the request
+	 * @return The database the request was routed to, or null if it targets the configured one.
+	 */
+	public static String of(RoutingContext context)
+	{
+		return context.get(CONTEXT_KEY);
+	}
+
+	/**
+	 *
+	 * Requests a connection from the pool of a database, creating the pool if needed.
+	 * The pool counts the request as active until its response ends, so it is never evicted while in use.
+	 *
+	 * @param context Context from the request the connection is for.
+	 * @param database Name of the database.
+	 * @param handler Handler for the resulting connection.
+	 */
+	public void getConnection(RoutingContext context, String database, Handler<AsyncResult<SQLConnection>> handler)
+	{
+		Pool pool;
+
+		synchronized (this)
+		{
+			pool = pools.get(database);
+
+			if (pool == null)
+			{
+				if (pools.size() >= maxPools && !evictLeastRecentlyUsed())
+				{
+					handler.handle(Future.failedFuture(Messages.DATABASE_POOLS_EXHAUSTED_ERROR.getValue() + maxPools));
+					return;
+				}
+
+				JsonObject poolConfig = config.copy()
+						.put("url", config.getString("url") + database)
+						.put("max_pool_size", maxPoolSize)
+						.put("min_pool_size", 0)
+						.put("initial_pool_size", 0);
+
+				pool = new Pool(JDBCClient.createNonShared(vertx, poolConfig));
+				pools.put(database, pool);
+				logger.info("DatabasePools - Pool created for database " + database + " (" + pools.size() + "/" + maxPools + ")");
+			}
+			pool.active++;
+		}
+
+		Pool acquired = pool;
+		RequestLifecycle.onEnd(context, v -> release(acquired));
+		acquired.client.getConnection(handler);
+	}
+
+	/**
+	 *
+	 * Closes every pool and stops the idle eviction.
+	 */
+	public synchronized void close()
+	{
+		vertx.cancelTimer(timerID);
+		pools.values().forEach(pool -> pool.client.close());
+		pools.clear();
+	}
+
+	/**
+	 *
+	 * Marks the end of a request on a pool.
+	 *
+	 * @param pool Pool the request was using.
+	 */
+	private synchronized void release(Pool pool)
+	{
+		pool.active--;
+		pool.lastUsedMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 *
+	 * Closes the pools that were not used for idle_timeout_ms.
+	 */
+	private synchronized void evictIdle()
+	{
+		long now = System.currentTimeMillis();
+
+		pools.entrySet().removeIf(entry -> {
+			Pool pool = entry.getValue();
+			if (pool.active == 0 && now - pool.lastUsedMillis >= idleTimeoutMillis)
+			{
+				logger.info("DatabasePools - Idle pool closed for database " + entry.getKey());
+				pool.client.close();
+				return true;
+			}
+			return false;
+		});
+	}
+
+	/**
+	 *
+	 * Closes the least recently used pool that has no active requests, to make room for a new one.
+	 *
+	 * @return true if a pool was closed, false if every pool is in use.
+	 */
+	private boolean evictLeastRecentlyUsed()
+	{
+		for (Map.Entry<String, Pool> entry : pools.entrySet())
+		{
+			if (entry.getValue().active == 0)
+			{
+				logger.info("DatabasePools - Pool closed for database " + entry.getKey() + " to make room for a new one");
+				entry.getValue().client.close();
+				pools.remove(entry.getKey());
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,362 @@
+package utils;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Optional;
+import java.util.concurrent.TimeoutException;
+
+import enums.Messages;
+import enums.StatusCodes;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.sql.ResultSet;
+import io.vertx.ext.sql.SQLConnection;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ *
+ * Class representing the moment by which a request must be answered.
+ *
+ * The deadline of a request is the earliest of:
+ * - The default timeout of its route, from the "timeouts" section of the configuration (in milliseconds, keyed by route name).
+ * - The X-Timeout-Ms header (a budget in milliseconds, counted from the arrival of the request).
+ * - The X-Request-Deadline header (an absolute moment, in milliseconds since the epoch).
+ *
+ * The remaining budget is propagated to the database as a SET LOCAL statement_timeout, inside a transaction wrapping the handler's statement.
+ * When the budget runs out, PostgreSQL aborts the statement by itself and the connection is released, so no work keeps running after the caller gave up.
+ * Such failures are reported with a 504 instead of the generic 500.
+ *
+ * @author pedrolourenco
+ *
+ */
+public class Deadline
+{
+	public static final String CONTEXT_KEY = "deadline";
+	public static final String TIMEOUT_HEADER = "X-Timeout-Ms";
+	public static final String DEADLINE_HEADER = "X-Request-Deadline";
+
+	private static final String QUERY_CANCELED_SQLSTATE = "57014";
+	private static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+	private final long expiresAtMillis;
+
+	private Deadline(long expiresAtMillis)
+	{
+		this.expiresAtMillis = expiresAtMillis;
+	}
+
+	/**
+	 *
+	 * Creates the route handler computing the deadline of every request made to a route.
+	 * Requests whose deadline already expired on arrival are answered right away with a 504, otherwise the deadline is stored in the context and the next handler is called.
+	 * Requests with a malformed or negative X-Timeout-Ms or X-Request-Deadline header are answered with a 400.
+	 *
+	 * @param config Application configuration, containing the "timeouts" section.
+	 * @param route Name of the route, used as key in the "timeouts" section.
+	 * @return Handler computing the deadline for the route.
+	 */
+	public static Handler<RoutingContext> forRoute(JsonObject config, String route)
+	{
+		Long routeTimeout = config.getJsonObject("timeouts", new JsonObject()).getLong(route);
+
+		return context -> {
+			long now = System.currentTimeMillis();
+			long expiresAt = Long.MAX_VALUE;
+
+			if (routeTimeout != null)
+			{
+				expiresAt = now + routeTimeout;
+			}
+
+			try
+			{
+				String timeoutHeader = context.request().getHeader(TIMEOUT_HEADER);
+				if (Optional.ofNullable(timeoutHeader).isPresent())
+				{
+					expiresAt = Math.min(expiresAt, now + parseMillis(timeoutHeader));
+				}
+
+				String deadlineHeader = context.request().getHeader(DEADLINE_HEADER);
+				if (Optional.ofNullable(deadlineHeader).isPresent())
+				{
+					expiresAt = Math.min(expiresAt, parseMillis(deadlineHeader));
+				}
+			}
+			catch (NumberFormatException e)
+			{
+				context.response()
+				.putHeader("content-type", "application/json")
+				.setStatusCode(StatusCodes.BAD_REQUEST.getValue())
+				.end(new JsonObject().put("error", Messages.INVALID_DEADLINE_ERROR.getValue() + e.getMessage()).encodePrettily());
+				return;
+			}
+
+			Deadline deadline = new Deadline(expiresAt);
+
+			if (deadline.isExpired())
+			{
+				context.response()
+				.putHeader("content-type", "application/json")
+				.setStatusCode(StatusCodes.GATEWAY_TIMEOUT.getValue())
+				.end(errorFor(new TimeoutException("expired before the request was processed"), "").encodePrettily());
+				return;
+			}
+
+			context.put(CONTEXT_KEY, deadline);
+			context.next();
+		};
+	}
+
+	/**
+	 *
+	 * @param header Value of a deadline header, in milliseconds.
+	 * @return The value of the header.
+	 * @throws NumberFormatException if the value isn't a number, or is negative.
+	 */
+	private static long parseMillis(String header)
+	{
+		long millis = Long.parseLong(header.trim());
+
+		if (millis < 0)
+		{
+			throw new NumberFormatException("negative value \"" + header + "\"");
+		}
+		return millis;
+	}
+
+	/**
+	 *
+	 * @param context Context from the request
+	 * @return The deadline of the request, or a deadline that never expires if none was computed for its route.
+	 */
+	public static Deadline of(RoutingContext context)
+	{
+		return Optional.ofNullable(context.<Deadline>get(CONTEXT_KEY)).orElse(NONE);
+	}
+
+	/**
+	 *
+	 * @param cause Cause for the failure of a statement.
+	 * @return true if the statement failed because its deadline was exceeded (before or during its execution), false otherwise.
+	 */
+	public static boolean isExceeded(Throwable cause)
+	{
+		if (cause instanceof TimeoutException)
+		{
+			return true;
+		}
+		return cause instanceof SQLException && QUERY_CANCELED_SQLSTATE.equals(((SQLException) cause).getSQLState());
+	}
+
+	/**
+	 *
+	 * Builds the error object placed in a handler's response for a failed statement.
+	 * If the failure was caused by the deadline, the object says so and carries the "deadlineExceeded" flag, which handlers use to answer with a 504.
+	 *
+	 * @param cause Cause for the failure of the statement.
+	 * @param message Error message to use if the failure was not caused by the deadline.
+	 * @return JsonObject with the "error" key (and "deadlineExceeded" if applicable).
+	 */
+	public static JsonObject errorFor(Throwable cause, String message)
+	{
+		if (isExceeded(cause))
+		{
+			return new JsonObject().put("error", Messages.DEADLINE_EXCEEDED_ERROR.getValue() + cause.getMessage()).put("deadlineExceeded", true);
+		}
+		return new JsonObject().put("error", message);
+	}
+
+	/**
+	 *
+	 * @return true if this deadline never expires, false otherwise.
+	 */
+	public boolean isUnbounded()
+	{
+		return expiresAtMillis == Long.MAX_VALUE;
+	}
+
+	/**
+	 *
+	 * @return true if the deadline has passed, false otherwise.
+	 */
+	public boolean isExpired()
+	{
+		return remainingMillis() <= 0;
+	}
+
+	/**
+	 *
+	 * @return Milliseconds left until the deadline.
+	 */
+	public long remainingMillis()
+	{
+		return isUnbounded() ? Long.MAX_VALUE : expiresAtMillis - System.currentTimeMillis();
+	}
+
+	/**
+	 *
+	 * Executes a statement within the remaining budget of this deadline.
+	 * The statement runs in its own transaction, started with SET LOCAL statement_timeout, and committed if it succeeds or rolled back otherwise.
+	 * If the deadline is unbounded, the statement is executed as is.
+	 * If the deadline already expired, the statement is not executed at all and the handler receives a TimeoutException.
+	 *
+	 * @param connection SQLConnection to execute the statement on.
+	 * @param sql Statement to execute.
+	 * @param handler Handler for the result of the statement.
+	 */
+	public void query(SQLConnection connection, String sql, Handler<AsyncResult<ResultSet>> handler)
+	{
+		if (isUnbounded())
+		{
+			connection.query(sql, handler);
+			return;
+		}
+
+		begin(connection, begin -> {
+			if (begin.failed())
+			{
+				handler.handle(Future.failedFuture(begin.cause()));
+				return;
+			}
+
+			connection.query(sql, queryResult -> end(connection, queryResult.succeeded(), end -> {
+				if (queryResult.succeeded() && end.failed())
+				{
+					handler.handle(Future.failedFuture(end.cause()));
+				}
+				else
+				{
+					handler.handle(queryResult);
+				}
+			}));
+		});
+	}
+
+	/**
+	 *
+	 * Executes a query within the remaining budget of this deadline, handing its rows over one by one as they are fetched, instead of as a whole ResultSet.
+	 * The rows are read straight from the JDBC connection under the SQLConnection, on the worker executor, so the reader gets the values with their column types (see RowEncoder).
+	 * The query always runs in a transaction (see begin): the PostgreSQL driver only fetches rows in batches of fetchSize through a cursor outside of auto-commit mode.
+	 * The transaction is rolled back once the rows are read, since a query has nothing to commit.
+	 * The rows are read outside of the SQLConnection's statement queue, so the connection must not be closed before the handler is called:
+	 * a cancelled query (see InFlightStatement.cancel) makes the read fail, and the connection is released by the caller from the handler, after the rollback.
+	 *
+	 * @param connection SQLConnection to execute the query on.
+	 * @param workerExecutor Worker executor to read the rows on (the one of the bulkhead the connection comes from).
+	 * @param sql Query to execute.
+	 * @param fetchSize Number of rows fetched from the database at a time.
+	 * @param rowReader Reader of each row, returning false to stop reading: the rest of the rows are then never fetched, and the query ends successfully.
+	 * @param handler Handler called once every row was read (or reading was stopped), or on the first failure, the reader's included.
+	 */
+	public void stream(SQLConnection connection, WorkerExecutor workerExecutor, String sql, int fetchSize, RowReader rowReader, Handler<AsyncResult<Void>> handler)
+	{
+		begin(connection, begin -> {
+			if (begin.failed())
+			{
+				handler.handle(Future.failedFuture(begin.cause()));
+				return;
+			}
+
+			workerExecutor.<Void>executeBlocking(blocking -> {
+				java.sql.Connection jdbcConnection = connection.unwrap();
+
+				try (Statement statement = jdbcConnection.createStatement())
+				{
+					statement.setFetchSize(fetchSize);
+
+					try (java.sql.ResultSet rows = statement.executeQuery(sql))
+					{
+						boolean reading = true;
+						while (reading && rows.next())
+						{
+							reading = rowReader.read(rows);
+						}
+					}
+					blocking.complete();
+				}
+				catch (Exception e)
+				{
+					blocking.fail(e);
+				}
+			}, false, result -> end(connection, false, end -> handler.handle(result)));
+		});
+	}
+
+	/**
+	 *
+	 * Opens a transaction on the connection and bounds every statement in it by the remaining budget of this deadline.
+	 * If the deadline is unbounded, the transaction is simply opened.
+	 * Statements executed after a successful begin must be followed by a call to end.
+	 *
+	 * @param connection SQLConnection to open the transaction on.
+	 * @param handler Handler for the result of this method.
+	 */
+	public void begin(SQLConnection connection, Handler<AsyncResult<Void>> handler)
+	{
+		if (isExpired())
+		{
+			handler.handle(Future.failedFuture(new TimeoutException("expired before the statement was executed")));
+			return;
+		}
+
+		connection.setAutoCommit(false, autoCommit -> {
+			if (autoCommit.failed() || isUnbounded())
+			{
+				handler.handle(autoCommit);
+				return;
+			}
+
+			connection.execute("SET LOCAL statement_timeout = " + Math.max(1, remainingMillis()), timeout -> {
+				if (timeout.failed())
+				{
+					end(connection, false, v -> handler.handle(Future.failedFuture(timeout.cause())));
+				}
+				else
+				{
+					handler.handle(Future.succeededFuture());
+				}
+			});
+		});
+	}
+
+	/**
+	 *
+	 * Closes the transaction opened by begin, committing it or rolling it back, and puts the connection back in auto-commit mode.
+	 *
+	 * @param connection SQLConnection holding the transaction.
+	 * @param commit true to commit the transaction, false to roll it back.
+	 * @param handler Handler for the result of the commit or rollback.
+	 */
+	public void end(SQLConnection connection, boolean commit, Handler<AsyncResult<Void>> handler)
+	{
+		Handler<AsyncResult<Void>> restoreAutoCommit = result -> connection.setAutoCommit(true, v -> handler.handle(result));
+
+		if (commit)
+		{
+			connection.commit(restoreAutoCommit);
+		}
+		else
+		{
+			connection.rollback(restoreAutoCommit);
+		}
+	}
+
+	/**
+	 *
+	 * Reader of the rows of a query executed through stream.
+	 */
+	@FunctionalInterface
+	public interface RowReader
+	{
+		/**
+		 *
+		 * @param row ResultSet positioned on the row to read.
+		 * @return true to read the next row, false to stop reading.
+		 * @throws Exception if the row couldn't be read, failing the query.
+		 */
+		boolean read(java.sql.ResultSet row) throws Exception;
+	}
+}
@@ -0,0 +1,362 @@
+package utils;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.Logger;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.sql.ResultSet;
+import io.vertx.ext.sql.SQLConnection;
+
+/**
+ *
+ * Class answering "what changed since" for the tables configured for delta sync, so clients keeping a copy of a table only download what changed.
+ *
+ * Changes are found through a change timestamp per row: the configured "updated_column" of the table (which must be set to now() on every insert and update,
+ * e.g. by a trigger), or, without one, the commit timestamp of the row's last change (which requires track_commit_timestamp on the server).
+ * Rows deleted through the /delete route leave a tombstone (their key columns and the time of the delete) in the tombstone table, in the same statement as the delete.
+ *
+ * Each answer comes with a watermark to send back in the next call. The watermark never passes a change that could still commit with an earlier timestamp:
+ * it stops short of the start of the oldest open transaction (and, for commit timestamps, commit_lag_ms before now). A long transaction holds the watermark back, but no change is missed.
+ * Tombstones are kept retention_days; a watermark older than that gets "resync": true, the client having to download the table again.
+ *
+ * 	"delta_sync": {
+ * 		"tables": {
+ * 			"public.orders": { "updated_column": "updated_at", "key_columns": ["id"] }
+ * 		},
+ * 		"tombstone_table": "public.api_tombstones",
+ * 		"retention_days": 30,
+ * 		"max_rows": 5000,
+ * 		"commit_lag_ms": 1000
+ * 	}
+ *
+ * @author pedrolourenco
+ *
+ */
+public class DeltaSync
+{
+	private static final String WATERMARK_COLUMN = "__delta_watermark";
+	private static final long PURGE_PERIOD_MILLIS = 3600000L;
+
+	private final Vertx vertx;
+	private final JsonObject tables;
+	private final String tombstoneSchema;
+	private final String tombstoneName;
+	private final int retentionDays;
+	private final int maxRows;
+	private final long commitLagMillis;
+	private final Logger logger;
+	private long timerID = -1;
+
+	/**
+	 *
+	 * @param vertx Vertx instance the tombstone purge timer is set on.
+	 * @param config Application configuration, containing the "delta_sync" section.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public DeltaSync(Vertx vertx, JsonObject config, Logger logger)
+	{
+		JsonObject settings = config.getJsonObject("delta_sync", new JsonObject());
+		String[] tombstoneTable = settings.getString("tombstone_table", "public.api_tombstones").split("\\.", 2);
+
+		this.vertx = vertx;
+		this.tables = settings.getJsonObject("tables", new JsonObject());
+		this.tombstoneSchema = tombstoneTable.length == 2 ? tombstoneTable[0] : "public";
+		this.tombstoneName = tombstoneTable[tombstoneTable.length - 1];
+		this.retentionDays = settings.getInteger("retention_days", 30);
+		this.maxRows = settings.getInteger("max_rows", 5000);
+		this.commitLagMillis = settings.getLong("commit_lag_ms", 1000L);
+		this.logger = logger;
+	}
+
+	/**
+	 *
+	 * @param schemaName Schema of the table.
+	 * @param tableName Name of the table.
+	 * @return true if the table is configured for delta sync.
+	 */
+	public boolean isTracked(String schemaName, String tableName)
+	{
+		return tables.containsKey(schemaName.toLowerCase() + "." + tableName.toLowerCase());
+	}
+
+	/**
+	 *
+	 * @return Largest number of rows (not counting ties on the last change timestamp) in one answer.
+	 */
+	public int getMaxRows()
+	{
+		return maxRows;
+	}
+
+	/**
+	 *
+	 * Turns a delete statement on a tracked table into one that also writes the tombstones of the deleted rows, atomically.
+	 * The statement affects as many rows as the delete.
+	 *
+	 * @param schemaName Schema of the table.
+	 * @param tableName Name of the table.
+	 * @param deleteStatement Delete statement, ending with ";".
+	 * @return The statement writing tombstones, or null if the delete holds a ";" of its own and can't be wrapped.
+	 */
+	public String withTombstones(String schemaName, String tableName, String deleteStatement)
+	{
+		String statement = deleteStatement.replaceFirst(";\\s*$", "");
+
+		if (statement.contains(";"))
+		{
+			return null;
+		}
+
+		List<String> keyColumns = keyColumns(schemaName, tableName);
+		String rowKey = "json_build_object(" + keyColumns.stream().map(column -> "'" + column.replace("'", "''") + "', \"" + column + "\"").collect(Collectors.joining(", ")) + ")";
+
+		return "WITH deleted AS (" + statement + "\nRETURNING " + keyColumns.stream().map(column -> "\"" + column + "\"").collect(Collectors.joining(", ")) + ")\n"
+				+ "INSERT INTO " + tombstoneTable() + " (schema_name, table_name, row_key, deleted_at)\n"
+				+ "SELECT " + literal(schemaName.toLowerCase()) + ", " + literal(tableName.toLowerCase()) + ", " + rowKey + ", now() FROM deleted;";
+	}
+
+	/**
+	 *
+	 * Creates the tombstone table and its index if they don't exist, when at least one table is configured for delta sync,
+	 * and from then on removes the tombstones older than retention_days every hour.
+	 *
+	 * @param bulkhead Bulkhead to get the connections from.
+	 * @param handler Handler for the result of the creation.
+	 */
+	public void install(Bulkhead bulkhead, Handler<AsyncResult<Void>> handler)
+	{
+		if (tables.isEmpty())
+		{
+			handler.handle(Future.succeededFuture());
+			return;
+		}
+
+		bulkhead.getConnection(connection -> {
+			if (connection.failed())
+			{
+				handler.handle(Future.failedFuture(connection.cause()));
+				return;
+			}
+
+			SQLConnection conn = connection.result();
+			conn.execute("CREATE TABLE IF NOT EXISTS " + tombstoneTable() + " (schema_name text NOT NULL, table_name text NOT NULL, row_key jsonb NOT NULL, deleted_at timestamptz NOT NULL DEFAULT now());\n"
+					+ "CREATE INDEX IF NOT EXISTS \"" + tombstoneName + "_lookup\" ON " + tombstoneTable() + " (schema_name, table_name, deleted_at);", created -> {
+				conn.close();
+				if (created.succeeded())
+				{
+					logger.info("DeltaSync - Tombstone table " + tombstoneTable() + " ready");
+					timerID = vertx.setPeriodic(PURGE_PERIOD_MILLIS, id -> purge(bulkhead));
+				}
+				handler.handle(created);
+			});
+		});
+	}
+
+	/**
+	 *
+	 * Reads the changes of a tracked table since a watermark, in a single REPEATABLE READ transaction, so the rows, the tombstones and the new watermark agree.
+	 * Changes are read in timestamp order, up to max_rows (plus the rows sharing the timestamp of the last one): when there are more, "more" is true and the watermark
+	 * is the timestamp of the last row sent, for the next call to carry on from there.
+	 *
+	 * The resulting JsonObject holds:
+	 * - "results": the changed rows (inserted or updated), as JsonObjects.
+	 * - "deleted": the keys of the deleted rows.
+	 * - "watermark": the watermark to send in the next call.
+	 * - "more": true if more changes are waiting.
+	 * Or, if the watermark is older than the tombstones kept, only "resync": true.
+	 *
+	 * @param conn SQLConnection to read on, on the primary.
+	 * @param deadline Deadline of the request, bounding the transaction.
+	 * @param schemaName Schema of the table.
+	 * @param tableName Name of the table.
+	 * @param columnsToSelect Columns to select (must include the key columns for the rows to be matched to their tombstones).
+	 * @param since Watermark of the previous call, or null for every row of the table.
+	 * @param requestedRows Rows asked for by the caller, or null for max_rows (never more than max_rows).
+	 * @param handler Handler for the changes.
+	 */
+	public void read(SQLConnection conn, Deadline deadline, String schemaName, String tableName, String columnsToSelect, String since, Integer requestedRows, Handler<AsyncResult<JsonObject>> handler)
+	{
+		String table = "\"" + schemaName.toLowerCase() + "\".\"" + tableName.toLowerCase() + "\"";
+		Optional<String> updatedColumn = Optional.ofNullable(tables.getJsonObject(schemaName.toLowerCase() + "." + tableName.toLowerCase()).getString("updated_column"));
+		String changedAt = updatedColumn.map(column -> "\"" + column + "\"").orElse("pg_xact_commit_timestamp(xmin)");
+		int limit = Math.max(1, Math.min(maxRows, Optional.ofNullable(requestedRows).orElse(maxRows)));
+
+		String openTransactions = "COALESCE((SELECT min(xact_start) FROM pg_stat_activity WHERE backend_type = 'client backend' AND xact_start IS NOT NULL AND pid <> pg_backend_pid()), now()) - interval '1 microsecond'";
+		String cap = updatedColumn.isPresent() ? openTransactions : "LEAST(" + openTransactions + ", now() - interval '" + commitLagMillis + " milliseconds')";
+
+		String watermarkQuery = "SELECT (" + cap + ")::text AS cap, "
+				+ (since == null ? "false" : "?::timestamptz < now() - interval '" + retentionDays + " days'") + " AS expired";
+
+		String rowsQuery = "SELECT " + columnsToSelect + ", (" + changedAt + ")::text AS \"" + WATERMARK_COLUMN + "\"\n"
+				+ "FROM " + table + "\n"
+				+ "WHERE " + (since == null ? "" : changedAt + " > ?::timestamptz AND ") + changedAt + " <= ?::timestamptz\n"
+				+ "ORDER BY " + changedAt + "\n"
+				+ "FETCH FIRST " + limit + " ROWS WITH TIES";
+
+		String tombstonesQuery = "SELECT row_key::text AS row_key\n"
+				+ "FROM " + tombstoneTable() + "\n"
+				+ "WHERE schema_name = ? AND table_name = ? AND " + (since == null ? "" : "deleted_at > ?::timestamptz AND ") + "deleted_at <= ?::timestamptz\n"
+				+ "ORDER BY deleted_at";
+
+		deadline.begin(conn, begin -> {
+			if (begin.failed())
+			{
+				handler.handle(Future.failedFuture(begin.cause()));
+				return;
+			}
+
+			Handler<AsyncResult<JsonObject>> end = result -> deadline.end(conn, false, v -> handler.handle(result));
+
+			conn.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY", isolation -> {
+				if (isolation.failed())
+				{
+					end.handle(Future.failedFuture(isolation.cause()));
+					return;
+				}
+
+				conn.queryWithParams(watermarkQuery, since == null ? new JsonArray() : new JsonArray().add(since), watermark -> {
+					if (watermark.failed())
+					{
+						end.handle(Future.failedFuture(watermark.cause()));
+						return;
+					}
+
+					JsonObject bounds = watermark.result().getRows().get(0);
+					if (bounds.getBoolean("expired", false))
+					{
+						end.handle(Future.succeededFuture(new JsonObject().put("resync", true)));
+						return;
+					}
+
+					JsonArray rowParams = since == null ? new JsonArray() : new JsonArray().add(since);
+					conn.queryWithParams(rowsQuery, rowParams.add(bounds.getString("cap")), rows -> {
+						if (rows.failed())
+						{
+							end.handle(Future.failedFuture(rows.cause()));
+							return;
+						}
+
+						List<JsonObject> changed = rows.result().getRows();
+						boolean more = changed.size() >= limit;
+						String newWatermark = more ? changed.get(changed.size() - 1).getString(WATERMARK_COLUMN) : bounds.getString("cap");
+						changed.forEach(row -> row.remove(WATERMARK_COLUMN));
+
+						JsonArray tombstoneParams = new JsonArray().add(schemaName.toLowerCase()).add(tableName.toLowerCase());
+						if (since != null)
+						{
+							tombstoneParams.add(since);
+						}
+
+						conn.queryWithParams(tombstonesQuery, tombstoneParams.add(newWatermark), tombstones -> {
+							if (tombstones.failed())
+							{
+								end.handle(Future.failedFuture(tombstones.cause()));
+								return;
+							}
+
+							end.handle(Future.succeededFuture(new JsonObject()
+									.put("results", new JsonArray(changed))
+									.put("deleted", rowKeys(tombstones.result()))
+									.put("watermark", newWatermark)
+									.put("more", more)));
+						});
+					});
+				});
+			});
+		});
+	}
+
+	/**
+	 *
+	 * Stops the purge of old tombstones.
+	 */
+	public void close()
+	{
+		if (timerID >= 0)
+		{
+			vertx.cancelTimer(timerID);
+		}
+	}
+
+	/**
+	 *
+	 * Removes the tombstones older than retention_days.
+	 *
+	 * @param bulkhead Bulkhead to get the connection from.
+	 */
+	private void purge(Bulkhead bulkhead)
+	{
+		bulkhead.getConnection(connection -> {
+			if (connection.failed())
+			{
+				logger.error("DeltaSync - Failed to purge tombstones: " + connection.cause());
+				return;
+			}
+
+			SQLConnection conn = connection.result();
+			conn.update("DELETE FROM " + tombstoneTable() + " WHERE deleted_at < now() - interval '" + retentionDays + " days'", purged -> {
+				conn.close();
+				if (purged.failed())
+				{
+					logger.error("DeltaSync - Failed to purge tombstones: " + purged.cause());
+				}
+				else if (purged.result().getUpdated() > 0)
+				{
+					logger.info("DeltaSync - Purged " + purged.result().getUpdated() + " tombstones");
+				}
+			});
+		});
+	}
+
+	/**
+	 *
+	 * @param tombstones Tombstones read.
+	 * @return The keys of the deleted rows.
+	 */
+	private static JsonArray rowKeys(ResultSet tombstones)
+	{
+		JsonArray keys = new JsonArray();
+		tombstones.getRows().forEach(tombstone -> keys.add(new JsonObject(tombstone.getString("row_key"))));
+		return keys;
+	}
+
+	/**
+	 *
+	 * @param schemaName Schema of the table.
+	 * @param tableName Name of the table.
+	 * @return Key columns of a tracked table ("id" if not configured).
+	 */
+	private List<String> keyColumns(String schemaName, String tableName)
+	{
+		return tables.getJsonObject(schemaName.toLowerCase() + "." + tableName.toLowerCase())
+				.getJsonArray("key_columns", new JsonArray().add("id"))
+				.stream().map(Object::toString).collect(Collectors.toList());
+	}
+
+	/**
+	 *
+	 * @return Qualified name of the tombstone table.
+	 */
+	private String tombstoneTable()
+	{
+		return "\"" + tombstoneSchema + "\".\"" + tombstoneName + "\"";
+	}
+
+	/**
+	 *
+	 * @param value Text to quote.
+	 * @return The text as an SQL string literal.
+	 */
+	private static String literal(String value)
+	{
+		return "'" + value.replace("'", "''") + "'";
+	}
+}
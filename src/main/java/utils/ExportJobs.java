@@ -0,0 +1,71 @@
+package utils;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ *
+ * Source of background export jobs whose result is a single file on local disk, to be downloaded once the job is done.
+ * Implemented by SchemaExport (archives of a whole schema) and QueryExport (spool files of a select), so the status and download routes of both
+ * are served by the same handler (see ExportJobHandler).
+ *
+ * @author pedrolourenco
+ *
+ * @param <J> Type of the jobs of this source.
+ */
+public interface ExportJobs<J extends ExportJobs.Job>
+{
+	/**
+	 *
+	 * State of an export job, as reported to the caller, and the description of its file.
+	 */
+	public interface Job
+	{
+		String getId();
+
+		/**
+		 *
+		 * @return true once the file is written, false while the job is queued or running, or if it failed.
+		 */
+		boolean isDone();
+
+		long getFinishedAtMillis();
+
+		/**
+		 *
+		 * @return Status of the job, as sent to the caller.
+		 */
+		JsonObject toJson();
+
+		/**
+		 *
+		 * @return Size of the file, in bytes, once the job is done.
+		 */
+		long getFileSize();
+
+		/**
+		 *
+		 * @return Content type the file is downloaded with.
+		 */
+		String getContentType();
+
+		/**
+		 *
+		 * @return Name the file is downloaded as.
+		 */
+		String getFileName();
+	}
+
+	/**
+	 *
+	 * @param id Identifier of the job.
+	 * @return The job, or null if there is no such job.
+	 */
+	J getJob(String id);
+
+	/**
+	 *
+	 * @param job Job whose file is wanted.
+	 * @return Path of the job's file.
+	 */
+	String filePath(J job);
+}
@@ -0,0 +1,106 @@
+package utils;
+
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import enums.StatusCodes;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ *
+ * Class sending files from local disk as responses, with support for resumable downloads.
+ *
+ * The file is sent with HttpServerResponse.sendFile, which hands it to the kernel (sendfile) instead of copying it through the JVM heap.
+ * A single byte range (Range: bytes=start-end, bytes=start- or bytes=-suffix) is answered with a 206 and only that part of the file.
+ * Ranges that can't be satisfied are answered with a 416. Several ranges, malformed ranges, or an If-Range not matching the ETag get the whole file.
+ *
+ * @author pedrolourenco
+ *
+ */
+public class FileDownload
+{
+	private static final Pattern BYTE_RANGE = Pattern.compile("^bytes=(\\d*)-(\\d*)$");
+
+	/**
+	 *
+	 * Sends a file, or the requested range of it.
+	 *
+	 * @param context Context from the request.
+	 * @param path Path of the file.
+	 * @param length Length of the file, in bytes.
+	 * @param etag Entity tag of the file (quoted), changing whenever its content does.
+	 * @param contentType Content type of the file.
+	 * @param downloadName File name suggested to the caller.
+	 */
+	public static void send(RoutingContext context, String path, long length, String etag, String contentType, String downloadName)
+	{
+		HttpServerResponse response = context.response()
+				.putHeader("content-type", contentType)
+				.putHeader("content-disposition", "attachment; filename=\"" + downloadName + "\"")
+				.putHeader("accept-ranges", "bytes")
+				.putHeader("etag", etag);
+
+		long[] range = rangeOf(context, length, etag);
+
+		if (!Optional.ofNullable(range).isPresent())
+		{
+			response.setStatusCode(StatusCodes.SUCCEEDED.getValue()).sendFile(path);
+			return;
+		}
+
+		if (range[0] > range[1])
+		{
+			response
+			.putHeader("content-range", "bytes */" + length)
+			.setStatusCode(StatusCodes.RANGE_NOT_SATISFIABLE.getValue())
+			.end();
+			return;
+		}
+
+		response
+		.putHeader("content-range", "bytes " + range[0] + "-" + range[1] + "/" + length)
+		.setStatusCode(StatusCodes.PARTIAL_CONTENT.getValue())
+		.sendFile(path, range[0], range[1] - range[0] + 1);
+	}
+
+	/**
+	 *
+	 * Reads the byte range requested by the Range header, as described above.
+	 *
+	 * @param context Context from the request.
+	 * @param length Length of the content, in bytes.
+	 * @param etag Entity tag of the content (quoted), compared with the If-Range header.
+	 * @return The first and last byte of the range (inclusive), an empty range (first after last) if it can't be satisfied, or null if the whole content must be sent.
+	 */
+	public static long[] rangeOf(RoutingContext context, long length, String etag)
+	{
+		String range = context.request().getHeader("range");
+		String ifRange = context.request().getHeader("if-range");
+		Matcher matcher = BYTE_RANGE.matcher(Optional.ofNullable(range).orElse("").trim());
+
+		if (!matcher.matches() || (matcher.group(1).isEmpty() && matcher.group(2).isEmpty()) || (Optional.ofNullable(ifRange).isPresent() && !ifRange.equals(etag)))
+		{
+			return null;
+		}
+
+		try
+		{
+			if (matcher.group(1).isEmpty())
+			{
+				return new long[] {Math.max(0, length - Long.parseLong(matcher.group(2))), length - 1};
+			}
+
+			long start = Long.parseLong(matcher.group(1));
+			long end = matcher.group(2).isEmpty() ? Long.MAX_VALUE : Long.parseLong(matcher.group(2));
+
+			//A range ending before it starts is malformed, not unsatisfiable
+			return end < start ? null : new long[] {start, Math.min(length - 1, end)};
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package utils;
+
+import java.util.Arrays;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ *
+ * Class deciding when, and how often, a read may be hedged (duplicated to a second replica).
+ *
+ * - The hedge delay is a percentile (percentile, e.g. 95) of the latencies of the last window_size reads, never lower than min_delay_ms.
+ *   Until enough reads were observed, no hedge is sent.
+ * - The hedge budget is a token bucket: each finished read adds budget_ratio tokens (up to max_tokens), each hedge spends one.
+ *   Extra load is therefore capped to budget_ratio of the reads (5% with 0.05), however slow the replicas get.
+ *
+ * Settings come from the "hedging" section of the configuration, where "enabled" turns the whole mode on.
+ *
+ * @author pedrolourenco
+ *
+ */
+public class HedgingPolicy
+{
+	private static final int MIN_SAMPLES = 20;
+	private static final int RECOMPUTE_EVERY = 50;
+
+	private final boolean enabled;
+	private final double percentile;
+	private final double budgetRatio;
+	private final double maxTokens;
+	private final long minDelayMillis;
+	private final long[] samples;
+
+	private int next = 0;
+	private int count = 0;
+	private int sinceRecompute = 0;
+	private double tokens = 0;
+	private volatile long delayMillis = -1;
+
+	/**
+	 *
+	 * @param config Application configuration, containing the "hedging" section.
+	 */
+	public HedgingPolicy(JsonObject config)
+	{
+		JsonObject settings = config.getJsonObject("hedging", new JsonObject());
+
+		this.enabled = settings.getBoolean("enabled", false);
+		this.percentile = settings.getDouble("percentile", 95.0);
+		this.budgetRatio = settings.getDouble("budget_ratio", 0.05);
+		this.maxTokens = settings.getDouble("max_tokens", 10.0);
+		this.minDelayMillis = settings.getLong("min_delay_ms", 5L);
+		this.samples = new long[settings.getInteger("window_size", 1000)];
+	}
+
+	/**
+	 *
+	 * @return true if hedging is enabled, false otherwise.
+	 */
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 *
+	 * @return Delay, in milliseconds, after which a read should be hedged, or -1 if not enough reads were observed yet.
+	 */
+	public long getDelayMillis()
+	{
+		return delayMillis;
+	}
+
+	/**
+	 *
+	 * Records the latency of a finished read and refills the hedge budget.
+	 *
+	 * @param latencyMillis Latency of the read.
+	 */
+	public synchronized void record(long latencyMillis)
+	{
+		samples[next] = latencyMillis;
+		next = (next + 1) % samples.length;
+		count = Math.min(count + 1, samples.length);
+		tokens = Math.min(maxTokens, tokens + budgetRatio);
+
+		if (++sinceRecompute >= RECOMPUTE_EVERY && count >= MIN_SAMPLES)
+		{
+			sinceRecompute = 0;
+			long[] sorted = Arrays.copyOf(samples, count);
+			Arrays.sort(sorted);
+			int index = (int) Math.min(count - 1, Math.ceil(percentile / 100 * count) - 1);
+			delayMillis = Math.max(minDelayMillis, sorted[Math.max(0, index)]);
+		}
+	}
+
+	/**
+	 *
+	 * Spends one token of the hedge budget, if available.
+	 *
+	 * @return true if a hedge may be sent, false if the budget is exhausted.
+	 */
+	public synchronized boolean tryAcquire()
+	{
+		if (tokens >= 1)
+		{
+			tokens -= 1;
+			return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,503 @@
+package utils;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.Logger;
+
+import enums.MediaTypes;
+import enums.Messages;
+import enums.StatusCodes;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.sql.SQLConnection;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ *
+ * Handler placed in front of the write routes to make retries safe: a request carrying an Idempotency-Key header is executed at most once,
+ * and a retry with the same key gets the response of the first execution, with the Idempotent-Replayed header, without touching the table again.
+ *
+ * The outcome of every key is kept in the key table, shared by every instance of the service, and the last max_entries outcomes in memory, so most retries
+ * are answered without a query. A request first claims its key in the key table (in the same statement that checks it is new): a retry arriving while the
+ * first execution is still running gets a 409, and a key reused for a different request (another route, database or body) gets a 422.
+ * Only successful outcomes (2xx) are kept: a failed request releases its key, so its retry is executed. A claim left by an instance that died mid-request
+ * can be taken over after claim_timeout_ms. Keys are forgotten after ttl_hours.
+ * A client going away doesn't release its key: the statement may still commit, so the key stays claimed until the outcome of the request is recorded
+ * (or, if none ever comes, for claim_timeout_ms), and its retry gets a 409 meanwhile instead of executing the request a second time.
+ * If the key table can't be reached, keys are only checked against the memory of this instance.
+ *
+ * 	"idempotency": {
+ * 		"table": "public.api_idempotency_keys",
+ * 		"max_entries": 10000,
+ * 		"ttl_hours": 24,
+ * 		"claim_timeout_ms": 60000
+ * 	}
+ *
+ * @author pedrolourenco
+ *
+ */
+public class IdempotencyKeys implements Handler<RoutingContext>
+{
+	public static final String KEY_HEADER = "Idempotency-Key";
+	public static final String REPLAYED_HEADER = "Idempotent-Replayed";
+	private static final String CLAIM_KEY = "idempotencyKeys.claim";
+	private static final int MAX_KEY_LENGTH = 255;
+	private static final long PURGE_PERIOD_MILLIS = 3600000L;
+
+	private final Vertx vertx;
+	private final String table;
+	private final int ttlHours;
+	private final long claimTimeoutMillis;
+	private final Map<String, Outcome> outcomes;
+	private final Set<String> running = ConcurrentHashMap.newKeySet();
+	private final Logger logger;
+	private Bulkhead bulkhead;
+	private long timerID = -1;
+
+	/**
+	 *
+	 * Response given to the first request made with a key.
+	 */
+	private static class Outcome
+	{
+		private final String fingerprint;
+		private final int status;
+		private final String body;
+
+		private Outcome(String fingerprint, int status, String body)
+		{
+			this.fingerprint = fingerprint;
+			this.status = status;
+			this.body = body;
+		}
+	}
+
+	/**
+	 *
+	 * Key claimed by a request being executed.
+	 */
+	private static class Claim
+	{
+		private final IdempotencyKeys owner;
+		private final String key;
+		private final String fingerprint;
+		private final boolean stored;
+		private final AtomicBoolean done = new AtomicBoolean(false);
+
+		private Claim(IdempotencyKeys owner, String key, String fingerprint, boolean stored)
+		{
+			this.owner = owner;
+			this.key = key;
+			this.fingerprint = fingerprint;
+			this.stored = stored;
+		}
+	}
+
+	/**
+	 *
+	 * @param vertx Vertx instance the purge timer is set on.
+	 * @param config Application configuration, containing the "idempotency" section.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public IdempotencyKeys(Vertx vertx, JsonObject config, Logger logger)
+	{
+		JsonObject settings = config.getJsonObject("idempotency", new JsonObject());
+		String[] name = settings.getString("table", "public.api_idempotency_keys").split("\\.", 2);
+		int maxEntries = settings.getInteger("max_entries", 10000);
+
+		this.vertx = vertx;
+		this.table = "\"" + (name.length == 2 ? name[0] : "public") + "\".\"" + name[name.length - 1] + "\"";
+		this.ttlHours = settings.getInteger("ttl_hours", 24);
+		this.claimTimeoutMillis = settings.getLong("claim_timeout_ms", 60000L);
+		this.outcomes = Collections.synchronizedMap(new LinkedHashMap<String, Outcome>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Outcome> eldest)
+			{
+				return size() > maxEntries;
+			}
+		});
+		this.logger = logger;
+	}
+
+	/**
+	 *
+	 * Creates the key table if it doesn't exist, and from then on removes the keys older than ttl_hours every hour.
+	 * Until the table is ready, keys are only checked against the memory of this instance.
+	 *
+	 * @param bulkhead Bulkhead to get the connections from.
+	 * @param handler Handler for the result of the creation.
+	 */
+	public void install(Bulkhead bulkhead, Handler<AsyncResult<Void>> handler)
+	{
+		bulkhead.getConnection(connection -> {
+			if (connection.failed())
+			{
+				handler.handle(Future.failedFuture(connection.cause()));
+				return;
+			}
+
+			SQLConnection conn = connection.result();
+			conn.execute("CREATE TABLE IF NOT EXISTS " + table + " (idempotency_key text PRIMARY KEY, fingerprint text NOT NULL, status integer, body text, "
+					+ "created_at timestamptz NOT NULL DEFAULT now(), completed_at timestamptz)", created -> {
+				conn.close();
+				if (created.succeeded())
+				{
+					logger.info("IdempotencyKeys - Key table " + table + " ready");
+					this.bulkhead = bulkhead;
+					timerID = vertx.setPeriodic(PURGE_PERIOD_MILLIS, id -> purge());
+				}
+				handler.handle(created);
+			});
+		});
+	}
+
+	/**
+	 *
+	 * Lets a request without a key through. For a request with a key, answers with the outcome of the key if it has one,
+	 * otherwise claims the key and lets the request through, its outcome being recorded by record (or the key released when the request ends without one).
+	 */
+	@Override
+	public void handle(RoutingContext context)
+	{
+		String key = context.request().getHeader(KEY_HEADER);
+
+		if (!Optional.ofNullable(key).isPresent())
+		{
+			context.next();
+			return;
+		}
+
+		if (key.trim().isEmpty() || key.length() > MAX_KEY_LENGTH)
+		{
+			sendBackResponse(context, new JsonObject().put("error", Messages.INVALID_IDEMPOTENCY_KEY_ERROR.getValue() + MAX_KEY_LENGTH), StatusCodes.BAD_REQUEST.getValue());
+			return;
+		}
+
+		String fingerprint = fingerprint(context);
+		Outcome known = outcomes.get(key);
+
+		if (known != null)
+		{
+			replay(context, key, fingerprint, known);
+			return;
+		}
+
+		if (!running.add(key))
+		{
+			sendBackResponse(context, new JsonObject().put("error", Messages.IDEMPOTENCY_KEY_IN_USE_ERROR.getValue() + key), StatusCodes.CONFLICT.getValue());
+			return;
+		}
+
+		if (bulkhead == null)
+		{
+			proceed(context, key, fingerprint, false);
+			return;
+		}
+
+		bulkhead.getConnection(connection -> {
+			if (connection.failed())
+			{
+				logger.error("IdempotencyKeys - Key table unreachable, key " + key + " only checked in memory: " + connection.cause());
+				proceed(context, key, fingerprint, false);
+				return;
+			}
+
+			SQLConnection conn = connection.result();
+			conn.queryWithParams("INSERT INTO " + table + " AS k (idempotency_key, fingerprint) VALUES (?, ?) "
+					+ "ON CONFLICT (idempotency_key) DO UPDATE SET fingerprint = EXCLUDED.fingerprint, created_at = now() "
+					+ "WHERE k.status IS NULL AND k.created_at < now() - interval '" + claimTimeoutMillis + " milliseconds' "
+					+ "RETURNING idempotency_key", new JsonArray().add(key).add(fingerprint), claimed -> {
+				if (claimed.failed())
+				{
+					conn.close();
+					logger.error("IdempotencyKeys - Key table unreachable, key " + key + " only checked in memory: " + claimed.cause());
+					proceed(context, key, fingerprint, false);
+					return;
+				}
+
+				if (!claimed.result().getResults().isEmpty())
+				{
+					conn.close();
+					proceed(context, key, fingerprint, true);
+					return;
+				}
+
+				//Claimed before, by this instance or another one: either done, or still running
+				conn.queryWithParams("SELECT fingerprint, status, body FROM " + table + " WHERE idempotency_key = ?", new JsonArray().add(key), read -> {
+					conn.close();
+					running.remove(key);
+
+					if (read.failed() || read.result().getResults().isEmpty())
+					{
+						sendBackResponse(context, new JsonObject().put("error", Messages.IDEMPOTENCY_KEY_IN_USE_ERROR.getValue() + key), StatusCodes.CONFLICT.getValue());
+						return;
+					}
+
+					JsonArray row = read.result().getResults().get(0);
+					if (row.getInteger(1) == null)
+					{
+						String error = row.getString(0).equals(fingerprint) ? Messages.IDEMPOTENCY_KEY_IN_USE_ERROR.getValue() : Messages.IDEMPOTENCY_KEY_REUSED_ERROR.getValue();
+						sendBackResponse(context, new JsonObject().put("error", error + key), row.getString(0).equals(fingerprint) ? StatusCodes.CONFLICT.getValue() : StatusCodes.UNPROCESSABLE_ENTITY.getValue());
+						return;
+					}
+
+					Outcome outcome = new Outcome(row.getString(0), row.getInteger(1), row.getString(2));
+					outcomes.put(key, outcome);
+					replay(context, key, fingerprint, outcome);
+				});
+			});
+		});
+	}
+
+	/**
+	 *
+	 * Records the outcome of a request that claimed a key, just before its response is sent. Does nothing for a request without a key.
+	 * A successful outcome is kept for the retries of the request, any other releases the key.
+	 *
+	 * @param context Context from the request
+	 * @param statusCode Status code of the response.
+	 * @param message Body of the response.
+	 */
+	public static void record(RoutingContext context, StatusCodes statusCode, JsonObject message)
+	{
+		Claim claim = context.get(CLAIM_KEY);
+
+		if (claim == null || !claim.done.compareAndSet(false, true))
+		{
+			return;
+		}
+
+		if (statusCode.getValue() >= 200 && statusCode.getValue() < 300)
+		{
+			claim.owner.complete(claim, new Outcome(claim.fingerprint, statusCode.getValue(), message.encodePrettily()));
+		}
+		else
+		{
+			claim.owner.release(claim);
+		}
+	}
+
+	/**
+	 *
+	 * Stops the purge of old keys.
+	 */
+	public void close()
+	{
+		if (timerID >= 0)
+		{
+			vertx.cancelTimer(timerID);
+		}
+	}
+
+	/**
+	 *
+	 * Lets a request whose key was claimed through, making sure the key is released if the request ends without an outcome.
+	 * If the response ends without one, the key is released right away. If the client goes away first, the statement may still be running and commit,
+	 * so the key is kept until record is called with its outcome, and only released after claim_timeout_ms if the outcome never comes (the request never reached the database).
+	 *
+	 * @param context Context from the request
+	 * @param key Key of the request.
+	 * @param fingerprint Fingerprint of the request.
+	 * @param stored true if the key was claimed in the key table.
+	 */
+	private void proceed(RoutingContext context, String key, String fingerprint, boolean stored)
+	{
+		Claim claim = new Claim(this, key, fingerprint, stored);
+		context.put(CLAIM_KEY, claim);
+
+		context.addBodyEndHandler(v -> {
+			if (claim.done.compareAndSet(false, true))
+			{
+				release(claim);
+			}
+		});
+		RequestLifecycle.onClose(context, v -> vertx.setTimer(claimTimeoutMillis, id -> {
+			if (claim.done.compareAndSet(false, true))
+			{
+				logger.error("IdempotencyKeys - No outcome for key " + key + " " + claimTimeoutMillis + "ms after the client went away, releasing it");
+				release(claim);
+			}
+		}));
+		context.next();
+	}
+
+	/**
+	 *
+	 * Keeps the outcome of a key, in memory right away and in the key table in the background.
+	 *
+	 * @param claim Claim of the key.
+	 * @param outcome Outcome of the request.
+	 */
+	private void complete(Claim claim, Outcome outcome)
+	{
+		outcomes.put(claim.key, outcome);
+		running.remove(claim.key);
+
+		if (!claim.stored)
+		{
+			return;
+		}
+
+		bulkhead.getConnection(connection -> {
+			if (connection.failed())
+			{
+				logger.error("IdempotencyKeys - Failed to store the outcome of key " + claim.key + ": " + connection.cause());
+				return;
+			}
+
+			connection.result().updateWithParams("UPDATE " + table + " SET status = ?, body = ?, completed_at = now() WHERE idempotency_key = ?",
+					new JsonArray().add(outcome.status).add(outcome.body).add(claim.key), updated -> {
+				connection.result().close();
+				if (updated.failed())
+				{
+					logger.error("IdempotencyKeys - Failed to store the outcome of key " + claim.key + ": " + updated.cause());
+				}
+			});
+		});
+	}
+
+	/**
+	 *
+	 * Releases a key whose request failed, so it can be retried.
+	 *
+	 * @param claim Claim of the key.
+	 */
+	private void release(Claim claim)
+	{
+		running.remove(claim.key);
+
+		if (!claim.stored)
+		{
+			return;
+		}
+
+		bulkhead.getConnection(connection -> {
+			if (connection.failed())
+			{
+				logger.error("IdempotencyKeys - Failed to release key " + claim.key + ", retries wait for claim_timeout_ms: " + connection.cause());
+				return;
+			}
+
+			connection.result().updateWithParams("DELETE FROM " + table + " WHERE idempotency_key = ? AND status IS NULL", new JsonArray().add(claim.key), deleted -> {
+				connection.result().close();
+				if (deleted.failed())
+				{
+					logger.error("IdempotencyKeys - Failed to release key " + claim.key + ", retries wait for claim_timeout_ms: " + deleted.cause());
+				}
+			});
+		});
+	}
+
+	/**
+	 *
+	 * Answers a retry with the outcome of its key, unless the key was used for a different request.
+	 *
+	 * @param context Context from the request
+	 * @param key Key of the request.
+	 * @param fingerprint Fingerprint of the request.
+	 * @param outcome Outcome of the key.
+	 */
+	private void replay(RoutingContext context, String key, String fingerprint, Outcome outcome)
+	{
+		if (!outcome.fingerprint.equals(fingerprint))
+		{
+			logger.error("IdempotencyKeys - " + Messages.IDEMPOTENCY_KEY_REUSED_ERROR.getValue() + key);
+			sendBackResponse(context, new JsonObject().put("error", Messages.IDEMPOTENCY_KEY_REUSED_ERROR.getValue() + key), StatusCodes.UNPROCESSABLE_ENTITY.getValue());
+			return;
+		}
+
+		logger.info("IdempotencyKeys - Replaying the outcome of key " + key);
+		MediaTypes type = BodyCodec.responseType(context);
+
+		context.response()
+		.putHeader("content-type", type.getValue())
+		.putHeader(REPLAYED_HEADER, "true")
+		.setStatusCode(outcome.status)
+		.end(BodyCodec.encode(type, new JsonObject(outcome.body)));
+	}
+
+	/**
+	 *
+	 * Removes the keys older than ttl_hours.
+	 */
+	private void purge()
+	{
+		bulkhead.getConnection(connection -> {
+			if (connection.failed())
+			{
+				logger.error("IdempotencyKeys - Failed to purge keys: " + connection.cause());
+				return;
+			}
+
+			SQLConnection conn = connection.result();
+			conn.update("DELETE FROM " + table + " WHERE created_at < now() - interval '" + ttlHours + " hours'", purged -> {
+				conn.close();
+				if (purged.failed())
+				{
+					logger.error("IdempotencyKeys - Failed to purge keys: " + purged.cause());
+				}
+				else if (purged.result().getUpdated() > 0)
+				{
+					logger.info("IdempotencyKeys - Purged " + purged.result().getUpdated() + " keys");
+				}
+			});
+		});
+	}
+
+	/**
+	 *
+	 * @param context Context from the request
+	 * @return SHA-256 of the method, database, path and body of the request, telling apart two requests made with the same key.
+	 */
+	private static String fingerprint(RoutingContext context)
+	{
+		String request = context.request().method() + " " + Optional.ofNullable(DatabasePools.of(context)).orElse("") + " " + context.request().path() + "\n";
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(request.getBytes(StandardCharsets.UTF_8));
+			Optional.ofNullable(context.getBody()).ifPresent(body -> digest.update(body.getBytes()));
+			return String.format("%064x", new BigInteger(1, digest.digest()));
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 *
+	 * This method sends the response back to the entity that made the request to this application.
+	 * It build the response with the correct header for the response media type (see BodyCodec), status code and results (printed prettily, in JSON).
+	 *
+	 * @param context Context from the request
+	 * @param message Body of the response
+	 * @param statusCode Status code to be included in the response
+	 */
+	private static void sendBackResponse(RoutingContext context, JsonObject message, int statusCode)
+	{
+		MediaTypes type = BodyCodec.responseType(context);
+
+		context.response()
+		.putHeader("content-type", type.getValue())
+		.setStatusCode(statusCode)
+		.end(BodyCodec.encode(type, message));
+	}
+}
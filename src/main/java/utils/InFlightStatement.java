@@ -0,0 +1,124 @@
+package utils;
+
+import org.apache.logging.log4j.Logger;
+import org.postgresql.core.BaseConnection;
+
+import enums.Messages;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.ext.sql.SQLConnection;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ *
+ * Class binding the statement being executed on a connection to the request it was executed for.
+ *
+ * If the client disconnects while the statement is running, the statement is cancelled on the backend (through the driver's BaseConnection.cancelQuery),
+ * so it returns with an error right away instead of running to completion for nobody.
+ *
+ * Cancelling never releases the connection: the statement may be running on a worker thread reading the JDBC connection directly (see Deadline.stream),
+ * outside of the SQLConnection's own queue, so only the code that executed the statement knows when the connection is no longer used.
+ * That code must release the connection through this class (release method), once the statement returned and its transaction was ended, instead of closing it directly.
+ * That guarantees that a cancel is never sent once the connection went back to the pool, where it could hit a statement from another request.
+ *
+ * @author pedrolourenco
+ *
+ */
+public class InFlightStatement
+{
+	private final SQLConnection connection;
+	private final WorkerExecutor cancelExecutor;
+	private final Logger logger;
+
+	private boolean released = false;
+	private boolean cancelled = false;
+
+	private InFlightStatement(SQLConnection connection, WorkerExecutor cancelExecutor, Logger logger)
+	{
+		this.connection = connection;
+		this.cancelExecutor = cancelExecutor;
+		this.logger = logger;
+	}
+
+	/**
+	 *
+	 * Binds a connection to the lifecycle of a request: if the request's connection closes before the response ends, the statement running on the connection is cancelled.
+	 *
+	 * @param context Context from the request
+	 * @param connection SQLConnection the request's statement is executed on.
+	 * @param cancelExecutor Worker executor where the (blocking) cancel request is sent from. It must not be the pool the statement itself runs on,
+	 * which may be saturated by the very statements to cancel (see Bulkhead.getCancelExecutor).
+	 * @param logger Logger Instance for the class to work with.
+	 * @return The bound statement, to be released once its results have been handled.
+	 */
+	public static InFlightStatement bind(RoutingContext context, SQLConnection connection, WorkerExecutor cancelExecutor, Logger logger)
+	{
+		InFlightStatement statement = new InFlightStatement(connection, cancelExecutor, logger);
+		RequestLifecycle.onClose(context, v -> statement.cancel());
+		return statement;
+	}
+
+	/**
+	 *
+	 * Sends a cancel request for the statement running on the connection, unless the connection has already been released.
+	 * The connection is not released here: the statement fails with a query_canceled error, and its completion path ends the transaction and releases the connection.
+	 */
+	public void cancel()
+	{
+		cancelExecutor.executeBlocking(future -> {
+			synchronized (this)
+			{
+				if (!released)
+				{
+					try
+					{
+						java.sql.Connection jdbcConnection = connection.unwrap();
+						jdbcConnection.unwrap(BaseConnection.class).cancelQuery();
+						cancelled = true;
+					}
+					catch (Exception e)
+					{
+						future.fail(e);
+						return;
+					}
+				}
+			}
+			future.complete();
+		}, false, result -> {
+			if (result.failed())
+			{
+				logger.error("InFlightStatement - Failed to cancel statement: " + result.cause());
+			}
+			else if (isCancelled())
+			{
+				logger.info("InFlightStatement - " + Messages.STATEMENT_CANCELLED.getValue());
+			}
+		});
+	}
+
+	/**
+	 *
+	 * @return true if the statement was cancelled (client gone, or hedge lost), false otherwise.
+	 */
+	public synchronized boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	/**
+	 *
+	 * Hands the connection back to the pool. Calling it more than once has no effect.
+	 * It must only be called once the statement returned (and its transaction, if any, was ended), since the connection may then be handed to another request right away.
+	 */
+	public void release()
+	{
+		synchronized (this)
+		{
+			if (released)
+			{
+				return;
+			}
+			released = true;
+		}
+		connection.close();
+	}
+}
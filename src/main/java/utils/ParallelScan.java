@@ -0,0 +1,395 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.Logger;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.ext.sql.ResultSet;
+import io.vertx.ext.sql.SQLConnection;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ *
+ * Class executing a table scan as several concurrent scans over ranges of the table's pages (ctid ranges), all reading the same snapshot.
+ *
+ * The scan goes like this:
+ * 1 - A leader connection opens a REPEATABLE READ transaction, exports its snapshot (pg_export_snapshot) and reads the table size in pages (relpages from pg_class, or the actual size if larger).
+ * 2 - The pages are split into equal ranges. The last range is left open, so pages added after the statistics were gathered are still read.
+ * 3 - The leader scans the first range, and every other range is scanned on its own connection, in a transaction that imports the leader's snapshot (SET TRANSACTION SNAPSHOT).
+ * 4 - Once every range is done, the leader's transaction is closed and the results are handed back in range order.
+ *
+ * Scans use a dedicated pool ("parallel_scan" section of the configuration), whose connections are reserved up front:
+ * a scan only starts with the connections it is sure to get, so concurrent scans never wait on each other's connections.
+ *
+ * 	"parallel_scan": {
+ * 		"max_connections": 8,
+ * 		"max_parallelism": 8
+ * 	}
+ *
+ * Range conditions are only turned into TID range scans by PostgreSQL 14 and later. On older servers every range reads the whole table.
+ *
+ * @author pedrolourenco
+ *
+ */
+public class ParallelScan
+{
+	private static final String SNAPSHOT_QUERY = "SELECT pg_export_snapshot(), GREATEST(c.relpages, pg_relation_size(c.oid) / current_setting('block_size')::int)\n"
+			+ "			FROM pg_class c WHERE c.oid = '%s'::regclass;";
+
+	private final JDBCClient client;
+	private final int maxParallelism;
+	private final AtomicInteger available;
+
+	/**
+	 *
+	 * @param vertx Vertx instance the scan pool is created on.
+	 * @param config Application configuration, containing the database settings and the "parallel_scan" section.
+	 */
+	public ParallelScan(Vertx vertx, JsonObject config)
+	{
+		JsonObject settings = config.getJsonObject("parallel_scan", new JsonObject());
+		int maxConnections = settings.getInteger("max_connections", 8);
+
+		this.client = JDBCClient.createShared(vertx, config.copy().put("max_pool_size", maxConnections), "PostgreSQL-parallel-scan");
+		this.maxParallelism = settings.getInteger("max_parallelism", maxConnections);
+		this.available = new AtomicInteger(maxConnections);
+	}
+
+	/**
+	 *
+	 * Reserves connections of the scan pool for one scan.
+	 *
+	 * @param requested Parallelism asked for by the caller.
+	 * @return Number of connections reserved (possibly fewer than requested), to be given back with release. 0 if fewer than two connections are free, in which case the caller should scan the table as usual.
+	 */
+	public int reserve(int requested)
+	{
+		while (true)
+		{
+			int free = available.get();
+			int granted = Math.min(Math.min(requested, maxParallelism), free);
+
+			if (granted < 2)
+			{
+				return 0;
+			}
+			if (available.compareAndSet(free, free - granted))
+			{
+				return granted;
+			}
+		}
+	}
+
+	/**
+	 *
+	 * Gives back connections reserved with reserve.
+	 *
+	 * @param reserved Number of connections to give back.
+	 */
+	public void release(int reserved)
+	{
+		available.addAndGet(reserved);
+	}
+
+	/**
+	 *
+	 * Scans a table over the given number of reserved connections, one page range per connection.
+	 * The statements run on the bulkhead's worker pool, within the request's deadline, and are cancelled if the client goes away.
+	 * The reservation is given back once every connection was released.
+	 *
+	 * @param context Context from the request the scan is for.
+	 * @param bulkhead Bulkhead whose worker pool executes the statements.
+	 * @param logger Logger Instance for the method to work with.
+	 * @param tableSchema Schema of the table.
+	 * @param tableName Name of the table.
+	 * @param reserved Number of connections reserved for the scan.
+	 * @param sqlForRange Builds the statement for a range, given the range condition on ctid.
+	 * @param handler Handler for the results of the ranges, in range order.
+	 */
+	public void scan(RoutingContext context, Bulkhead bulkhead, Logger logger, String tableSchema, String tableName, int reserved,
+			Function<String, String> sqlForRange, Handler<AsyncResult<List<ResultSet>>> handler)
+	{
+		String table = "\"" + tableSchema.toLowerCase() + "\".\"" + tableName.toLowerCase() + "\"";
+
+		run(context, bulkhead, logger, reserved, String.format(SNAPSHOT_QUERY, table.replace("'", "''")), snapshotRow -> {
+			long pages = Math.max(1, snapshotRow.getLong(1));
+			int ranges = (int) Math.min(reserved, pages);
+			long pagesPerRange = (pages + ranges - 1) / ranges;
+			List<String> statements = new ArrayList<>();
+
+			for (int range = 0; range < ranges; range++)
+			{
+				statements.add(sqlForRange.apply("ctid >= '(" + (range * pagesPerRange) + ",0)'::tid"
+						+ (range < ranges - 1 ? " AND ctid < '(" + ((range + 1) * pagesPerRange) + ",0)'::tid" : "")));
+			}
+
+			logger.info("ParallelScan - Scanning " + table + " (" + pages + " pages) in " + ranges + " ranges");
+			return statements;
+		}, handler);
+	}
+
+	/**
+	 *
+	 * Executes several statements over the given number of reserved connections, all reading the same snapshot.
+	 * Statements are spread over the connections in turn, so each connection runs every n-th statement.
+	 * Used to scan the partitions of a partitioned table, one statement per partition (see Partitions).
+	 *
+	 * @param context Context from the request the statements are for.
+	 * @param bulkhead Bulkhead whose worker pool executes the statements.
+	 * @param logger Logger Instance for the method to work with.
+	 * @param reserved Number of connections reserved for the statements.
+	 * @param statements Statements to execute.
+	 * @param handler Handler for the results of the statements, in the same order.
+	 */
+	public void scanAll(RoutingContext context, Bulkhead bulkhead, Logger logger, int reserved, List<String> statements, Handler<AsyncResult<List<ResultSet>>> handler)
+	{
+		run(context, bulkhead, logger, reserved, "SELECT pg_export_snapshot();", snapshotRow -> statements, handler);
+	}
+
+	/**
+	 *
+	 * Common flow of every scan: the leader opens the shared snapshot, the statements are built from the leader's first row, and executed over the connections.
+	 *
+	 * @param context Context from the request the statements are for.
+	 * @param bulkhead Bulkhead whose worker pool executes the statements.
+	 * @param logger Logger Instance for the method to work with.
+	 * @param reserved Number of connections reserved for the statements.
+	 * @param leaderQuery First query of the leader, returning the exported snapshot in its first column.
+	 * @param statementsFor Builds the statements to execute from the row returned by the leader query.
+	 * @param handler Handler for the results of the statements, in the order they were built.
+	 */
+	@SuppressWarnings("rawtypes")
+	private void run(RoutingContext context, Bulkhead bulkhead, Logger logger, int reserved, String leaderQuery,
+			Function<JsonArray, List<String>> statementsFor, Handler<AsyncResult<List<ResultSet>>> handler)
+	{
+		Deadline deadline = Deadline.of(context);
+
+		bulkhead.getConnection(client, connection -> {
+			if (connection.failed())
+			{
+				release(reserved);
+				handler.handle(Future.failedFuture(connection.cause()));
+				return;
+			}
+
+			SQLConnection leader = connection.result();
+			InFlightStatement leaderStatement = InFlightStatement.bind(context, leader, bulkhead.getCancelExecutor(), logger);
+
+			Future<ResultSet> snapshot = Future.future();
+			leader.setAutoCommit(false, autoCommit -> {
+				if (autoCommit.failed())
+				{
+					snapshot.fail(autoCommit.cause());
+					return;
+				}
+				leader.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ", isolation -> {
+					if (isolation.failed())
+					{
+						snapshot.fail(isolation.cause());
+						return;
+					}
+					leader.query(leaderQuery, snapshot);
+				});
+			});
+
+			snapshot.setHandler(snapshotResult -> {
+				if (snapshotResult.failed())
+				{
+					deadline.end(leader, false, end -> {
+						leaderStatement.release();
+						release(reserved);
+						handler.handle(Future.failedFuture(snapshotResult.cause()));
+					});
+					return;
+				}
+
+				JsonArray snapshotRow = snapshotResult.result().getResults().get(0);
+				String snapshotID = snapshotRow.getString(0);
+				List<String> statements = statementsFor.apply(snapshotRow);
+				int connections = Math.max(1, Math.min(reserved, statements.size()));
+
+				List<Future> results = new ArrayList<>();
+				List<List<String>> assignedStatements = new ArrayList<>();
+				List<List<Future<ResultSet>>> assignedResults = new ArrayList<>();
+
+				for (int i = 0; i < connections; i++)
+				{
+					assignedStatements.add(new ArrayList<>());
+					assignedResults.add(new ArrayList<>());
+				}
+				for (int i = 0; i < statements.size(); i++)
+				{
+					Future<ResultSet> result = Future.future();
+					results.add(result);
+					assignedStatements.get(i % connections).add(statements.get(i));
+					assignedResults.get(i % connections).add(result);
+				}
+
+				logger.debug("ParallelScan - " + statements.size() + " statements over " + connections + " connections, snapshot " + snapshotID);
+
+				runSequentially(leader, deadline, assignedStatements.get(0), assignedResults.get(0), 0, v -> {});
+				for (int i = 1; i < connections; i++)
+				{
+					runOnSnapshot(context, bulkhead, logger, snapshotID, deadline, assignedStatements.get(i), assignedResults.get(i));
+				}
+
+				CompositeFuture.join(results).setHandler(joined -> deadline.end(leader, false, end -> {
+					leaderStatement.release();
+					release(reserved);
+
+					if (joined.failed())
+					{
+						handler.handle(Future.failedFuture(joined.cause()));
+						return;
+					}
+
+					List<ResultSet> resultSets = new ArrayList<>();
+					results.forEach(result -> resultSets.add((ResultSet) result.result()));
+					handler.handle(Future.succeededFuture(resultSets));
+				}));
+			});
+		});
+	}
+
+	/**
+	 *
+	 * Closes the scan pool.
+	 */
+	public void close()
+	{
+		client.close();
+	}
+
+	/**
+	 *
+	 * Executes statements on their own connection, inside a transaction importing the leader's snapshot.
+	 *
+	 * @param context Context from the request the statements are for.
+	 * @param bulkhead Bulkhead whose worker pool executes the statements.
+	 * @param logger Logger Instance for the method to work with.
+	 * @param snapshotID Snapshot exported by the leader.
+	 * @param deadline Deadline of the request.
+	 * @param statements Statements to execute, one after the other.
+	 * @param results Futures for the results of the statements.
+	 */
+	private void runOnSnapshot(RoutingContext context, Bulkhead bulkhead, Logger logger, String snapshotID, Deadline deadline, List<String> statements, List<Future<ResultSet>> results)
+	{
+		bulkhead.getConnection(client, connection -> {
+			if (connection.failed())
+			{
+				results.forEach(result -> result.fail(connection.cause()));
+				return;
+			}
+
+			SQLConnection conn = connection.result();
+			InFlightStatement statement = InFlightStatement.bind(context, conn, bulkhead.getCancelExecutor(), logger);
+			Future<Void> imported = Future.future();
+
+			conn.setAutoCommit(false, autoCommit -> {
+				if (autoCommit.failed())
+				{
+					imported.fail(autoCommit.cause());
+					return;
+				}
+				conn.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ", isolation -> {
+					if (isolation.failed())
+					{
+						imported.fail(isolation.cause());
+						return;
+					}
+					conn.execute("SET TRANSACTION SNAPSHOT '" + snapshotID + "'", imported);
+				});
+			});
+
+			Handler<Void> done = v -> deadline.end(conn, false, end -> statement.release());
+
+			imported.setHandler(importResult -> {
+				if (importResult.failed())
+				{
+					results.forEach(result -> result.fail(importResult.cause()));
+					done.handle(null);
+					return;
+				}
+
+				runSequentially(conn, deadline, statements, results, 0, done);
+			});
+		});
+	}
+
+	/**
+	 *
+	 * Executes statements one after the other on a connection, stopping at the first failure (the remaining statements fail with the same cause).
+	 *
+	 * @param connection SQLConnection holding the transaction.
+	 * @param deadline Deadline of the request.
+	 * @param statements Statements to execute.
+	 * @param results Futures for the results of the statements.
+	 * @param index Index of the statement to execute.
+	 * @param done Handler called once the last statement was executed, or on the first failure.
+	 */
+	private void runSequentially(SQLConnection connection, Deadline deadline, List<String> statements, List<Future<ResultSet>> results, int index, Handler<Void> done)
+	{
+		if (index >= statements.size())
+		{
+			done.handle(null);
+			return;
+		}
+
+		Future<ResultSet> current = Future.future();
+		current.setHandler(result -> {
+			if (result.failed())
+			{
+				results.subList(index, results.size()).forEach(remaining -> remaining.fail(result.cause()));
+				done.handle(null);
+				return;
+			}
+			runSequentially(connection, deadline, statements, results, index + 1, done);
+			results.get(index).complete(result.result());
+		});
+		boundedQuery(connection, deadline, statements.get(index), current);
+	}
+
+	/**
+	 *
+	 * Executes a statement inside an already open transaction, bounded by the remaining budget of the deadline (if any).
+	 *
+	 * @param connection SQLConnection holding the transaction.
+	 * @param deadline Deadline of the request.
+	 * @param sql Statement to execute.
+	 * @param result Future for the result of the statement.
+	 */
+	private void boundedQuery(SQLConnection connection, Deadline deadline, String sql, Future<ResultSet> result)
+	{
+		if (deadline.isUnbounded())
+		{
+			connection.query(sql, result);
+			return;
+		}
+		if (deadline.isExpired())
+		{
+			result.fail(new TimeoutException("expired before the statement was executed"));
+			return;
+		}
+
+		connection.execute("SET LOCAL statement_timeout = " + Math.max(1, deadline.remainingMillis()), timeout -> {
+			if (timeout.failed())
+			{
+				result.fail(timeout.cause());
+				return;
+			}
+			connection.query(sql, result);
+		});
+	}
+}
@@ -0,0 +1,293 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.ext.sql.SQLConnection;
+
+/**
+ *
+ * Class discovering the partitions of a partitioned table (pg_partitioned_table and pg_inherits), and pruning them against a where condition.
+ *
+ * For every partition, pruning tells whether the where condition can match rows of the partition (touched), and whether it matches every row of it (covered).
+ * Pruning applies to RANGE partitioning on a single column, with where conditions made of comparisons of that column with literals
+ * (=, <, <=, >, >=, BETWEEN), AND-ed together. The comparisons are evaluated by PostgreSQL itself, with the literals cast to the column's type.
+ * In any other case, or for the DEFAULT partition, every partition is considered touched and none covered.
+ * A partition is only covered when the where condition holds nothing but conditions on the partition column.
+ *
+ * @author pedrolourenco
+ *
+ */
+public class Partitions
+{
+	private static final String CATALOG_QUERY = "SELECT n.nspname, c.relname, pg_get_expr(c.relpartbound, c.oid), pt.partstrat, pt.partnatts, a.attname, format_type(a.atttypid, a.atttypmod)\n"
+			+ "			FROM pg_partitioned_table pt\n"
+			+ "			JOIN pg_inherits i ON i.inhparent = pt.partrelid\n"
+			+ "			JOIN pg_class c ON c.oid = i.inhrelid\n"
+			+ "			JOIN pg_namespace n ON n.oid = c.relnamespace\n"
+			+ "			LEFT JOIN pg_attribute a ON a.attrelid = pt.partrelid AND a.attnum = pt.partattrs[0]\n"
+			+ "			WHERE pt.partrelid = '%s'::regclass\n"
+			+ "			ORDER BY c.relname;";
+
+	private static final String LITERAL = "('(?:[^']|'')*'|-?[\\w.:+]+)";
+	private static final Pattern RANGE_BOUND = Pattern.compile("^FOR VALUES FROM \\((.*)\\) TO \\((.*)\\)$");
+
+	/**
+	 *
+	 * One partition of a table, with the result of pruning it.
+	 */
+	public static class Partition
+	{
+		private final String schemaName;
+		private final String tableName;
+		private boolean touched = true;
+		private boolean covered = false;
+
+		private Partition(String schemaName, String tableName)
+		{
+			this.schemaName = schemaName;
+			this.tableName = tableName;
+		}
+
+		public String getSchemaName()
+		{
+			return schemaName;
+		}
+
+		public String getTableName()
+		{
+			return tableName;
+		}
+
+		/**
+		 *
+		 * @return "schema"."table", quoted for use in statements.
+		 */
+		public String getQualifiedName()
+		{
+			return "\"" + schemaName + "\".\"" + tableName + "\"";
+		}
+
+		/**
+		 *
+		 * @return true if the where condition can match rows of the partition, false otherwise.
+		 */
+		public boolean isTouched()
+		{
+			return touched;
+		}
+
+		/**
+		 *
+		 * @return true if the where condition matches every row of the partition, false otherwise.
+		 */
+		public boolean isCovered()
+		{
+			return covered;
+		}
+	}
+
+	/**
+	 *
+	 * Discovers the partitions of a table and prunes them against a where condition.
+	 *
+	 * @param connection SQLConnection to query the catalog on.
+	 * @param tableSchema Schema of the table.
+	 * @param tableName Name of the table.
+	 * @param whereCondition Where condition, as sent in the request body (may be null).
+	 * @param handler Handler for the partitions of the table (an empty list if the table isn't partitioned).
+	 */
+	public static void discover(SQLConnection connection, String tableSchema, String tableName, String whereCondition, Handler<AsyncResult<List<Partition>>> handler)
+	{
+		String table = "\"" + tableSchema.toLowerCase() + "\".\"" + tableName.toLowerCase() + "\"";
+
+		connection.query(String.format(CATALOG_QUERY, table.replace("'", "''")), catalog -> {
+			if (catalog.failed())
+			{
+				handler.handle(Future.failedFuture(catalog.cause()));
+				return;
+			}
+
+			List<Partition> partitions = new ArrayList<>();
+			List<String[]> bounds = new ArrayList<>();
+			List<JsonArray> rows = catalog.result().getResults();
+
+			for (JsonArray row : rows)
+			{
+				partitions.add(new Partition(row.getString(0), row.getString(1)));
+				bounds.add(rangeBound(row.getString(2)));
+			}
+
+			if (rows.isEmpty() || !"r".equals(rows.get(0).getString(3)) || rows.get(0).getInteger(4) != 1 || rows.get(0).getString(5) == null)
+			{
+				handler.handle(Future.succeededFuture(partitions));
+				return;
+			}
+
+			Optional<List<String[]>> conditions = keyConditions(whereCondition, rows.get(0).getString(5));
+			if (!conditions.isPresent())
+			{
+				handler.handle(Future.succeededFuture(partitions));
+				return;
+			}
+
+			prune(connection, partitions, bounds, conditions.get(), onlyKeyConditions(whereCondition, conditions.get()), rows.get(0).getString(6), handler);
+		});
+	}
+
+	/**
+	 *
+	 * Evaluates, in a single query, whether each range partition is touched and covered by the conditions.
+	 *
+	 * @param connection SQLConnection to run the evaluation on.
+	 * @param partitions Partitions of the table.
+	 * @param bounds Lower and upper bound of each partition (null entries for unbounded ends, null array for the DEFAULT partition).
+	 * @param conditions Conditions on the partition column, as { operator, literal }.
+	 * @param onlyKeyConditions true if the where condition holds nothing but the conditions.
+	 * @param keyType Type of the partition column.
+	 * @param handler Handler for the pruned partitions.
+	 */
+	private static void prune(SQLConnection connection, List<Partition> partitions, List<String[]> bounds, List<String[]> conditions, boolean onlyKeyConditions, String keyType, Handler<AsyncResult<List<Partition>>> handler)
+	{
+		List<String> expressions = new ArrayList<>();
+
+		for (String[] bound : bounds)
+		{
+			if (bound == null)
+			{
+				expressions.add("true, false");
+				continue;
+			}
+
+			List<String> touched = new ArrayList<>();
+			List<String> covered = new ArrayList<>();
+			String lower = bound[0] == null ? null : bound[0] + "::" + keyType;
+			String upper = bound[1] == null ? null : bound[1] + "::" + keyType;
+
+			for (String[] condition : conditions)
+			{
+				String value = condition[1] + "::" + keyType;
+
+				switch (condition[0])
+				{
+					case "=":
+						touched.add((lower == null ? "true" : value + " >= " + lower) + " AND " + (upper == null ? "true" : value + " < " + upper));
+						covered.add("false");
+						break;
+					case ">":
+					case ">=":
+						touched.add(upper == null ? "true" : value + " < " + upper);
+						covered.add(lower == null ? "false" : value + (condition[0].equals(">") ? " < " : " <= ") + lower);
+						break;
+					default:
+						touched.add(lower == null ? "true" : value + (condition[0].equals("<") ? " > " : " >= ") + lower);
+						covered.add(upper == null ? "false" : upper + " <= " + value);
+						break;
+				}
+			}
+
+			expressions.add("(" + String.join(") AND (", touched) + "), " + (onlyKeyConditions ? "(" + String.join(") AND (", covered) + ")" : "false"));
+		}
+
+		connection.query("SELECT " + String.join(", ", expressions) + ";", evaluation -> {
+			if (evaluation.failed())
+			{
+				handler.handle(Future.failedFuture(evaluation.cause()));
+				return;
+			}
+
+			JsonArray row = evaluation.result().getResults().get(0);
+			for (int i = 0; i < partitions.size(); i++)
+			{
+				partitions.get(i).touched = row.getBoolean(2 * i);
+				partitions.get(i).covered = row.getBoolean(2 * i) && row.getBoolean(2 * i + 1);
+			}
+			handler.handle(Future.succeededFuture(partitions));
+		});
+	}
+
+	/**
+	 *
+	 * Extracts the comparisons of the partition column with literals from a where condition.
+	 *
+	 * @param whereCondition Where condition, as sent in the request body.
+	 * @param keyColumn Partition column.
+	 * @return The comparisons as { operator, literal }, or empty if the condition can't be used for pruning (OR, parenthesis, ";", or no comparison on the column).
+	 */
+	private static Optional<List<String[]>> keyConditions(String whereCondition, String keyColumn)
+	{
+		if (!Optional.ofNullable(whereCondition).isPresent() || whereCondition.contains("(") || whereCondition.contains(";")
+				|| Pattern.compile("\\bOR\\b", Pattern.CASE_INSENSITIVE).matcher(whereCondition).find())
+		{
+			return Optional.empty();
+		}
+
+		String column = "\"?" + Pattern.quote(keyColumn) + "\"?";
+		Matcher between = Pattern.compile(column + "\\s+BETWEEN\\s+" + LITERAL + "\\s+AND\\s+" + LITERAL, Pattern.CASE_INSENSITIVE).matcher(whereCondition);
+		String expanded = between.replaceAll(keyColumn + " >= $1 AND " + keyColumn + " <= $2");
+
+		Pattern comparison = Pattern.compile("^\\s*" + column + "\\s*(>=|<=|=|<|>)\\s*" + LITERAL + "\\s*$", Pattern.CASE_INSENSITIVE);
+		List<String[]> conditions = new ArrayList<>();
+
+		for (String term : expanded.split("(?i)\\s+AND\\s+"))
+		{
+			Matcher matcher = comparison.matcher(term);
+			if (matcher.matches())
+			{
+				conditions.add(new String[] { matcher.group(1), matcher.group(2).startsWith("'") ? matcher.group(2) : "'" + matcher.group(2) + "'" });
+			}
+		}
+		return conditions.isEmpty() ? Optional.empty() : Optional.of(conditions);
+	}
+
+	/**
+	 *
+	 * @param whereCondition Where condition, as sent in the request body.
+	 * @param conditions Comparisons on the partition column found in it.
+	 * @return true if the where condition holds nothing but those comparisons, false otherwise.
+	 */
+	private static boolean onlyKeyConditions(String whereCondition, List<String[]> conditions)
+	{
+		// A BETWEEN adds one AND to the condition and expands into two comparisons, so the count holds with or without them
+		return whereCondition.split("(?i)\\s+AND\\s+").length == conditions.size();
+	}
+
+	/**
+	 *
+	 * Parses the bound of a single-column range partition.
+	 *
+	 * @param bound Bound, as given by pg_get_expr ("FOR VALUES FROM ('2024-01-01') TO ('2024-02-01')").
+	 * @return { lower, upper } literals (null for MINVALUE/MAXVALUE), or null for the DEFAULT partition or bounds that can't be parsed.
+	 */
+	private static String[] rangeBound(String bound)
+	{
+		Matcher matcher = RANGE_BOUND.matcher(Optional.ofNullable(bound).orElse(""));
+
+		if (!matcher.matches() || !matcher.group(1).matches(LITERAL + "|MINVALUE") || !matcher.group(2).matches(LITERAL + "|MAXVALUE"))
+		{
+			return null;
+		}
+		return new String[] { literal(matcher.group(1)), literal(matcher.group(2)) };
+	}
+
+	/**
+	 *
+	 * @param value Literal of a bound.
+	 * @return The literal quoted as a string (so it can be cast to the column's type), or null for MINVALUE/MAXVALUE.
+	 */
+	private static String literal(String value)
+	{
+		if (value.equals("MINVALUE") || value.equals("MAXVALUE"))
+		{
+			return null;
+		}
+		return value.startsWith("'") ? value : "'" + value + "'";
+	}
+}
@@ -0,0 +1,372 @@
+package utils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.Logger;
+import org.postgresql.PGConnection;
+
+import enums.Messages;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.ext.sql.SQLConnection;
+
+/**
+ *
+ * Class running query export jobs: the result of a select, streamed to a spool file on local disk in the background, to be downloaded once done.
+ *
+ * The result never goes through the heap: the select is wrapped in a COPY ... TO STDOUT, whose output the PostgreSQL driver writes straight to the file.
+ * - csv: COPY in CSV format, with a header.
+ * - ndjson: each row turned into JSON by PostgreSQL (row_to_json), one per line. The rows are copied in CSV format with control characters as quote and delimiter,
+ *   which JSON text never holds unescaped, so every line is exactly the row's JSON.
+ *
+ * Jobs beyond max_running wait in a queue of at most max_queued jobs; jobs beyond that are rejected.
+ * Finished jobs (and their files) are removed once ttl_ms has passed since they finished.
+ *
+ * 	"exports": {
+ * 		"directory": "exports",
+ * 		"max_running": 2,
+ * 		"max_queued": 20,
+ * 		"ttl_ms": 3600000
+ * 	}
+ *
+ * @author pedrolourenco
+ *
+ */
+public class QueryExport implements ExportJobs<QueryExport.Job>
+{
+	private final Vertx vertx;
+	private final JDBCClient client;
+	private final WorkerExecutor workerExecutor;
+	private final File directory;
+	private final int maxRunning;
+	private final int maxQueued;
+	private final long ttlMillis;
+	private final long timerID;
+	private final Queue<Job> queue = new ArrayDeque<>();
+	private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+	private final Logger logger;
+	private int running = 0;
+
+	/**
+	 *
+	 * State of a query export job, as reported to the caller.
+	 */
+	public static class Job implements ExportJobs.Job
+	{
+		private final String id;
+		private final String schemaName;
+		private final String tableName;
+		private final String format;
+		private final String sql;
+		private final long submittedAtMillis = System.currentTimeMillis();
+		private volatile String status = "queued";
+		private volatile String error;
+		private volatile long rows;
+		private volatile long size;
+		private volatile long finishedAtMillis;
+		private volatile long expiresAtMillis = Long.MAX_VALUE;
+
+		private Job(String id, String schemaName, String tableName, String format, String sql)
+		{
+			this.id = id;
+			this.schemaName = schemaName;
+			this.tableName = tableName;
+			this.format = format;
+			this.sql = sql;
+		}
+
+		@Override
+		public String getId()
+		{
+			return id;
+		}
+
+		public String getFormat()
+		{
+			return format;
+		}
+
+		public String getTableName()
+		{
+			return tableName;
+		}
+
+		/**
+		 *
+		 * @return true once the spool file is written, false while queued or running, or if the job failed.
+		 */
+		@Override
+		public boolean isDone()
+		{
+			return status.equals("done");
+		}
+
+		@Override
+		public long getFileSize()
+		{
+			return size;
+		}
+
+		@Override
+		public String getContentType()
+		{
+			return format.equals("ndjson") ? "application/x-ndjson" : "text/csv";
+		}
+
+		@Override
+		public String getFileName()
+		{
+			return tableName + "." + format;
+		}
+
+		@Override
+		public long getFinishedAtMillis()
+		{
+			return finishedAtMillis;
+		}
+
+		/**
+		 *
+		 * @return Status of the job: its state ("queued", "running", "done" or "failed"), and the rows, size and expiry of its file, or its error.
+		 */
+		@Override
+		public JsonObject toJson()
+		{
+			return new JsonObject()
+					.put("job", id)
+					.put("schema", schemaName)
+					.put("table", tableName)
+					.put("format", format)
+					.put("status", status)
+					.put("submittedAt", submittedAtMillis)
+					.put("finishedAt", finishedAtMillis == 0 ? null : finishedAtMillis)
+					.put("rows", isDone() ? rows : null)
+					.put("size", isDone() ? size : null)
+					.put("expiresAt", expiresAtMillis == Long.MAX_VALUE ? null : expiresAtMillis)
+					.put("error", error);
+		}
+	}
+
+	/**
+	 *
+	 * @param vertx Vertx instance the export pool, worker pool and expiry timer are created on.
+	 * @param config Application configuration, containing the database settings and the "exports" section.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public QueryExport(Vertx vertx, JsonObject config, Logger logger)
+	{
+		JsonObject settings = config.getJsonObject("exports", new JsonObject());
+
+		this.vertx = vertx;
+		this.maxRunning = Math.max(1, settings.getInteger("max_running", 2));
+		this.maxQueued = settings.getInteger("max_queued", 20);
+		this.ttlMillis = settings.getLong("ttl_ms", 3600000L);
+		this.directory = new File(settings.getString("directory", "exports"));
+		this.client = JDBCClient.createShared(vertx, config.copy().put("max_pool_size", maxRunning), "PostgreSQL-query-export");
+		this.workerExecutor = vertx.createSharedWorkerExecutor("query-export", maxRunning, Long.MAX_VALUE);
+		this.logger = logger;
+		this.timerID = vertx.setPeriodic(Math.max(1000, ttlMillis / 4), id -> expire());
+	}
+
+	/**
+	 *
+	 * Submits a query export job. The handler is called as soon as the job is queued, and the export goes on in the background.
+	 *
+	 * @param schemaName Schema of the table the select reads.
+	 * @param tableName Table the select reads.
+	 * @param format Format of the spool file: "csv" or "ndjson".
+	 * @param sql Select to export, without a trailing ";".
+	 * @param handler Handler for the job, failed with an IllegalStateException if the queue is full.
+	 */
+	public void submit(String schemaName, String tableName, String format, String sql, Handler<AsyncResult<Job>> handler)
+	{
+		if (queue.size() >= maxQueued)
+		{
+			handler.handle(Future.failedFuture(new IllegalStateException(Messages.EXPORT_JOBS_FULL_ERROR.getValue() + (maxRunning + maxQueued))));
+			return;
+		}
+
+		Job job = new Job(UUID.randomUUID().toString(), schemaName, tableName, format, sql);
+		jobs.put(job.id, job);
+		queue.add(job);
+		handler.handle(Future.succeededFuture(job));
+
+		logger.info("QueryExport - Queued export job " + job.id + " of " + schemaName + "." + tableName + " as " + format);
+		drain();
+	}
+
+	/**
+	 *
+	 * @param id Identifier of the job.
+	 * @return The job, or null if there is no such job (or it expired).
+	 */
+	@Override
+	public Job getJob(String id)
+	{
+		return jobs.get(id);
+	}
+
+	/**
+	 *
+	 * @param job Job whose spool file is wanted.
+	 * @return Path of the job's spool file.
+	 */
+	@Override
+	public String filePath(Job job)
+	{
+		return new File(directory, job.id + "." + job.format).getPath();
+	}
+
+	/**
+	 *
+	 * Closes the export pool and worker pool, and stops the expiry of jobs.
+	 */
+	public void close()
+	{
+		vertx.cancelTimer(timerID);
+		client.close();
+		workerExecutor.close();
+	}
+
+	/**
+	 *
+	 * Starts queued jobs while fewer than max_running are running.
+	 */
+	private void drain()
+	{
+		while (running < maxRunning && !queue.isEmpty())
+		{
+			running++;
+			run(queue.poll());
+		}
+	}
+
+	/**
+	 *
+	 * Runs a job: streams the COPY output of its select into a partial file, renamed to the spool file once complete.
+	 *
+	 * @param job Job to run.
+	 */
+	private void run(Job job)
+	{
+		job.status = "running";
+		File spool = new File(filePath(job));
+		File partial = new File(filePath(job) + ".partial");
+
+		String copy = job.format.equals("ndjson")
+				? "COPY (SELECT row_to_json(r) FROM (" + job.sql + ") r) TO STDOUT WITH (FORMAT csv, QUOTE E'\\x01', DELIMITER E'\\x02')"
+				: "COPY (" + job.sql + ") TO STDOUT WITH (FORMAT csv, HEADER)";
+
+		client.getConnection(connection -> {
+			if (connection.failed())
+			{
+				finish(job, connection.cause());
+				return;
+			}
+
+			SQLConnection conn = connection.result();
+			workerExecutor.<Long>executeBlocking(blocking -> {
+				try
+				{
+					Files.createDirectories(directory.toPath());
+					Connection jdbcConnection = conn.unwrap();
+
+					long rows;
+
+					try (OutputStream out = new BufferedOutputStream(new FileOutputStream(partial), 1 << 16))
+					{
+						rows = jdbcConnection.unwrap(PGConnection.class).getCopyAPI().copyOut(copy, out);
+					}
+					Files.move(partial.toPath(), spool.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					blocking.complete(rows);
+				}
+				catch (SQLException | IOException e)
+				{
+					partial.delete();
+					blocking.fail(e);
+				}
+			}, false, copied -> {
+				conn.close();
+				if (copied.succeeded())
+				{
+					job.rows = copied.result();
+					job.size = spool.length();
+				}
+				finish(job, copied.failed() ? copied.cause() : null);
+			});
+		});
+	}
+
+	/**
+	 *
+	 * Marks a job as finished, sets its expiry and starts the next queued job.
+	 *
+	 * @param job Job to finish.
+	 * @param cause Cause of the failure, or null if the spool file was written.
+	 */
+	private void finish(Job job, Throwable cause)
+	{
+		job.finishedAtMillis = System.currentTimeMillis();
+		job.expiresAtMillis = job.finishedAtMillis + ttlMillis;
+
+		if (cause == null)
+		{
+			job.status = "done";
+			logger.info("QueryExport - Export job " + job.id + " done: " + job.rows + " rows, " + job.size + " bytes");
+		}
+		else
+		{
+			job.status = "failed";
+			job.error = cause.toString();
+			logger.error("QueryExport - Export job " + job.id + " failed: " + cause);
+		}
+
+		running--;
+		drain();
+	}
+
+	/**
+	 *
+	 * Removes the jobs whose time to live has passed, along with their spool files.
+	 */
+	private void expire()
+	{
+		long now = System.currentTimeMillis();
+
+		jobs.values().removeIf(job -> {
+			if (job.expiresAtMillis > now)
+			{
+				return false;
+			}
+			if (job.isDone())
+			{
+				vertx.fileSystem().delete(filePath(job), deleted -> {
+					if (deleted.failed())
+					{
+						logger.error("QueryExport - Failed to delete the spool file of job " + job.id + ": " + deleted.cause());
+					}
+				});
+			}
+			logger.info("QueryExport - Export job " + job.id + " expired");
+			return true;
+		});
+	}
+}
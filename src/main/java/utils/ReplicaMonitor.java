@@ -0,0 +1,207 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.logging.log4j.Logger;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.jdbc.JDBCClient;
+
+/**
+ *
+ * Class keeping track of the state of the streaming replicas listed in the "replicas" section of the configuration:
+ *
+ * 	"replicas": {
+ * 		"urls": ["jdbc:postgresql://REPLICA_HOST:PORT/"],
+ * 		"max_lag_ms": 5000,
+ * 		"check_period_ms": 1000
+ * 	}
+ *
+ * Every check_period_ms each replica is probed for its replication lag (based on pg_last_xact_replay_timestamp) and for the last WAL position it replayed.
+ * A replica is eligible for reads while its lag is under max_lag_ms and, for read-your-writes requests, while it has replayed the position of the caller's last write.
+ * Replicas that can't be probed are excluded until they answer again.
+ *
+ * A replica that has replayed everything it received reports no lag, which is only true while it is still receiving WAL from the primary:
+ * once its WAL receiver stops or loses the primary, it has nothing left to replay and would look up to date forever.
+ * So a replica is also excluded while pg_stat_wal_receiver has no receiver, or one not in the "streaming" state.
+ * Without the pg_read_all_stats role the status of the receiver is hidden, and only its presence is checked.
+ *
+ * The probes use their own single-connection clients, so they are not delayed by the load on the bulkheads.
+ *
+ * @author pedrolourenco
+ *
+ */
+public class ReplicaMonitor
+{
+	private static final long UNKNOWN = Long.MAX_VALUE;
+
+	private static final String PROBE_QUERY = "SELECT CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0\n"
+			+ "			ELSE (EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000)::bigint END,\n"
+			+ "			pg_last_wal_replay_lsn()::text,\n"
+			+ "			EXISTS (SELECT 1 FROM pg_stat_wal_receiver WHERE status IS NULL OR status = 'streaming');";
+
+	private final Vertx vertx;
+	private final Logger logger;
+	private final List<String> urls = new ArrayList<>();
+	private final List<JDBCClient> probes = new ArrayList<>();
+	private final long maxLagMillis;
+	private final AtomicLongArray lagMillis;
+	private final AtomicLongArray replayedLsn;
+	private long timerID = -1;
+
+	/**
+	 *
+	 * @param vertx Vertx instance used to create the probe clients and schedule the probes.
+	 * @param config Application configuration, containing the database settings and the "replicas" section.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public ReplicaMonitor(Vertx vertx, JsonObject config, Logger logger)
+	{
+		JsonObject settings = config.getJsonObject("replicas", new JsonObject());
+
+		this.vertx = vertx;
+		this.logger = logger;
+		this.maxLagMillis = settings.getLong("max_lag_ms", 5000L);
+
+		for (Object url : settings.getJsonArray("urls", new JsonArray()))
+		{
+			urls.add((String) url);
+		}
+
+		this.lagMillis = new AtomicLongArray(urls.size());
+		this.replayedLsn = new AtomicLongArray(urls.size());
+
+		for (int i = 0; i < urls.size(); i++)
+		{
+			lagMillis.set(i, UNKNOWN);
+			probes.add(JDBCClient.createShared(vertx, replicaConfig(config, i).put("max_pool_size", 1), "PostgreSQL-replica-probe-" + i));
+		}
+
+		if (!urls.isEmpty())
+		{
+			probeAll();
+			timerID = vertx.setPeriodic(settings.getLong("check_period_ms", 1000L), id -> probeAll());
+		}
+	}
+
+	/**
+	 *
+	 * @return Number of configured replicas.
+	 */
+	public int size()
+	{
+		return urls.size();
+	}
+
+	/**
+	 *
+	 * Builds the configuration for a JDBC client connecting to one of the replicas: the application configuration with the replica's url.
+	 *
+	 * @param config Application configuration.
+	 * @param replica Index of the replica.
+	 * @return Configuration for a JDBC client of the replica.
+	 */
+	public JsonObject replicaConfig(JsonObject config, int replica)
+	{
+		return config.copy().put("url", urls.get(replica));
+	}
+
+	/**
+	 *
+	 * @param replica Index of the replica.
+	 * @param minimumLsn WAL position the replica must have replayed (0 if the caller has no read-your-writes requirement).
+	 * @return true if the replica can serve a read, false otherwise.
+	 */
+	public boolean isEligible(int replica, long minimumLsn)
+	{
+		return lagMillis.get(replica) <= maxLagMillis && replayedLsn.get(replica) >= minimumLsn;
+	}
+
+	/**
+	 *
+	 * Stops probing the replicas and closes the probe clients.
+	 */
+	public void close()
+	{
+		if (timerID != -1)
+		{
+			vertx.cancelTimer(timerID);
+		}
+		probes.forEach(JDBCClient::close);
+	}
+
+	/**
+	 *
+	 * Probes every replica once.
+	 */
+	private void probeAll()
+	{
+		for (int i = 0; i < urls.size(); i++)
+		{
+			probe(i);
+		}
+	}
+
+	/**
+	 *
+	 * Queries a replica for its lag and replayed position, and records them.
+	 * If the replica can't be reached, isn't replaying WAL at all, or isn't receiving WAL from the primary any more, it is marked as not eligible.
+	 *
+	 * @param replica Index of the replica.
+	 */
+	private void probe(int replica)
+	{
+		probes.get(replica).getConnection(connection -> {
+			if (connection.failed())
+			{
+				markUnknown(replica, connection.cause().toString());
+				return;
+			}
+
+			connection.result().query(PROBE_QUERY, queryResult -> {
+				connection.result().close();
+
+				if (queryResult.failed() || queryResult.result().getResults().isEmpty())
+				{
+					markUnknown(replica, queryResult.failed() ? queryResult.cause().toString() : "no results");
+					return;
+				}
+
+				JsonArray row = queryResult.result().getResults().get(0);
+				if (row.getValue(0) == null || row.getString(1) == null)
+				{
+					markUnknown(replica, "not in recovery");
+					return;
+				}
+
+				if (!row.getBoolean(2))
+				{
+					markUnknown(replica, "WAL receiver not streaming");
+					return;
+				}
+
+				replayedLsn.set(replica, SessionToken.parseLsn(row.getString(1)));
+				lagMillis.set(replica, row.getLong(0));
+			});
+		});
+	}
+
+	/**
+	 *
+	 * Excludes a replica until its next successful probe.
+	 *
+	 * @param replica Index of the replica.
+	 * @param reason Reason for the exclusion, for logging purposes.
+	 */
+	private void markUnknown(int replica, String reason)
+	{
+		if (lagMillis.getAndSet(replica, UNKNOWN) != UNKNOWN)
+		{
+			logger.error("ReplicaMonitor - Replica " + urls.get(replica) + " excluded from reads: " + reason);
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package utils;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.vertx.core.Handler;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * 
+ * Class designed to tie resources held on behalf of a request to the lifecycle of that request.
+ * 
+ * An HttpServerResponse only accepts a single close handler, so components that need to react to the client going away (admission control, in-flight statements, ...)
+ * register their handlers here instead, and all of them are called when the connection closes before the response ends.
+ * 
+ * @author pedrolourenco
+ *
+ */
+public class RequestLifecycle 
+{
+	private static final String CLOSE_HANDLERS_KEY = "requestLifecycle.closeHandlers";
+
+	/**
+	 * 
+	 * Registers a handler to be called if the connection of the request closes while the response is still using it.
+	 * 
+	 * @param context Context from the request
+	 * @param handler Handler to be called on close.
+	 */
+	public static void onClose(RoutingContext context, Handler<Void> handler)
+	{
+		List<Handler<Void>> handlers = context.get(CLOSE_HANDLERS_KEY);
+
+		if (handlers == null)
+		{
+			List<Handler<Void>> newHandlers = new CopyOnWriteArrayList<>();
+			context.put(CLOSE_HANDLERS_KEY, newHandlers);
+			context.response().closeHandler(v -> newHandlers.forEach(closeHandler -> closeHandler.handle(null)));
+			handlers = newHandlers;
+		}
+		handlers.add(handler);
+	}
+
+	/**
+	 * 
+	 * Registers a handler to be called exactly once when the request is over: either its response ended or its connection closed first.
+	 * Meant for releasing resources held for the duration of a request (admission slots, outstanding request counters, ...).
+	 * 
+	 * @param context Context from the request
+	 * @param handler Handler to be called when the request is over.
+	 */
+	public static void onEnd(RoutingContext context, Handler<Void> handler)
+	{
+		AtomicBoolean called = new AtomicBoolean(false);
+		Handler<Void> once = v -> {
+			if (called.compareAndSet(false, true))
+			{
+				handler.handle(null);
+			}
+		};
+		context.addBodyEndHandler(once);
+		onClose(context, once);
+	}
+}
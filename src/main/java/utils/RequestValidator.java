@@ -0,0 +1,507 @@
+package utils;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.Logger;
+
+import enums.Messages;
+import enums.StatusCodes;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.sql.SQLConnection;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ *
+ * Class checking the bodies of the data routes in the router, before they reach their handler and take a connection of its pool.
+ *
+ * The body is decoded once (see BodyCodec.bodyOf), and the handlers read the decoded body from the context. A body that can't be decoded, or whose keys have the wrong type
+ * (or, for /insert and /delete, are missing), is refused with the same 500 the handlers would give it.
+ * The body is then checked against the structure of its table, compiled into a TableValidator (one rule per column) from INFORMATION_SCHEMA, and refused with a 422 when:
+ * - /insert: a column doesn't exist or is repeated, a row doesn't have one value per column, a value can't be converted to the type of its column (see ruleFor),
+ *   a string is longer than its column allows, or a null goes into a NOT NULL column.
+ * - /select: a plain column of "select" or "order_by" doesn't exist. Expressions, and "where" conditions, are left to the database.
+ * Requests to a table that doesn't exist are refused with a 404, /delete ones included.
+ *
+ * Validators are cached per database and table for ttl_ms, the last max_tables of them, and loaded through the metadata bulkhead on a miss.
+ * Sharded tables (see ShardMap) only exist on the shards: their structure is read from the first shard, every shard holding the same one.
+ * Tables found not to exist are cached too, for unknown_ttl_ms only, so they are found soon after they are created, without a query per request meanwhile.
+ * If the structure can't be read (e.g. the database is unreachable), the request goes through unchecked, so inserts can still be journaled (see WriteJournal).
+ *
+ * 	"validation": {
+ * 		"enabled": true,
+ * 		"ttl_ms": 60000,
+ * 		"unknown_ttl_ms": 2000,
+ * 		"max_tables": 1000
+ * 	}
+ *
+ * @author pedrolourenco
+ *
+ */
+public class RequestValidator
+{
+	private static final Pattern IDENTIFIER = Pattern.compile("^(\\w+|\"[^\"]+\")$");
+	private static final Pattern INTEGER = Pattern.compile("^\\s*[+-]?\\d+\\s*$");
+	private static final Pattern DECIMAL = Pattern.compile("^\\s*([+-]?(\\d+\\.?\\d*|\\.\\d+)([eE][+-]?\\d+)?|NaN|[+-]?Infinity)\\s*$");
+	private static final Pattern BOOLEAN = Pattern.compile("^(?i)\\s*(t|f|true|false|y|n|yes|no|on|off|1|0)\\s*$");
+	private static final Pattern UUID = Pattern.compile("^\\s*\\{?[0-9a-fA-F]{8}-?([0-9a-fA-F]{4}-?){3}[0-9a-fA-F]{12}\\}?\\s*$");
+
+	private final Bulkhead bulkhead;
+	private final ShardMap shardMap;
+	private final boolean enabled;
+	private final long ttlMillis;
+	private final long unknownTtlMillis;
+	private final Map<String, TableValidator> validators;
+	private final Logger logger;
+
+	/**
+	 *
+	 * Rules of the columns of a table, checking the bodies sent to it.
+	 */
+	public static class TableValidator
+	{
+		private final Map<String, ColumnRule> columns = new LinkedHashMap<>();
+		private final long loadedAtMillis = System.currentTimeMillis();
+
+		/**
+		 *
+		 * Compiles the rules of a table from its structure.
+		 *
+		 * @param structure Columns of the table, in order, each as its column_name, data_type, is_nullable and character_maximum_length from INFORMATION_SCHEMA.columns.
+		 * @return The validator of the table, without columns if the table doesn't exist.
+		 */
+		public static TableValidator compile(List<JsonArray> structure)
+		{
+			TableValidator validator = new TableValidator();
+
+			for (JsonArray column : structure)
+			{
+				validator.columns.put(column.getString(0), new ColumnRule(column.getString(0), column.getString(1), "YES".equals(column.getString(2)), column.getInteger(3)));
+			}
+			return validator;
+		}
+
+		/**
+		 *
+		 * @param operation Route of the request (select, insert or delete).
+		 * @param body Decoded body of the request, whose keys were checked by shapeError.
+		 * @return Why the body doesn't match the table, or null if it does.
+		 */
+		public String check(String operation, JsonObject body)
+		{
+			if (operation.equals("insert"))
+			{
+				return checkInsert(body);
+			}
+			if (operation.equals("select"))
+			{
+				String selected = Optional.ofNullable(body.getString("select")).map(select -> checkColumns(select, false)).orElse(null);
+				return Optional.ofNullable(selected).orElse(Optional.ofNullable(body.getString("order_by")).map(orderBy -> checkColumns(orderBy, true)).orElse(null));
+			}
+			return null;
+		}
+
+		/**
+		 *
+		 * @param body Body of an /insert.
+		 * @return Why its columns or values don't match the table, or null if they do.
+		 */
+		private String checkInsert(JsonObject body)
+		{
+			List<ColumnRule> rules = new ArrayList<>();
+			Set<String> seen = new HashSet<>();
+
+			for (String name : body.getString("columns").split(","))
+			{
+				ColumnRule rule = columns.get(normalize(name));
+
+				if (rule == null)
+				{
+					return "unknown column " + name.trim();
+				}
+				if (!seen.add(rule.name))
+				{
+					return "column " + rule.name + " is repeated";
+				}
+				rules.add(rule);
+			}
+
+			JsonArray values = body.getJsonArray("values");
+
+			for (int i = 0; i < values.size(); i++)
+			{
+				Object row = values.getValue(i);
+
+				if (!(row instanceof JsonArray) || ((JsonArray) row).size() != rules.size())
+				{
+					return "row " + (i + 1) + " has " + (row instanceof JsonArray ? ((JsonArray) row).size() : 0) + " values, expected " + rules.size();
+				}
+
+				for (int j = 0; j < rules.size(); j++)
+				{
+					String error = rules.get(j).check(((JsonArray) row).getValue(j));
+
+					if (error != null)
+					{
+						return "row " + (i + 1) + ", column " + rules.get(j).name + ": " + error;
+					}
+				}
+			}
+			return null;
+		}
+
+		/**
+		 *
+		 * @param list Comma separated columns (of "select" or "order_by").
+		 * @param ordering true for "order_by", whose columns may be followed by ASC, DESC or NULLS FIRST/LAST.
+		 * @return The first plain column of the list that doesn't exist, or null if there is none. Expressions are not checked.
+		 */
+		private String checkColumns(String list, boolean ordering)
+		{
+			for (String item : list.split(","))
+			{
+				String column = ordering ? item.trim().split("\\s+")[0] : item.trim();
+
+				if (IDENTIFIER.matcher(column).matches() && !columns.containsKey(normalize(column)))
+				{
+					return "unknown column " + column;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 *
+	 * Rule of a column: the values it accepts, from its type, nullability and length.
+	 */
+	private static class ColumnRule
+	{
+		private final String name;
+		private final String dataType;
+		private final boolean nullable;
+		private final Integer maxLength;
+		private final Predicate<Object> accepts;
+
+		private ColumnRule(String name, String dataType, boolean nullable, Integer maxLength)
+		{
+			this.name = name;
+			this.dataType = dataType;
+			this.nullable = nullable;
+			this.maxLength = maxLength;
+			this.accepts = ruleFor(dataType);
+		}
+
+		/**
+		 *
+		 * @param value Value to insert in the column.
+		 * @return Why the column doesn't accept it, or null if it does.
+		 */
+		private String check(Object value)
+		{
+			if (value == null)
+			{
+				return nullable ? null : "null in a NOT NULL column";
+			}
+			if (!accepts.test(value))
+			{
+				return "expected " + dataType + ", got " + (value instanceof String ? "\"" + value + "\"" : value.getClass().getSimpleName());
+			}
+			if (maxLength != null && value instanceof String && ((String) value).codePointCount(0, ((String) value).length()) > maxLength)
+			{
+				return "longer than " + maxLength + " characters";
+			}
+			return null;
+		}
+	}
+
+	/**
+	 *
+	 * @param bulkhead Bulkhead the table structures are read through (the metadata one).
+	 * @param shardMap Map of the sharded tables, whose structures are read from the first shard.
+	 * @param config Application configuration, containing the "validation" section.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public RequestValidator(Bulkhead bulkhead, ShardMap shardMap, JsonObject config, Logger logger)
+	{
+		JsonObject settings = config.getJsonObject("validation", new JsonObject());
+		int maxTables = settings.getInteger("max_tables", 1000);
+
+		this.bulkhead = bulkhead;
+		this.shardMap = shardMap;
+		this.enabled = settings.getBoolean("enabled", true);
+		this.ttlMillis = settings.getLong("ttl_ms", 60000L);
+		this.unknownTtlMillis = settings.getLong("unknown_ttl_ms", 2000L);
+		this.validators = Collections.synchronizedMap(new LinkedHashMap<String, TableValidator>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, TableValidator> eldest)
+			{
+				return size() > maxTables;
+			}
+		});
+		this.logger = logger;
+	}
+
+	/**
+	 *
+	 * Creates the handler checking the bodies of a route, to be placed before the route's own handler.
+	 *
+	 * @param operation Route to check (select, insert or delete).
+	 * @return Handler decoding and checking the body, and forwarding the request if it is valid.
+	 */
+	public Handler<RoutingContext> forRoute(String operation)
+	{
+		return context -> {
+			JsonObject body = BodyCodec.bodyOf(context);
+			String shapeError = shapeError(operation, body);
+
+			if (shapeError != null)
+			{
+				logger.error("RequestValidator - " + Messages.INVALID_BODY_ERROR.getValue() + ": " + shapeError);
+				sendBackResponse(context, new JsonObject().put("error", Messages.INVALID_BODY_ERROR.getValue()), StatusCodes.FAILED);
+				return;
+			}
+			if (!enabled)
+			{
+				context.next();
+				return;
+			}
+
+			String schema = context.request().getParam("schema").toLowerCase();
+			String name = context.request().getParam("name").toLowerCase();
+
+			validatorFor(context, schema, name, validator -> {
+				if (validator.failed())
+				{
+					logger.warn("RequestValidator - Structure of " + schema + "." + name + " not available, request not checked: " + validator.cause());
+					context.next();
+				}
+				else if (validator.result().columns.isEmpty())
+				{
+					logger.error("RequestValidator - " + Messages.UNKNOWN_TABLE_ERROR.getValue() + schema + "." + name);
+					sendBackResponse(context, new JsonObject().put("error", Messages.UNKNOWN_TABLE_ERROR.getValue() + schema + "." + name), StatusCodes.NOT_FOUND);
+				}
+				else
+				{
+					String error = validator.result().check(operation, body);
+
+					if (error == null)
+					{
+						context.next();
+						return;
+					}
+					logger.error("RequestValidator - " + Messages.TABLE_MISMATCH_ERROR.getValue() + error);
+					sendBackResponse(context, new JsonObject().put("error", Messages.TABLE_MISMATCH_ERROR.getValue() + error), StatusCodes.UNPROCESSABLE_ENTITY);
+				}
+			});
+		};
+	}
+
+	/**
+	 *
+	 * Gets the validator of a table from the cache, or compiles it from the structure of the table.
+	 * Tables that don't exist get a validator without columns, cached for unknown_ttl_ms only, so they are found soon after they are created.
+	 *
+	 * @param context Context from the request, whose database is the one of the table.
+	 * @param schema Schema of the table (lower case).
+	 * @param name Name of the table (lower case).
+	 * @param handler Handler for the validator.
+	 */
+	private void validatorFor(RoutingContext context, String schema, String name, Handler<AsyncResult<TableValidator>> handler)
+	{
+		boolean sharded = shardMap.isSharded(schema, name);
+		String key = (sharded ? "shards" : Optional.ofNullable(DatabasePools.of(context)).orElse("")) + "/" + schema + "." + name;
+		TableValidator cached = validators.get(key);
+
+		if (cached != null && System.currentTimeMillis() - cached.loadedAtMillis < (cached.columns.isEmpty() ? unknownTtlMillis : ttlMillis))
+		{
+			handler.handle(Future.succeededFuture(cached));
+			return;
+		}
+
+		Handler<AsyncResult<SQLConnection>> load = connection -> {
+			if (connection.failed())
+			{
+				handler.handle(Future.failedFuture(connection.cause()));
+				return;
+			}
+
+			String sql = "SELECT column_name, data_type, is_nullable, character_maximum_length FROM INFORMATION_SCHEMA.columns"
+					+ " WHERE table_schema = ? AND table_name = ? ORDER BY ordinal_position";
+
+			connection.result().queryWithParams(sql, new JsonArray().add(schema).add(name), structure -> {
+				connection.result().close();
+
+				if (structure.failed())
+				{
+					handler.handle(Future.failedFuture(structure.cause()));
+					return;
+				}
+
+				TableValidator validator = TableValidator.compile(structure.result().getResults());
+				validators.put(key, validator);
+				handler.handle(Future.succeededFuture(validator));
+			});
+		};
+
+		if (sharded)
+		{
+			shardMap.getStructureConnection(bulkhead, load);
+		}
+		else
+		{
+			bulkhead.getConnection(context, load);
+		}
+	}
+
+	/**
+	 *
+	 * @param operation Route of the request (select, insert or delete).
+	 * @param body Decoded body of the request, or null if it couldn't be decoded.
+	 * @return Why the body can't be handled by the route, whatever the table, or null if it can.
+	 */
+	private static String shapeError(String operation, JsonObject body)
+	{
+		if (body == null)
+		{
+			return "not an object";
+		}
+
+		for (String key : new String[] {"select", "where", "order_by", "columns"})
+		{
+			if (body.containsKey(key) && !(body.getValue(key) instanceof String))
+			{
+				return key + " is not a string";
+			}
+		}
+		if (body.containsKey("values") && !(body.getValue("values") instanceof JsonArray))
+		{
+			return "values is not an array";
+		}
+
+		if (operation.equals("insert") && !(body.containsKey("columns") && body.containsKey("values")))
+		{
+			return "columns and values are required";
+		}
+		if (operation.equals("delete") && !body.containsKey("where"))
+		{
+			return "where is required";
+		}
+		return null;
+	}
+
+	/**
+	 *
+	 * @param name Column name, as written in a body.
+	 * @return The name as PostgreSQL resolves it: unquoted names are folded to lower case, quoted ones are kept as is.
+	 */
+	private static String normalize(String name)
+	{
+		String trimmed = name.trim();
+
+		if (trimmed.length() > 1 && trimmed.startsWith("\"") && trimmed.endsWith("\""))
+		{
+			return trimmed.substring(1, trimmed.length() - 1);
+		}
+		return trimmed.toLowerCase();
+	}
+
+	/**
+	 *
+	 * The values a column accepts, from its INFORMATION_SCHEMA data type. Strings are accepted wherever PostgreSQL would convert them, numbers and booleans wherever they
+	 * are written as is (they convert to text types too). Types not listed here (enums, ranges, network addresses, ...) accept any value, and are left to the database.
+	 *
+	 * @param dataType Data type of the column.
+	 * @return Predicate telling whether a (non-null) value fits the column.
+	 */
+	private static Predicate<Object> ruleFor(String dataType)
+	{
+		switch (dataType)
+		{
+			case "smallint":
+			case "integer":
+			case "bigint":
+				return value -> isIntegral(value) || (value instanceof String && INTEGER.matcher((String) value).matches());
+			case "numeric":
+			case "real":
+			case "double precision":
+				return value -> value instanceof Number || (value instanceof String && DECIMAL.matcher((String) value).matches());
+			case "boolean":
+				return value -> value instanceof Boolean || (value instanceof String && BOOLEAN.matcher((String) value).matches());
+			case "uuid":
+				return value -> value instanceof String && UUID.matcher((String) value).matches();
+			case "bytea":
+				return value -> value instanceof byte[] || value instanceof String;
+			case "ARRAY":
+				return value -> value instanceof JsonArray || value instanceof String;
+			case "date":
+			case "timestamp without time zone":
+			case "timestamp with time zone":
+			case "time without time zone":
+			case "time with time zone":
+			case "interval":
+				return value -> value instanceof String || value instanceof Instant;
+			case "json":
+			case "jsonb":
+				return value -> true;
+			case "text":
+			case "character varying":
+			case "character":
+				return value -> value instanceof String || value instanceof Number || value instanceof Boolean;
+			default:
+				return value -> true;
+		}
+	}
+
+	/**
+	 *
+	 * @param value Value of a body.
+	 * @return true if it is a number without fractional part.
+	 */
+	private static boolean isIntegral(Object value)
+	{
+		if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte || value instanceof BigInteger)
+		{
+			return true;
+		}
+		if (value instanceof BigDecimal)
+		{
+			return ((BigDecimal) value).stripTrailingZeros().scale() <= 0;
+		}
+		return value instanceof Number && ((Number) value).doubleValue() == Math.rint(((Number) value).doubleValue());
+	}
+
+	/**
+	 *
+	 * This method sends the response back to the entity that made the request to this application, in the media type it asked for (see BodyCodec).
+	 *
+	 * @param context Context from the request
+	 * @param message Body of the response
+	 * @param statusCode Status code to be included in the response
+	 */
+	private void sendBackResponse(RoutingContext context, JsonObject message, StatusCodes statusCode)
+	{
+		context.response()
+		.putHeader("content-type", BodyCodec.responseType(context).getValue())
+		.setStatusCode(statusCode.getValue())
+		.end(BodyCodec.encode(BodyCodec.responseType(context), message));
+	}
+}
@@ -0,0 +1,160 @@
+package utils;
+
+import java.util.Optional;
+
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ *
+ * Class representing the most a request may read: a number of rows and a number of response bytes.
+ *
+ * The budget of a request comes from the "budgets" section of the configuration, the most specific setting winning for each limit:
+ * - The limits of the caller, named by the X-Caller-Id header ("callers" section).
+ * - The limits of the route ("routes" section, keyed by route name, as for the timeouts).
+ * - The default limits, at the top of the section.
+ * A limit set nowhere is unbounded.
+ *
+ * 	"budgets": {
+ * 		"max_rows": 100000,
+ * 		"max_bytes": 268435456,
+ * 		"routes": { "select": { "max_rows": 100000 } },
+ * 		"callers": { "reporting": { "max_rows": 5000000, "max_bytes": 2147483648 } }
+ * 	}
+ *
+ * Handlers enforce the budget while reading: statements get a LIMIT one row above the budget, so the database never produces much more than the budget,
+ * and the rows are counted and measured as they are fetched. A result cut short by the budget is answered with "truncated" metadata and a continuation hint.
+ *
+ * @author pedrolourenco
+ *
+ */
+public class ResultBudget
+{
+	public static final String CONTEXT_KEY = "resultBudget";
+	public static final String CALLER_HEADER = "X-Caller-Id";
+
+	private static final ResultBudget NONE = new ResultBudget(Long.MAX_VALUE, Long.MAX_VALUE);
+
+	private final long maxRows;
+	private final long maxBytes;
+
+	private ResultBudget(long maxRows, long maxBytes)
+	{
+		this.maxRows = maxRows;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 *
+	 * Creates the route handler computing the budget of every request made to a route, and storing it in the context before calling the next handler.
+	 *
+	 * @param config Application configuration, containing the "budgets" section.
+	 * @param route Name of the route, used as key in the "routes" section.
+	 * @return Handler computing the budget for the route.
+	 */
+	public static Handler<RoutingContext> forRoute(JsonObject config, String route)
+	{
+		JsonObject settings = config.getJsonObject("budgets", new JsonObject());
+		JsonObject routeSettings = settings.getJsonObject("routes", new JsonObject()).getJsonObject(route, new JsonObject());
+		JsonObject callers = settings.getJsonObject("callers", new JsonObject());
+
+		return context -> {
+			String caller = context.request().getHeader(CALLER_HEADER);
+			JsonObject callerSettings = Optional.ofNullable(caller).isPresent() ? callers.getJsonObject(caller, new JsonObject()) : new JsonObject();
+
+			context.put(CONTEXT_KEY, new ResultBudget(
+					limit("max_rows", callerSettings, routeSettings, settings),
+					limit("max_bytes", callerSettings, routeSettings, settings)));
+			context.next();
+		};
+	}
+
+	/**
+	 *
+	 * @param context Context from the request
+	 * @return The budget of the request, or an unbounded budget if none was computed for its route.
+	 */
+	public static ResultBudget of(RoutingContext context)
+	{
+		return Optional.ofNullable(context.<ResultBudget>get(CONTEXT_KEY)).orElse(NONE);
+	}
+
+	/**
+	 *
+	 * @param requestedRows Rows asked for by the caller (may be null).
+	 * @return This budget, lowered to the rows asked for if that is fewer. A caller can narrow its budget, never widen it.
+	 */
+	public ResultBudget narrowedTo(Long requestedRows)
+	{
+		if (!Optional.ofNullable(requestedRows).isPresent() || requestedRows < 0 || requestedRows >= maxRows)
+		{
+			return this;
+		}
+		return new ResultBudget(requestedRows, maxBytes);
+	}
+
+	/**
+	 *
+	 * @return Maximum number of rows, or Long.MAX_VALUE if unbounded.
+	 */
+	public long getMaxRows()
+	{
+		return maxRows;
+	}
+
+	/**
+	 *
+	 * @return Maximum number of response bytes, or Long.MAX_VALUE if unbounded.
+	 */
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	/**
+	 *
+	 * @param offset Rows skipped before the ones to read.
+	 * @return Rows a statement must be limited to for the budget to be enforced and exceeded results detected: the offset, the budget and one more row. Long.MAX_VALUE if unbounded.
+	 */
+	public long rowsToFetch(long offset)
+	{
+		return maxRows >= Long.MAX_VALUE - offset - 1 ? Long.MAX_VALUE : offset + maxRows + 1;
+	}
+
+	/**
+	 *
+	 * @param truncatedBy Limit that cut the result short ("rows" or "bytes"), or null if the result is complete.
+	 * @param nextOffset Offset from which the next page starts.
+	 * @return Metadata to place in the response: "truncated", and when true, "truncatedBy" and a "continuation" holding the "offset" to ask for next.
+	 */
+	public static JsonObject truncation(String truncatedBy, long nextOffset)
+	{
+		if (!Optional.ofNullable(truncatedBy).isPresent())
+		{
+			return new JsonObject().put("truncated", false);
+		}
+		return new JsonObject()
+				.put("truncated", true)
+				.put("truncatedBy", truncatedBy)
+				.put("continuation", new JsonObject().put("offset", nextOffset));
+	}
+
+	/**
+	 *
+	 * @param key Limit to read.
+	 * @param levels Settings to read it from, most specific first.
+	 * @return The first value found, or Long.MAX_VALUE if none.
+	 */
+	private static long limit(String key, JsonObject... levels)
+	{
+		for (JsonObject level : levels)
+		{
+			if (level.getValue(key) instanceof Number)
+			{
+				return level.getLong(key);
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+}
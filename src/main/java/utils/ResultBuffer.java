@@ -0,0 +1,324 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.logging.log4j.Logger;
+
+import enums.MediaTypes;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ *
+ * Class buffering the rows of a query result as encoded JSON (or CBOR or MessagePack, following the response media type of the request, see BodyCodec), to be sent once the query is done, without holding large results on the heap.
+ * Rows are encoded as they are read, according to the types of their columns (see RowEncoder).
+ *
+ * The first memory_mb of encoded rows are kept in memory. The rest is spilled to a temporary file under directory, written through memory-mapped chunks of chunk_mb,
+ * so spilling costs no system call per row and the spilled bytes live in the page cache rather than in the heap.
+ * The response is then written from the buffer (memory part first, then the mapped chunks, in slices), following the response's back-pressure.
+ *
+ * A buffer also enforces the budget of its request (see ResultBudget): rows beyond its max_rows, or beyond its max_bytes of encoded rows, are refused,
+ * and the limit that cut the result short is kept (see getTruncatedBy).
+ *
+ * A buffer is tied to its request: it is closed, and its file deleted, when the request is over.
+ * Rows are appended from the thread reading the result while the request may be closed from the event loop, so those operations are synchronized.
+ *
+ * 	"result_buffer": {
+ * 		"memory_mb": 4,
+ * 		"chunk_mb": 64,
+ * 		"directory": "/tmp"
+ * 	}
+ *
+ * @author pedrolourenco
+ *
+ */
+public class ResultBuffer
+{
+	public static final String CONTEXT_KEY = "resultBuffer";
+
+	private static final int SLICE_BYTES = 64 * 1024;
+
+	private final String key;
+	private final byte[] separator;
+	private final RowEncoder encoder;
+	private final long memoryLimitBytes;
+	private final ResultBudget budget;
+	private final int chunkBytes;
+	private final File directory;
+	private final Logger logger;
+	private final Buffer memory = Buffer.buffer();
+	private final List<MappedByteBuffer> chunks = new ArrayList<>();
+	private Path spillFile;
+	private FileChannel spillChannel;
+	private long spilledBytes = 0;
+	private long rows = 0;
+	private String truncatedBy;
+	private boolean closed = false;
+
+	private ResultBuffer(String key, MediaTypes format, JsonObject settings, ResultBudget budget, Logger logger)
+	{
+		this.key = key;
+		this.separator = BodyCodec.rowSeparator(format);
+		this.encoder = new RowEncoder(format);
+		this.budget = budget;
+		this.memoryLimitBytes = settings.getLong("memory_mb", 4L) * 1024 * 1024;
+		this.chunkBytes = settings.getInteger("chunk_mb", 64) * 1024 * 1024;
+		this.directory = new File(settings.getString("directory", System.getProperty("java.io.tmpdir")));
+		this.logger = logger;
+	}
+
+	/**
+	 *
+	 * Opens a buffer for a request, kept in the request's context (see of) and closed when the request is over.
+	 *
+	 * @param context Context from the request the buffer is for.
+	 * @param settings "result_buffer" section of the configuration.
+	 * @param budget Budget of the request, bounding the rows and bytes the buffer accepts.
+	 * @param logger Logger Instance for the buffer to work with.
+	 * @return The new buffer.
+	 */
+	public static ResultBuffer open(RoutingContext context, JsonObject settings, ResultBudget budget, Logger logger)
+	{
+		ResultBuffer buffer = new ResultBuffer(CONTEXT_KEY + "." + UUID.randomUUID(), BodyCodec.responseType(context), settings, budget, logger);
+		context.put(buffer.key, buffer);
+		RequestLifecycle.onEnd(context, v -> buffer.close());
+		return buffer;
+	}
+
+	/**
+	 *
+	 * @param context Context from the request.
+	 * @param key Key of the buffer, as given by getKey.
+	 * @return The buffer, or null if there is none with that key.
+	 */
+	public static ResultBuffer of(RoutingContext context, String key)
+	{
+		return context.get(key);
+	}
+
+	/**
+	 *
+	 * @return Key of the buffer in the request's context.
+	 */
+	public String getKey()
+	{
+		return key;
+	}
+
+	/**
+	 *
+	 * @return Number of rows in the buffer.
+	 */
+	public long getRows()
+	{
+		return rows;
+	}
+
+	/**
+	 *
+	 * @return Limit that made the buffer refuse a row ("rows" or "bytes"), or null if every row was accepted.
+	 */
+	public String getTruncatedBy()
+	{
+		return truncatedBy;
+	}
+
+	/**
+	 *
+	 * @return true if part of the rows were spilled to disk, false otherwise.
+	 */
+	public boolean isSpilled()
+	{
+		return spilledBytes > 0;
+	}
+
+	/**
+	 *
+	 * Adds a row to the buffer, encoded according to the types of its columns (see RowEncoder), in memory while under memory_mb, on disk afterwards.
+	 * Once the budget is reached the row is refused, and so are the ones after it.
+	 *
+	 * @param row ResultSet positioned on the row to add.
+	 * @return true if the row was added, false if it was refused by the budget.
+	 * @throws SQLException if a value of the row couldn't be read.
+	 * @throws IOException if the row couldn't be encoded, or had to be spilled and the spill file couldn't be written.
+	 */
+	public synchronized boolean append(ResultSet row) throws SQLException, IOException
+	{
+		if (truncatedBy != null)
+		{
+			return false;
+		}
+		if (rows >= budget.getMaxRows())
+		{
+			truncatedBy = "rows";
+			return false;
+		}
+
+		byte[] encoded = encoder.encode(row);
+
+		if (memory.length() + spilledBytes + separator.length + encoded.length > budget.getMaxBytes())
+		{
+			truncatedBy = "bytes";
+			return false;
+		}
+
+		if (spilledBytes == 0 && memory.length() + encoded.length + separator.length <= memoryLimitBytes)
+		{
+			if (rows > 0)
+			{
+				memory.appendBytes(separator);
+			}
+			memory.appendBytes(encoded);
+		}
+		else
+		{
+			if (rows > 0)
+			{
+				spill(separator);
+			}
+			spill(encoded);
+		}
+		rows++;
+		return true;
+	}
+
+	/**
+	 *
+	 * Writes the buffer as the body of a response, between a prefix and a suffix, and ends the response.
+	 * Slices are only written while the response's write queue has room, so a slow client never makes the spilled data move back to the heap.
+	 *
+	 * @param response Response to write to.
+	 * @param prefix Bytes to write before the rows.
+	 * @param suffix Bytes to write after the rows.
+	 */
+	public synchronized void writeTo(HttpServerResponse response, Buffer prefix, Buffer suffix)
+	{
+		List<Buffer> pieces = new ArrayList<>();
+		pieces.add(prefix);
+		pieces.add(memory);
+
+		long remaining = spilledBytes;
+		for (MappedByteBuffer chunk : chunks)
+		{
+			int used = (int) Math.min(chunk.capacity(), remaining);
+			for (int offset = 0; offset < used; offset += SLICE_BYTES)
+			{
+				ByteBuffer slice = chunk.duplicate();
+				slice.position(offset).limit(Math.min(used, offset + SLICE_BYTES));
+				pieces.add(Buffer.buffer(Unpooled.wrappedBuffer(slice.slice())));
+			}
+			remaining -= used;
+		}
+		pieces.add(suffix);
+
+		response.putHeader("content-length", String.valueOf(prefix.length() + memory.length() + spilledBytes + suffix.length()));
+		pump(response, pieces.iterator(), v -> response.end());
+	}
+
+	/**
+	 *
+	 * Releases the spill file. The mapped chunks are dropped and reclaimed by the JVM; the file itself is deleted right away.
+	 */
+	public synchronized void close()
+	{
+		if (closed)
+		{
+			return;
+		}
+		closed = true;
+		chunks.clear();
+
+		try
+		{
+			if (spillChannel != null)
+			{
+				spillChannel.close();
+				Files.deleteIfExists(spillFile);
+			}
+		}
+		catch (IOException e)
+		{
+			logger.error("ResultBuffer - Failed to delete spill file " + spillFile + ": " + e);
+		}
+	}
+
+	/**
+	 *
+	 * Writes bytes to the spill file, mapping a new chunk whenever the current one is full.
+	 *
+	 * @param bytes Bytes to write.
+	 * @throws IOException if the spill file couldn't be created or mapped.
+	 */
+	private void spill(byte[] bytes) throws IOException
+	{
+		if (closed)
+		{
+			throw new IOException("result buffer already closed");
+		}
+
+		if (spillChannel == null)
+		{
+			spillFile = Files.createTempFile(directory.toPath(), "result-", ".spill");
+			spillChannel = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			logger.info("ResultBuffer - Result above " + memoryLimitBytes + " bytes, spilling to " + spillFile);
+		}
+
+		int offset = 0;
+		while (offset < bytes.length)
+		{
+			if (chunks.isEmpty() || !chunks.get(chunks.size() - 1).hasRemaining())
+			{
+				chunks.add(spillChannel.map(FileChannel.MapMode.READ_WRITE, (long) chunks.size() * chunkBytes, chunkBytes));
+			}
+
+			MappedByteBuffer chunk = chunks.get(chunks.size() - 1);
+			int length = Math.min(chunk.remaining(), bytes.length - offset);
+			chunk.put(bytes, offset, length);
+			offset += length;
+		}
+		spilledBytes += bytes.length;
+	}
+
+	/**
+	 *
+	 * Writes the pieces to the response while its write queue has room, and resumes once it drains.
+	 *
+	 * @param response Response to write to.
+	 * @param pieces Pieces left to write.
+	 * @param done Handler called once every piece was written (not called if the client goes away first).
+	 */
+	private static void pump(HttpServerResponse response, Iterator<Buffer> pieces, Handler<Void> done)
+	{
+		while (pieces.hasNext())
+		{
+			if (response.closed())
+			{
+				return;
+			}
+			if (response.writeQueueFull())
+			{
+				response.drainHandler(v -> pump(response, pieces, done));
+				return;
+			}
+			response.write(pieces.next());
+		}
+		done.handle(null);
+	}
+}
@@ -0,0 +1,267 @@
+package utils;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.ext.sql.ResultSet;
+import io.vertx.ext.sql.SQLConnection;
+
+/**
+ *
+ * Class merging the results of the same query executed on several shards (or ranges) into a single list of rows.
+ *
+ * Without an order, the rows are simply concatenated.
+ * With an order ("col1 DESC, col2"), every part is expected to be already sorted by it, and the parts are combined with a k-way merge:
+ * a priority queue holds the head row of each part, so each row is compared against at most log(k) others.
+ *
+ * Values are compared the way PostgreSQL does by default: numbers by value (NaN after every other number, infinities at the ends), nulls after every value (before, for DESC),
+ * and text by code point, which is the order of the "C" collation. Each part must therefore sort its text columns with COLLATE "C" (see collatedOrder):
+ * under any other collation, the parts would be sorted in an order the merge doesn't follow, and the merged rows would come out of order.
+ *
+ * @author pedrolourenco
+ *
+ */
+public class ResultSetMerger
+{
+	private static final String COLLATABLE_COLUMNS_QUERY = "SELECT attname FROM pg_catalog.pg_attribute"
+			+ " WHERE attrelid = CAST(? AS regclass) AND attnum > 0 AND NOT attisdropped AND attcollation <> 0";
+
+	/**
+	 *
+	 * One column of the order: its position in the rows and its direction.
+	 */
+	private static class OrderColumn
+	{
+		private final int index;
+		private final boolean descending;
+
+		private OrderColumn(int index, boolean descending)
+		{
+			this.index = index;
+			this.descending = descending;
+		}
+	}
+
+	/**
+	 *
+	 * Merges the parts into a single list of rows.
+	 *
+	 * @param parts Results of the query, one per shard.
+	 * @param orderBy Order of the query ("col1 DESC, col2"), or null/empty if unordered.
+	 * @return The rows of every part, in order.
+	 * @throws IllegalArgumentException if an order column is not among the selected columns.
+	 */
+	public static JsonArray merge(List<ResultSet> parts, String orderBy)
+	{
+		JsonArray merged = new JsonArray();
+
+		if (orderBy == null || orderBy.trim().isEmpty() || parts.isEmpty())
+		{
+			parts.forEach(part -> part.getResults().forEach(merged::add));
+			return merged;
+		}
+
+		Comparator<JsonArray> rowOrder = comparatorFor(parts.get(0).getColumnNames(), orderBy);
+		Comparator<int[]> headOrder = (a, b) -> rowOrder.compare(parts.get(a[0]).getResults().get(a[1]), parts.get(b[0]).getResults().get(b[1]));
+		PriorityQueue<int[]> heads = new PriorityQueue<>(Math.max(1, parts.size()), headOrder);
+
+		for (int part = 0; part < parts.size(); part++)
+		{
+			if (!parts.get(part).getResults().isEmpty())
+			{
+				heads.add(new int[] { part, 0 });
+			}
+		}
+
+		while (!heads.isEmpty())
+		{
+			int[] head = heads.poll();
+			List<JsonArray> rows = parts.get(head[0]).getResults();
+			merged.add(rows.get(head[1]));
+
+			if (head[1] + 1 < rows.size())
+			{
+				heads.add(new int[] { head[0], head[1] + 1 });
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 *
+	 * Reads the columns of a table whose type has a collation (text, varchar, char, and domains and arrays of them), so their order can be forced to "C" (see collatedOrder).
+	 *
+	 * @param connection SQLConnection to read the catalog through.
+	 * @param tableSchema Schema of the table.
+	 * @param tableName Name of the table.
+	 * @param handler Handler for the names of the collatable columns, in lower case.
+	 */
+	public static void collatableColumns(SQLConnection connection, String tableSchema, String tableName, Handler<AsyncResult<Set<String>>> handler)
+	{
+		String table = "\"" + tableSchema.toLowerCase().replace("\"", "\"\"") + "\".\"" + tableName.toLowerCase().replace("\"", "\"\"") + "\"";
+
+		connection.queryWithParams(COLLATABLE_COLUMNS_QUERY, new JsonArray().add(table), result -> {
+			if (result.failed())
+			{
+				handler.handle(Future.failedFuture(result.cause()));
+				return;
+			}
+
+			Set<String> columns = new HashSet<>();
+			result.result().getResults().forEach(row -> columns.add(row.getString(0).toLowerCase()));
+			handler.handle(Future.succeededFuture(columns));
+		});
+	}
+
+	/**
+	 *
+	 * Rewrites an order clause so the parts sort their text columns the way the merge compares them: each collatable column gets COLLATE "C".
+	 *
+	 * @param orderBy Order clause ("col1 DESC, col2 ASC NULLS FIRST").
+	 * @param collatableColumns Names of the collatable columns of the table, in lower case (see collatableColumns).
+	 * @return The order clause, with COLLATE "C" after every collatable column ("col1 COLLATE \"C\" DESC, col2 ASC NULLS FIRST").
+	 */
+	public static String collatedOrder(String orderBy, Set<String> collatableColumns)
+	{
+		List<String> items = new ArrayList<>();
+
+		for (String item : orderBy.split(","))
+		{
+			String[] parts = item.trim().split("\\s+", 2);
+
+			if (collatableColumns.contains(parts[0].replace("\"", "").toLowerCase()))
+			{
+				items.add(parts[0] + " COLLATE \"C\"" + (parts.length > 1 ? " " + parts[1] : ""));
+			}
+			else
+			{
+				items.add(item.trim());
+			}
+		}
+		return String.join(", ", items);
+	}
+
+	/**
+	 *
+	 * Builds the comparator of rows for an order clause.
+	 *
+	 * @param columnNames Names of the selected columns, in row order.
+	 * @param orderBy Order clause ("col1 DESC, col2 ASC").
+	 * @return Comparator of rows following the order.
+	 */
+	private static Comparator<JsonArray> comparatorFor(List<String> columnNames, String orderBy)
+	{
+		List<OrderColumn> columns = new ArrayList<>();
+
+		for (String item : orderBy.split(","))
+		{
+			String[] parts = item.trim().split("\\s+");
+			String name = parts[0].replace("\"", "");
+			int index = -1;
+
+			for (int i = 0; i < columnNames.size(); i++)
+			{
+				if (columnNames.get(i).equalsIgnoreCase(name))
+				{
+					index = i;
+				}
+			}
+
+			if (index < 0)
+			{
+				throw new IllegalArgumentException(name);
+			}
+			columns.add(new OrderColumn(index, parts.length > 1 && parts[1].equalsIgnoreCase("DESC")));
+		}
+
+		return (a, b) -> {
+			for (OrderColumn column : columns)
+			{
+				int comparison = compareValues(a.getValue(column.index), b.getValue(column.index));
+				if (comparison != 0)
+				{
+					return column.descending ? -comparison : comparison;
+				}
+			}
+			return 0;
+		};
+	}
+
+	/**
+	 *
+	 * @param a First value.
+	 * @param b Second value.
+	 * @return Comparison of the values, with nulls after every other value.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static int compareValues(Object a, Object b)
+	{
+		if (a == null || b == null)
+		{
+			return a == b ? 0 : (a == null ? 1 : -1);
+		}
+		if (a instanceof Number && b instanceof Number)
+		{
+			if (isFinite((Number) a) && isFinite((Number) b))
+			{
+				return new BigDecimal(a.toString()).compareTo(new BigDecimal(b.toString()));
+			}
+			return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+		}
+		if (a instanceof String && b instanceof String)
+		{
+			return compareCodePoints((String) a, (String) b);
+		}
+		if (a instanceof Comparable && a.getClass() == b.getClass())
+		{
+			return ((Comparable) a).compareTo(b);
+		}
+		return compareCodePoints(a.toString(), b.toString());
+	}
+
+	/**
+	 *
+	 * @param number A number of a row.
+	 * @return false for NaN and the infinities (which only floating point values hold), true otherwise.
+	 */
+	private static boolean isFinite(Number number)
+	{
+		return !(number instanceof Double || number instanceof Float) || Double.isFinite(number.doubleValue());
+	}
+
+	/**
+	 *
+	 * @param a First text.
+	 * @param b Second text.
+	 * @return Comparison of the texts by code point, as the "C" collation orders them in a UTF8 database
+	 * (String.compareTo compares UTF-16 units, which puts characters above U+FFFF before U+E000-U+FFFF).
+	 */
+	private static int compareCodePoints(String a, String b)
+	{
+		int i = 0;
+		int j = 0;
+
+		while (i < a.length() && j < b.length())
+		{
+			int codePointA = a.codePointAt(i);
+			int codePointB = b.codePointAt(j);
+
+			if (codePointA != codePointB)
+			{
+				return Integer.compare(codePointA, codePointB);
+			}
+			i += Character.charCount(codePointA);
+			j += Character.charCount(codePointB);
+		}
+		return Integer.compare(a.length() - i, b.length() - j);
+	}
+}
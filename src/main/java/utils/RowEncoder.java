@@ -0,0 +1,411 @@
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Array;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+import enums.MediaTypes;
+
+/**
+ *
+ * Class encoding the rows of a JDBC ResultSet straight into the media type of a response (see BodyCodec), according to the type of each column.
+ *
+ * The JDBC client hands rows over as JsonArrays, losing the column types on the way: jsonb comes out as a string to be parsed again by the caller,
+ * numeric as a double, and bytea as base64 text. Here, each value is read with the getter matching its column type and written as is:
+ * - json and jsonb: their text is embedded in JSON responses as a nested document, without being parsed (as a string in CBOR and MessagePack).
+ * - numeric: as an exact number, from the text PostgreSQL sends (a decimal fraction in CBOR; in MessagePack, a string when it isn't an integer). NaN and infinities are written as strings.
+ * - integers, floating point and booleans: as numbers and booleans, float4 without being widened to a double. NaN and infinities are strings in JSON.
+ * - timestamptz, timestamp and date: as ISO 8601 strings, formatted into a buffer reused across rows.
+ * - bytea: as base64 in JSON, as a byte string in CBOR and MessagePack. Large values are better downloaded through /bytea (see GetByteaHandler).
+ * - arrays: as arrays of their elements.
+ * - Anything else: as its text.
+ *
+ * An encoder keeps its generator and buffers from row to row, so it must only be used by one thread at a time. The column types are read from the first row it encodes.
+ *
+ * @author pedrolourenco
+ *
+ */
+public class RowEncoder
+{
+	private static final JsonFactory JSON_FACTORY = new JsonFactory().setRootValueSeparator(null);
+	private static final JsonFactory CBOR_FACTORY = new CBORFactory();
+	private static final JsonFactory MSGPACK_FACTORY = new MessagePackFactory();
+
+	private enum Kind { JSON_TEXT, NUMERIC, INTEGER, FLOAT4, FLOAT8, BOOLEAN, TIMESTAMPTZ, TIMESTAMP, DATE, BYTEA, ARRAY, TEXT }
+
+	private final MediaTypes format;
+	private final ByteArrayOutputStream output = new ByteArrayOutputStream(256);
+	private final JsonGenerator generator;
+	private final StringBuilder formatted = new StringBuilder(40);
+	private char[] characters = new char[40];
+	private Kind[] kinds;
+
+	/**
+	 *
+	 * @param format Media type to encode the rows in.
+	 */
+	public RowEncoder(MediaTypes format)
+	{
+		this.format = format;
+
+		try
+		{
+			this.generator = factoryFor(format).createGenerator(output);
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("Failed to create a " + format.getValue() + " generator: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 *
+	 * @param row ResultSet positioned on the row to encode.
+	 * @return The row encoded as an array of its values, like BodyCodec.encodeRow.
+	 * @throws SQLException if a value couldn't be read.
+	 * @throws IOException if a value couldn't be encoded.
+	 */
+	public byte[] encode(ResultSet row) throws SQLException, IOException
+	{
+		if (kinds == null)
+		{
+			kinds = kindsOf(row.getMetaData());
+		}
+
+		generator.writeStartArray();
+		for (int i = 0; i < kinds.length; i++)
+		{
+			writeValue(row, i + 1, kinds[i]);
+		}
+		generator.writeEndArray();
+		generator.flush();
+
+		byte[] encoded = output.toByteArray();
+		output.reset();
+		return encoded;
+	}
+
+	/**
+	 *
+	 * Reads a value with the getter of its kind, and writes it.
+	 *
+	 * @param row ResultSet positioned on the row.
+	 * @param column Index of the column (starting at 1).
+	 * @param kind Kind of the column.
+	 * @throws SQLException if the value couldn't be read.
+	 * @throws IOException if the value couldn't be written.
+	 */
+	private void writeValue(ResultSet row, int column, Kind kind) throws SQLException, IOException
+	{
+		switch (kind)
+		{
+			case JSON_TEXT:
+				writeJsonText(row.getString(column));
+				return;
+			case NUMERIC:
+				writeNumeric(row.getString(column));
+				return;
+			case INTEGER:
+				long integer = row.getLong(column);
+				if (row.wasNull())
+				{
+					generator.writeNull();
+				}
+				else
+				{
+					generator.writeNumber(integer);
+				}
+				return;
+			case FLOAT4:
+				float real = row.getFloat(column);
+				if (row.wasNull())
+				{
+					generator.writeNull();
+				}
+				else
+				{
+					generator.writeNumber(real);
+				}
+				return;
+			case FLOAT8:
+				double doublePrecision = row.getDouble(column);
+				if (row.wasNull())
+				{
+					generator.writeNull();
+				}
+				else
+				{
+					generator.writeNumber(doublePrecision);
+				}
+				return;
+			case BOOLEAN:
+				boolean bool = row.getBoolean(column);
+				if (row.wasNull())
+				{
+					generator.writeNull();
+				}
+				else
+				{
+					generator.writeBoolean(bool);
+				}
+				return;
+			case TIMESTAMPTZ:
+				writeTemporal(row.getObject(column, OffsetDateTime.class), DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+				return;
+			case TIMESTAMP:
+				writeTemporal(row.getObject(column, LocalDateTime.class), DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+				return;
+			case DATE:
+				writeTemporal(row.getObject(column, LocalDate.class), DateTimeFormatter.ISO_LOCAL_DATE);
+				return;
+			case BYTEA:
+				byte[] bytes = row.getBytes(column);
+				if (bytes == null)
+				{
+					generator.writeNull();
+				}
+				else
+				{
+					generator.writeBinary(bytes);
+				}
+				return;
+			case ARRAY:
+				Array array = row.getArray(column);
+				if (array == null)
+				{
+					generator.writeNull();
+				}
+				else
+				{
+					writeElements((Object[]) array.getArray());
+				}
+				return;
+			default:
+				String text = row.getString(column);
+				if (text == null)
+				{
+					generator.writeNull();
+				}
+				else
+				{
+					generator.writeString(text);
+				}
+		}
+	}
+
+	/**
+	 *
+	 * @param text Text of a json or jsonb value, or null.
+	 * @throws IOException if the value couldn't be written.
+	 */
+	private void writeJsonText(String text) throws IOException
+	{
+		if (text == null)
+		{
+			generator.writeNull();
+		}
+		else if (format == MediaTypes.JSON)
+		{
+			generator.writeRawValue(text);
+		}
+		else
+		{
+			generator.writeString(text);
+		}
+	}
+
+	/**
+	 *
+	 * @param text Text of a numeric value, as PostgreSQL sends it (exact, never in exponent notation, NaN and infinities spelled out), or null.
+	 * @throws IOException if the value couldn't be written.
+	 */
+	private void writeNumeric(String text) throws IOException
+	{
+		if (text == null)
+		{
+			generator.writeNull();
+		}
+		else if (Character.isLetter(text.charAt(text.length() - 1)))
+		{
+			generator.writeString(text);
+		}
+		else if (format == MediaTypes.JSON)
+		{
+			generator.writeNumber(text);
+		}
+		else if (format == MediaTypes.CBOR)
+		{
+			generator.writeNumber(new BigDecimal(text));
+		}
+		else if (text.indexOf('.') < 0 && text.length() < 19)
+		{
+			generator.writeNumber(Long.parseLong(text));
+		}
+		else
+		{
+			generator.writeString(text);
+		}
+	}
+
+	/**
+	 *
+	 * Formats a date or time into the reused buffer, and writes it from there as a string.
+	 *
+	 * @param value Value to write, or null.
+	 * @param formatter ISO formatter of its type.
+	 * @throws IOException if the value couldn't be written.
+	 */
+	private void writeTemporal(TemporalAccessor value, DateTimeFormatter formatter) throws IOException
+	{
+		if (value == null)
+		{
+			generator.writeNull();
+			return;
+		}
+
+		formatted.setLength(0);
+		formatter.formatTo(value, formatted);
+
+		if (characters.length < formatted.length())
+		{
+			characters = new char[formatted.length()];
+		}
+		formatted.getChars(0, formatted.length(), characters, 0);
+		generator.writeString(characters, 0, formatted.length());
+	}
+
+	/**
+	 *
+	 * @param elements Elements of an array value (arrays themselves, for multidimensional arrays).
+	 * @throws IOException if an element couldn't be written.
+	 */
+	private void writeElements(Object[] elements) throws IOException
+	{
+		generator.writeStartArray();
+		for (Object element : elements)
+		{
+			if (element == null)
+			{
+				generator.writeNull();
+			}
+			else if (element instanceof Object[])
+			{
+				writeElements((Object[]) element);
+			}
+			else if (element instanceof BigDecimal)
+			{
+				writeNumeric(((BigDecimal) element).toPlainString());
+			}
+			else if (element instanceof Double || element instanceof Float)
+			{
+				generator.writeNumber(((Number) element).doubleValue());
+			}
+			else if (element instanceof Number)
+			{
+				generator.writeNumber(((Number) element).longValue());
+			}
+			else if (element instanceof Boolean)
+			{
+				generator.writeBoolean((Boolean) element);
+			}
+			else if (element instanceof byte[])
+			{
+				generator.writeBinary((byte[]) element);
+			}
+			else
+			{
+				generator.writeString(element.toString());
+			}
+		}
+		generator.writeEndArray();
+	}
+
+	/**
+	 *
+	 * @param metaData Metadata of the result.
+	 * @return The kind of each column, from its PostgreSQL type name.
+	 * @throws SQLException if the metadata couldn't be read.
+	 */
+	private static Kind[] kindsOf(ResultSetMetaData metaData) throws SQLException
+	{
+		Kind[] kinds = new Kind[metaData.getColumnCount()];
+
+		for (int i = 0; i < kinds.length; i++)
+		{
+			kinds[i] = metaData.getColumnType(i + 1) == Types.ARRAY ? Kind.ARRAY : kindOf(metaData.getColumnTypeName(i + 1));
+		}
+		return kinds;
+	}
+
+	/**
+	 *
+	 * @param typeName PostgreSQL type name of a column.
+	 * @return Its kind.
+	 */
+	private static Kind kindOf(String typeName)
+	{
+		switch (typeName)
+		{
+			case "json":
+			case "jsonb":
+				return Kind.JSON_TEXT;
+			case "numeric":
+				return Kind.NUMERIC;
+			case "int2":
+			case "int4":
+			case "int8":
+			case "oid":
+				return Kind.INTEGER;
+			case "float4":
+				return Kind.FLOAT4;
+			case "float8":
+				return Kind.FLOAT8;
+			case "bool":
+				return Kind.BOOLEAN;
+			case "timestamptz":
+				return Kind.TIMESTAMPTZ;
+			case "timestamp":
+				return Kind.TIMESTAMP;
+			case "date":
+				return Kind.DATE;
+			case "bytea":
+				return Kind.BYTEA;
+			default:
+				return Kind.TEXT;
+		}
+	}
+
+	/**
+	 *
+	 * @param format Media type of the rows.
+	 * @return The factory of the generators of the media type.
+	 */
+	private static JsonFactory factoryFor(MediaTypes format)
+	{
+		switch (format)
+		{
+			case CBOR:
+				return CBOR_FACTORY;
+			case MSGPACK:
+				return MSGPACK_FACTORY;
+			default:
+				return JSON_FACTORY;
+		}
+	}
+}
@@ -0,0 +1,323 @@
+package utils;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ *
+ * Class writing the values of a request as SQL literals, to build the statements sent to the database (mainly the VALUES of the Insert Handler).
+ *
+ * Values are written according to their type, straight into a buffer reused by every statement built on the same thread:
+ * - null: null.
+ * - Integers and booleans: as is, without going through a String.
+ * - Floating point: as is, except NaN and infinities, which are quoted (as PostgreSQL spells them). BigDecimal and BigInteger through their plain text.
+ * - Strings: quoted, with embedded quotes doubled. Strings holding backslashes are written as escape strings (E'...'), with the backslashes doubled too,
+ *   so the literal means the same whatever standard_conforming_strings is set to.
+ * - Byte strings (from CBOR and MessagePack bodies, see BodyCodec): bytea literals in hex form (E'\\x...'::bytea).
+ * - Instants: quoted ISO 8601, formatted straight into the buffer.
+ * - Arrays: ARRAY[...] of their elements ('{}' when empty, so the column gives it a type). Objects: their JSON text, quoted, for json and jsonb columns.
+ * - Anything else: its text, quoted.
+ *
+ * The buffer starts at INITIAL_CAPACITY characters, is grown once per statement to an estimate of its size, and kept for the next statement unless it grew past
+ * MAX_RETAINED_CAPACITY. Writing a value allocates nothing, except for the text of the types listed above as going through it.
+ *
+ * @author pedrolourenco
+ *
+ */
+public class SQLLiteralWriter
+{
+	private static final int INITIAL_CAPACITY = 16 * 1024;
+	private static final int MAX_RETAINED_CAPACITY = 4 * 1024 * 1024;
+	private static final int ESTIMATED_CHARS_PER_VALUE = 12;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private static final ThreadLocal<SQLLiteralWriter> WRITERS = ThreadLocal.withInitial(SQLLiteralWriter::new);
+
+	private StringBuilder sql = new StringBuilder(INITIAL_CAPACITY);
+
+	/**
+	 *
+	 * Builds an insert statement of rows of values, in the form: INSERT INTO table (columns) VALUES (value1,value2,...),\n(value1,value2,...)\n;
+	 *
+	 * @param table Table to insert into (schema.name).
+	 * @param columns Comma separated columns to insert.
+	 * @param rows JsonArray of rows, each one a JsonArray of values (in the order of the columns).
+	 * @return The statement.
+	 */
+	public static String insertSQL(String table, String columns, JsonArray rows)
+	{
+		SQLLiteralWriter writer = WRITERS.get().reset(estimateLength(rows));
+
+		writer.sql.append("INSERT INTO ").append(table).append(" (").append(columns).append(") VALUES ");
+		writer.writeRows(rows.getList());
+		return writer.finish(";");
+	}
+
+	/**
+	 *
+	 * Empties the buffer, and makes room for a statement of the given length at once.
+	 *
+	 * @param expectedLength Expected length of the statement, in characters.
+	 * @return This writer.
+	 */
+	private SQLLiteralWriter reset(int expectedLength)
+	{
+		sql.setLength(0);
+		sql.ensureCapacity(expectedLength);
+		return this;
+	}
+
+	/**
+	 *
+	 * @param suffix Text to end the statement with.
+	 * @return The statement. The buffer is dropped if it grew too large to be worth keeping.
+	 */
+	private String finish(String suffix)
+	{
+		String statement = sql.append(suffix).toString();
+
+		if (sql.capacity() > MAX_RETAINED_CAPACITY)
+		{
+			sql = new StringBuilder(INITIAL_CAPACITY);
+		}
+		else
+		{
+			sql.setLength(0);
+		}
+		return statement;
+	}
+
+	/**
+	 *
+	 * @param rows Rows to write (each one a List or JsonArray of values; anything else is written as a row of one value).
+	 */
+	private void writeRows(List<?> rows)
+	{
+		for (int i = 0; i < rows.size(); i++)
+		{
+			List<?> row = rowOf(rows.get(i));
+
+			sql.append('(');
+			for (int j = 0; j < row.size(); j++)
+			{
+				if (j > 0)
+				{
+					sql.append(',');
+				}
+				writeValue(row.get(j));
+			}
+			sql.append(i < rows.size() - 1 ? "),\n" : ")\n");
+		}
+	}
+
+	/**
+	 *
+	 * Writes a value as a SQL literal, as described above.
+	 *
+	 * @param value Value to write.
+	 */
+	private void writeValue(Object value)
+	{
+		if (value == null)
+		{
+			sql.append("null");
+		}
+		else if (value instanceof String)
+		{
+			writeString((String) value);
+		}
+		else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)
+		{
+			sql.append(((Number) value).longValue());
+		}
+		else if (value instanceof Double || value instanceof Float)
+		{
+			writeFloatingPoint(((Number) value).doubleValue());
+		}
+		else if (value instanceof Boolean)
+		{
+			sql.append(((Boolean) value).booleanValue());
+		}
+		else if (value instanceof BigDecimal)
+		{
+			sql.append(((BigDecimal) value).toPlainString());
+		}
+		else if (value instanceof Number)
+		{
+			sql.append(value.toString());
+		}
+		else if (value instanceof byte[])
+		{
+			writeBytes((byte[]) value);
+		}
+		else if (value instanceof Instant)
+		{
+			sql.append('\'');
+			DateTimeFormatter.ISO_INSTANT.formatTo((Instant) value, sql);
+			sql.append('\'');
+		}
+		else if (value instanceof List || value instanceof JsonArray)
+		{
+			writeArray(listOf(value));
+		}
+		else if (value instanceof Map || value instanceof JsonObject)
+		{
+			writeString(value instanceof Map ? new JsonObject(castMap(value)).encode() : ((JsonObject) value).encode());
+		}
+		else
+		{
+			writeString(value.toString());
+		}
+	}
+
+	/**
+	 *
+	 * @param value String to write, quoted and escaped.
+	 */
+	private void writeString(String value)
+	{
+		boolean backslashes = value.indexOf('\\') >= 0;
+
+		sql.append(backslashes ? "E'" : "'");
+		for (int i = 0; i < value.length(); i++)
+		{
+			char character = value.charAt(i);
+
+			if (character == '\'' || (backslashes && character == '\\'))
+			{
+				sql.append(character);
+			}
+			sql.append(character);
+		}
+		sql.append('\'');
+	}
+
+	/**
+	 *
+	 * @param value Floating point number to write, quoted if PostgreSQL only reads it from a string.
+	 */
+	private void writeFloatingPoint(double value)
+	{
+		if (Double.isNaN(value))
+		{
+			sql.append("'NaN'");
+		}
+		else if (Double.isInfinite(value))
+		{
+			sql.append(value > 0 ? "'Infinity'" : "'-Infinity'");
+		}
+		else
+		{
+			sql.append(value);
+		}
+	}
+
+	/**
+	 *
+	 * @param value Byte string to write as a bytea literal in hex form.
+	 */
+	private void writeBytes(byte[] value)
+	{
+		sql.ensureCapacity(sql.length() + value.length * 2 + 12);
+		sql.append("E'\\\\x");
+		for (byte b : value)
+		{
+			sql.append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+		}
+		sql.append("'::bytea");
+	}
+
+	/**
+	 *
+	 * @param elements Elements of an array to write (arrays themselves, for multidimensional arrays).
+	 */
+	private void writeArray(List<?> elements)
+	{
+		if (elements.isEmpty())
+		{
+			sql.append("'{}'");
+			return;
+		}
+
+		sql.append("ARRAY");
+		writeNestedArray(elements);
+	}
+
+	/**
+	 *
+	 * @param elements Elements of an array, between brackets (inner arrays of a multidimensional array go without the ARRAY keyword, as PostgreSQL expects them).
+	 */
+	private void writeNestedArray(List<?> elements)
+	{
+		sql.append('[');
+		for (int i = 0; i < elements.size(); i++)
+		{
+			if (i > 0)
+			{
+				sql.append(',');
+			}
+			Object element = elements.get(i);
+			if (element instanceof List || element instanceof JsonArray)
+			{
+				writeNestedArray(listOf(element));
+			}
+			else
+			{
+				writeValue(element);
+			}
+		}
+		sql.append(']');
+	}
+
+	/**
+	 *
+	 * @param rows Rows of an insert.
+	 * @return Expected length of their statement: ESTIMATED_CHARS_PER_VALUE per value, from the size of the first row.
+	 */
+	private static int estimateLength(JsonArray rows)
+	{
+		if (rows.isEmpty())
+		{
+			return 0;
+		}
+		long values = (long) rows.size() * rowOf(rows.getList().get(0)).size();
+		return (int) Math.min(Integer.MAX_VALUE - 8, values * ESTIMATED_CHARS_PER_VALUE + 256);
+	}
+
+	/**
+	 *
+	 * @param row Row of an insert.
+	 * @return Its values, or the row itself as its only value if it isn't an array.
+	 */
+	private static List<?> rowOf(Object row)
+	{
+		return row instanceof List || row instanceof JsonArray ? listOf(row) : Collections.singletonList(row);
+	}
+
+	/**
+	 *
+	 * @param value A List, or a JsonArray (as the values of a body come, depending on how it was built).
+	 * @return The values as a List, without copying them.
+	 */
+	private static List<?> listOf(Object value)
+	{
+		return value instanceof JsonArray ? ((JsonArray) value).getList() : (List<?>) value;
+	}
+
+	/**
+	 *
+	 * @param value A Map of a body.
+	 * @return The same Map, typed for JsonObject.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> castMap(Object value)
+	{
+		return (Map<String, Object>) value;
+	}
+}
@@ -0,0 +1,523 @@
+package utils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.logging.log4j.Logger;
+import org.postgresql.PGConnection;
+
+import enums.Messages;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.ext.sql.SQLConnection;
+
+/**
+ *
+ * Class running export jobs: dumps of every table of a schema, all read from the same snapshot, into a single compressed archive on local disk.
+ *
+ * A job goes like this:
+ * 1 - A leader connection opens a REPEATABLE READ transaction, exports its snapshot (pg_export_snapshot) and lists the tables of the schema, largest first.
+ * 2 - Up to max_connections connections (the leader and others importing its snapshot with SET TRANSACTION SNAPSHOT) take tables from a shared queue,
+ *     and stream each one with COPY ... TO STDOUT (CSV, with header) into its own gzip file. Compression runs on every connection's thread, in parallel.
+ * 3 - Once every table is done, the gzip files are stored, as they are, into a zip archive (<job>.zip) next to a manifest.json with the snapshot and row counts.
+ *
+ * Tables are read as of the same moment, so the archive is consistent across tables. Partitions are read through their parent table.
+ * COPY runs through the PostgreSQL driver's copy API, which is blocking, so jobs run on their own worker pool and connection pool, apart from the bulkheads.
+ *
+ * 	"schema_export": {
+ * 		"directory": "exports",
+ * 		"max_connections": 4,
+ * 		"max_jobs": 2
+ * 	}
+ *
+ * @author pedrolourenco
+ *
+ */
+public class SchemaExport implements ExportJobs<SchemaExport.Job>
+{
+	private static final String TABLES_QUERY = "SELECT c.relname FROM pg_class c\n"
+			+ "			JOIN pg_namespace n ON n.oid = c.relnamespace\n"
+			+ "			WHERE n.nspname = ? AND c.relkind IN ('r', 'p') AND NOT c.relispartition\n"
+			+ "			ORDER BY pg_total_relation_size(c.oid) DESC, c.relname;";
+
+	private final JDBCClient client;
+	private final WorkerExecutor workerExecutor;
+	private final File directory;
+	private final int maxConnections;
+	private final int maxJobs;
+	private final AtomicInteger running = new AtomicInteger();
+	private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+	private final Logger logger;
+
+	/**
+	 *
+	 * State of an export job, as reported to the caller.
+	 */
+	public static class Job implements ExportJobs.Job
+	{
+		private final String id;
+		private final String schemaName;
+		private final long startedAtMillis = System.currentTimeMillis();
+		private final Map<String, Long> rows = new ConcurrentHashMap<>();
+		private final Map<String, long[]> parts = new ConcurrentHashMap<>();
+		private volatile List<String> tables = new ArrayList<>();
+		private volatile String status = "running";
+		private volatile String snapshot;
+		private volatile String error;
+		private volatile long finishedAtMillis;
+		private volatile long archiveSize;
+
+		private Job(String id, String schemaName)
+		{
+			this.id = id;
+			this.schemaName = schemaName;
+		}
+
+		@Override
+		public String getId()
+		{
+			return id;
+		}
+
+		public String getSchemaName()
+		{
+			return schemaName;
+		}
+
+		/**
+		 *
+		 * @return true once the archive is written, false while running or if the job failed.
+		 */
+		@Override
+		public boolean isDone()
+		{
+			return status.equals("done");
+		}
+
+		@Override
+		public long getFileSize()
+		{
+			return archiveSize;
+		}
+
+		@Override
+		public String getContentType()
+		{
+			return "application/zip";
+		}
+
+		@Override
+		public String getFileName()
+		{
+			return schemaName + ".zip";
+		}
+
+		@Override
+		public long getFinishedAtMillis()
+		{
+			return finishedAtMillis;
+		}
+
+		/**
+		 *
+		 * @return Status of the job: its state ("running", "done" or "failed"), snapshot, tables with the rows exported so far, and archive size or error.
+		 */
+		@Override
+		public JsonObject toJson()
+		{
+			JsonObject tableRows = new JsonObject();
+			tables.forEach(table -> tableRows.put(table, rows.get(table)));
+
+			return new JsonObject()
+					.put("job", id)
+					.put("schema", schemaName)
+					.put("status", status)
+					.put("snapshot", snapshot)
+					.put("tables", tableRows)
+					.put("startedAt", startedAtMillis)
+					.put("finishedAt", finishedAtMillis == 0 ? null : finishedAtMillis)
+					.put("archiveSize", isDone() ? archiveSize : null)
+					.put("error", error);
+		}
+	}
+
+	/**
+	 *
+	 * @param vertx Vertx instance the export pool and worker pool are created on.
+	 * @param config Application configuration, containing the database settings and the "schema_export" section.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public SchemaExport(Vertx vertx, JsonObject config, Logger logger)
+	{
+		JsonObject settings = config.getJsonObject("schema_export", new JsonObject());
+
+		this.maxConnections = Math.max(1, settings.getInteger("max_connections", 4));
+		this.maxJobs = settings.getInteger("max_jobs", 2);
+		this.directory = new File(settings.getString("directory", "exports"));
+		this.client = JDBCClient.createShared(vertx, config.copy().put("max_pool_size", maxConnections * maxJobs), "PostgreSQL-schema-export");
+		this.workerExecutor = vertx.createSharedWorkerExecutor("schema-export", maxConnections * maxJobs, Long.MAX_VALUE);
+		this.logger = logger;
+	}
+
+	/**
+	 *
+	 * Starts an export job for a schema. The handler is called as soon as the job is registered, and the export goes on in the background.
+	 *
+	 * @param schemaName Schema to export.
+	 * @param handler Handler for the job, failed with an IllegalStateException if max_jobs jobs are already running.
+	 */
+	public void start(String schemaName, Handler<AsyncResult<Job>> handler)
+	{
+		if (running.incrementAndGet() > maxJobs)
+		{
+			running.decrementAndGet();
+			handler.handle(Future.failedFuture(new IllegalStateException(Messages.EXPORT_JOBS_FULL_ERROR.getValue() + maxJobs)));
+			return;
+		}
+
+		Job job = new Job(UUID.randomUUID().toString(), schemaName);
+		jobs.put(job.id, job);
+		handler.handle(Future.succeededFuture(job));
+
+		logger.info("SchemaExport - Starting export job " + job.id + " of schema " + schemaName);
+
+		client.getConnection(connection -> {
+			if (connection.failed())
+			{
+				finish(job, connection.cause());
+				return;
+			}
+			export(job, connection.result());
+		});
+	}
+
+	/**
+	 *
+	 * @param id Identifier of the job.
+	 * @return The job, or null if there is no such job.
+	 */
+	@Override
+	public Job getJob(String id)
+	{
+		return jobs.get(id);
+	}
+
+	/**
+	 *
+	 * @param job Job whose archive is wanted.
+	 * @return Path of the job's archive.
+	 */
+	@Override
+	public String filePath(Job job)
+	{
+		return new File(directory, job.id + ".zip").getPath();
+	}
+
+	/**
+	 *
+	 * Closes the export pool and worker pool. Jobs still running fail.
+	 */
+	public void close()
+	{
+		client.close();
+		workerExecutor.close();
+	}
+
+	/**
+	 *
+	 * Runs a job: opens the snapshot on the leader connection, spreads the tables over the connections and writes the archive once every table is done.
+	 *
+	 * @param job Job to run.
+	 * @param leader Leader connection.
+	 */
+	@SuppressWarnings("rawtypes")
+	private void export(Job job, SQLConnection leader)
+	{
+		File partsDirectory = new File(directory, job.id);
+
+		workerExecutor.<List<String>>executeBlocking(blocking -> {
+			try
+			{
+				Connection jdbcConnection = leader.unwrap();
+				jdbcConnection.setAutoCommit(false);
+
+				try (Statement statement = jdbcConnection.createStatement();
+						PreparedStatement tablesStatement = jdbcConnection.prepareStatement(TABLES_QUERY))
+				{
+					statement.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+					ResultSet snapshotResult = statement.executeQuery("SELECT pg_export_snapshot();");
+					snapshotResult.next();
+					job.snapshot = snapshotResult.getString(1);
+
+					List<String> tables = new ArrayList<>();
+					tablesStatement.setString(1, job.schemaName);
+					ResultSet tablesResult = tablesStatement.executeQuery();
+					while (tablesResult.next())
+					{
+						tables.add(tablesResult.getString(1));
+					}
+					Files.createDirectories(partsDirectory.toPath());
+					blocking.complete(tables);
+				}
+			}
+			catch (SQLException | IOException e)
+			{
+				blocking.fail(e);
+			}
+		}, false, listing -> {
+			if (listing.failed())
+			{
+				endTransaction(leader);
+				finish(job, listing.cause());
+				return;
+			}
+
+			job.tables = listing.result();
+			Queue<String> queue = new ConcurrentLinkedQueue<>(job.tables);
+			int connections = Math.max(1, Math.min(maxConnections, job.tables.size()));
+			List<Future> copies = new ArrayList<>();
+
+			logger.info("SchemaExport - Job " + job.id + ": " + job.tables.size() + " tables over " + connections + " connections, snapshot " + job.snapshot);
+
+			Future<Void> leaderCopy = Future.future();
+			copies.add(leaderCopy);
+			copyTables(job, leader, null, queue, partsDirectory, leaderCopy);
+
+			for (int i = 1; i < connections; i++)
+			{
+				Future<Void> copy = Future.future();
+				copies.add(copy);
+
+				client.getConnection(connection -> {
+					if (connection.failed())
+					{
+						queue.clear();
+						copy.fail(connection.cause());
+						return;
+					}
+
+					Future<Void> copied = Future.future();
+					copied.setHandler(result -> {
+						endTransaction(connection.result());
+						copy.handle(result);
+					});
+					copyTables(job, connection.result(), job.snapshot, queue, partsDirectory, copied);
+				});
+			}
+
+			//The leader's transaction holds the snapshot, so it is only closed once every other connection is done with it
+			CompositeFuture.join(copies).setHandler(joined -> {
+				endTransaction(leader);
+
+				if (joined.failed())
+				{
+					finish(job, joined.cause());
+					return;
+				}
+				writeArchive(job, partsDirectory);
+			});
+		});
+	}
+
+	/**
+	 *
+	 * Copies tables taken from the queue, one after the other, into their own gzip files, until the queue is empty.
+	 * If a copy fails, the queue is cleared so the other connections stop after their current table.
+	 *
+	 * @param job Job the tables are for.
+	 * @param connection SQLConnection to copy on.
+	 * @param snapshot Snapshot to import before copying, or null if the connection already holds it (the leader).
+	 * @param queue Tables left to copy.
+	 * @param partsDirectory Directory of the job's gzip files.
+	 * @param done Future completed once the queue is empty.
+	 */
+	private void copyTables(Job job, SQLConnection connection, String snapshot, Queue<String> queue, File partsDirectory, Future<Void> done)
+	{
+		workerExecutor.<Void>executeBlocking(blocking -> {
+			try
+			{
+				Connection jdbcConnection = connection.unwrap();
+
+				if (snapshot != null)
+				{
+					jdbcConnection.setAutoCommit(false);
+					try (Statement statement = jdbcConnection.createStatement())
+					{
+						statement.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+						statement.execute("SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+					}
+				}
+
+				String table;
+				while ((table = queue.poll()) != null)
+				{
+					File part = new File(partsDirectory, partName(table));
+					CRC32 checksum = new CRC32();
+					String sql = "COPY (SELECT * FROM \"" + job.schemaName.replace("\"", "\"\"") + "\".\"" + table.replace("\"", "\"\"") + "\") TO STDOUT WITH (FORMAT csv, HEADER)";
+
+					try (OutputStream out = new GZIPOutputStream(new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(part)), checksum), 1 << 16))
+					{
+						job.rows.put(table, jdbcConnection.unwrap(PGConnection.class).getCopyAPI().copyOut(sql, out));
+					}
+					job.parts.put(table, new long[] { part.length(), checksum.getValue() });
+				}
+				blocking.complete();
+			}
+			catch (SQLException | IOException e)
+			{
+				queue.clear();
+				blocking.fail(e);
+			}
+		}, false, done);
+	}
+
+	/**
+	 *
+	 * Writes the job's archive: every gzip file stored as is (they are already compressed), followed by the manifest.
+	 * The archive is written under a temporary name and renamed once complete, so a download never sees a partial archive.
+	 *
+	 * @param job Job whose archive is written.
+	 * @param partsDirectory Directory of the job's gzip files, removed once the archive is written.
+	 */
+	private void writeArchive(Job job, File partsDirectory)
+	{
+		File archive = new File(filePath(job));
+		File partial = new File(directory, job.id + ".zip.partial");
+
+		workerExecutor.<Void>executeBlocking(blocking -> {
+			try
+			{
+				try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(partial), 1 << 16)))
+				{
+					Map<String, Object> tableRows = new LinkedHashMap<>();
+
+					for (String table : job.tables)
+					{
+						File part = new File(partsDirectory, partName(table));
+						long[] sizeAndChecksum = job.parts.get(table);
+
+						ZipEntry entry = new ZipEntry(partName(table));
+						entry.setMethod(ZipEntry.STORED);
+						entry.setSize(sizeAndChecksum[0]);
+						entry.setCompressedSize(sizeAndChecksum[0]);
+						entry.setCrc(sizeAndChecksum[1]);
+						zip.putNextEntry(entry);
+						Files.copy(part.toPath(), zip);
+						zip.closeEntry();
+						Files.delete(part.toPath());
+
+						tableRows.put(table, job.rows.get(table));
+					}
+
+					zip.putNextEntry(new ZipEntry("manifest.json"));
+					zip.write(new JsonObject()
+							.put("schema", job.schemaName)
+							.put("snapshot", job.snapshot)
+							.put("startedAt", job.startedAtMillis)
+							.put("format", "csv")
+							.put("tables", new JsonObject(tableRows))
+							.encodePrettily().getBytes(StandardCharsets.UTF_8));
+					zip.closeEntry();
+				}
+				Files.move(partial.toPath(), archive.toPath());
+				Files.deleteIfExists(partsDirectory.toPath());
+				job.archiveSize = archive.length();
+				blocking.complete();
+			}
+			catch (IOException e)
+			{
+				blocking.fail(e);
+			}
+		}, false, written -> finish(job, written.failed() ? written.cause() : null));
+	}
+
+	/**
+	 *
+	 * Marks a job as finished, removing the files of a failed job.
+	 *
+	 * @param job Job to finish.
+	 * @param cause Cause of the failure, or null if the archive was written.
+	 */
+	private void finish(Job job, Throwable cause)
+	{
+		job.finishedAtMillis = System.currentTimeMillis();
+		running.decrementAndGet();
+
+		if (cause == null)
+		{
+			job.status = "done";
+			logger.info("SchemaExport - Export job " + job.id + " done: " + job.archiveSize + " bytes");
+			return;
+		}
+
+		job.status = "failed";
+		job.error = cause.toString();
+		logger.error("SchemaExport - Export job " + job.id + " failed: " + cause);
+
+		workerExecutor.<Void>executeBlocking(blocking -> {
+			File partsDirectory = new File(directory, job.id);
+			File[] parts = partsDirectory.listFiles();
+			if (parts != null)
+			{
+				for (File part : parts)
+				{
+					part.delete();
+				}
+			}
+			partsDirectory.delete();
+			new File(directory, job.id + ".zip.partial").delete();
+			blocking.complete();
+		}, false, deleted -> {});
+	}
+
+	/**
+	 *
+	 * @param table Name of a table.
+	 * @return Name of the table's gzip file, in the parts directory and in the archive (characters other than letters, digits, '.', '-' and '_' are replaced by '_').
+	 */
+	private static String partName(String table)
+	{
+		return table.replaceAll("[^\\w.\\-]", "_") + ".csv.gz";
+	}
+
+	/**
+	 *
+	 * Rolls back the transaction of a connection (exports never write), and gives the connection back to the pool.
+	 *
+	 * @param connection SQLConnection to give back.
+	 */
+	private void endTransaction(SQLConnection connection)
+	{
+		connection.rollback(rollback -> connection.setAutoCommit(true, autoCommit -> connection.close()));
+	}
+}
@@ -0,0 +1,111 @@
+package utils;
+
+import java.util.Optional;
+
+import org.apache.logging.log4j.Logger;
+
+import io.vertx.core.Handler;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ *
+ * Class designed to store the operations around session tokens, which give read-your-writes consistency on top of replica routing.
+ *
+ * A session token is the WAL position (LSN) of the primary right after a write:
+ * - Write requests carrying the header "X-Session-Consistency: read-your-writes" get the token back in the X-Session-Token response header.
+ * - Read requests carrying a X-Session-Token header are only routed to replicas that already replayed that position (or to the primary, if none did).
+ *
+ * @author pedrolourenco
+ *
+ */
+public class SessionToken
+{
+	public static final String TOKEN_HEADER = "X-Session-Token";
+	public static final String CONSISTENCY_HEADER = "X-Session-Consistency";
+	public static final String READ_YOUR_WRITES = "read-your-writes";
+
+	/**
+	 *
+	 * @param context Context from the request
+	 * @return The WAL position the request must observe, or 0 if it carries no (valid) session token.
+	 */
+	public static long minimumLsn(RoutingContext context)
+	{
+		String token = context.request().getHeader(TOKEN_HEADER);
+
+		if (!Optional.ofNullable(token).isPresent())
+		{
+			return 0;
+		}
+
+		try
+		{
+			return parseLsn(token);
+		}
+		catch (NumberFormatException e)
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 *
+	 * Adds the session token to the response of a successful write, if the caller asked for read-your-writes consistency.
+	 * The token is read from a fresh primary connection: as the write is already committed, the current WAL position of the primary is at or after it.
+	 * If the token can't be read, the response goes without it.
+	 *
+	 * @param context Context from the request
+	 * @param bulkhead Bulkhead to get the primary connection from.
+	 * @param logger Logger Instance for the method to work with.
+	 * @param next Handler to call once the token was added (or skipped).
+	 */
+	public static void issue(RoutingContext context, Bulkhead bulkhead, Logger logger, Handler<Void> next)
+	{
+		if (!READ_YOUR_WRITES.equalsIgnoreCase(context.request().getHeader(CONSISTENCY_HEADER)))
+		{
+			next.handle(null);
+			return;
+		}
+
+		bulkhead.getConnection(connection -> {
+			if (connection.failed())
+			{
+				logger.error("SessionToken - Failed to read the primary WAL position: " + connection.cause());
+				next.handle(null);
+				return;
+			}
+
+			connection.result().query("SELECT pg_current_wal_lsn()::text;", queryResult -> {
+				connection.result().close();
+
+				if (queryResult.succeeded() && !queryResult.result().getResults().isEmpty())
+				{
+					context.response().putHeader(TOKEN_HEADER, queryResult.result().getResults().get(0).getString(0));
+				}
+				else
+				{
+					logger.error("SessionToken - Failed to read the primary WAL position: " + queryResult.cause());
+				}
+				next.handle(null);
+			});
+		});
+	}
+
+	/**
+	 *
+	 * Converts a WAL position in its textual form ("16/B374D848") into a number that can be compared.
+	 *
+	 * @param lsn WAL position as text.
+	 * @return WAL position as a number.
+	 */
+	public static long parseLsn(String lsn)
+	{
+		String[] parts = lsn.trim().split("/");
+
+		if (parts.length != 2)
+		{
+			throw new NumberFormatException("Invalid LSN: " + lsn);
+		}
+		return (Long.parseLong(parts[0], 16) << 32) | Long.parseLong(parts[1], 16);
+	}
+}
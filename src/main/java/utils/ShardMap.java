@@ -0,0 +1,337 @@
+package utils;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.logging.log4j.Logger;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.ext.sql.ResultSet;
+import io.vertx.ext.sql.SQLConnection;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ *
+ * Class holding the shard map: the PostgreSQL instances a set of hash-sharded tables is spread over, and the shard key of each of those tables.
+ *
+ * 	"shards": {
+ * 		"urls": ["jdbc:postgresql://SHARD_1:PORT/db", "jdbc:postgresql://SHARD_2:PORT/db"],
+ * 		"max_pool_size": 4,
+ * 		"virtual_nodes": 64,
+ * 		"tables": { "public.orders": "customer_id" }
+ * 	}
+ *
+ * Rows are placed by consistent hashing of the text form of their shard key value: each shard owns virtual_nodes points of a hash ring,
+ * and a key belongs to the shard owning the first point at or after the key's hash. Adding a shard only moves the keys falling just before its points.
+ * Numbers are hashed in a canonical form (see canonicalKey), so 42, 42.0 and 042 land on the same shard whether they come from an inserted row or a where condition.
+ *
+ * Statements on sharded tables are scattered to the relevant shards in parallel (see scatter).
+ * A where condition pinning the shard key with an equality to a literal ("customer_id = 42", possibly AND-ed with other conditions) prunes the scatter to the owning shard.
+ * Ordered results are merged by ResultSetMerger, whose order of text the shards are made to follow with the collatable columns of each table (see collatableColumns).
+ *
+ * @author pedrolourenco
+ *
+ */
+public class ShardMap
+{
+	private static final long COLLATABLE_COLUMNS_TTL_MS = 60000;
+	private static final Pattern NUMBER = Pattern.compile("-?\\d+(?:\\.\\d+)?(?:[eE][+-]?\\d+)?");
+
+	private final List<JDBCClient> shards = new ArrayList<>();
+	private final Map<String, String> shardKeys = new LinkedHashMap<>();
+	private final TreeMap<Long, Integer> ring = new TreeMap<>();
+	private final Map<String, CollatableColumns> collatableColumns = new ConcurrentHashMap<>();
+
+	/**
+	 *
+	 * Collatable columns of a sharded table, as read from the first shard.
+	 */
+	private static class CollatableColumns
+	{
+		private final Set<String> names;
+		private final long loadedAtMillis = System.currentTimeMillis();
+
+		private CollatableColumns(Set<String> names)
+		{
+			this.names = names;
+		}
+	}
+
+	/**
+	 *
+	 * @param vertx Vertx instance the shard clients are created on.
+	 * @param config Application configuration, containing the database settings and the "shards" section.
+	 */
+	public ShardMap(Vertx vertx, JsonObject config)
+	{
+		JsonObject settings = config.getJsonObject("shards", new JsonObject());
+		JsonArray urls = settings.getJsonArray("urls", new JsonArray());
+		int virtualNodes = settings.getInteger("virtual_nodes", 64);
+
+		for (int i = 0; i < urls.size(); i++)
+		{
+			JsonObject shardConfig = config.copy().put("url", urls.getString(i)).put("max_pool_size", settings.getInteger("max_pool_size", 4));
+			shards.add(JDBCClient.createShared(vertx, shardConfig, "PostgreSQL-shard-" + i));
+
+			for (int node = 0; node < virtualNodes; node++)
+			{
+				ring.put(hash("shard-" + i + "#" + node), i);
+			}
+		}
+
+		settings.getJsonObject("tables", new JsonObject()).forEach(entry -> shardKeys.put(entry.getKey().toLowerCase(), entry.getValue().toString()));
+	}
+
+	/**
+	 *
+	 * @param schemaName Schema of the table.
+	 * @param tableName Name of the table.
+	 * @return true if the table is sharded (and shards are configured), false otherwise.
+	 */
+	public boolean isSharded(String schemaName, String tableName)
+	{
+		return !shards.isEmpty() && shardKeys.containsKey(qualifiedName(schemaName, tableName));
+	}
+
+	/**
+	 *
+	 * @param schemaName Schema of the table.
+	 * @param tableName Name of the table.
+	 * @return The shard key column of the table, or null if it isn't sharded.
+	 */
+	public String shardKeyOf(String schemaName, String tableName)
+	{
+		return shardKeys.get(qualifiedName(schemaName, tableName));
+	}
+
+	/**
+	 *
+	 * @param keyValue Value of the shard key, in its text form.
+	 * @return Index of the shard owning the value.
+	 */
+	public int shardFor(String keyValue)
+	{
+		Map.Entry<Long, Integer> point = Optional.ofNullable(ring.ceilingEntry(hash(canonicalKey(keyValue)))).orElse(ring.firstEntry());
+		return point.getValue();
+	}
+
+	/**
+	 *
+	 * Gives equal numbers the same text form, so they are placed on the same shard: a decimal number loses its leading zeros, trailing fractional zeros and exponent
+	 * ("042", "42.0" and "4.2E1" all become "42"). Integers without leading zeros, the usual shard keys, keep their form.
+	 * Any other text is kept as it is. Two different texts made equal here only end up on the same shard, which is harmless.
+	 *
+	 * @param keyValue Value of the shard key, in its text form.
+	 * @return Canonical text form of the value.
+	 */
+	public static String canonicalKey(String keyValue)
+	{
+		if (keyValue == null || !NUMBER.matcher(keyValue).matches())
+		{
+			return keyValue;
+		}
+		return new BigDecimal(keyValue).stripTrailingZeros().toPlainString();
+	}
+
+	/**
+	 *
+	 * Finds the shards a statement with the given where condition must run on.
+	 * Only a top-level equality on the shard key with a literal value (a number, or a quoted string) prunes the shards.
+	 * An equality with anything else (e.g. another column), or any OR or parenthesis, makes the statement run everywhere.
+	 *
+	 * @param schemaName Schema of the table.
+	 * @param tableName Name of the table.
+	 * @param whereCondition Where condition of the statement, as sent in the request body (may be null).
+	 * @return Indexes of the shards to run the statement on.
+	 */
+	public List<Integer> shardsFor(String schemaName, String tableName, String whereCondition)
+	{
+		List<Integer> all = IntStream.range(0, shards.size()).boxed().collect(Collectors.toList());
+		String shardKey = shardKeyOf(schemaName, tableName);
+
+		if (!Optional.ofNullable(whereCondition).isPresent() || !Optional.ofNullable(shardKey).isPresent()
+				|| whereCondition.contains("(") || Pattern.compile("\\bOR\\b", Pattern.CASE_INSENSITIVE).matcher(whereCondition).find())
+		{
+			return all;
+		}
+
+		Pattern equality = Pattern.compile("^\\s*\"?" + Pattern.quote(shardKey) + "\"?\\s*=\\s*(?:'((?:[^']|'')*)'|(-?\\d+(?:\\.\\d+)?))\\s*;?\\s*$", Pattern.CASE_INSENSITIVE);
+
+		for (String term : whereCondition.split("(?i)\\s+AND\\s+"))
+		{
+			Matcher matcher = equality.matcher(term);
+			if (matcher.matches())
+			{
+				String value = matcher.group(1) != null ? matcher.group(1).replace("''", "'") : matcher.group(2);
+				return Collections.singletonList(shardFor(value));
+			}
+		}
+		return all;
+	}
+
+	/**
+	 *
+	 * Reads the collatable columns of a sharded table from the first shard (see ResultSetMerger.collatableColumns), every shard holding the same structure.
+	 * They are kept for COLLATABLE_COLUMNS_TTL_MS, so ordered selects don't pay for the lookup every time.
+	 *
+	 * @param bulkhead Bulkhead the connection to the shard is taken through.
+	 * @param schemaName Schema of the table.
+	 * @param tableName Name of the table.
+	 * @param handler Handler for the names of the collatable columns, in lower case.
+	 */
+	public void collatableColumns(Bulkhead bulkhead, String schemaName, String tableName, Handler<AsyncResult<Set<String>>> handler)
+	{
+		String table = qualifiedName(schemaName, tableName);
+		CollatableColumns cached = collatableColumns.get(table);
+
+		if (Optional.ofNullable(cached).isPresent() && System.currentTimeMillis() - cached.loadedAtMillis < COLLATABLE_COLUMNS_TTL_MS)
+		{
+			handler.handle(Future.succeededFuture(cached.names));
+			return;
+		}
+
+		getStructureConnection(bulkhead, connection -> {
+			if (connection.failed())
+			{
+				handler.handle(Future.failedFuture(connection.cause()));
+				return;
+			}
+
+			ResultSetMerger.collatableColumns(connection.result(), schemaName, tableName, result -> {
+				connection.result().close();
+
+				if (result.succeeded())
+				{
+					collatableColumns.put(table, new CollatableColumns(result.result()));
+				}
+				handler.handle(result);
+			});
+		});
+	}
+
+	/**
+	 *
+	 * Gets a connection to the first shard, to read the structure of sharded tables, which every shard holds alike.
+	 *
+	 * @param bulkhead Bulkhead the connection is taken through.
+	 * @param handler Handler for the connection.
+	 */
+	public void getStructureConnection(Bulkhead bulkhead, Handler<AsyncResult<SQLConnection>> handler)
+	{
+		bulkhead.getConnection(shards.get(0), handler);
+	}
+
+	/**
+	 *
+	 * Executes one statement per shard, all in parallel, each within the request's deadline and bound to the request (see Deadline and InFlightStatement).
+	 * The statements run on the bulkhead's worker pool and are counted in its limits, but their connections come from the shard clients.
+	 * The result fails as soon as any of the statements fails.
+	 *
+	 * @param context Context from the request the statements are for.
+	 * @param bulkhead Bulkhead whose worker pool executes the statements.
+	 * @param logger Logger Instance for the method to work with.
+	 * @param statements Statement to execute on each shard, keyed by shard index.
+	 * @param handler Handler for the results of the statements, keyed by shard index.
+	 */
+	@SuppressWarnings("rawtypes")
+	public void scatter(RoutingContext context, Bulkhead bulkhead, Logger logger, Map<Integer, String> statements, Handler<AsyncResult<Map<Integer, ResultSet>>> handler)
+	{
+		Map<Integer, Future<ResultSet>> results = new LinkedHashMap<>();
+
+		statements.forEach((shard, sql) -> {
+			Future<ResultSet> result = Future.future();
+			results.put(shard, result);
+
+			bulkhead.getConnection(shards.get(shard), connection -> {
+				if (connection.failed())
+				{
+					result.fail(connection.cause());
+					return;
+				}
+
+				InFlightStatement statement = InFlightStatement.bind(context, connection.result(), bulkhead.getCancelExecutor(), logger);
+				Deadline.of(context).query(connection.result(), sql, queryResult -> {
+					statement.release();
+					result.handle(queryResult);
+				});
+			});
+		});
+
+		CompositeFuture.all(new ArrayList<Future>(results.values())).setHandler(all -> {
+			if (all.failed())
+			{
+				handler.handle(Future.failedFuture(all.cause()));
+				return;
+			}
+
+			Map<Integer, ResultSet> resultSets = new LinkedHashMap<>();
+			results.forEach((shard, result) -> resultSets.put(shard, result.result()));
+			handler.handle(Future.succeededFuture(resultSets));
+		});
+	}
+
+	/**
+	 *
+	 * Closes the shard clients.
+	 */
+	public void close()
+	{
+		shards.forEach(JDBCClient::close);
+	}
+
+	/**
+	 *
+	 * @param schemaName Schema of the table.
+	 * @param tableName Name of the table.
+	 * @return "schema.table", in lower case, as used for the keys of the "tables" section.
+	 */
+	private static String qualifiedName(String schemaName, String tableName)
+	{
+		return (schemaName + "." + tableName).toLowerCase();
+	}
+
+	/**
+	 *
+	 * @param value Value to place on the ring.
+	 * @return Position of the value on the ring: the first 8 bytes of its MD5 digest.
+	 */
+	private static long hash(String value)
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+			long position = 0;
+			for (int i = 0; i < 8; i++)
+			{
+				position = (position << 8) | (digest[i] & 0xFF);
+			}
+			return position;
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,899 @@
+package utils;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import enums.Messages;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.ext.sql.SQLConnection;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ *
+ * Class running resumable bulk uploads: a load too large for a single /insert request is sent as numbered chunks, each of which can be retried on its own,
+ * and merged into its table in one transaction once every chunk arrived.
+ *
+ * Each upload session has a staging table of its own, holding the chunks received so far:
+ * - csv: the session's columns, typed as in the target table, loaded with COPY in CSV format (with a header line in every chunk if "header" is set).
+ * - ndjson: one jsonb column, one JSON object per line, loaded with COPY in CSV format with control characters as quote and delimiter,
+ *   which JSON text never holds unescaped, so every line is taken as is. The objects are turned into rows of the target table by jsonb_populate_record on commit.
+ *
+ * A chunk is streamed from the request straight into COPY, never held in memory, inside a transaction that first removes the rows of any earlier attempt at the same chunk:
+ * sending a chunk again replaces it, and a chunk cut short by a network failure leaves nothing behind. Chunks of a session can be sent in parallel.
+ * The sessions and their chunks are kept in session_table (and session_table + "_chunks"), so uploads survive a restart of the service.
+ * Commit copies the staging table into the target table, marks the session committed and drops the staging table, in one transaction:
+ * either every row is loaded, or none. Committing a committed session again returns the same result.
+ *
+ * COPY runs through the PostgreSQL driver's copy API, which is blocking, so uploads run on their own worker pool and connection pool, apart from the bulkheads.
+ * At most max_running chunks are received at once; more are rejected. Open sessions that received nothing for ttl_ms expire (their staging table is dropped),
+ * and finished sessions are forgotten ttl_ms after they finished.
+ *
+ * 	"uploads": {
+ * 		"session_table": "public.api_uploads",
+ * 		"staging_schema": "public",
+ * 		"max_running": 4,
+ * 		"ttl_ms": 86400000
+ * 	}
+ *
+ * @author pedrolourenco
+ *
+ */
+public class UploadSessions
+{
+	private static final String CHUNK_SETTING = "api.upload_chunk";
+	private static final String CHUNK_COLUMN = "\"__upload_chunk\"";
+	private static final String ROW_COLUMN = "\"__upload_row\"";
+	private static final Pattern COLUMN_NAME = Pattern.compile("^\\w+$");
+
+	private final Vertx vertx;
+	private final JDBCClient client;
+	private final WorkerExecutor workerExecutor;
+	private final String sessionTable;
+	private final String chunkTable;
+	private final String stagingSchema;
+	private final int maxRunning;
+	private final long ttlMillis;
+	private final Logger logger;
+	private long timerID = -1;
+	private int running = 0;
+
+	/**
+	 *
+	 * Work run inside a transaction, on a worker.
+	 */
+	@FunctionalInterface
+	private interface Transaction<T>
+	{
+		T run(Connection connection) throws SQLException;
+	}
+
+	/**
+	 *
+	 * State of a chunk being received. Only touched from the context of the request, apart from the copy itself, which runs on the worker pool one step at a time.
+	 */
+	private class Chunk
+	{
+		private final String id;
+		private final int number;
+		private final SQLConnection conn;
+		private final Handler<AsyncResult<JsonObject>> handler;
+		private MessageDigest digest;
+		private Connection connection;
+		private CopyIn copyIn;
+		private long bytes = 0;
+		private boolean busy = false;
+		private boolean finished = false;
+		private Throwable failure;
+
+		private Chunk(String id, int number, SQLConnection conn, Handler<AsyncResult<JsonObject>> handler)
+		{
+			this.id = id;
+			this.number = number;
+			this.conn = conn;
+			this.handler = handler;
+		}
+
+		/**
+		 *
+		 * Runs a step of the copy on the worker pool. Once the step is done, the chunk is aborted if it (or the request) failed meanwhile, otherwise next is called.
+		 * Nothing is run once the chunk is finished, since its connection is back in the pool.
+		 *
+		 * @param step Step to run.
+		 * @param next Handler for the result of the step.
+		 */
+		private <T> void run(Transaction<T> step, Handler<T> next)
+		{
+			if (finished)
+			{
+				return;
+			}
+			busy = true;
+
+			workerExecutor.<T>executeBlocking(blocking -> {
+				try
+				{
+					blocking.complete(step.run(connection));
+				}
+				catch (SQLException | RuntimeException e)
+				{
+					blocking.fail(e);
+				}
+			}, false, result -> {
+				busy = false;
+
+				if (result.failed() && failure == null)
+				{
+					failure = result.cause();
+				}
+				if (failure != null)
+				{
+					abort();
+					return;
+				}
+				next.handle(result.result());
+			});
+		}
+
+		/**
+		 *
+		 * Fails the chunk: right away if no step is running, otherwise once the running step is done.
+		 *
+		 * @param cause Cause of the failure.
+		 */
+		private void fail(Throwable cause)
+		{
+			if (failure == null)
+			{
+				failure = cause;
+			}
+			if (!busy)
+			{
+				abort();
+			}
+		}
+
+		/**
+		 *
+		 * Cancels the copy and rolls back the transaction of a failed chunk, so nothing of it is kept.
+		 */
+		private void abort()
+		{
+			if (finished)
+			{
+				return;
+			}
+			finished = true;
+
+			workerExecutor.<Void>executeBlocking(blocking -> {
+				try
+				{
+					if (copyIn != null && copyIn.isActive())
+					{
+						copyIn.cancelCopy();
+					}
+					if (connection != null)
+					{
+						connection.rollback();
+						connection.setAutoCommit(true);
+					}
+				}
+				catch (SQLException e)
+				{
+					logger.error("UploadSessions - Failed to roll back chunk " + number + " of upload " + id + ": " + e);
+				}
+				blocking.complete();
+			}, false, rolledBack -> {
+				conn.close();
+				running--;
+
+				logger.error("UploadSessions - Chunk " + number + " of upload " + id + " failed: " + failure);
+				handler.handle(Future.failedFuture(failure));
+			});
+		}
+
+		/**
+		 *
+		 * Releases the connection of a chunk loaded and committed.
+		 *
+		 * @param result Status of the chunk.
+		 */
+		private void complete(JsonObject result)
+		{
+			if (finished)
+			{
+				return;
+			}
+			finished = true;
+
+			conn.close();
+			running--;
+
+			logger.info("UploadSessions - Chunk " + number + " of upload " + id + " loaded: " + result.getLong("rows") + " rows, " + bytes + " bytes");
+			handler.handle(Future.succeededFuture(result));
+		}
+	}
+
+	/**
+	 *
+	 * @param vertx Vertx instance the upload pool, worker pool and expiry timer are created on.
+	 * @param config Application configuration, containing the database settings and the "uploads" section.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public UploadSessions(Vertx vertx, JsonObject config, Logger logger)
+	{
+		JsonObject settings = config.getJsonObject("uploads", new JsonObject());
+		String[] sessionName = settings.getString("session_table", "public.api_uploads").split("\\.", 2);
+		String schema = sessionName.length == 2 ? sessionName[0] : "public";
+
+		this.vertx = vertx;
+		this.maxRunning = Math.max(1, settings.getInteger("max_running", 4));
+		this.ttlMillis = settings.getLong("ttl_ms", 86400000L);
+		this.sessionTable = "\"" + schema + "\".\"" + sessionName[sessionName.length - 1] + "\"";
+		this.chunkTable = "\"" + schema + "\".\"" + sessionName[sessionName.length - 1] + "_chunks\"";
+		this.stagingSchema = settings.getString("staging_schema", "public");
+		//Sessions being created, committed or looked at must not wait for max_running chunks to be received
+		this.client = JDBCClient.createShared(vertx, config.copy().put("max_pool_size", maxRunning + 2), "PostgreSQL-uploads");
+		this.workerExecutor = vertx.createSharedWorkerExecutor("uploads", maxRunning + 2, Long.MAX_VALUE);
+		this.logger = logger;
+	}
+
+	/**
+	 *
+	 * Creates the session and chunk tables if they don't exist, and from then on expires idle sessions and forgets finished ones.
+	 *
+	 * @param handler Handler for the result of the creation.
+	 */
+	public void install(Handler<AsyncResult<Void>> handler)
+	{
+		this.<Void>inTransaction(connection -> {
+			try (Statement statement = connection.createStatement())
+			{
+				statement.execute("CREATE TABLE IF NOT EXISTS " + sessionTable + " (id text PRIMARY KEY, schema_name text NOT NULL, table_name text NOT NULL, format text NOT NULL, "
+						+ "columns text, header boolean NOT NULL, staging_table text NOT NULL, status text NOT NULL, rows bigint, created_at timestamptz NOT NULL DEFAULT now(), finished_at timestamptz)");
+				statement.execute("CREATE TABLE IF NOT EXISTS " + chunkTable + " (session_id text NOT NULL REFERENCES " + sessionTable + " (id) ON DELETE CASCADE, chunk integer NOT NULL, "
+						+ "rows bigint NOT NULL, bytes bigint NOT NULL, sha256 text NOT NULL, received_at timestamptz NOT NULL DEFAULT now(), PRIMARY KEY (session_id, chunk))");
+			}
+			return null;
+		}, created -> {
+			if (created.succeeded())
+			{
+				logger.info("UploadSessions - Session table " + sessionTable + " ready");
+				timerID = vertx.setPeriodic(Math.max(1000, Math.min(ttlMillis / 4, 3600000L)), id -> expire());
+			}
+			handler.handle(created);
+		});
+	}
+
+	/**
+	 *
+	 * Opens an upload session into a table, creating its staging table.
+	 *
+	 * @param schemaName Schema of the target table.
+	 * @param tableName Target table.
+	 * @param format Format of the chunks: "csv" or "ndjson".
+	 * @param columns Columns the chunks hold, in order, comma-separated (required for csv; for ndjson, null loads every column of the table).
+	 *                They are stored quoted (see quoteColumns), so they can be put in the session's statements as is.
+	 * @param header true if every csv chunk starts with a header line.
+	 * @param handler Handler for the status of the session. Failed with an IllegalArgumentException if a column isn't a plain column name.
+	 */
+	public void create(String schemaName, String tableName, String format, String columns, boolean header, Handler<AsyncResult<JsonObject>> handler)
+	{
+		String quotedColumns = quoteColumns(columns);
+
+		if (columns != null && quotedColumns == null)
+		{
+			handler.handle(Future.failedFuture(new IllegalArgumentException(Messages.INVALID_UPLOAD_COLUMN_NAME_ERROR.getValue() + columns)));
+			return;
+		}
+
+		String id = UUID.randomUUID().toString();
+		String staging = "\"" + stagingSchema + "\".\"api_upload_" + id.replace("-", "") + "\"";
+		String target = "\"" + schemaName.toLowerCase() + "\".\"" + tableName.toLowerCase() + "\"";
+
+		inTransaction(connection -> {
+			try (Statement statement = connection.createStatement())
+			{
+				statement.execute("CREATE TABLE " + staging + " AS SELECT " + (format.equals("ndjson") ? "NULL::jsonb AS " + ROW_COLUMN : quotedColumns) + " FROM " + target + " WITH NO DATA");
+				statement.execute("ALTER TABLE " + staging + " ADD COLUMN " + CHUNK_COLUMN + " integer NOT NULL DEFAULT current_setting('" + CHUNK_SETTING + "')::integer");
+			}
+
+			try (PreparedStatement statement = connection.prepareStatement("INSERT INTO " + sessionTable + " (id, schema_name, table_name, format, columns, header, staging_table, status) VALUES (?, ?, ?, ?, ?, ?, ?, 'open')"))
+			{
+				statement.setString(1, id);
+				statement.setString(2, schemaName.toLowerCase());
+				statement.setString(3, tableName.toLowerCase());
+				statement.setString(4, format);
+				statement.setString(5, quotedColumns);
+				statement.setBoolean(6, header);
+				statement.setString(7, staging);
+				statement.executeUpdate();
+			}
+			return lockSession(connection, id, "");
+		}, created -> {
+			if (created.succeeded())
+			{
+				logger.info("UploadSessions - Opened upload " + id + " into " + target + " as " + format);
+			}
+			handler.handle(created.map(this::toJson));
+		});
+	}
+
+	/**
+	 *
+	 * @param id Identifier of the session.
+	 * @param handler Handler for the status of the session and of every chunk received, failed with a NoSuchElementException if there is no such session.
+	 */
+	public void status(String id, Handler<AsyncResult<JsonObject>> handler)
+	{
+		inTransaction(connection -> {
+			JsonObject session = toJson(lockSession(connection, id, ""));
+			JsonArray chunks = new JsonArray();
+
+			try (PreparedStatement statement = connection.prepareStatement("SELECT chunk, rows, bytes, sha256, received_at::text FROM " + chunkTable + " WHERE session_id = ? ORDER BY chunk"))
+			{
+				statement.setString(1, id);
+				try (ResultSet chunk = statement.executeQuery())
+				{
+					while (chunk.next())
+					{
+						chunks.add(new JsonObject()
+								.put("chunk", chunk.getInt(1))
+								.put("rows", chunk.getLong(2))
+								.put("bytes", chunk.getLong(3))
+								.put("sha256", chunk.getString(4))
+								.put("receivedAt", chunk.getString(5)));
+					}
+				}
+			}
+			return session.put("chunks", chunks);
+		}, handler);
+	}
+
+	/**
+	 *
+	 * Receives a chunk of an open session, streaming the request body into the session's staging table.
+	 * The request must be paused by the caller, before any of its body was read; it is resumed once the copy is ready.
+	 * If the request fails or its connection closes before the whole chunk arrived, nothing of it is kept. The rest of the body of a failed chunk is left to the caller.
+	 *
+	 * @param context Context from the request carrying the chunk.
+	 * @param id Identifier of the session.
+	 * @param number Number of the chunk, from 1. A chunk received again replaces the earlier one.
+	 * @param handler Handler for the status of the chunk: its rows, bytes and SHA-256. Failed with a RejectedExecutionException if max_running chunks are already being received,
+	 * a NoSuchElementException if there is no such session, or an IllegalStateException if the session is no longer open.
+	 */
+	public void receive(RoutingContext context, String id, int number, Handler<AsyncResult<JsonObject>> handler)
+	{
+		if (running >= maxRunning)
+		{
+			handler.handle(Future.failedFuture(new RejectedExecutionException(Messages.UPLOADS_FULL_ERROR.getValue() + maxRunning)));
+			return;
+		}
+		running++;
+
+		client.getConnection(connection -> {
+			if (connection.failed())
+			{
+				running--;
+				handler.handle(Future.failedFuture(connection.cause()));
+				return;
+			}
+
+			Chunk chunk = new Chunk(id, number, connection.result(), handler);
+			RequestLifecycle.onClose(context, v -> chunk.fail(new IOException("connection closed before the whole chunk was received")));
+
+			chunk.run(jdbc -> begin(chunk, connection.result()), v -> {
+				context.request().exceptionHandler(chunk::fail);
+				context.request().handler(buffer -> {
+					context.request().pause();
+					chunk.run(jdbc -> write(chunk, buffer), written -> context.request().resume());
+				});
+				context.request().endHandler(end -> chunk.run(jdbc -> end(chunk), chunk::complete));
+				context.request().resume();
+			});
+		});
+	}
+
+	/**
+	 *
+	 * Merges an open session into its table, in one transaction: the staged rows are inserted into the target table, the session is marked committed
+	 * and its staging table dropped. Chunks still being received are waited for.
+	 *
+	 * @param id Identifier of the session.
+	 * @param expectedChunks Number of chunks the session must hold (numbered 1 to expectedChunks), or null not to check.
+	 * @param handler Handler for the status of the session, with the rows loaded. Failed with a NoSuchElementException if there is no such session,
+	 * or an IllegalStateException if the session was aborted or expired, or chunks are missing.
+	 */
+	public void commit(String id, Integer expectedChunks, Handler<AsyncResult<JsonObject>> handler)
+	{
+		inTransaction(connection -> {
+			SessionRow session = lockSession(connection, id, "FOR UPDATE");
+
+			if (session.status.equals("committed"))
+			{
+				return session;
+			}
+			checkOpen(session);
+
+			if (expectedChunks != null)
+			{
+				try (PreparedStatement statement = connection.prepareStatement("SELECT count(*), COALESCE(max(chunk), 0) FROM " + chunkTable + " WHERE session_id = ?"))
+				{
+					statement.setString(1, id);
+					try (ResultSet chunks = statement.executeQuery())
+					{
+						chunks.next();
+						if (chunks.getInt(1) != expectedChunks || chunks.getInt(2) != expectedChunks)
+						{
+							throw new IllegalStateException(Messages.UPLOAD_MISSING_CHUNKS_ERROR.getValue() + expectedChunks + ", received " + chunks.getInt(1));
+						}
+					}
+				}
+			}
+
+			try (Statement statement = connection.createStatement())
+			{
+				session.rows = (long) statement.executeUpdate(mergeSQL(session));
+				statement.execute("DROP TABLE " + session.stagingTable);
+			}
+
+			try (PreparedStatement statement = connection.prepareStatement("UPDATE " + sessionTable + " SET status = 'committed', rows = ?, finished_at = now() WHERE id = ?"))
+			{
+				statement.setLong(1, session.rows);
+				statement.setString(2, id);
+				statement.executeUpdate();
+			}
+			return lockSession(connection, id, "");
+		}, committed -> {
+			if (committed.succeeded())
+			{
+				logger.info("UploadSessions - Committed upload " + id + ": " + committed.result().rows + " rows");
+			}
+			handler.handle(committed.map(this::toJson));
+		});
+	}
+
+	/**
+	 *
+	 * Aborts an open session: its staging table is dropped, and nothing is loaded. Chunks still being received are waited for.
+	 *
+	 * @param id Identifier of the session.
+	 * @param handler Handler for the status of the session. Failed with a NoSuchElementException if there is no such session,
+	 * or an IllegalStateException if the session is no longer open.
+	 */
+	public void abort(String id, Handler<AsyncResult<JsonObject>> handler)
+	{
+		inTransaction(connection -> {
+			SessionRow session = lockSession(connection, id, "FOR UPDATE");
+			checkOpen(session);
+			finish(connection, session, "aborted");
+			return lockSession(connection, id, "");
+		}, aborted -> {
+			if (aborted.succeeded())
+			{
+				logger.info("UploadSessions - Aborted upload " + id);
+			}
+			handler.handle(aborted.map(this::toJson));
+		});
+	}
+
+	/**
+	 *
+	 * Closes the upload pool and worker pool, and stops the expiry of sessions.
+	 */
+	public void close()
+	{
+		if (timerID >= 0)
+		{
+			vertx.cancelTimer(timerID);
+		}
+		client.close();
+		workerExecutor.close();
+	}
+
+	/**
+	 *
+	 * First step of a chunk: opens its transaction, checks its session is open, replaces any earlier attempt at the chunk and starts the copy.
+	 * The chunk's row is written first: a second attempt at the same chunk running at the same time waits there until the first one ends,
+	 * and then removes its rows, so a chunk is never loaded twice.
+	 *
+	 * @param chunk Chunk to begin.
+	 * @param conn Connection of the chunk.
+	 * @return Nothing.
+	 * @throws SQLException If any statement failed.
+	 */
+	private Void begin(Chunk chunk, SQLConnection conn) throws SQLException
+	{
+		chunk.connection = conn.unwrap();
+		chunk.connection.setAutoCommit(false);
+
+		//Key share leaves other chunks of the session free to be received, but holds off its commit or abort until this one ends
+		SessionRow session = lockSession(chunk.connection, chunk.id, "FOR KEY SHARE");
+		checkOpen(session);
+
+		try (PreparedStatement statement = chunk.connection.prepareStatement("INSERT INTO " + chunkTable + " (session_id, chunk, rows, bytes, sha256) VALUES (?, ?, 0, 0, '') "
+				+ "ON CONFLICT (session_id, chunk) DO UPDATE SET received_at = now()"))
+		{
+			statement.setString(1, chunk.id);
+			statement.setInt(2, chunk.number);
+			statement.executeUpdate();
+		}
+
+		try (Statement statement = chunk.connection.createStatement())
+		{
+			statement.executeUpdate("DELETE FROM " + session.stagingTable + " WHERE " + CHUNK_COLUMN + " = " + chunk.number);
+			statement.execute("SET LOCAL " + CHUNK_SETTING + " = " + chunk.number);
+		}
+
+		try
+		{
+			chunk.digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+
+		chunk.copyIn = chunk.connection.unwrap(PGConnection.class).getCopyAPI().copyIn(copySQL(session));
+		return null;
+	}
+
+	/**
+	 *
+	 * Writes a piece of the request body to the copy of a chunk.
+	 *
+	 * @param chunk Chunk being received.
+	 * @param buffer Piece of the request body.
+	 * @return Nothing.
+	 * @throws SQLException If the copy failed.
+	 */
+	private Void write(Chunk chunk, Buffer buffer) throws SQLException
+	{
+		byte[] bytes = buffer.getBytes();
+
+		chunk.copyIn.writeToCopy(bytes, 0, bytes.length);
+		chunk.digest.update(bytes);
+		chunk.bytes += bytes.length;
+		return null;
+	}
+
+	/**
+	 *
+	 * Last step of a chunk: ends the copy, records the chunk's rows, bytes and SHA-256, and commits.
+	 *
+	 * @param chunk Chunk received.
+	 * @return Status of the chunk.
+	 * @throws SQLException If the copy or the commit failed.
+	 */
+	private JsonObject end(Chunk chunk) throws SQLException
+	{
+		long rows = chunk.copyIn.endCopy();
+		StringBuilder sha256 = new StringBuilder();
+
+		for (byte b : chunk.digest.digest())
+		{
+			sha256.append(String.format("%02x", b));
+		}
+
+		try (PreparedStatement statement = chunk.connection.prepareStatement("UPDATE " + chunkTable + " SET rows = ?, bytes = ?, sha256 = ?, received_at = now() WHERE session_id = ? AND chunk = ?"))
+		{
+			statement.setLong(1, rows);
+			statement.setLong(2, chunk.bytes);
+			statement.setString(3, sha256.toString());
+			statement.setString(4, chunk.id);
+			statement.setInt(5, chunk.number);
+			statement.executeUpdate();
+		}
+
+		chunk.connection.commit();
+		chunk.connection.setAutoCommit(true);
+
+		return new JsonObject()
+				.put("upload", chunk.id)
+				.put("chunk", chunk.number)
+				.put("rows", rows)
+				.put("bytes", chunk.bytes)
+				.put("sha256", sha256.toString());
+	}
+
+	/**
+	 *
+	 * Expires the open sessions that received nothing for ttl_ms, and forgets the sessions finished for more than ttl_ms.
+	 * Sessions with a chunk being received are left for the next run.
+	 */
+	private void expire()
+	{
+		this.<Integer>inTransaction(connection -> {
+			int expired = 0;
+
+			try (PreparedStatement statement = connection.prepareStatement("SELECT id FROM " + sessionTable + " s WHERE status = 'open' "
+					+ "AND COALESCE((SELECT max(received_at) FROM " + chunkTable + " c WHERE c.session_id = s.id), s.created_at) < now() - ? * interval '1 millisecond' "
+					+ "FOR UPDATE SKIP LOCKED"))
+			{
+				statement.setLong(1, ttlMillis);
+				try (ResultSet sessions = statement.executeQuery())
+				{
+					while (sessions.next())
+					{
+						finish(connection, lockSession(connection, sessions.getString(1), ""), "expired");
+						expired++;
+					}
+				}
+			}
+
+			try (PreparedStatement statement = connection.prepareStatement("DELETE FROM " + sessionTable + " WHERE status <> 'open' AND finished_at < now() - ? * interval '1 millisecond'"))
+			{
+				statement.setLong(1, ttlMillis);
+				statement.executeUpdate();
+			}
+			return expired;
+		}, expired -> {
+			if (expired.failed())
+			{
+				logger.error("UploadSessions - Failed to expire idle uploads: " + expired.cause());
+			}
+			else if (expired.result() > 0)
+			{
+				logger.info("UploadSessions - Expired " + expired.result() + " idle uploads");
+			}
+		});
+	}
+
+	/**
+	 *
+	 * Drops the staging table of a session and marks it finished with a status.
+	 *
+	 * @param connection Connection holding the transaction.
+	 * @param session Session to finish.
+	 * @param status Final status: "aborted" or "expired".
+	 * @throws SQLException If a statement failed.
+	 */
+	private void finish(Connection connection, SessionRow session, String status) throws SQLException
+	{
+		try (Statement statement = connection.createStatement())
+		{
+			statement.execute("DROP TABLE IF EXISTS " + session.stagingTable);
+		}
+
+		try (PreparedStatement statement = connection.prepareStatement("UPDATE " + sessionTable + " SET status = ?, finished_at = now() WHERE id = ?"))
+		{
+			statement.setString(1, status);
+			statement.setString(2, session.id);
+			statement.executeUpdate();
+		}
+	}
+
+	/**
+	 *
+	 * Runs work in a transaction, on a connection of the upload pool and a worker of the upload worker pool.
+	 * The transaction is committed if the work returns, and rolled back if it throws.
+	 *
+	 * @param work Work to run.
+	 * @param handler Handler for the result of the work.
+	 */
+	private <T> void inTransaction(Transaction<T> work, Handler<AsyncResult<T>> handler)
+	{
+		client.getConnection(connection -> {
+			if (connection.failed())
+			{
+				handler.handle(Future.failedFuture(connection.cause()));
+				return;
+			}
+
+			SQLConnection conn = connection.result();
+			workerExecutor.<T>executeBlocking(blocking -> {
+				try
+				{
+					Connection jdbcConnection = conn.unwrap();
+					jdbcConnection.setAutoCommit(false);
+
+					try
+					{
+						T result = work.run(jdbcConnection);
+						jdbcConnection.commit();
+						blocking.complete(result);
+					}
+					catch (SQLException | RuntimeException e)
+					{
+						jdbcConnection.rollback();
+						throw e;
+					}
+					finally
+					{
+						jdbcConnection.setAutoCommit(true);
+					}
+				}
+				catch (SQLException | RuntimeException e)
+				{
+					blocking.fail(e);
+				}
+			}, false, done -> {
+				conn.close();
+				handler.handle(done);
+			});
+		});
+	}
+
+	/**
+	 *
+	 * Reads (and locks, if asked to) the row of a session.
+	 *
+	 * @param connection Connection holding the transaction.
+	 * @param id Identifier of the session.
+	 * @param lock Locking clause ("FOR UPDATE", "FOR KEY SHARE"), or "" not to lock.
+	 * @return The session.
+	 * @throws SQLException If the select failed.
+	 * @throws NoSuchElementException If there is no such session.
+	 */
+	private SessionRow lockSession(Connection connection, String id, String lock) throws SQLException
+	{
+		try (PreparedStatement statement = connection.prepareStatement("SELECT id, schema_name, table_name, format, columns, header, staging_table, status, rows, created_at::text, finished_at::text FROM "
+				+ sessionTable + " WHERE id = ? " + lock))
+		{
+			statement.setString(1, id);
+			try (ResultSet row = statement.executeQuery())
+			{
+				if (!row.next())
+				{
+					throw new NoSuchElementException(Messages.UPLOAD_NOT_FOUND_ERROR.getValue() + id);
+				}
+				return new SessionRow(row);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param session Session to check.
+	 * @throws IllegalStateException If the session is no longer open.
+	 */
+	private static void checkOpen(SessionRow session)
+	{
+		if (!session.status.equals("open"))
+		{
+			throw new IllegalStateException(Messages.UPLOAD_NOT_OPEN_ERROR.getValue() + session.id + " (" + session.status + ")");
+		}
+	}
+
+	/**
+	 *
+	 * Quotes the columns of a session, so they can be put in SQL as is. Column names are folded to lower case, as PostgreSQL does for unquoted names.
+	 *
+	 * @param columns Comma-separated column names, or null.
+	 * @return The quoted columns, comma-separated, or null if columns is null or any of them isn't a plain column name (letters, digits and underscores).
+	 */
+	public static String quoteColumns(String columns)
+	{
+		if (columns == null)
+		{
+			return null;
+		}
+
+		String[] names = columns.split(",", -1);
+		for (int i = 0; i < names.length; i++)
+		{
+			String name = names[i].trim();
+			if (!COLUMN_NAME.matcher(name).matches())
+			{
+				return null;
+			}
+			names[i] = "\"" + name.toLowerCase() + "\"";
+		}
+		return String.join(", ", names);
+	}
+
+	/**
+	 *
+	 * @param session Session the chunk belongs to.
+	 * @return The COPY statement loading a chunk into the session's staging table.
+	 */
+	private static String copySQL(SessionRow session)
+	{
+		if (session.format.equals("ndjson"))
+		{
+			return "COPY " + session.stagingTable + " (" + ROW_COLUMN + ") FROM STDIN WITH (FORMAT csv, QUOTE E'\\x01', DELIMITER E'\\x02')";
+		}
+		return "COPY " + session.stagingTable + " (" + session.columns + ") FROM STDIN WITH (FORMAT csv" + (session.header ? ", HEADER" : "") + ")";
+	}
+
+	/**
+	 *
+	 * @param session Session to merge.
+	 * @return The statement inserting the staged rows of a session into its target table.
+	 */
+	private static String mergeSQL(SessionRow session)
+	{
+		String target = "\"" + session.schemaName + "\".\"" + session.tableName + "\"";
+
+		if (!session.format.equals("ndjson"))
+		{
+			return "INSERT INTO " + target + " (" + session.columns + ") SELECT " + session.columns + " FROM " + session.stagingTable;
+		}
+
+		String populated = " FROM " + session.stagingTable + " s CROSS JOIN LATERAL jsonb_populate_record(NULL::" + target + ", s." + ROW_COLUMN + ") r WHERE s." + ROW_COLUMN + " IS NOT NULL";
+
+		if (session.columns == null)
+		{
+			return "INSERT INTO " + target + " SELECT r.*" + populated;
+		}
+		return "INSERT INTO " + target + " (" + session.columns + ") SELECT "
+				+ Arrays.stream(session.columns.split(",")).map(column -> "r." + column.trim()).collect(Collectors.joining(", ")) + populated;
+	}
+
+	/**
+	 *
+	 * @param session Row of a session.
+	 * @return Status of the session, as reported to the caller.
+	 */
+	private JsonObject toJson(SessionRow session)
+	{
+		return new JsonObject()
+				.put("upload", session.id)
+				.put("schema", session.schemaName)
+				.put("table", session.tableName)
+				.put("format", session.format)
+				.put("columns", session.columns)
+				.put("header", session.header)
+				.put("status", session.status)
+				.put("rows", session.rows)
+				.put("createdAt", session.createdAt)
+				.put("finishedAt", session.finishedAt);
+	}
+
+	/**
+	 *
+	 * Row of a session, as stored in the session table.
+	 */
+	private static class SessionRow
+	{
+		private final String id;
+		private final String schemaName;
+		private final String tableName;
+		private final String format;
+		private final String columns;
+		private final boolean header;
+		private final String stagingTable;
+		private final String status;
+		private Long rows;
+		private final String createdAt;
+		private final String finishedAt;
+
+		private SessionRow(ResultSet row) throws SQLException
+		{
+			this.id = row.getString(1);
+			this.schemaName = row.getString(2);
+			this.tableName = row.getString(3);
+			this.format = row.getString(4);
+			this.columns = row.getString(5);
+			this.header = row.getBoolean(6);
+			this.stagingTable = row.getString(7);
+			this.status = row.getString(8);
+			this.rows = row.getObject(9) == null ? null : row.getLong(9);
+			this.createdAt = row.getString(10);
+			this.finishedAt = row.getString(11);
+		}
+	}
+}
@@ -0,0 +1,774 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.Logger;
+
+import enums.Messages;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.sql.SQLConnection;
+
+/**
+ *
+ * Class keeping the inserts the database couldn't take, when it is unreachable, in a local journal, and applying them once it is reachable again (store and forward).
+ *
+ * The journal is a sequence of segment files of segment_mb under directory, each memory-mapped and written in place, so appending an entry costs no system call
+ * (and, with force_writes, one flush of the written pages to disk before the entry is acknowledged). Every entry carries a sequence number and a CRC32 checksum:
+ * on start, the segments are scanned and the journal resumes after the last intact entry, so an entry torn by a crash is never applied.
+ *
+ * A replayer applies the entries in order, batch_size at a time, each batch in one transaction which also records the sequence of its last entry in applied_table,
+ * under the identifier of this journal: an entry is applied exactly once, even if the service stops between the commit and the removal of the entry from the journal.
+ * The record is fenced: it only moves forward from the sequence right before the batch, and it is written first, so it also locks the journal's row.
+ * A batch whose predecessor isn't the recorded sequence (applied meanwhile by another replayer of the same journal) is rolled back, and the replayer reloads the sequence.
+ * Segments whose every entry was applied are deleted. An entry the database refuses (e.g. a row breaking a constraint), as opposed to the database being unreachable,
+ * would block the journal forever: it is moved to rejected.ndjson, under directory, and the replay goes on.
+ * While entries are waiting, new inserts are journaled too, so they are applied after the waiting ones, never before.
+ * At most max_mb are journaled; inserts beyond that are refused.
+ *
+ * 	"write_journal": {
+ * 		"enabled": false,
+ * 		"directory": "journal",
+ * 		"segment_mb": 64,
+ * 		"max_mb": 1024,
+ * 		"force_writes": true,
+ * 		"batch_size": 100,
+ * 		"replay_interval_ms": 1000,
+ * 		"applied_table": "public.api_journal_applied"
+ * 	}
+ *
+ * @author pedrolourenco
+ *
+ */
+public class WriteJournal
+{
+	private static final int HEADER_BYTES = 16;
+	private static final int END_OF_SEGMENT = -1;
+	private static final String SEGMENT_SUFFIX = ".journal";
+	private static final String CONNECTION_EXCEPTION_SQLSTATE = "08";
+
+	private final Vertx vertx;
+	private final WorkerExecutor workerExecutor;
+	private final boolean enabled;
+	private final File directory;
+	private final int segmentBytes;
+	private final long maxBytes;
+	private final boolean forceWrites;
+	private final int batchSize;
+	private final long replayIntervalMillis;
+	private final String appliedTable;
+	private final Logger logger;
+	private final List<Segment> segments = new ArrayList<>();
+	private final AtomicLong lastSequence = new AtomicLong(0);
+	private final AtomicLong appliedSequence = new AtomicLong(0);
+	private String journalId;
+	private boolean open = false;
+	private final AtomicBoolean replaying = new AtomicBoolean(false);
+	private final AtomicBoolean oneByOne = new AtomicBoolean(false);
+	private volatile boolean appliedLoaded = false;
+	private long timerID = -1;
+
+	/**
+	 *
+	 * Segment file of the journal, mapped in memory. Only touched from the journal's worker.
+	 */
+	private static class Segment
+	{
+		private final File file;
+		private final long firstSequence;
+		private final FileChannel channel;
+		private final MappedByteBuffer buffer;
+		private int writePosition = 0;
+
+		private Segment(File file, long firstSequence, int bytes) throws IOException
+		{
+			this.file = file;
+			this.firstSequence = firstSequence;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(bytes, channel.size()));
+		}
+	}
+
+	/**
+	 *
+	 * Entry of the journal, read back to be applied.
+	 */
+	private static class Entry
+	{
+		private final long sequence;
+		private final JsonObject payload;
+
+		private Entry(long sequence, JsonObject payload)
+		{
+			this.sequence = sequence;
+			this.payload = payload;
+		}
+	}
+
+	/**
+	 *
+	 * @param vertx Vertx instance the journal's worker and replay timer are created on.
+	 * @param config Application configuration, containing the "write_journal" section.
+	 * @param logger Logger Instance for the class to work with.
+	 */
+	public WriteJournal(Vertx vertx, JsonObject config, Logger logger)
+	{
+		JsonObject settings = config.getJsonObject("write_journal", new JsonObject());
+		String[] applied = settings.getString("applied_table", "public.api_journal_applied").split("\\.", 2);
+
+		this.vertx = vertx;
+		this.enabled = settings.getBoolean("enabled", false);
+		this.directory = new File(settings.getString("directory", "journal"));
+		this.segmentBytes = settings.getInteger("segment_mb", 64) * 1024 * 1024;
+		this.maxBytes = settings.getLong("max_mb", 1024L) * 1024 * 1024;
+		this.forceWrites = settings.getBoolean("force_writes", true);
+		this.batchSize = Math.max(1, settings.getInteger("batch_size", 100));
+		this.replayIntervalMillis = settings.getLong("replay_interval_ms", 1000L);
+		this.appliedTable = "\"" + (applied.length == 2 ? applied[0] : "public") + "\".\"" + applied[applied.length - 1] + "\"";
+		//A single thread appends and reads the journal, so entries keep the order they were acknowledged in, without locking
+		this.workerExecutor = vertx.createSharedWorkerExecutor("write-journal", 1);
+		this.logger = logger;
+	}
+
+	/**
+	 *
+	 * Opens the journal (recovering the entries left by a previous run) and starts the replayer. Does nothing if the journal is not enabled.
+	 *
+	 * @param bulkhead Bulkhead to get the replayer's connections from.
+	 * @param handler Handler for the result of the opening.
+	 */
+	public void open(Bulkhead bulkhead, Handler<AsyncResult<Void>> handler)
+	{
+		if (!enabled)
+		{
+			handler.handle(Future.succeededFuture());
+			return;
+		}
+
+		workerExecutor.<Void>executeBlocking(blocking -> {
+			try
+			{
+				recover();
+				blocking.complete();
+			}
+			catch (IOException | RuntimeException e)
+			{
+				blocking.fail(e);
+			}
+		}, true, recovered -> {
+			if (recovered.succeeded())
+			{
+				open = true;
+				logger.info("WriteJournal - Journal " + journalId + " open, " + (lastSequence.get() - appliedSequence.get()) + " entries at most waiting to be applied");
+				timerID = vertx.setPeriodic(replayIntervalMillis, id -> replay(bulkhead));
+			}
+			handler.handle(recovered);
+		});
+	}
+
+	/**
+	 *
+	 * @return true if inserts can be journaled.
+	 */
+	public boolean isEnabled()
+	{
+		return enabled && open;
+	}
+
+	/**
+	 *
+	 * @return true if journaled entries are waiting to be applied, in which case new inserts must be journaled too, to be applied after them.
+	 */
+	public boolean hasBacklog()
+	{
+		return isEnabled() && lastSequence.get() > appliedSequence.get();
+	}
+
+	/**
+	 *
+	 * Appends an insert to the journal. Once the handler succeeds, the insert is on disk (with force_writes) and will be applied.
+	 *
+	 * @param table Table of the insert, for the logs.
+	 * @param sql Insert statement.
+	 * @param handler Handler for the sequence number of the entry, failed with an IllegalStateException if the journal is full, or an IllegalArgumentException if the insert is larger than a segment.
+	 */
+	public void append(String table, String sql, Handler<AsyncResult<Long>> handler)
+	{
+		byte[] payload = new JsonObject().put("table", table).put("sql", sql).put("journaledAt", System.currentTimeMillis()).encode().getBytes(StandardCharsets.UTF_8);
+
+		workerExecutor.<Long>executeBlocking(blocking -> {
+			try
+			{
+				blocking.complete(write(payload));
+			}
+			catch (IOException | RuntimeException e)
+			{
+				blocking.fail(e);
+			}
+		}, true, handler);
+	}
+
+	/**
+	 *
+	 * Stops the replayer and closes the journal's worker. The segments stay on disk, to be recovered on the next start.
+	 */
+	public void close()
+	{
+		if (timerID >= 0)
+		{
+			vertx.cancelTimer(timerID);
+		}
+		workerExecutor.close();
+	}
+
+	/**
+	 *
+	 * Writes an entry at the end of the journal, starting a new segment if the current one is full.
+	 *
+	 * @param payload Encoded entry.
+	 * @return Sequence number of the entry.
+	 * @throws IOException if a new segment couldn't be created.
+	 */
+	private long write(byte[] payload) throws IOException
+	{
+		if (HEADER_BYTES + payload.length > segmentBytes)
+		{
+			throw new IllegalArgumentException(Messages.JOURNAL_ENTRY_TOO_LARGE_ERROR.getValue() + segmentBytes / (1024 * 1024));
+		}
+
+		Segment segment = segments.get(segments.size() - 1);
+		long sequence = lastSequence.get() + 1;
+
+		if (segment.writePosition + HEADER_BYTES + payload.length > segment.buffer.capacity())
+		{
+			if ((long) (segments.size() + 1) * segmentBytes > maxBytes)
+			{
+				throw new IllegalStateException(Messages.JOURNAL_FULL_ERROR.getValue() + maxBytes / (1024 * 1024));
+			}
+			if (segment.writePosition + 4 <= segment.buffer.capacity())
+			{
+				segment.buffer.putInt(segment.writePosition, END_OF_SEGMENT);
+			}
+			segment.buffer.force();
+			segment = newSegment(sequence);
+		}
+
+		int position = segment.writePosition;
+		segment.buffer.putLong(position + 8, sequence);
+		for (int i = 0; i < payload.length; i++)
+		{
+			segment.buffer.put(position + HEADER_BYTES + i, payload[i]);
+		}
+		segment.buffer.putInt(position + 4, checksum(sequence, payload));
+		//The length goes last: until it is written, the entry reads as the end of the journal
+		segment.buffer.putInt(position, payload.length);
+
+		if (forceWrites)
+		{
+			segment.buffer.force();
+		}
+
+		segment.writePosition += HEADER_BYTES + payload.length;
+		lastSequence.set(sequence);
+		return sequence;
+	}
+
+	/**
+	 *
+	 * Reads the entries following the last applied one, from the oldest segment on.
+	 *
+	 * @param max Most entries to read.
+	 * @return The entries read, in order.
+	 */
+	private List<Entry> read(int max)
+	{
+		List<Entry> entries = new ArrayList<>();
+		long applied = appliedSequence.get();
+
+		for (Segment segment : segments)
+		{
+			int position = 0;
+
+			while (position < segment.writePosition && entries.size() < max)
+			{
+				int length = segment.buffer.getInt(position);
+				long sequence = segment.buffer.getLong(position + 8);
+
+				if (sequence > applied)
+				{
+					byte[] payload = new byte[length];
+					for (int i = 0; i < length; i++)
+					{
+						payload[i] = segment.buffer.get(position + HEADER_BYTES + i);
+					}
+					entries.add(new Entry(sequence, new JsonObject(new String(payload, StandardCharsets.UTF_8))));
+				}
+				position += HEADER_BYTES + length;
+			}
+
+			if (entries.size() >= max)
+			{
+				break;
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 *
+	 * Applies the next batch of entries, if the database is reachable, and goes on with the next batch right away while entries are waiting.
+	 * Batches never overlap: a replay starting while another runs does nothing.
+	 *
+	 * @param bulkhead Bulkhead to get the connection from.
+	 */
+	private void replay(Bulkhead bulkhead)
+	{
+		if ((appliedLoaded && !hasBacklog()) || !replaying.compareAndSet(false, true))
+		{
+			return;
+		}
+
+		bulkhead.getConnection(connection -> {
+			if (connection.failed())
+			{
+				replaying.set(false);
+				return;
+			}
+
+			SQLConnection conn = connection.result();
+			loadApplied(conn, loaded -> {
+				if (loaded.failed() || !hasBacklog())
+				{
+					conn.close();
+					replaying.set(false);
+					return;
+				}
+
+				workerExecutor.<List<Entry>>executeBlocking(blocking -> blocking.complete(read(oneByOne.get() ? 1 : batchSize)), true, read -> {
+					if (read.failed())
+					{
+						conn.close();
+						replaying.set(false);
+						logger.error("WriteJournal - Failed to read the journal: " + read.cause());
+						return;
+					}
+
+					apply(conn, read.result(), applied -> {
+						conn.close();
+						replaying.set(false);
+
+						if (applied.succeeded() && hasBacklog())
+						{
+							vertx.runOnContext(v -> replay(bulkhead));
+						}
+					});
+				});
+			});
+		});
+	}
+
+	/**
+	 *
+	 * Applies a batch of entries in one transaction, recording the sequence of its last entry first (see recordApplied).
+	 * If the database refuses the batch, the entries are then applied one by one, and an entry refused on its own is rejected.
+	 * If the recorded sequence isn't the one right before the batch, the batch is rolled back and the sequence is read again on the next replay.
+	 *
+	 * @param conn SQLConnection to apply the batch on.
+	 * @param entries Entries to apply, in order.
+	 * @param handler Handler for the result of the batch.
+	 */
+	private void apply(SQLConnection conn, List<Entry> entries, Handler<AsyncResult<Void>> handler)
+	{
+		long first = entries.get(0).sequence;
+		long last = entries.get(entries.size() - 1).sequence;
+		List<String> statements = entries.stream().map(entry -> entry.payload.getString("sql")).collect(Collectors.toList());
+
+		conn.setAutoCommit(false, autoCommit -> {
+			if (autoCommit.failed())
+			{
+				handler.handle(Future.failedFuture(autoCommit.cause()));
+				return;
+			}
+
+			executeFenced(conn, first, last, statements, executed -> {
+				Handler<AsyncResult<Void>> end = ended -> conn.setAutoCommit(true, v -> {
+					Throwable cause = executed.failed() ? executed.cause() : ended.cause();
+
+					if (cause == null)
+					{
+						applied(last);
+						logger.info("WriteJournal - Applied " + entries.size() + " journaled inserts, up to entry " + last);
+						handler.handle(Future.succeededFuture());
+					}
+					else if (cause instanceof IllegalStateException)
+					{
+						appliedLoaded = false;
+						logger.error("WriteJournal - Batch from entry " + first + " rolled back: " + cause.getMessage());
+						handler.handle(Future.failedFuture(cause));
+					}
+					else if (isUnreachable(cause))
+					{
+						logger.error("WriteJournal - Database unreachable, replay postponed: " + cause);
+						handler.handle(Future.failedFuture(cause));
+					}
+					else if (entries.size() > 1)
+					{
+						oneByOne.set(true);
+						logger.error("WriteJournal - Batch up to entry " + last + " refused, applying its entries one by one: " + cause);
+						handler.handle(Future.succeededFuture());
+					}
+					else
+					{
+						reject(conn, entries.get(0), cause, handler);
+					}
+				});
+
+				if (executed.succeeded())
+				{
+					conn.commit(end);
+				}
+				else
+				{
+					conn.rollback(end);
+				}
+			});
+		});
+	}
+
+	/**
+	 *
+	 * Moves an entry the database refused to rejected.ndjson and records it as applied, so the entries after it can be applied.
+	 *
+	 * @param conn SQLConnection to record the entry on.
+	 * @param entry Entry refused.
+	 * @param cause Cause of the refusal.
+	 * @param handler Handler for the result of the rejection.
+	 */
+	private void reject(SQLConnection conn, Entry entry, Throwable cause, Handler<AsyncResult<Void>> handler)
+	{
+		byte[] line = (entry.payload.copy().put("sequence", entry.sequence).put("error", cause.toString()).encode() + "\n").getBytes(StandardCharsets.UTF_8);
+
+		workerExecutor.<Void>executeBlocking(blocking -> {
+			try
+			{
+				Files.write(new File(directory, "rejected.ndjson").toPath(), line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+				blocking.complete();
+			}
+			catch (IOException e)
+			{
+				blocking.fail(e);
+			}
+		}, true, written -> {
+			if (written.failed())
+			{
+				logger.error("WriteJournal - Failed to reject entry " + entry.sequence + ", replay stopped: " + written.cause());
+				handler.handle(Future.failedFuture(written.cause()));
+				return;
+			}
+
+			recordApplied(conn, entry.sequence, entry.sequence, recorded -> {
+				if (recorded.succeeded())
+				{
+					applied(entry.sequence);
+					logger.error("WriteJournal - Entry " + entry.sequence + " on " + entry.payload.getString("table") + " rejected: " + cause);
+				}
+				else if (recorded.cause() instanceof IllegalStateException)
+				{
+					appliedLoaded = false;
+					logger.error("WriteJournal - Rejection of entry " + entry.sequence + " not recorded: " + recorded.cause().getMessage());
+				}
+				handler.handle(recorded);
+			});
+		});
+	}
+
+	/**
+	 *
+	 * Moves the applied sequence forward, goes back to whole batches and deletes the segments whose every entry was applied.
+	 * The last segment is always kept, as it carries the sequence the journal goes on from.
+	 *
+	 * @param sequence Sequence of the last entry applied.
+	 */
+	private void applied(long sequence)
+	{
+		appliedSequence.set(sequence);
+		oneByOne.set(false);
+
+		workerExecutor.<Void>executeBlocking(blocking -> {
+			while (segments.size() > 1 && segments.get(1).firstSequence <= sequence + 1)
+			{
+				Segment segment = segments.remove(0);
+				try
+				{
+					segment.channel.close();
+					Files.deleteIfExists(segment.file.toPath());
+				}
+				catch (IOException e)
+				{
+					logger.error("WriteJournal - Failed to delete segment " + segment.file + ": " + e);
+				}
+			}
+			blocking.complete();
+		}, true, null);
+	}
+
+	/**
+	 *
+	 * Reads, once, the sequence last applied from this journal, creating the table holding it if needed.
+	 *
+	 * @param conn SQLConnection to read on.
+	 * @param handler Handler for the result of the read.
+	 */
+	private void loadApplied(SQLConnection conn, Handler<AsyncResult<Void>> handler)
+	{
+		if (appliedLoaded)
+		{
+			handler.handle(Future.succeededFuture());
+			return;
+		}
+
+		conn.execute("CREATE TABLE IF NOT EXISTS " + appliedTable + " (journal_id text PRIMARY KEY, sequence bigint NOT NULL, applied_at timestamptz NOT NULL DEFAULT now())", created -> {
+			if (created.failed())
+			{
+				logger.error("WriteJournal - Failed to create " + appliedTable + ": " + created.cause());
+				handler.handle(created);
+				return;
+			}
+
+			conn.query("SELECT sequence FROM " + appliedTable + " WHERE journal_id = '" + journalId + "'", read -> {
+				if (read.failed())
+				{
+					handler.handle(Future.failedFuture(read.cause()));
+					return;
+				}
+
+				read.result().getResults().stream().findFirst().ifPresent(row -> appliedSequence.set(Math.max(appliedSequence.get(), row.getLong(0))));
+				appliedLoaded = true;
+				logger.info("WriteJournal - Entries applied up to " + appliedSequence.get() + ", journaled up to " + lastSequence.get());
+				handler.handle(Future.succeededFuture());
+			});
+		});
+	}
+
+	/**
+	 *
+	 * Opens the journal directory: reads (or creates) the journal's identifier, maps every segment and scans it up to its last intact entry.
+	 * Entries after a torn or corrupted one are lost, and reported.
+	 *
+	 * @throws IOException if the directory or a segment couldn't be read.
+	 */
+	private void recover() throws IOException
+	{
+		Files.createDirectories(directory.toPath());
+		File idFile = new File(directory, "journal.id");
+
+		if (!idFile.exists())
+		{
+			Files.write(idFile.toPath(), UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8));
+		}
+		journalId = new String(Files.readAllBytes(idFile.toPath()), StandardCharsets.UTF_8).trim();
+
+		File[] files = Arrays.stream(Optional.ofNullable(directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX))).orElse(new File[0]))
+				.sorted().toArray(File[]::new);
+
+		for (File file : files)
+		{
+			Segment segment = new Segment(file, Long.parseLong(file.getName().replace(SEGMENT_SUFFIX, "")), segmentBytes);
+			long expected = Math.max(lastSequence.get() + 1, segment.firstSequence);
+			int position = 0;
+
+			while (position + HEADER_BYTES <= segment.buffer.capacity())
+			{
+				int length = segment.buffer.getInt(position);
+
+				if (length <= 0)
+				{
+					break;
+				}
+				if (position + HEADER_BYTES + length > segment.buffer.capacity() || !isIntact(segment, position, length, expected))
+				{
+					logger.error("WriteJournal - Segment " + file + " is torn or corrupted after entry " + (expected - 1) + ", the rest of it is lost");
+					//Intact entries past the torn one would otherwise be read again once new entries are written over the torn one
+					for (int i = position; i < segment.buffer.capacity(); i++)
+					{
+						segment.buffer.put(i, (byte) 0);
+					}
+					segment.buffer.force();
+					break;
+				}
+				position += HEADER_BYTES + length;
+				expected++;
+			}
+
+			segment.writePosition = position;
+			lastSequence.set(Math.max(expected, segment.firstSequence) - 1);
+			segments.add(segment);
+		}
+
+		if (segments.isEmpty())
+		{
+			newSegment(1);
+		}
+		appliedSequence.set(segments.get(0).firstSequence - 1);
+	}
+
+	/**
+	 *
+	 * @param segment Segment holding the entry.
+	 * @param position Position of the entry.
+	 * @param length Length of the entry's payload.
+	 * @param expected Sequence the entry must have.
+	 * @return true if the entry has the expected sequence and its checksum matches.
+	 */
+	private static boolean isIntact(Segment segment, int position, int length, long expected)
+	{
+		byte[] payload = new byte[length];
+		for (int i = 0; i < length; i++)
+		{
+			payload[i] = segment.buffer.get(position + HEADER_BYTES + i);
+		}
+		long sequence = segment.buffer.getLong(position + 8);
+		return sequence == expected && segment.buffer.getInt(position + 4) == checksum(sequence, payload);
+	}
+
+	/**
+	 *
+	 * Creates and maps a new segment, starting at a sequence.
+	 *
+	 * @param firstSequence Sequence of the first entry of the segment.
+	 * @return The new segment.
+	 * @throws IOException if the segment couldn't be created.
+	 */
+	private Segment newSegment(long firstSequence) throws IOException
+	{
+		Segment segment = new Segment(new File(directory, String.format("%020d", firstSequence) + SEGMENT_SUFFIX), firstSequence, segmentBytes);
+		segments.add(segment);
+		return segment;
+	}
+
+	/**
+	 *
+	 * @param sequence Sequence of an entry.
+	 * @param payload Payload of the entry.
+	 * @return CRC32 of the sequence and payload.
+	 */
+	private static int checksum(long sequence, byte[] payload)
+	{
+		CRC32 crc = new CRC32();
+		for (int shift = 56; shift >= 0; shift -= 8)
+		{
+			crc.update((int) (sequence >>> shift) & 0xFF);
+		}
+		crc.update(payload, 0, payload.length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 *
+	 * Records the sequence of the last entry of a batch in applied_table, fenced on the sequence right before the batch:
+	 * the record only moves forward if no other replayer applied the batch (or part of it) meanwhile. The journal's first record is inserted.
+	 *
+	 * @param conn SQLConnection to record the sequence on, inside the batch's transaction.
+	 * @param first Sequence of the first entry of the batch.
+	 * @param last Sequence of the last entry of the batch.
+	 * @param handler Handler for the result of the record, failed with an IllegalStateException if the recorded sequence isn't first - 1.
+	 */
+	private void recordApplied(SQLConnection conn, long first, long last, Handler<AsyncResult<Void>> handler)
+	{
+		conn.update("INSERT INTO " + appliedTable + " (journal_id, sequence) VALUES ('" + journalId + "', " + last + ") "
+				+ "ON CONFLICT (journal_id) DO UPDATE SET sequence = EXCLUDED.sequence, applied_at = now() WHERE " + appliedTable + ".sequence = " + (first - 1), recorded -> {
+			if (recorded.failed())
+			{
+				handler.handle(Future.failedFuture(recorded.cause()));
+			}
+			else if (recorded.result().getUpdated() == 0)
+			{
+				handler.handle(Future.failedFuture(new IllegalStateException(Messages.JOURNAL_FENCE_ERROR.getValue() + (first - 1))));
+			}
+			else
+			{
+				handler.handle(Future.succeededFuture());
+			}
+		});
+	}
+
+	/**
+	 *
+	 * Records a batch as applied (see recordApplied), then executes its statements, stopping at the first failure.
+	 *
+	 * @param conn SQLConnection to apply the batch on, inside a transaction.
+	 * @param first Sequence of the first entry of the batch.
+	 * @param last Sequence of the last entry of the batch.
+	 * @param statements Statements of the batch's entries.
+	 * @param handler Handler for the result of the execution.
+	 */
+	private void executeFenced(SQLConnection conn, long first, long last, List<String> statements, Handler<AsyncResult<Void>> handler)
+	{
+		recordApplied(conn, first, last, recorded -> {
+			if (recorded.failed())
+			{
+				handler.handle(recorded);
+				return;
+			}
+			executeInOrder(conn, statements, 0, handler);
+		});
+	}
+
+	/**
+	 *
+	 * @param cause Cause for the failure of a batch.
+	 * @return true if the batch failed because the database couldn't be reached, rather than because it refused an entry.
+	 */
+	private static boolean isUnreachable(Throwable cause)
+	{
+		return !(cause instanceof SQLException) || Optional.ofNullable(((SQLException) cause).getSQLState()).map(state -> state.startsWith(CONNECTION_EXCEPTION_SQLSTATE)).orElse(true);
+	}
+
+	/**
+	 *
+	 * Executes statements one after the other, stopping at the first failure.
+	 *
+	 * @param conn SQLConnection to execute the statements on.
+	 * @param statements Statements to execute.
+	 * @param index Index of the next statement to execute.
+	 * @param handler Handler for the result of the execution.
+	 */
+	private static void executeInOrder(SQLConnection conn, List<String> statements, int index, Handler<AsyncResult<Void>> handler)
+	{
+		if (index == statements.size())
+		{
+			handler.handle(Future.succeededFuture());
+			return;
+		}
+
+		conn.execute(statements.get(index), executed -> {
+			if (executed.failed())
+			{
+				handler.handle(executed);
+				return;
+			}
+			executeInOrder(conn, statements, index + 1, handler);
+		});
+	}
+}
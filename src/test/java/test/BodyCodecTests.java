@@ -0,0 +1,128 @@
+package test;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import enums.MediaTypes;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import utils.BodyCodec;
+
+public class BodyCodecTests
+{
+	//Sizes on both sides of every header length change: MessagePack fixarray/array 16/array 32, CBOR inline/1/2/4 byte lengths
+	private static final long[] SIZES = {0, 1, 15, 16, 23, 24, 255, 256, 65535, 65536};
+
+	private static JsonArray row(long i)
+	{
+		return new JsonArray().add(i).add("row " + i).add(i % 2 == 0).addNull();
+	}
+
+	/**
+	 *
+	 * Writes a result the way the streamed responses do: prefix, rows, suffix.
+	 */
+	private static Buffer streamed(MediaTypes type, long rows, JsonObject metadata)
+	{
+		Buffer document = BodyCodec.resultsPrefix(type, rows, metadata);
+		for (long i = 0; i < rows; i++)
+		{
+			if (i > 0)
+			{
+				document.appendBytes(BodyCodec.rowSeparator(type));
+			}
+			document.appendBytes(BodyCodec.encodeRow(type, row(i)));
+		}
+		return document.appendBuffer(BodyCodec.resultsSuffix(type, metadata));
+	}
+
+	private static void assertStreamedDecodes(MediaTypes type, long rows, JsonObject metadata)
+	{
+		JsonObject decoded = BodyCodec.decode(type, streamed(type, rows, metadata));
+
+		assertTrue(decoded != null);
+		assertTrue(decoded.size() == metadata.size() + 1);
+		assertTrue(decoded.getJsonArray("results").size() == rows);
+		for (long i = 0; i < rows; i += Math.max(1, rows / 10))
+		{
+			JsonArray decodedRow = decoded.getJsonArray("results").getJsonArray((int) i);
+			assertTrue(decodedRow.getLong(0) == i && decodedRow.getString(1).equals("row " + i) && decodedRow.getBoolean(2) == (i % 2 == 0) && decodedRow.hasNull(3));
+		}
+		metadata.forEach(entry -> assertTrue(decoded.getValue(entry.getKey()).equals(entry.getValue())));
+	}
+
+	@Test
+	public void cborResultHeadersTest()
+	{
+		for (long rows : SIZES)
+		{
+			assertStreamedDecodes(MediaTypes.CBOR, rows, new JsonObject());
+			assertStreamedDecodes(MediaTypes.CBOR, rows, new JsonObject().put("nextCursor", "abc").put("truncated", true));
+		}
+	}
+
+	@Test
+	public void msgpackResultHeadersTest()
+	{
+		for (long rows : SIZES)
+		{
+			assertStreamedDecodes(MediaTypes.MSGPACK, rows, new JsonObject());
+			assertStreamedDecodes(MediaTypes.MSGPACK, rows, new JsonObject().put("nextCursor", "abc").put("truncated", true));
+		}
+	}
+
+	@Test
+	public void jsonResultMatchesEncodedTest()
+	{
+		JsonObject decoded = BodyCodec.decode(MediaTypes.JSON, streamed(MediaTypes.JSON, 3, new JsonObject().put("truncated", false)));
+
+		assertTrue(decoded.getJsonArray("results").equals(new JsonArray().add(row(0)).add(row(1)).add(row(2))));
+		assertTrue(!decoded.getBoolean("truncated"));
+	}
+
+	@Test
+	public void cborMapHeaderSizesTest()
+	{
+		//Map of one key ("results") and an empty array: 0xA1, text(7) "results", 0x80
+		assertTrue(Arrays.equals(streamed(MediaTypes.CBOR, 0, new JsonObject()).getBytes(), new byte[] {(byte) 0xA1, 0x67, 'r', 'e', 's', 'u', 'l', 't', 's', (byte) 0x80}));
+		//Array of 24 rows: 0x98 0x18; of 256 rows: 0x99 0x01 0x00
+		assertTrue(BodyCodec.resultsPrefix(MediaTypes.CBOR, 24, new JsonObject()).getByte(9) == (byte) 0x98);
+		assertTrue(BodyCodec.resultsPrefix(MediaTypes.CBOR, 256, new JsonObject()).getShort(10) == 256);
+	}
+
+	@Test
+	public void msgpackMapHeaderSizesTest()
+	{
+		//Map of one key ("results") and an empty array: 0x81, fixstr(7) "results", 0x90
+		assertTrue(Arrays.equals(streamed(MediaTypes.MSGPACK, 0, new JsonObject()).getBytes(), new byte[] {(byte) 0x81, (byte) 0xA7, 'r', 'e', 's', 'u', 'l', 't', 's', (byte) 0x90}));
+		//Array of 16 rows: 0xDC 0x00 0x10; of 65536 rows: 0xDD 0x00 0x01 0x00 0x00
+		assertTrue(BodyCodec.resultsPrefix(MediaTypes.MSGPACK, 16, new JsonObject()).getByte(9) == (byte) 0xDC);
+		assertTrue(BodyCodec.resultsPrefix(MediaTypes.MSGPACK, 65536, new JsonObject()).getInt(10) == 65536);
+	}
+
+	@Test
+	public void binaryBodiesDecodedTest()
+	{
+		JsonObject body = new JsonObject().put("columns", "id,data").put("values", new JsonArray().add(new JsonArray().add(1).add(new byte[] {1, 2, 3})));
+
+		for (MediaTypes type : new MediaTypes[] {MediaTypes.CBOR, MediaTypes.MSGPACK})
+		{
+			JsonObject decoded = BodyCodec.decode(type, BodyCodec.encode(type, body));
+
+			assertTrue(decoded.getString("columns").equals("id,data"));
+			assertTrue(Arrays.equals(decoded.getJsonArray("values").getJsonArray(0).getBinary(1), new byte[] {1, 2, 3}));
+		}
+	}
+
+	@Test
+	public void notAnObjectNotDecodedTest()
+	{
+		assertTrue(BodyCodec.decode(MediaTypes.CBOR, BodyCodec.resultsPrefix(MediaTypes.CBOR, 0, new JsonObject()).slice(9, 10)) == null);
+		assertTrue(BodyCodec.decode(MediaTypes.MSGPACK, Buffer.buffer(new byte[] {(byte) 0xC1})) == null);
+		assertTrue(BodyCodec.decode(MediaTypes.JSON, Buffer.buffer()) == null);
+	}
+}
@@ -0,0 +1,60 @@
+package test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.logging.log4j.LogManager;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import utils.ChangeFeed;
+
+public class ChangeFeedTests
+{
+	private static Vertx vertx;
+	private static ChangeFeed changeFeed;
+
+	@BeforeClass
+	public static void before()
+	{
+		vertx = Vertx.vertx();
+		changeFeed = new ChangeFeed(vertx, new JsonObject()
+				.put("url", "jdbc:postgresql://localhost:5432/")
+				.put("change_feed", new JsonObject().put("tables", new JsonArray().add("public.orders").add("Sales.Invoices"))),
+				LogManager.getLogger(ChangeFeedTests.class));
+	}
+
+	@AfterClass
+	public static void after()
+	{
+		changeFeed.close();
+		vertx.close();
+	}
+
+	@Test
+	public void listedTablesSubscribableTest()
+	{
+		assertTrue(changeFeed.isSubscribable("public", "orders"));
+		assertTrue(changeFeed.isSubscribable("PUBLIC", "Orders"));
+		assertTrue(changeFeed.isSubscribable("sales", "invoices"));
+	}
+
+	@Test
+	public void unlistedTablesNotSubscribableTest()
+	{
+		assertFalse(changeFeed.isSubscribable("public", "customers"));
+		assertFalse(changeFeed.isSubscribable("sales", "orders"));
+	}
+
+	@Test
+	public void quotedNamesNotSubscribableTest()
+	{
+		assertFalse(changeFeed.isSubscribable("public", "orders\" ON x; DROP TABLE y; --"));
+		assertFalse(changeFeed.isSubscribable("public\"", "orders"));
+		assertFalse(changeFeed.isSubscribable("public", "orders; --"));
+	}
+}
@@ -0,0 +1,185 @@
+package test;
+
+import static org.junit.Assert.assertTrue;
+
+import org.apache.logging.log4j.LogManager;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import enums.Messages;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.codec.BodyCodec;
+import utils.ConcurrencyLimiter;
+
+@RunWith(VertxUnitRunner.class)
+public class ConcurrencyLimiterTests
+{
+	private static final long SLOW_RESPONSE_MS = 100;
+
+	private static Vertx vertx;
+
+	@BeforeClass
+	public static void before(TestContext context)
+	{
+		vertx = Vertx.vertx();
+	}
+
+	@AfterClass
+	public static void after(TestContext context)
+	{
+		vertx.close(context.asyncAssertSuccess());
+	}
+
+	/**
+	 *
+	 * Starts a server whose routes go through the limiter: /fast answers right away, /slow after SLOW_RESPONSE_MS (above the latency threshold).
+	 */
+	private static void startServer(ConcurrencyLimiter limiter, Handler<AsyncResult<HttpServer>> handler)
+	{
+		Router router = Router.router(vertx);
+		router.route().handler(limiter);
+		router.get("/fast").handler(routingContext -> routingContext.response().end("fast"));
+		router.get("/slow").handler(routingContext -> vertx.setTimer(SLOW_RESPONSE_MS, timerID -> routingContext.response().end("slow")));
+		router.get("/shed").handler(routingContext -> routingContext.response().setStatusCode(503).end("shed"));
+		router.get("/failed").handler(routingContext -> routingContext.response().setStatusCode(500).end("failed"));
+		vertx.createHttpServer().requestHandler(router).listen(0, handler);
+	}
+
+	private static ConcurrencyLimiter limiter(int initialLimit, int minLimit)
+	{
+		JsonObject config = new JsonObject().put("concurrency_limiter", new JsonObject()
+				.put("initial_limit", initialLimit)
+				.put("min_limit", minLimit)
+				.put("max_limit", 100)
+				.put("latency_threshold_ms", 20)
+				.put("backoff_ratio", 0.5)
+				.put("retry_after_seconds", 3));
+		return new ConcurrencyLimiter(vertx, config, LogManager.getLogger(ConcurrencyLimiterTests.class));
+	}
+
+	private static void get(WebClient webClient, HttpServer server, String path, Handler<AsyncResult<HttpResponse<String>>> handler)
+	{
+		webClient.get(server.actualPort(), "localhost", path).as(BodyCodec.string()).send(handler);
+	}
+
+	@Test
+	public void slowResponseDecreasesLimitTest(TestContext testContext)
+	{
+		ConcurrencyLimiter limiter = limiter(10, 2);
+		WebClient webClient = WebClient.create(vertx);
+		final Async async = testContext.async();
+
+		startServer(limiter, server -> get(webClient, server.result(), "/slow", resp -> vertx.setTimer(50, timerID -> {
+			assertTrue(resp.result().statusCode() == 200);
+			assertTrue(limiter.getLimit() == 5);
+			server.result().close();
+			async.complete();
+		})));
+	}
+
+	@Test
+	public void limitNeverGoesBelowMinimumTest(TestContext testContext)
+	{
+		ConcurrencyLimiter limiter = limiter(4, 3);
+		WebClient webClient = WebClient.create(vertx);
+		final Async async = testContext.async();
+
+		startServer(limiter, server -> get(webClient, server.result(), "/slow", first -> get(webClient, server.result(), "/slow", second -> vertx.setTimer(50, timerID -> {
+			assertTrue(limiter.getLimit() == 3);
+			server.result().close();
+			async.complete();
+		}))));
+	}
+
+	@Test
+	public void fastResponsesIncreaseLimitTest(TestContext testContext)
+	{
+		ConcurrencyLimiter limiter = limiter(4, 2);
+		WebClient webClient = WebClient.create(vertx);
+		final Async async = testContext.async();
+
+		//4 -> 4.25 -> 4.49 -> 4.71 -> 4.92 -> 5.12: five fast responses add one to the limit
+		startServer(limiter, server -> sendFast(webClient, server.result(), 5, v -> vertx.setTimer(50, timerID -> {
+			assertTrue(limiter.getLimit() == 5);
+			server.result().close();
+			async.complete();
+		})));
+	}
+
+	@Test
+	public void fastFailuresDoNotIncreaseLimitTest(TestContext testContext)
+	{
+		ConcurrencyLimiter limiter = limiter(4, 2);
+		WebClient webClient = WebClient.create(vertx);
+		final Async async = testContext.async();
+
+		startServer(limiter, server -> send(webClient, server.result(), "/failed", 5, v -> vertx.setTimer(50, timerID -> {
+			assertTrue(limiter.getLimit() == 4);
+			server.result().close();
+			async.complete();
+		})));
+	}
+
+	@Test
+	public void fastShedResponseDecreasesLimitTest(TestContext testContext)
+	{
+		ConcurrencyLimiter limiter = limiter(10, 2);
+		WebClient webClient = WebClient.create(vertx);
+		final Async async = testContext.async();
+
+		startServer(limiter, server -> get(webClient, server.result(), "/shed", resp -> vertx.setTimer(50, timerID -> {
+			assertTrue(resp.result().statusCode() == 503);
+			assertTrue(limiter.getLimit() == 5);
+			server.result().close();
+			async.complete();
+		})));
+	}
+
+	private static void sendFast(WebClient webClient, HttpServer server, int remaining, Handler<Void> done)
+	{
+		send(webClient, server, "/fast", remaining, done);
+	}
+
+	private static void send(WebClient webClient, HttpServer server, String path, int remaining, Handler<Void> done)
+	{
+		if (remaining == 0)
+		{
+			done.handle(null);
+			return;
+		}
+		get(webClient, server, path, resp -> send(webClient, server, path, remaining - 1, done));
+	}
+
+	@Test
+	public void requestOverLimitRejectedTest(TestContext testContext)
+	{
+		ConcurrencyLimiter limiter = limiter(1, 1);
+		WebClient webClient = WebClient.create(vertx);
+		final Async async = testContext.async(2);
+
+		startServer(limiter, server -> {
+			get(webClient, server.result(), "/slow", resp -> {
+				assertTrue(resp.result().statusCode() == 200);
+				async.countDown();
+			});
+			vertx.setTimer(20, timerID -> get(webClient, server.result(), "/slow", resp -> {
+				assertTrue(resp.result().statusCode() == 503);
+				assertTrue(resp.result().getHeader("Retry-After").equals("3"));
+				assertTrue(new JsonObject(resp.result().body()).getString("error").startsWith(Messages.CONCURRENCY_LIMIT_ERROR.getValue()));
+				async.countDown();
+			}));
+		});
+	}
+}
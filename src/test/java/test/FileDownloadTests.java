@@ -0,0 +1,98 @@
+package test;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.ext.web.RoutingContext;
+import utils.FileDownload;
+
+public class FileDownloadTests
+{
+	private static final String ETAG = "\"1234-100\"";
+
+	private static RoutingContext request(String range, String ifRange)
+	{
+		RoutingContext context = mock(RoutingContext.class);
+		HttpServerRequest request = mock(HttpServerRequest.class);
+
+		when(context.request()).thenReturn(request);
+		when(request.getHeader("range")).thenReturn(range);
+		when(request.getHeader("if-range")).thenReturn(ifRange);
+		return context;
+	}
+
+	private static long[] rangeOf(String range, long length)
+	{
+		return FileDownload.rangeOf(request(range, null), length, ETAG);
+	}
+
+	private static boolean isRange(long[] range, long first, long last)
+	{
+		return range != null && Arrays.equals(range, new long[] {first, last});
+	}
+
+	private static boolean isUnsatisfiable(long[] range)
+	{
+		return range != null && range[0] > range[1];
+	}
+
+	@Test
+	public void noRangeSendsEverythingTest()
+	{
+		assertTrue(rangeOf(null, 100) == null);
+	}
+
+	@Test
+	public void boundedRangeTest()
+	{
+		assertTrue(isRange(rangeOf("bytes=0-9", 100), 0, 9));
+		assertTrue(isRange(rangeOf("bytes=10-10", 100), 10, 10));
+		assertTrue(isRange(rangeOf(" bytes=90-199 ", 100), 90, 99));
+	}
+
+	@Test
+	public void openRangeTest()
+	{
+		assertTrue(isRange(rangeOf("bytes=50-", 100), 50, 99));
+		assertTrue(isRange(rangeOf("bytes=99-", 100), 99, 99));
+	}
+
+	@Test
+	public void suffixRangeTest()
+	{
+		assertTrue(isRange(rangeOf("bytes=-10", 100), 90, 99));
+		assertTrue(isRange(rangeOf("bytes=-500", 100), 0, 99));
+	}
+
+	@Test
+	public void unsatisfiableRangeTest()
+	{
+		assertTrue(isUnsatisfiable(rangeOf("bytes=100-", 100)));
+		assertTrue(isUnsatisfiable(rangeOf("bytes=150-199", 100)));
+		assertTrue(isUnsatisfiable(rangeOf("bytes=-0", 100)));
+		assertTrue(isUnsatisfiable(rangeOf("bytes=0-", 0)));
+	}
+
+	@Test
+	public void malformedRangeSendsEverythingTest()
+	{
+		assertTrue(rangeOf("bytes=-", 100) == null);
+		assertTrue(rangeOf("bytes=9-5", 100) == null);
+		assertTrue(rangeOf("bytes=0-9,20-29", 100) == null);
+		assertTrue(rangeOf("items=0-9", 100) == null);
+		assertTrue(rangeOf("bytes=99999999999999999999-", 100) == null);
+	}
+
+	@Test
+	public void ifRangeTest()
+	{
+		assertTrue(isRange(FileDownload.rangeOf(request("bytes=0-9", ETAG), 100, ETAG), 0, 9));
+		assertTrue(FileDownload.rangeOf(request("bytes=0-9", "\"1234-99\""), 100, ETAG) == null);
+	}
+}
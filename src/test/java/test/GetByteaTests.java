@@ -0,0 +1,206 @@
+package test;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import application.PostgreSQLClientVerticle;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.codec.BodyCodec;
+
+@RunWith(VertxUnitRunner.class)
+public class GetByteaTests 
+{
+	private static Vertx vertx;
+	private static JDBCClient jdbc;
+
+	private static final String CONTENT = "0123456789abcdefghij";
+	private static final String URI = "/bytea/public/get_bytea_test/data?name=file1";
+
+	private static final String testDataGeneration = "CREATE TABLE public.get_bytea_test \n" + 
+			"(\n" + 
+			"name varchar,\n" + 
+			"data bytea,\n" + 
+			"primary key (name)\n" + 
+			");\n" + 
+			"\n" + 
+			"insert into public.get_bytea_test (name,data)\n" + 
+			"values\n" + 
+			"('file1',convert_to('" + CONTENT + "','UTF8'));";
+
+
+	private static final String footPrintElimination = "DROP TABLE public.get_bytea_test;";
+
+
+	private static void loadTestData(Handler<AsyncResult<Void>> next, JDBCClient jdbc) 
+	{
+		jdbc.getConnection(connection -> {
+			if (connection.succeeded())
+			{
+				connection.result().query(testDataGeneration, queryResult -> 
+				{
+					connection.result().close();
+					next.handle(Future.succeededFuture());
+				});
+			}
+		});
+	}
+	private static void deployVerticle(AsyncResult<Void> previousOperation, DeploymentOptions options)
+	{
+		if (previousOperation.succeeded())
+		{
+			vertx.deployVerticle(PostgreSQLClientVerticle.class.getName(), options);
+		}
+	}
+
+	@BeforeClass
+	public static void before(TestContext context) 
+	{
+		vertx = Vertx.vertx();
+		DeploymentOptions options = new DeploymentOptions();
+
+		byte[] encoded;
+		JsonObject config;
+
+		try {
+			encoded = Files.readAllBytes(Paths.get("src/main/resources/config.json"));
+			config = new JsonObject(new String(encoded, Charset.defaultCharset()));
+
+			options.setConfig(config);
+			jdbc = JDBCClient.createShared(vertx, config , "PostgreSQL");
+
+			loadTestData((result) -> deployVerticle((result), options), jdbc);
+
+			while (true)
+			{
+				if (vertx.deploymentIDs().size() > 0)
+					break;
+			}
+		} catch 
+		(IOException e) 
+		{
+			e.printStackTrace();
+		}
+	}
+
+	@AfterClass
+	public static void after(TestContext context) 
+	{
+		jdbc.getConnection(connection -> {
+			if (connection.succeeded())
+			{
+				connection.result().query(footPrintElimination, queryResult -> 
+				{
+					connection.result().close();
+				});
+			}
+		});
+		vertx.close(context.asyncAssertSuccess());
+	}
+
+	@Test
+	public void getByteaWholeValueTest(TestContext testContext) 
+	{
+		WebClient webClient = WebClient.create(vertx);
+		final Async async = testContext.async();
+		webClient.get(80, "localhost", URI)
+		.as(BodyCodec.string())
+		.send(resp -> {
+
+			assertTrue(resp.result().statusCode() == 200);
+			assertTrue(resp.result().body().equals(CONTENT));
+			assertTrue(resp.result().getHeader("accept-ranges").equals("bytes"));
+
+			async.complete();
+		});
+	}
+
+	@Test
+	public void getByteaRangeTest(TestContext testContext) 
+	{
+		WebClient webClient = WebClient.create(vertx);
+		final Async async = testContext.async();
+		webClient.get(80, "localhost", URI)
+		.putHeader("range", "bytes=5-9")
+		.as(BodyCodec.string())
+		.send(resp -> {
+
+			assertTrue(resp.result().statusCode() == 206);
+			assertTrue(resp.result().body().equals("56789"));
+			assertTrue(resp.result().getHeader("content-range").equals("bytes 5-9/20"));
+
+			async.complete();
+		});
+	}
+
+	@Test
+	public void getByteaSuffixRangeTest(TestContext testContext) 
+	{
+		WebClient webClient = WebClient.create(vertx);
+		final Async async = testContext.async();
+		webClient.get(80, "localhost", URI)
+		.putHeader("range", "bytes=-3")
+		.as(BodyCodec.string())
+		.send(resp -> {
+
+			assertTrue(resp.result().statusCode() == 206);
+			assertTrue(resp.result().body().equals("hij"));
+			assertTrue(resp.result().getHeader("content-range").equals("bytes 17-19/20"));
+
+			async.complete();
+		});
+	}
+
+	@Test
+	public void getByteaUnsatisfiableRangeTest(TestContext testContext) 
+	{
+		WebClient webClient = WebClient.create(vertx);
+		final Async async = testContext.async();
+		webClient.get(80, "localhost", URI)
+		.putHeader("range", "bytes=20-")
+		.as(BodyCodec.string())
+		.send(resp -> {
+
+			assertTrue(resp.result().statusCode() == 416);
+			assertTrue(resp.result().getHeader("content-range").equals("bytes */20"));
+
+			async.complete();
+		});
+	}
+
+	@Test
+	public void getByteaStaleIfRangeTest(TestContext testContext) 
+	{
+		WebClient webClient = WebClient.create(vertx);
+		final Async async = testContext.async();
+		webClient.get(80, "localhost", URI)
+		.putHeader("range", "bytes=5-9")
+		.putHeader("if-range", "\"0-20\"")
+		.as(BodyCodec.string())
+		.send(resp -> {
+
+			assertTrue(resp.result().statusCode() == 200);
+			assertTrue(resp.result().body().equals(CONTENT));
+
+			async.complete();
+		});
+	}
+}
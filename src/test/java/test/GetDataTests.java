@@ -39,6 +39,9 @@ public class GetDataTests
 			"    \"where\": \"column1 = 'value1'\"" + 
 			"}";
 	private final String validRequestBody2 ="{}";
+	private final String slowRequestBody ="{" + 
+			"    \"where\": \"pg_sleep(1) IS NOT NULL\"" + 
+			"}";
 	private final String invalidRequestBody ="";
 
 	private static final String testDataGeneration = "CREATE TABLE public.get_data_test \n" + 
@@ -217,4 +220,46 @@ public class GetDataTests
 			async.complete();
 		}));
 	}
+
+	@Test
+	public void getDataDeadlineExceededTest(TestContext testContext) 
+	{
+		WebClient webClient = WebClient.create(vertx);
+		final Async async = testContext.async();
+		webClient.post(80, "localhost", "/select/public/get_data_test")
+		.putHeader("X-Timeout-Ms", "200")
+		.as(BodyCodec.string())
+		.sendJson(new JsonObject(slowRequestBody),(resp -> {
+
+			assertTrue(resp.result().statusCode() == 504);
+			assertTrue(new JsonObject(resp.result().body()).getBoolean("deadlineExceeded"));
+
+			async.complete();
+		}));
+	}
+
+	@Test
+	public void getDataInvalidDeadlineTest(TestContext testContext) 
+	{
+		WebClient webClient = WebClient.create(vertx);
+		final Async async = testContext.async();
+		webClient.post(80, "localhost", "/select/public/get_data_test")
+		.putHeader("X-Timeout-Ms", "-200")
+		.as(BodyCodec.string())
+		.sendJson(new JsonObject(slowRequestBody),(resp -> {
+
+			assertTrue(resp.result().statusCode() == 400);
+
+			webClient.post(80, "localhost", "/select/public/get_data_test")
+			.putHeader("X-Request-Deadline", "soon")
+			.as(BodyCodec.string())
+			.sendJson(new JsonObject(slowRequestBody),(second -> {
+
+				assertTrue(second.result().statusCode() == 400);
+				assertTrue(new JsonObject(second.result().body()).containsKey("error"));
+
+				async.complete();
+			}));
+		}));
+	}
 }
@@ -0,0 +1,97 @@
+package test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import io.vertx.core.json.JsonObject;
+import utils.HedgingPolicy;
+
+public class HedgingPolicyTests
+{
+	private static HedgingPolicy policy(double budgetRatio, double maxTokens, long minDelayMillis)
+	{
+		return new HedgingPolicy(new JsonObject().put("hedging", new JsonObject()
+				.put("enabled", true)
+				.put("percentile", 95)
+				.put("budget_ratio", budgetRatio)
+				.put("max_tokens", maxTokens)
+				.put("min_delay_ms", minDelayMillis)
+				.put("window_size", 100)));
+	}
+
+	@Test
+	public void disabledByDefaultTest()
+	{
+		assertFalse(new HedgingPolicy(new JsonObject()).isEnabled());
+		assertTrue(policy(0.05, 10, 5).isEnabled());
+	}
+
+	@Test
+	public void noDelayUntilEnoughSamplesTest()
+	{
+		HedgingPolicy policy = policy(0.05, 10, 5);
+
+		for (int latency = 1; latency < 50; latency++)
+		{
+			policy.record(latency);
+		}
+		assertTrue(policy.getDelayMillis() == -1);
+	}
+
+	@Test
+	public void delayIsPercentileOfLatenciesTest()
+	{
+		HedgingPolicy policy = policy(0.05, 10, 5);
+
+		for (int latency = 1; latency <= 50; latency++)
+		{
+			policy.record(latency);
+		}
+		//95th percentile of 1..50: the 48th value
+		assertTrue(policy.getDelayMillis() == 48);
+	}
+
+	@Test
+	public void delayNeverBelowMinimumTest()
+	{
+		HedgingPolicy policy = policy(0.05, 10, 5);
+
+		for (int i = 0; i < 50; i++)
+		{
+			policy.record(1);
+		}
+		assertTrue(policy.getDelayMillis() == 5);
+	}
+
+	@Test
+	public void hedgesBoundedByBudgetTest()
+	{
+		HedgingPolicy policy = policy(0.25, 10, 5);
+
+		for (int i = 0; i < 3; i++)
+		{
+			policy.record(10);
+		}
+		assertFalse(policy.tryAcquire());
+
+		policy.record(10);
+		assertTrue(policy.tryAcquire());
+		assertFalse(policy.tryAcquire());
+	}
+
+	@Test
+	public void tokensCappedAtMaximumTest()
+	{
+		HedgingPolicy policy = policy(1, 2, 5);
+
+		for (int i = 0; i < 10; i++)
+		{
+			policy.record(10);
+		}
+		assertTrue(policy.tryAcquire());
+		assertTrue(policy.tryAcquire());
+		assertFalse(policy.tryAcquire());
+	}
+}
@@ -19,6 +19,7 @@ import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.jdbc.JDBCClient;
 import io.vertx.ext.unit.Async;
@@ -26,6 +27,7 @@ import io.vertx.ext.unit.TestContext;
 import io.vertx.ext.unit.junit.VertxUnitRunner;
 import io.vertx.ext.web.client.WebClient;
 import io.vertx.ext.web.codec.BodyCodec;
+import utils.IdempotencyKeys;
 
 
 @RunWith(VertxUnitRunner.class)
@@ -274,4 +276,115 @@ public class InsertDataTests {
 
 
 
+	private static JsonObject rowsBody(String... keys)
+	{
+		JsonArray values = new JsonArray();
+		for (String key : keys)
+		{
+			values.add(new JsonArray().add(key).add(true));
+		}
+		return new JsonObject().put("columns", "column1,column2").put("values", values);
+	}
+
+	@Test
+	public void insertIdempotentRetryReplayedTest(TestContext testContext)
+	{
+		WebClient webClient = WebClient.create(vertx);
+		final Async async = testContext.async();
+
+		webClient.post(80, "localhost", "/insert/public/insert_data_test")
+		.putHeader(IdempotencyKeys.KEY_HEADER, "insert-replayed")
+		.as(BodyCodec.string())
+		.sendJson(rowsBody("IdempotentRow1"), resp -> {
+
+			assertTrue(resp.result().statusCode() == 200);
+
+			webClient.post(80, "localhost", "/insert/public/insert_data_test")
+			.putHeader(IdempotencyKeys.KEY_HEADER, "insert-replayed")
+			.as(BodyCodec.string())
+			.sendJson(rowsBody("IdempotentRow1"), resp2 -> {
+
+				//Executed again, the insert would break the primary key
+				assertTrue(resp2.result().statusCode() == 200);
+				assertTrue("true".equals(resp2.result().getHeader(IdempotencyKeys.REPLAYED_HEADER)));
+				assertTrue(resp2.result().body().equals(resp.result().body()));
+				async.complete();
+			});
+		});
+	}
+
+	@Test
+	public void insertInvalidIdempotencyKeyTest(TestContext testContext)
+	{
+		WebClient webClient = WebClient.create(vertx);
+		final Async async = testContext.async();
+
+		webClient.post(80, "localhost", "/insert/public/insert_data_test")
+		.putHeader(IdempotencyKeys.KEY_HEADER, " ")
+		.as(BodyCodec.string())
+		.sendJson(rowsBody("IdempotentRow4"), resp -> {
+
+			assertTrue(resp.result().statusCode() == 400);
+			assertTrue(new JsonObject(resp.result().body()).containsKey("error"));
+			async.complete();
+		});
+	}
+
+	@Test
+	public void insertIdempotencyKeyReusedTest(TestContext testContext)
+	{
+		WebClient webClient = WebClient.create(vertx);
+		final Async async = testContext.async();
+
+		webClient.post(80, "localhost", "/insert/public/insert_data_test")
+		.putHeader(IdempotencyKeys.KEY_HEADER, "insert-reused")
+		.as(BodyCodec.string())
+		.sendJson(rowsBody("IdempotentRow2"), resp -> {
+
+			assertTrue(resp.result().statusCode() == 200);
+
+			webClient.post(80, "localhost", "/insert/public/insert_data_test")
+			.putHeader(IdempotencyKeys.KEY_HEADER, "insert-reused")
+			.as(BodyCodec.string())
+			.sendJson(rowsBody("IdempotentRow3"), resp2 -> {
+
+				assertTrue(resp2.result().statusCode() == 422);
+				assertTrue(resp2.result().getHeader(IdempotencyKeys.REPLAYED_HEADER) == null);
+				async.complete();
+			});
+		});
+	}
+
+	@Test
+	public void insertIdempotencyKeyInUseTest(TestContext testContext)
+	{
+		WebClient webClient = WebClient.create(vertx);
+		final Async async = testContext.async();
+
+		//The table is locked, so the first insert keeps running while the retry arrives
+		jdbc.getConnection(connection -> {
+			connection.result().setAutoCommit(false, autoCommit ->
+			connection.result().execute("LOCK TABLE public.insert_data_test IN EXCLUSIVE MODE", locked -> {
+
+				webClient.post(80, "localhost", "/insert/public/insert_data_test")
+				.putHeader(IdempotencyKeys.KEY_HEADER, "insert-in-use")
+				.as(BodyCodec.string())
+				.sendJson(rowsBody("IdempotentRow4"), resp -> {
+
+					assertTrue(resp.result().statusCode() == 200);
+					async.complete();
+				});
+
+				vertx.setTimer(500, timerID -> webClient.post(80, "localhost", "/insert/public/insert_data_test")
+				.putHeader(IdempotencyKeys.KEY_HEADER, "insert-in-use")
+				.as(BodyCodec.string())
+				.sendJson(rowsBody("IdempotentRow4"), resp2 -> {
+
+					assertTrue(resp2.result().statusCode() == 409);
+					connection.result().commit(committed -> connection.result().close());
+				}));
+			}));
+		});
+	}
+
 }
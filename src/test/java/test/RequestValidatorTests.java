@@ -0,0 +1,96 @@
+package test;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import utils.RequestValidator.TableValidator;
+
+public class RequestValidatorTests
+{
+	private static final TableValidator ORDERS = TableValidator.compile(Arrays.asList(
+			column("id", "integer", false, null),
+			column("code", "character varying", true, 5),
+			column("amount", "numeric", true, null),
+			column("paid", "boolean", true, null),
+			column("reference", "uuid", true, null),
+			column("Notes", "text", true, null),
+			column("payload", "jsonb", true, null)));
+
+	private static JsonArray column(String name, String dataType, boolean nullable, Integer maxLength)
+	{
+		JsonArray column = new JsonArray().add(name).add(dataType).add(nullable ? "YES" : "NO");
+		return maxLength == null ? column.addNull() : column.add(maxLength);
+	}
+
+	private static String insert(String columns, JsonArray... rows)
+	{
+		return ORDERS.check("insert", new JsonObject().put("columns", columns).put("values", new JsonArray(Arrays.asList((Object[]) rows))));
+	}
+
+	@Test
+	public void validInsertTest()
+	{
+		assertTrue(insert("id, code, amount, paid, reference, \"Notes\", payload",
+				new JsonArray().add(1).add("AB").add(12.5).add(true).add("a0eebc99-9c0b-4ef8-bb6d-6bb9bd380a11").add("text").add(new JsonObject().put("a", 1)),
+				new JsonArray().add("2").add(12345).add("1e3").add("off").addNull().add(3).add("[]")) == null);
+	}
+
+	@Test
+	public void unknownOrRepeatedColumnTest()
+	{
+		assertTrue(insert("id, missing", new JsonArray().add(1).add(2)).equals("unknown column missing"));
+		assertTrue(insert("id, notes", new JsonArray().add(1).add("x")).equals("unknown column notes"));
+		assertTrue(insert("id, ID", new JsonArray().add(1).add(2)).equals("column id is repeated"));
+	}
+
+	@Test
+	public void rowSizeTest()
+	{
+		assertTrue(insert("id, code", new JsonArray().add(1)).equals("row 1 has 1 values, expected 2"));
+	}
+
+	@Test
+	public void typeMismatchTest()
+	{
+		assertTrue(insert("id", new JsonArray().add("one")).startsWith("row 1, column id: expected integer"));
+		assertTrue(insert("id", new JsonArray().add(1.5)).startsWith("row 1, column id: expected integer"));
+		assertTrue(insert("amount", new JsonArray().add("12,5")).startsWith("row 1, column amount: expected numeric"));
+		assertTrue(insert("paid", new JsonArray().add("maybe")).startsWith("row 1, column paid: expected boolean"));
+		assertTrue(insert("reference", new JsonArray().add("not-a-uuid")).startsWith("row 1, column reference: expected uuid"));
+	}
+
+	@Test
+	public void lengthAndNullabilityTest()
+	{
+		assertTrue(insert("id, code", new JsonArray().add(1).add("ABCDEF")).equals("row 1, column code: longer than 5 characters"));
+		//Five code points, seven chars
+		assertTrue(insert("id, code", new JsonArray().add(1).add("\uD83D\uDE00\uD83D\uDE00abc")) == null);
+		assertTrue(insert("id", new JsonArray().addNull()).equals("row 1, column id: null in a NOT NULL column"));
+	}
+
+	@Test
+	public void selectColumnsTest()
+	{
+		assertTrue(ORDERS.check("select", new JsonObject().put("select", "id, \"Notes\", count(*)").put("order_by", "amount DESC NULLS LAST")) == null);
+		assertTrue(ORDERS.check("select", new JsonObject().put("select", "id, total")).equals("unknown column total"));
+		assertTrue(ORDERS.check("select", new JsonObject().put("order_by", "created_at DESC")).equals("unknown column created_at"));
+	}
+
+	@Test
+	public void deleteNotCheckedAgainstColumnsTest()
+	{
+		assertTrue(ORDERS.check("delete", new JsonObject().put("where", "missing = 1")) == null);
+	}
+
+	@Test
+	public void unknownTableHasNoColumnsTest()
+	{
+		assertTrue(TableValidator.compile(Collections.emptyList()).check("select", new JsonObject().put("select", "id")).equals("unknown column id"));
+	}
+}
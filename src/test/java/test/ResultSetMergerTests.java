@@ -0,0 +1,113 @@
+package test;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.ext.sql.ResultSet;
+import utils.ResultSetMerger;
+
+public class ResultSetMergerTests
+{
+	private static final List<String> COLUMNS = Arrays.asList("id", "name");
+
+	private static ResultSet part(JsonArray... rows)
+	{
+		return new ResultSet(COLUMNS, Arrays.asList(rows), null);
+	}
+
+	private static JsonArray row(Object id, Object name)
+	{
+		return id == null ? new JsonArray().addNull().add(name) : new JsonArray().add(id).add(name);
+	}
+
+	private static JsonArray column(JsonArray rows, int index)
+	{
+		List<Object> values = new ArrayList<>();
+		for (int i = 0; i < rows.size(); i++)
+		{
+			values.add(rows.getJsonArray(i).getValue(index));
+		}
+		return new JsonArray(values);
+	}
+
+	@Test
+	public void unorderedPartsConcatenatedTest()
+	{
+		JsonArray merged = ResultSetMerger.merge(Arrays.asList(part(row(3, "c"), row(1, "a")), part(row(2, "b"))), null);
+
+		assertTrue(column(merged, 0).equals(new JsonArray().add(3).add(1).add(2)));
+	}
+
+	@Test
+	public void orderedPartsMergedTest()
+	{
+		JsonArray merged = ResultSetMerger.merge(Arrays.asList(
+				part(row(1, "a"), row(4, "d"), row(7, "g")),
+				part(row(2, "b"), row(5, "e")),
+				part(),
+				part(row(3, "c"), row(6, "f"), row(8, "h"))), "id");
+
+		assertTrue(column(merged, 0).equals(new JsonArray().add(1).add(2).add(3).add(4).add(5).add(6).add(7).add(8)));
+	}
+
+	@Test
+	public void descendingOrderPutsNullsFirstTest()
+	{
+		JsonArray merged = ResultSetMerger.merge(Arrays.asList(
+				part(row(null, "a"), row(5, "b"), row(1, "c")),
+				part(row(null, "d"), row(3, "e"))), "\"ID\" DESC");
+
+		assertTrue(column(merged, 0).equals(new JsonArray().addNull().addNull().add(5).add(3).add(1)));
+	}
+
+	@Test
+	public void mixedNumbersComparedByValueTest()
+	{
+		JsonArray merged = ResultSetMerger.merge(Arrays.asList(
+				part(row(1, "a"), row(2.5, "b")),
+				part(row(2L, "c"), row(10, "d"))), "id");
+
+		assertTrue(column(merged, 1).equals(new JsonArray().add("a").add("c").add("b").add("d")));
+	}
+
+	@Test
+	public void nonFiniteNumbersOrderedLikePostgreSQLTest()
+	{
+		JsonArray merged = ResultSetMerger.merge(Arrays.asList(
+				part(row(Double.NEGATIVE_INFINITY, "a"), row(1.5, "b"), row(Double.NaN, "c")),
+				part(row(1, "d"), row(Double.POSITIVE_INFINITY, "e"))), "id");
+
+		assertTrue(column(merged, 1).equals(new JsonArray().add("a").add("d").add("b").add("e").add("c")));
+	}
+
+	@Test
+	public void textMergedInCollationCOrderTest()
+	{
+		JsonArray merged = ResultSetMerger.merge(Arrays.asList(
+				part(row(1, "B"), row(2, "a"), row(3, "\uFFFD")),
+				part(row(4, "Z"), row(5, "\u00E9"), row(6, "\uD83D\uDE00"))), "name");
+
+		assertTrue(column(merged, 0).equals(new JsonArray().add(1).add(4).add(2).add(5).add(3).add(6)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void orderColumnNotSelectedTest()
+	{
+		ResultSetMerger.merge(Arrays.asList(part(row(1, "a")), part(row(2, "b"))), "created_at");
+	}
+
+	@Test
+	public void collatableColumnsOrderedWithCollationCTest()
+	{
+		String order = ResultSetMerger.collatedOrder("name DESC, id,\"Title\" ASC NULLS FIRST", new HashSet<>(Arrays.asList("name", "title")));
+
+		assertTrue(order.equals("name COLLATE \"C\" DESC, id, \"Title\" COLLATE \"C\" ASC NULLS FIRST"));
+	}
+}
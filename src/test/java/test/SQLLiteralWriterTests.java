@@ -0,0 +1,115 @@
+package test;
+
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import utils.SQLLiteralWriter;
+
+public class SQLLiteralWriterTests
+{
+	/**
+	 *
+	 * @return The VALUES of an insert of a single row of one value, kept as is (as decoded from CBOR or MessagePack, see BodyCodec).
+	 */
+	private static String literal(Object value)
+	{
+		JsonArray row = new JsonArray(new ArrayList<>(Collections.singletonList(value)));
+		String sql = SQLLiteralWriter.insertSQL("public.t", "c", new JsonArray().add(row));
+		return sql.substring("INSERT INTO public.t (c) VALUES (".length(), sql.length() - ")\n;".length());
+	}
+
+	@Test
+	public void statementTest()
+	{
+		String sql = SQLLiteralWriter.insertSQL("public.t", "a,b", new JsonArray()
+				.add(new JsonArray().add(1).add("x"))
+				.add(new JsonArray().add(2).addNull()));
+
+		assertTrue(sql.equals("INSERT INTO public.t (a,b) VALUES (1,'x'),\n(2,null)\n;"));
+	}
+
+	@Test
+	public void scalarsTest()
+	{
+		assertTrue(literal(null).equals("null"));
+		assertTrue(literal(42).equals("42"));
+		assertTrue(literal(-9000000000L).equals("-9000000000"));
+		assertTrue(literal(true).equals("true"));
+		assertTrue(literal(1.5).equals("1.5"));
+		assertTrue(literal(new BigDecimal("1E+3")).equals("1000"));
+		assertTrue(literal(new BigInteger("123456789012345678901234567890")).equals("123456789012345678901234567890"));
+	}
+
+	@Test
+	public void nonFiniteNumbersQuotedTest()
+	{
+		assertTrue(literal(Double.NaN).equals("'NaN'"));
+		assertTrue(literal(Double.POSITIVE_INFINITY).equals("'Infinity'"));
+		assertTrue(literal(Float.NEGATIVE_INFINITY).equals("'-Infinity'"));
+	}
+
+	@Test
+	public void quotesDoubledTest()
+	{
+		assertTrue(literal("O'Brien").equals("'O''Brien'"));
+		assertTrue(literal("'); DROP TABLE t; --").equals("'''); DROP TABLE t; --'"));
+		assertTrue(literal("").equals("''"));
+	}
+
+	@Test
+	public void backslashesWrittenAsEscapeStringTest()
+	{
+		assertTrue(literal("C:\\temp").equals("E'C:\\\\temp'"));
+		assertTrue(literal("\\' OR 1=1 --").equals("E'\\\\'' OR 1=1 --'"));
+	}
+
+	@Test
+	public void bytesWrittenAsHexByteaTest()
+	{
+		assertTrue(literal(new byte[] {0, 1, (byte) 0xAB, (byte) 0xFF}).equals("E'\\\\x0001abff'::bytea"));
+		assertTrue(literal(new byte[0]).equals("E'\\\\x'::bytea"));
+	}
+
+	@Test
+	public void instantsQuotedTest()
+	{
+		assertTrue(literal(Instant.ofEpochSecond(0)).equals("'1970-01-01T00:00:00Z'"));
+	}
+
+	@Test
+	public void arraysTest()
+	{
+		assertTrue(literal(new JsonArray().add(1).add(2)).equals("ARRAY[1,2]"));
+		assertTrue(literal(new JsonArray().add("a'b").addNull()).equals("ARRAY['a''b',null]"));
+		assertTrue(literal(new JsonArray().add(new JsonArray().add(1)).add(new JsonArray().add(2))).equals("ARRAY[[1],[2]]"));
+		assertTrue(literal(new JsonArray()).equals("'{}'"));
+	}
+
+	@Test
+	public void objectsWrittenAsQuotedJsonTest()
+	{
+		assertTrue(literal(new JsonObject().put("name", "O'Brien")).equals("'{\"name\":\"O''Brien\"}'"));
+	}
+
+	@Test
+	public void bufferReusedAcrossStatementsTest()
+	{
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 100000; i++)
+		{
+			large.append("0123456789");
+		}
+
+		assertTrue(literal(large.toString()).length() == large.length() + 2);
+		assertTrue(literal("small").equals("'small'"));
+	}
+}
@@ -0,0 +1,128 @@
+package test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import utils.ShardMap;
+
+public class ShardMapTests
+{
+	private static final List<Integer> ALL_SHARDS = Arrays.asList(0, 1, 2);
+
+	private static Vertx vertx;
+	private static ShardMap shardMap;
+
+	private static ShardMap shardMap(int shards)
+	{
+		JsonArray urls = new JsonArray();
+		for (int i = 0; i < shards; i++)
+		{
+			urls.add("jdbc:postgresql://localhost:5432/shard_" + i);
+		}
+
+		return new ShardMap(vertx, new JsonObject().put("shards", new JsonObject()
+				.put("urls", urls)
+				.put("virtual_nodes", 64)
+				.put("tables", new JsonObject().put("public.orders", "customer_id"))));
+	}
+
+	@BeforeClass
+	public static void before()
+	{
+		vertx = Vertx.vertx();
+		shardMap = shardMap(3);
+	}
+
+	@AfterClass
+	public static void after()
+	{
+		shardMap.close();
+		vertx.close();
+	}
+
+	@Test
+	public void shardedTablesTest()
+	{
+		assertTrue(shardMap.isSharded("PUBLIC", "Orders"));
+		assertFalse(shardMap.isSharded("public", "customers"));
+		assertTrue(shardMap.shardKeyOf("public", "orders").equals("customer_id"));
+	}
+
+	@Test
+	public void noConditionRunsEverywhereTest()
+	{
+		assertTrue(shardMap.shardsFor("public", "orders", null).equals(ALL_SHARDS));
+		assertTrue(shardMap.shardsFor("public", "orders", "status = 'open'").equals(ALL_SHARDS));
+	}
+
+	@Test
+	public void numericLiteralPrunesTest()
+	{
+		assertTrue(shardMap.shardsFor("public", "orders", "customer_id = 42").equals(Collections.singletonList(shardMap.shardFor("42"))));
+		assertTrue(shardMap.shardsFor("public", "orders", "status = 'open' AND \"customer_id\" = -7;").equals(Collections.singletonList(shardMap.shardFor("-7"))));
+		assertTrue(shardMap.shardsFor("public", "orders", "customer_id=1.5").equals(Collections.singletonList(shardMap.shardFor("1.5"))));
+	}
+
+	@Test
+	public void equalNumbersOnSameShardTest()
+	{
+		int shard = shardMap.shardFor("42");
+
+		assertTrue(shardMap.shardsFor("public", "orders", "customer_id = 42.0").equals(Collections.singletonList(shard)));
+		assertTrue(shardMap.shardsFor("public", "orders", "customer_id = 042").equals(Collections.singletonList(shard)));
+		assertTrue(shardMap.shardsFor("public", "orders", "customer_id = '42'").equals(Collections.singletonList(shard)));
+		//Inserted rows are hashed from the JSON value of their shard key
+		assertTrue(shardMap.shardFor(String.valueOf(42L)) == shard && shardMap.shardFor(String.valueOf(42.0d)) == shard && shardMap.shardFor(String.valueOf(4.2e1f)) == shard);
+		assertTrue(ShardMap.canonicalKey("-0.50").equals("-0.5") && ShardMap.canonicalKey("1.0E10").equals("10000000000") && ShardMap.canonicalKey("0.0").equals("0"));
+		assertTrue(ShardMap.canonicalKey("42abc").equals("42abc") && ShardMap.canonicalKey("O'Brien").equals("O'Brien"));
+	}
+
+	@Test
+	public void quotedLiteralPrunesTest()
+	{
+		assertTrue(shardMap.shardsFor("public", "orders", "customer_id = 'O''Brien'").equals(Collections.singletonList(shardMap.shardFor("O'Brien"))));
+	}
+
+	@Test
+	public void identifierDoesNotPruneTest()
+	{
+		assertTrue(shardMap.shardsFor("public", "orders", "customer_id = other_col").equals(ALL_SHARDS));
+		assertTrue(shardMap.shardsFor("public", "orders", "customer_id = orders.referrer_id").equals(ALL_SHARDS));
+		assertTrue(shardMap.shardsFor("public", "orders", "customer_id = 42abc").equals(ALL_SHARDS));
+	}
+
+	@Test
+	public void disjunctionsAndExpressionsDoNotPruneTest()
+	{
+		assertTrue(shardMap.shardsFor("public", "orders", "customer_id = 42 OR status = 'open'").equals(ALL_SHARDS));
+		assertTrue(shardMap.shardsFor("public", "orders", "customer_id IN (1, 2)").equals(ALL_SHARDS));
+		assertTrue(shardMap.shardsFor("public", "orders", "customer_id = 40 + 2").equals(ALL_SHARDS));
+	}
+
+	@Test
+	public void addingShardOnlyMovesKeysToItTest()
+	{
+		ShardMap grown = shardMap(4);
+
+		for (int key = 0; key < 1000; key++)
+		{
+			int before = shardMap.shardFor(String.valueOf(key));
+			int after = grown.shardFor(String.valueOf(key));
+
+			assertTrue(before >= 0 && before < 3);
+			assertTrue(after == before || after == 3);
+		}
+		grown.close();
+	}
+}
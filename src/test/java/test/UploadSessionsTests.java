@@ -0,0 +1,33 @@
+package test;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import utils.UploadSessions;
+
+public class UploadSessionsTests
+{
+	@Test
+	public void columnsQuotedTest()
+	{
+		assertTrue(UploadSessions.quoteColumns("id,Name , created_at").equals("\"id\", \"name\", \"created_at\""));
+		assertTrue(UploadSessions.quoteColumns("id").equals("\"id\""));
+	}
+
+	@Test
+	public void noColumnsTest()
+	{
+		assertTrue(UploadSessions.quoteColumns(null) == null);
+	}
+
+	@Test
+	public void expressionsRejectedTest()
+	{
+		assertTrue(UploadSessions.quoteColumns("id, (SELECT password FROM users LIMIT 1) AS name") == null);
+		assertTrue(UploadSessions.quoteColumns("id, name FROM pg_authid --") == null);
+		assertTrue(UploadSessions.quoteColumns("\"id\"") == null);
+		assertTrue(UploadSessions.quoteColumns("id,,name") == null);
+		assertTrue(UploadSessions.quoteColumns("id,") == null);
+	}
+}
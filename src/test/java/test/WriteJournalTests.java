@@ -0,0 +1,173 @@
+package test;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import enums.OperationClass;
+import handlers.InsertDataHandler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.codec.BodyCodec;
+import io.vertx.ext.web.handler.BodyHandler;
+import utils.Bulkhead;
+import utils.DatabasePools;
+import utils.ReplicaMonitor;
+import utils.ShardMap;
+import utils.WriteJournal;
+
+@RunWith(VertxUnitRunner.class)
+public class WriteJournalTests
+{
+	private static final Logger LOGGER = LogManager.getLogger(WriteJournalTests.class);
+	//Nothing listens on port 1, so the database is unreachable
+	private static final String UNREACHABLE_URL = "jdbc:postgresql://localhost:1/unreachable";
+
+	private static Vertx vertx;
+
+	@BeforeClass
+	public static void before(TestContext context)
+	{
+		vertx = Vertx.vertx();
+	}
+
+	@AfterClass
+	public static void after(TestContext context)
+	{
+		vertx.close(context.asyncAssertSuccess());
+	}
+
+	private static JsonObject config(File directory)
+	{
+		return new JsonObject()
+				.put("url", UNREACHABLE_URL)
+				.put("driver_class", "org.postgresql.Driver")
+				.put("acquire_retry_attempts", 1)
+				.put("acquire_retry_delay", 10)
+				.put("write_journal", new JsonObject()
+						.put("enabled", true)
+						.put("directory", directory.getPath())
+						.put("segment_mb", 1)
+						.put("force_writes", false)
+						.put("replay_interval_ms", 3600000));
+	}
+
+	/**
+	 *
+	 * Opens a journal on a directory, appends inserts to it, then closes it.
+	 *
+	 * @return The sequence given to the last insert.
+	 */
+	private static long appendAndClose(TestContext testContext, File directory, int inserts)
+	{
+		WriteJournal journal = new WriteJournal(vertx, config(directory), LOGGER);
+		long[] last = new long[1];
+		Async async = testContext.async();
+
+		journal.open(null, testContext.asyncAssertSuccess(opened -> append(testContext, journal, inserts, last, async)));
+		async.awaitSuccess(10000);
+		journal.close();
+		return last[0];
+	}
+
+	private static void append(TestContext testContext, WriteJournal journal, int remaining, long[] last, Async async)
+	{
+		if (remaining == 0)
+		{
+			async.complete();
+			return;
+		}
+		journal.append("public.orders", "INSERT INTO public.orders (id) VALUES (" + remaining + ")", testContext.asyncAssertSuccess(sequence -> {
+			last[0] = sequence;
+			append(testContext, journal, remaining - 1, last, async);
+		}));
+	}
+
+	/**
+	 *
+	 * Flips a byte of the payload of an entry of the first segment.
+	 */
+	private static void corruptEntry(File directory, int index) throws IOException
+	{
+		File segment = new File(directory, String.format("%020d", 1) + ".journal");
+
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw"))
+		{
+			long position = 0;
+			for (int i = 0; i < index; i++)
+			{
+				file.seek(position);
+				position += 16 + file.readInt();
+			}
+			file.seek(position + 16);
+			int value = file.read();
+			file.seek(position + 16);
+			file.write(value ^ 0xFF);
+		}
+	}
+
+	@Test
+	public void entriesRecoveredAfterRestartTest(TestContext testContext) throws IOException
+	{
+		File directory = Files.createTempDirectory("journal").toFile();
+
+		assertTrue(appendAndClose(testContext, directory, 3) == 3);
+		assertTrue(appendAndClose(testContext, directory, 2) == 5);
+	}
+
+	@Test
+	public void tornEntryAndFollowingOnesDroppedTest(TestContext testContext) throws IOException
+	{
+		File directory = Files.createTempDirectory("journal").toFile();
+
+		assertTrue(appendAndClose(testContext, directory, 4) == 4);
+		corruptEntry(directory, 2);
+
+		//Entries 3 and 4 are lost, the journal goes on from entry 2
+		assertTrue(appendAndClose(testContext, directory, 1) == 3);
+		assertTrue(appendAndClose(testContext, directory, 1) == 4);
+	}
+
+	@Test
+	public void insertJournaledWhileDatabaseUnreachableTest(TestContext testContext) throws IOException
+	{
+		JsonObject config = config(Files.createTempDirectory("journal").toFile());
+		Bulkhead bulkhead = new Bulkhead(vertx, config, OperationClass.WRITE, new ReplicaMonitor(vertx, config, LOGGER), new DatabasePools(vertx, config, LOGGER), LOGGER);
+		WriteJournal journal = new WriteJournal(vertx, config, LOGGER);
+		WebClient webClient = WebClient.create(vertx);
+		Async async = testContext.async();
+
+		Router router = Router.router(vertx);
+		router.route().handler(BodyHandler.create());
+		router.post("/insert/:schema/:name").handler(new InsertDataHandler(bulkhead, new ShardMap(vertx, config), journal, LOGGER));
+
+		bulkhead.start(testContext.asyncAssertSuccess(started -> journal.open(bulkhead, testContext.asyncAssertSuccess(opened ->
+			vertx.createHttpServer().requestHandler(router).listen(0, testContext.asyncAssertSuccess(server ->
+				webClient.post(server.actualPort(), "localhost", "/insert/public/orders")
+				.as(BodyCodec.jsonObject())
+				.sendJsonObject(new JsonObject().put("columns", "id").put("values", new JsonArray().add(new JsonArray().add(1))), testContext.asyncAssertSuccess(resp -> {
+					assertTrue(resp.statusCode() == 202);
+					assertTrue(resp.body().getBoolean("journaled"));
+					assertTrue(resp.body().getLong("sequence") == 1);
+					assertTrue(journal.hasBacklog());
+					server.close();
+					async.complete();
+				}))))))));
+	}
+}